@@ -15,6 +15,7 @@ public class ActivityLifecycleManager implements Application.ActivityLifecycleCa
     private static final String TAG = "ActivityLifecycle";
     private final HeatmapSDK sdkInstance;
     private String currentScreenName;
+    private ViewBoundsTracker viewBounds;
 
     public ActivityLifecycleManager(HeatmapSDK sdkInstance) {
         this.sdkInstance = sdkInstance;
@@ -38,7 +39,11 @@ public class ActivityLifecycleManager implements Application.ActivityLifecycleCa
         // Attach touch listener to the root view of the activity
         View rootView = activity.getWindow().getDecorView().getRootView();
         if (rootView instanceof ViewGroup) {
-            rootView.setOnTouchListener(new TouchEventInterceptor(activity.getApplicationContext(),sdkInstance, currentScreenName));
+            // Events are tagged with the view they hit, looked up in bounds indexed after each layout.
+            viewBounds = new ViewBoundsTracker(sdkInstance, rootView);
+            viewBounds.attach();
+            rootView.setOnTouchListener(new TouchEventInterceptor(activity.getApplicationContext(), sdkInstance,
+                    currentScreenName, viewBounds));
         } else {
             Log.e(TAG, "Root view is not a ViewGroup, cannot attach touch listener.");
         }
@@ -53,6 +58,12 @@ public class ActivityLifecycleManager implements Application.ActivityLifecycleCa
         if (rootView != null) {
             rootView.setOnTouchListener(null);
         }
+        if (viewBounds != null) {
+            viewBounds.detach();
+            viewBounds = null;
+        }
+        sdkInstance.cancelHeatmapRender(pausedScreen);
+        sdkInstance.persistBufferedEvents();
         currentScreenName = null;
     }
 
@@ -0,0 +1,161 @@
+package com.emanthus.heatmap.sdk;
+
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when stored events are uploaded.
+ * <p>
+ * A flush starts when the waiting events reach the configured count or byte threshold, when the
+ * oldest of them reaches the maximum age, or when one is requested explicitly. Requests made while
+ * a flush is running are coalesced into a single follow-up flush. A failed flush is retried with
+ * exponential backoff and jitter; explicit requests do not bypass a pending retry.
+ */
+class FlushScheduler {
+
+    private static final String TAG = "FlushScheduler";
+
+    /**
+     * Uploads stored events on the executor thread, reporting each uploaded page
+     * through {@link #onEventsUploaded(int)}.
+     */
+    interface FlushTask {
+        /** @return false if the flush stopped because an upload failed. */
+        boolean flush();
+    }
+
+    private final HeatmapConfig config;
+    private final ScheduledExecutorService executor;
+    private final FlushTask task;
+    private final Random random = new Random();
+    private final Runnable runFlush = this::runFlush;
+    private final Runnable ageCheck = this::onMaxAgeReached;
+
+    // Guarded by this.
+    private int pendingCount;
+    private long pendingBytes;
+    private boolean flushQueued;
+    private boolean flushRunning;
+    private boolean flushAgain;
+    private boolean ageCheckScheduled;
+    private int consecutiveFailures;
+    private long retryAtMillis;
+
+    FlushScheduler(HeatmapConfig config, ScheduledExecutorService executor, FlushTask task) {
+        this.config = config;
+        this.executor = executor;
+        this.task = task;
+    }
+
+    /** Asks for a flush as soon as possible. */
+    synchronized void requestFlush() {
+        if (flushRunning) {
+            flushAgain = true;
+            return;
+        }
+        if (flushQueued) {
+            return;
+        }
+        long delay = Math.max(0, retryAtMillis - System.currentTimeMillis());
+        if (schedule(runFlush, delay)) {
+            flushQueued = true;
+        }
+    }
+
+    /**
+     * Reports events that were stored and now wait for upload.
+     * @param oldestTimestamp When the oldest of them was recorded.
+     */
+    synchronized void onEventsStored(int count, long bytes, long oldestTimestamp) {
+        if (count <= 0) {
+            return;
+        }
+        pendingCount += count;
+        pendingBytes += bytes;
+        if (pendingCount >= config.getFlushEventCount() || pendingBytes >= config.getFlushBytes()) {
+            Log.d(TAG, "Flush threshold reached: " + pendingCount + " events, ~" + pendingBytes + " bytes.");
+            requestFlush();
+        } else if (!ageCheckScheduled) {
+            long delay = Math.max(0, oldestTimestamp + config.getFlushMaxAgeMs() - System.currentTimeMillis());
+            ageCheckScheduled = schedule(ageCheck, delay);
+        }
+    }
+
+    /**
+     * @return false if the executor refused the task, e.g. after shutdown. The flags that say
+     * a task is scheduled are only set once it is, so a refusal never leaves them stuck.
+     */
+    private boolean schedule(Runnable task, long delayMs) {
+        try {
+            executor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Could not schedule a flush.", e);
+            return false;
+        }
+    }
+
+    /** Reports events that were uploaded and removed from storage. */
+    synchronized void onEventsUploaded(int count) {
+        if (pendingCount <= count) {
+            pendingCount = 0;
+            pendingBytes = 0;
+        } else {
+            pendingBytes = pendingBytes * (pendingCount - count) / pendingCount;
+            pendingCount -= count;
+        }
+    }
+
+    private void onMaxAgeReached() {
+        synchronized (this) {
+            ageCheckScheduled = false;
+            if (pendingCount == 0) {
+                return;
+            }
+        }
+        Log.d(TAG, "Oldest stored event reached the max age.");
+        requestFlush();
+    }
+
+    private void runFlush() {
+        synchronized (this) {
+            flushQueued = false;
+            flushRunning = true;
+            flushAgain = false;
+        }
+
+        boolean succeeded = task.flush();
+
+        synchronized (this) {
+            flushRunning = false;
+            if (succeeded) {
+                consecutiveFailures = 0;
+                retryAtMillis = 0;
+                if (flushAgain) {
+                    requestFlush();
+                }
+            } else {
+                consecutiveFailures++;
+                long delay = nextRetryDelay();
+                retryAtMillis = System.currentTimeMillis() + delay;
+                Log.w(TAG, "Flush failed " + consecutiveFailures + " time(s). Retrying in " + delay + " ms.");
+                requestFlush();
+            }
+        }
+    }
+
+    /** Exponential backoff with "equal jitter": half of the delay is fixed, half is random. */
+    private long nextRetryDelay() {
+        long ceiling = config.getRetryBaseDelayMs();
+        for (int i = 1; i < consecutiveFailures && ceiling < config.getRetryMaxDelayMs(); i++) {
+            ceiling *= 2;
+        }
+        ceiling = Math.min(ceiling, config.getRetryMaxDelayMs());
+        long half = ceiling / 2;
+        return half + (long) (random.nextDouble() * (ceiling - half));
+    }
+}
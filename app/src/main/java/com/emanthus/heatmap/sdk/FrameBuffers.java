@@ -0,0 +1,73 @@
+package com.emanthus.heatmap.sdk;
+
+/**
+ * Front and back buffers for frames rendered in the background. The front buffer is the last finished frame,
+ * the one to draw. A render is handed the back buffer to draw into, and its frame is swapped in when it
+ * finishes, unless it was cancelled or another render started since. Not thread-safe: call it from the
+ * thread that draws.
+ * @param <R> Identifies a render.
+ * @param <F> A frame buffer.
+ */
+final class FrameBuffers<R, F> {
+
+    private F front;
+    private F back;
+    private R pending;
+
+    /** The last finished frame, or null before the first. */
+    F getFront() {
+        return front;
+    }
+
+    R getPending() {
+        return pending;
+    }
+
+    /**
+     * Starts a render, which replaces any pending one.
+     * @return The buffer the render may draw into, or null if it needs a new one.
+     */
+    F begin(R render) {
+        pending = render;
+        F reuse = back;
+        back = null;
+        return reuse;
+    }
+
+    /**
+     * Ends a render.
+     * @param frame The rendered frame, or null if the render was cancelled before it finished.
+     * @param reuse The buffer {@link #begin} handed the render.
+     * @return Whether the frame became the front buffer.
+     */
+    boolean finish(R render, F frame, F reuse) {
+        if (frame == null || render != pending) {
+            if (render == pending) {
+                pending = null;
+            }
+            recycle(frame != null ? frame : reuse);
+            return false;
+        }
+        pending = null;
+        back = front;
+        front = frame;
+        return true;
+    }
+
+    /**
+     * Forgets the pending render, so its frame is not shown.
+     * @return The render, for the caller to stop, or null if none was pending.
+     */
+    R cancel() {
+        R render = pending;
+        pending = null;
+        return render;
+    }
+
+    /** Keeps a buffer no frame went into for the next render, unless another took its place. */
+    private void recycle(F buffer) {
+        if (back == null) {
+            back = buffer;
+        }
+    }
+}
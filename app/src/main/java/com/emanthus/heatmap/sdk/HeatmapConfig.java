@@ -0,0 +1,229 @@
+package com.emanthus.heatmap.sdk;
+
+import com.emanthus.heatmap.sdk.concurrent.HeatmapScheduler;
+import com.emanthus.heatmap.sdk.database.EventBuffer;
+import com.emanthus.heatmap.sdk.database.EventType;
+import com.emanthus.heatmap.sdk.database.LoadShedder;
+import com.emanthus.heatmap.sdk.network.ScreenshotFormat;
+
+import java.util.Arrays;
+
+/**
+ * Tuning options for the SDK. Pass an instance to
+ * {@link HeatmapSDK#initialize(android.app.Application, String, HeatmapConfig)};
+ * every option has a default, so only set what you need to change.
+ */
+public class HeatmapConfig {
+
+    private final int flushEventCount;
+    private final long flushBytes;
+    private final long flushMaxAgeMs;
+    private final long retryBaseDelayMs;
+    private final long retryMaxDelayMs;
+    private final float screenshotScale;
+    private final ScreenshotFormat screenshotFormat;
+    private final int screenshotQuality;
+    private final int screenshotDedupDistance;
+    private final int workerThreads;
+    private final int taskQueueCapacity;
+    private final HeatmapScheduler.RejectionPolicy taskRejectionPolicy;
+    private final int[] eventRateLimits;
+    private final float samplingThreshold;
+    private final EventBuffer.OverflowPolicy bufferOverflowPolicy;
+
+    private HeatmapConfig(Builder builder) {
+        this.flushEventCount = builder.flushEventCount;
+        this.flushBytes = builder.flushBytes;
+        this.flushMaxAgeMs = builder.flushMaxAgeMs;
+        this.retryBaseDelayMs = builder.retryBaseDelayMs;
+        this.retryMaxDelayMs = builder.retryMaxDelayMs;
+        this.screenshotScale = builder.screenshotScale;
+        this.screenshotFormat = builder.screenshotFormat;
+        this.screenshotQuality = builder.screenshotQuality;
+        this.screenshotDedupDistance = builder.screenshotDedupDistance;
+        this.workerThreads = builder.workerThreads;
+        this.taskQueueCapacity = builder.taskQueueCapacity;
+        this.taskRejectionPolicy = builder.taskRejectionPolicy;
+        this.eventRateLimits = builder.eventRateLimits.clone();
+        this.samplingThreshold = builder.samplingThreshold;
+        this.bufferOverflowPolicy = builder.bufferOverflowPolicy;
+    }
+
+    /** @return A configuration with every option at its default. */
+    public static HeatmapConfig defaults() {
+        return new Builder().build();
+    }
+
+    public int getFlushEventCount() { return flushEventCount; }
+    public long getFlushBytes() { return flushBytes; }
+    public long getFlushMaxAgeMs() { return flushMaxAgeMs; }
+    public long getRetryBaseDelayMs() { return retryBaseDelayMs; }
+    public long getRetryMaxDelayMs() { return retryMaxDelayMs; }
+    public float getScreenshotScale() { return screenshotScale; }
+    public ScreenshotFormat getScreenshotFormat() { return screenshotFormat; }
+    public int getScreenshotQuality() { return screenshotQuality; }
+    public int getScreenshotDedupDistance() { return screenshotDedupDistance; }
+    public int getWorkerThreads() { return workerThreads; }
+    public int getTaskQueueCapacity() { return taskQueueCapacity; }
+    public HeatmapScheduler.RejectionPolicy getTaskRejectionPolicy() { return taskRejectionPolicy; }
+    public int getEventRateLimit(int eventType) { return eventRateLimits[eventType]; }
+    public float getSamplingThreshold() { return samplingThreshold; }
+    public EventBuffer.OverflowPolicy getBufferOverflowPolicy() { return bufferOverflowPolicy; }
+
+    /** @return A load shedder for these settings. */
+    LoadShedder newLoadShedder() {
+        return new LoadShedder(eventRateLimits, samplingThreshold);
+    }
+
+    public static class Builder {
+        private int flushEventCount = 500;
+        private long flushBytes = 256 * 1024;
+        private long flushMaxAgeMs = 15 * 60 * 1000;
+        private long retryBaseDelayMs = 5 * 1000;
+        private long retryMaxDelayMs = 10 * 60 * 1000;
+        private float screenshotScale = 0.5f;
+        private ScreenshotFormat screenshotFormat = ScreenshotFormat.WEBP;
+        private int screenshotQuality = 80;
+        private int screenshotDedupDistance = 5;
+        private int workerThreads = 2;
+        private int taskQueueCapacity = 256;
+        private HeatmapScheduler.RejectionPolicy taskRejectionPolicy = HeatmapScheduler.RejectionPolicy.DISCARD_OLDEST;
+        private final int[] eventRateLimits = new int[EventType.count()];
+        private float samplingThreshold = 0.5f;
+        private EventBuffer.OverflowPolicy bufferOverflowPolicy = EventBuffer.OverflowPolicy.DROP_NEWEST;
+
+        public Builder() {
+            Arrays.fill(eventRateLimits, 20);
+            // Taps are a person tapping, never a flood, and the heatmap is built from them.
+            eventRateLimits[EventType.TOUCH] = LoadShedder.UNLIMITED;
+        }
+
+        /** Upload once this many events are waiting. */
+        public Builder setFlushEventCount(int count) {
+            if (count <= 0) throw new IllegalArgumentException("Flush event count must be positive.");
+            this.flushEventCount = count;
+            return this;
+        }
+
+        /** Upload once the waiting events add up to roughly this many bytes of payload. */
+        public Builder setFlushBytes(long bytes) {
+            if (bytes <= 0) throw new IllegalArgumentException("Flush bytes must be positive.");
+            this.flushBytes = bytes;
+            return this;
+        }
+
+        /** Upload once the oldest waiting event is this old, however few events are waiting. */
+        public Builder setFlushMaxAgeMs(long ageMs) {
+            if (ageMs <= 0) throw new IllegalArgumentException("Flush max age must be positive.");
+            this.flushMaxAgeMs = ageMs;
+            return this;
+        }
+
+        /**
+         * Delay before retrying a failed upload. Doubles with each consecutive failure up to maxDelayMs,
+         * and is randomized so that many devices do not retry in lockstep.
+         */
+        public Builder setRetryDelays(long baseDelayMs, long maxDelayMs) {
+            if (baseDelayMs <= 0 || maxDelayMs < baseDelayMs) {
+                throw new IllegalArgumentException("Retry delays must be positive, with max >= base.");
+            }
+            this.retryBaseDelayMs = baseDelayMs;
+            this.retryMaxDelayMs = maxDelayMs;
+            return this;
+        }
+
+        /**
+         * Size of uploaded screenshots relative to the captured view. The view is drawn at this scale,
+         * so a smaller scale also makes capturing cheaper.
+         * @param scale In (0, 1].
+         */
+        public Builder setScreenshotScale(float scale) {
+            if (!(scale > 0f && scale <= 1f)) throw new IllegalArgumentException("Screenshot scale must be in (0, 1].");
+            this.screenshotScale = scale;
+            return this;
+        }
+
+        /**
+         * Image format of uploaded screenshots.
+         * @param quality 0-100; ignored for {@link ScreenshotFormat#PNG}.
+         */
+        public Builder setScreenshotFormat(ScreenshotFormat format, int quality) {
+            if (format == null) throw new IllegalArgumentException("Screenshot format cannot be null.");
+            if (quality < 0 || quality > 100) throw new IllegalArgumentException("Screenshot quality must be in 0..100.");
+            this.screenshotFormat = format;
+            this.screenshotQuality = quality;
+            return this;
+        }
+
+        /**
+         * Skips uploading a screenshot when it looks like the last one uploaded for the same screen
+         * and view size. Screenshots are compared by a 64-bit perceptual hash.
+         * @param maxBits The most hash bits that may differ for the screen to count as unchanged,
+         *                or -1 to upload every screenshot.
+         */
+        public Builder setScreenshotDedupDistance(int maxBits) {
+            if (maxBits < -1 || maxBits > 64) throw new IllegalArgumentException("Dedup distance must be in -1..64.");
+            this.screenshotDedupDistance = maxBits;
+            return this;
+        }
+
+        /**
+         * Number of background threads the SDK uses for everything: storage, rendering preparation
+         * and uploads. With two or more, uploads never occupy all of them.
+         */
+        public Builder setWorkerThreads(int threads) {
+            if (threads <= 0) throw new IllegalArgumentException("Worker thread count must be positive.");
+            this.workerThreads = threads;
+            return this;
+        }
+
+        /**
+         * Bounds the SDK's queue of heatmap rendering work. Storing and uploading events is never dropped.
+         * @param capacity The most render tasks waiting.
+         * @param policy What happens to a render task that does not fit.
+         */
+        public Builder setTaskQueue(int capacity, HeatmapScheduler.RejectionPolicy policy) {
+            if (capacity <= 0) throw new IllegalArgumentException("Task queue capacity must be positive.");
+            if (policy == null) throw new IllegalArgumentException("Rejection policy cannot be null.");
+            this.taskQueueCapacity = capacity;
+            this.taskRejectionPolicy = policy;
+            return this;
+        }
+
+        /**
+         * Most events of one type recorded per second; bursts of up to a second's worth pass.
+         * Events over the limit are dropped and counted. Defaults to 20 for scrolls and swipes,
+         * and unlimited for taps.
+         * @param eventType One of the {@link EventType} codes.
+         * @param perSecond The limit, or {@link LoadShedder#UNLIMITED}.
+         */
+        public Builder setEventRateLimit(int eventType, int perSecond) {
+            if (eventType < 0 || eventType >= EventType.count()) throw new IllegalArgumentException("Unknown event type " + eventType + ".");
+            if (perSecond < 0) throw new IllegalArgumentException("Event rate limit cannot be negative.");
+            this.eventRateLimits[eventType] = perSecond;
+            return this;
+        }
+
+        /**
+         * How full the in-memory event buffer may get before SCROLL events are sampled. Swipes are
+         * sampled from halfway between this and full; taps are never sampled.
+         * @param fill In [0, 1]; 1 turns sampling off.
+         */
+        public Builder setSamplingThreshold(float fill) {
+            if (!(fill >= 0f && fill <= 1f)) throw new IllegalArgumentException("Sampling threshold must be in [0, 1].");
+            this.samplingThreshold = fill;
+            return this;
+        }
+
+        /** Which event is dropped when the in-memory event buffer is full. */
+        public Builder setBufferOverflowPolicy(EventBuffer.OverflowPolicy policy) {
+            if (policy == null) throw new IllegalArgumentException("Overflow policy cannot be null.");
+            this.bufferOverflowPolicy = policy;
+            return this;
+        }
+
+        public HeatmapConfig build() {
+            return new HeatmapConfig(this);
+        }
+    }
+}
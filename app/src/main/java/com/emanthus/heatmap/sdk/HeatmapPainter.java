@@ -0,0 +1,269 @@
+package com.emanthus.heatmap.sdk;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+
+import com.emanthus.heatmap.sdk.models.HeatmapData;
+import com.emanthus.heatmap.sdk.models.HeatmapSwipe;
+import com.emanthus.heatmap.sdk.models.HeatmapTrail;
+import com.emanthus.heatmap.sdk.render.DensityGridRenderer;
+import com.emanthus.heatmap.sdk.render.SwipeFlowField;
+
+import java.util.List;
+
+/**
+ * Draws heatmap data onto a canvas, without a view. Not thread-safe: a render on a worker thread
+ * uses its own painter, which can be cancelled from any thread.
+ */
+final class HeatmapPainter {
+
+    // Trails and swipes drawn between checks for cancellation.
+    private static final int CANCEL_CHECK_INTERVAL = 64;
+    // Swipes are drawn with one drawLines call per intensity bucket, flow field arrows with one per strength bucket.
+    private static final int SWIPE_BUCKETS = 8;
+    private static final int ARROW_BUCKETS = 4;
+    private static final float SWIPE_END_RADIUS = 10f;
+    // Arrow head barbs, relative to the arrow's length, and their angle to the shaft.
+    private static final float ARROW_HEAD_LENGTH = 0.3f;
+    private static final float ARROW_HEAD_COS = 0.866f;
+    private static final float ARROW_HEAD_SIN = 0.5f;
+
+    private final DensityGridRenderer densityRenderer;
+    private final HeatmapRendererView.SwipeMode swipeMode;
+    private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint bitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect bounds = new Rect();
+    private final Path trailPath = new Path();
+
+    // Tap/press density, rendered once per size and scaled up when drawn.
+    private Bitmap densityBitmap;
+    // Swipe geometry per bucket, built on the first draw of a swipe list and size, and kept until either changes.
+    // Raw swipes have 4 floats per line and 4 per pair of end points; arrows have 12 per shaft and head.
+    private List<HeatmapSwipe> batchedSwipes;
+    private int batchedWidth;
+    private int batchedHeight;
+    private float[][] swipeLines;
+    private float[][] swipeEnds;
+    private volatile boolean cancelled;
+
+    /** @param densityRenderer Used by this painter alone; pass a {@link DensityGridRenderer#copy()} of a shared one. */
+    HeatmapPainter(DensityGridRenderer densityRenderer, HeatmapRendererView.SwipeMode swipeMode) {
+        this.densityRenderer = densityRenderer;
+        this.swipeMode = swipeMode;
+    }
+
+    /** Stops a draw in progress on another thread at its next check. The painter cannot be used again. */
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Renders the heatmap for a view of the given size into a bitmap.
+     * @param reuse A bitmap of the same size to draw into, or null to allocate a new one.
+     * @return The bitmap, or null if the painter was cancelled first. {@code reuse} is left as it was drawn so far.
+     */
+    Bitmap render(HeatmapData data, int width, int height, Bitmap reuse) {
+        if (cancelled) return null;
+        Bitmap bitmap = reuse;
+        if (bitmap == null || bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        } else {
+            bitmap.eraseColor(Color.TRANSPARENT);
+        }
+        return draw(new Canvas(bitmap), data, width, height) ? bitmap : null;
+    }
+
+    /**
+     * Draws the tap/press density, the scroll trails and the swipes.
+     * @return false if the painter was cancelled before it finished.
+     */
+    boolean draw(Canvas canvas, HeatmapData data, int width, int height) {
+        drawPoints(canvas, data, width, height);
+        return !cancelled && drawTrails(canvas, data) && drawSwipes(canvas, data, width, height);
+    }
+
+    /** Draws tap/press points as a density heatmap. */
+    void drawPoints(Canvas canvas, HeatmapData data, int width, int height) {
+        if (data.getPoints() == null || data.getPoints().isEmpty()) return;
+        if (width == 0 || height == 0 || cancelled) return;
+
+        int cellSize = densityRenderer.getCellSize();
+        int gridWidth = (width + cellSize - 1) / cellSize;
+        int gridHeight = (height + cellSize - 1) / cellSize;
+        if (densityBitmap == null || densityBitmap.getWidth() != gridWidth || densityBitmap.getHeight() != gridHeight) {
+            int[] pixels = densityRenderer.render(data.getPoints(), width, height);
+            densityBitmap = Bitmap.createBitmap(pixels, gridWidth, gridHeight, Bitmap.Config.ARGB_8888);
+        }
+
+        bounds.set(0, 0, gridWidth * cellSize, gridHeight * cellSize);
+        canvas.drawBitmap(densityBitmap, null, bounds, bitmapPaint);
+    }
+
+    /**
+     * Draws scroll gestures along their recorded paths.
+     * @return false if the painter was cancelled before it finished.
+     */
+    boolean drawTrails(Canvas canvas, HeatmapData data) {
+        if (data.getTrails() == null || data.getTrails().isEmpty()) return !cancelled;
+
+        paint.setShader(null);
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setStrokeCap(Paint.Cap.ROUND);
+        paint.setStrokeJoin(Paint.Join.ROUND);
+
+        int drawn = 0;
+        for (HeatmapTrail trail : data.getTrails()) {
+            if (++drawn % CANCEL_CHECK_INTERVAL == 0 && cancelled) return false;
+            float[] points = trail.getPoints();
+            if (trail.getPointCount() < 2) continue;
+
+            trailPath.rewind();
+            trailPath.moveTo(points[0], points[1]);
+            for (int i = 2; i < points.length; i += 2) {
+                trailPath.lineTo(points[i], points[i + 1]);
+            }
+
+            int alpha = (int) (trail.getIntensity() * 128);
+            paint.setColor(Color.argb(alpha, 30, 144, 255)); // Dodger blue
+            paint.setStrokeWidth(6 * trail.getIntensity());
+            canvas.drawPath(trailPath, paint);
+        }
+        return !cancelled;
+    }
+
+    /**
+     * Draws swipe gestures as intensity-based lines, or as a flow field of one arrow per cell.
+     * @return false if the painter was cancelled before it finished.
+     */
+    boolean drawSwipes(Canvas canvas, HeatmapData data, int width, int height) {
+        if (data.getSwipes() == null || data.getSwipes().isEmpty()) return !cancelled;
+        if (width == 0 || height == 0) return !cancelled;
+
+        if (batchedSwipes != data.getSwipes() || batchedWidth != width || batchedHeight != height) {
+            if (swipeMode == HeatmapRendererView.SwipeMode.FLOW_FIELD) {
+                batchArrows(data.getSwipes(), width, height);
+            } else {
+                batchSwipes(data.getSwipes());
+            }
+            batchedSwipes = data.getSwipes();
+            batchedWidth = width;
+            batchedHeight = height;
+        }
+        if (cancelled) return false;
+
+        paint.setShader(null);
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setStrokeCap(Paint.Cap.ROUND);
+
+        if (swipeMode == HeatmapRendererView.SwipeMode.FLOW_FIELD) {
+            for (int bucket = 0; bucket < ARROW_BUCKETS; bucket++) {
+                if (swipeLines[bucket].length == 0) continue;
+                float strength = (bucket + 1f) / ARROW_BUCKETS;
+                paint.setColor(Color.argb((int) (64 + 191 * strength), 255, 69, 0)); // Orange-red
+                paint.setStrokeWidth(2 + 4 * strength);
+                canvas.drawLines(swipeLines[bucket], paint);
+            }
+        } else {
+            for (int bucket = 0; bucket < SWIPE_BUCKETS; bucket++) {
+                if (swipeLines[bucket].length == 0) continue;
+                float intensity = (bucket + 0.5f) / SWIPE_BUCKETS;
+                paint.setColor(Color.argb((int) (intensity * 255), 255, 69, 0)); // Orange-red
+                paint.setStrokeWidth(10 * intensity);
+                canvas.drawLines(swipeLines[bucket], paint);
+                // Round points as wide as the end circles.
+                paint.setStrokeWidth(2 * SWIPE_END_RADIUS);
+                canvas.drawPoints(swipeEnds[bucket], paint);
+            }
+        }
+        return !cancelled;
+    }
+
+    /** Sorts swipe lines and end points into intensity buckets. */
+    private void batchSwipes(List<HeatmapSwipe> swipes) {
+        int[] counts = new int[SWIPE_BUCKETS];
+        for (int i = 0; i < swipes.size(); i++) {
+            counts[swipeBucket(swipes.get(i).getIntensity())]++;
+        }
+        swipeLines = new float[SWIPE_BUCKETS][];
+        swipeEnds = new float[SWIPE_BUCKETS][];
+        for (int bucket = 0; bucket < SWIPE_BUCKETS; bucket++) {
+            swipeLines[bucket] = new float[counts[bucket] * 4];
+            swipeEnds[bucket] = new float[counts[bucket] * 4];
+        }
+        int[] offsets = new int[SWIPE_BUCKETS];
+        for (int i = 0; i < swipes.size(); i++) {
+            HeatmapSwipe swipe = swipes.get(i);
+            int bucket = swipeBucket(swipe.getIntensity());
+            int offset = offsets[bucket];
+            float[] lines = swipeLines[bucket];
+            lines[offset] = swipe.getStartX();
+            lines[offset + 1] = swipe.getStartY();
+            lines[offset + 2] = swipe.getEndX();
+            lines[offset + 3] = swipe.getEndY();
+            // Ends are the same four coordinates, drawn as two points.
+            System.arraycopy(lines, offset, swipeEnds[bucket], offset, 4);
+            offsets[bucket] = offset + 4;
+        }
+    }
+
+    private static int swipeBucket(float intensity) {
+        return Math.max(0, Math.min(SWIPE_BUCKETS - 1, (int) (intensity * SWIPE_BUCKETS)));
+    }
+
+    /** Bins the swipes into a flow field and sorts its arrows, shaft and head, into strength buckets. */
+    private void batchArrows(List<HeatmapSwipe> swipes, int width, int height) {
+        SwipeFlowField field = new SwipeFlowField(swipes, width, height, SwipeFlowField.DEFAULT_CELL_SIZE_PX);
+        float[] arrows = new float[field.getArrowCount() * SwipeFlowField.ARROW_STRIDE];
+        int arrowCount = field.getArrows(arrows);
+
+        int[] counts = new int[ARROW_BUCKETS];
+        for (int i = 0; i < arrowCount; i++) {
+            counts[arrowBucket(arrows[i * SwipeFlowField.ARROW_STRIDE + 4])]++;
+        }
+        swipeLines = new float[ARROW_BUCKETS][];
+        for (int bucket = 0; bucket < ARROW_BUCKETS; bucket++) {
+            swipeLines[bucket] = new float[counts[bucket] * 12];
+        }
+        swipeEnds = null;
+        int[] offsets = new int[ARROW_BUCKETS];
+        for (int i = 0; i < arrowCount; i++) {
+            int arrow = i * SwipeFlowField.ARROW_STRIDE;
+            float startX = arrows[arrow];
+            float startY = arrows[arrow + 1];
+            float endX = arrows[arrow + 2];
+            float endY = arrows[arrow + 3];
+            int bucket = arrowBucket(arrows[arrow + 4]);
+            float[] lines = swipeLines[bucket];
+            int offset = offsets[bucket];
+            offsets[bucket] = offset + 12;
+
+            // The shaft, then both barbs: the shaft turned back from the tip by the head angle either way.
+            float backX = (startX - endX) * ARROW_HEAD_LENGTH;
+            float backY = (startY - endY) * ARROW_HEAD_LENGTH;
+            lines[offset] = startX;
+            lines[offset + 1] = startY;
+            lines[offset + 2] = endX;
+            lines[offset + 3] = endY;
+            lines[offset + 4] = endX;
+            lines[offset + 5] = endY;
+            lines[offset + 6] = endX + backX * ARROW_HEAD_COS - backY * ARROW_HEAD_SIN;
+            lines[offset + 7] = endY + backX * ARROW_HEAD_SIN + backY * ARROW_HEAD_COS;
+            lines[offset + 8] = endX;
+            lines[offset + 9] = endY;
+            lines[offset + 10] = endX + backX * ARROW_HEAD_COS + backY * ARROW_HEAD_SIN;
+            lines[offset + 11] = endY - backX * ARROW_HEAD_SIN + backY * ARROW_HEAD_COS;
+        }
+    }
+
+    private static int arrowBucket(float strength) {
+        return Math.max(0, Math.min(ARROW_BUCKETS - 1, (int) Math.ceil(strength * ARROW_BUCKETS) - 1));
+    }
+}
@@ -1,104 +1,525 @@
 package com.emanthus.heatmap.sdk;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.RadialGradient;
-import android.graphics.Shader;
-import android.util.Log;
+import android.graphics.Rect;
+import android.util.LruCache;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
 import android.view.View;
 
 import androidx.annotation.NonNull;
 
+import com.emanthus.heatmap.sdk.concurrent.HeatmapScheduler;
+import com.emanthus.heatmap.sdk.metrics.HeatmapMetrics;
 import com.emanthus.heatmap.sdk.models.HeatmapData;
-import com.emanthus.heatmap.sdk.models.HeatmapDataPoint;
-import com.emanthus.heatmap.sdk.models.HeatmapSwipe;
+import com.emanthus.heatmap.sdk.render.DensityGridRenderer;
+import com.emanthus.heatmap.sdk.render.DensityPyramid;
+import com.emanthus.heatmap.sdk.render.DensityTileRenderer;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 public class HeatmapRendererView extends View {
 
-    private final HeatmapData heatmapData;
-    private final Paint paint;
+    /** How swipes are drawn. */
+    public enum SwipeMode {
+        /** Every swipe as a line with a dot at each end. */
+        RAW,
+        /**
+         * One arrow per cell of a grid, pointing the way most swipes starting there went. Longer arrows
+         * mean longer swipes; bolder ones, more of them. Drawing costs the same however many swipes there are.
+         */
+        FLOW_FIELD
+    }
+
+    private static final float MAX_ZOOM = 8f;
+    private static final int TILE_CACHE_BYTES = 4 * 1024 * 1024;
+    // Time per frame spent rendering missing tiles; the rest are drawn from coarser tiles until later frames.
+    private static final long TILE_BUDGET_NANOS = 4_000_000L;
+
+    private HeatmapData heatmapData;
+    // Holds the style only. Every painter draws with a copy, as background renders may overlap.
+    private final DensityGridRenderer heatmapStyle;
+    private final Paint bitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect bounds = new Rect();
+    // Draws heatmapData on the UI thread; keeps the density bitmap between frames.
+    private HeatmapPainter painter;
+
+    // A complete overlay rendered earlier, drawn as-is instead of heatmapData.
+    private Bitmap prerendered;
+    private HeatmapMetrics metrics;
 
-    // Gradient colors for tap/press points
-    private static final int[] GRADIENT_COLORS = {
-            Color.argb(0, 0, 0, 255),    // Transparent
-            Color.argb(128, 0, 0, 255),  // Blue
-            Color.argb(128, 0, 255, 0),  // Green
-            Color.argb(200, 255, 255, 0),// Yellow
-            Color.argb(255, 255, 0, 0)   // Red
+    // Background rendering: frames are rendered on renderExecutor into the back buffer, then swapped with the
+    // front buffer, which is all onDraw draws. frames is set while there is an executor, and only touched on
+    // the UI thread; renders still running when it is replaced finish into the old one.
+    private Executor renderExecutor;
+    private FrameBuffers<HeatmapPainter, Bitmap> frames;
+    private boolean frameStale;
+    private SwipeMode swipeMode = SwipeMode.RAW;
+
+    // Zoom and pan, in view pixels: content point (x, y) is drawn at (x * zoom - panX, y * zoom - panY).
+    private boolean zoomEnabled;
+    private float zoom = 1f;
+    private float panX;
+    private float panY;
+    private ScaleGestureDetector scaleDetector;
+    private GestureDetector panDetector;
+    // Built for the first zoomed draw, on the render executor if there is one, and kept until the data or
+    // view size changes. pyramidBuild identifies the background build in progress, if any.
+    private DensityPyramid pyramid;
+    private Object pyramidBuild;
+    private DensityTileRenderer tileRenderer;
+    private final LruCache<Long, Bitmap> tiles = new LruCache<Long, Bitmap>(TILE_CACHE_BYTES) {
+        @Override
+        protected int sizeOf(Long key, Bitmap tile) {
+            return tile.getByteCount();
+        }
     };
-    private static final float[] GRADIENT_STOPS = {0.0f, 0.25f, 0.5f, 0.75f, 1.0f};
-    private static final int POINT_RADIUS = 100;
 
     public HeatmapRendererView(Context context, HeatmapData data) {
+        this(context, data, new DensityGridRenderer());
+    }
+
+    /**
+     * @param renderer Renders the tap/press density. Controls the gradient colors and kernel radius.
+     */
+    public HeatmapRendererView(Context context, HeatmapData data, DensityGridRenderer renderer) {
         super(context);
         this.heatmapData = data;
-        this.paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        this.heatmapStyle = renderer;
+        this.painter = new HeatmapPainter(renderer.copy(), swipeMode);
+        this.prerendered = null;
+    }
+
+    /**
+     * Shows an overlay that was already rendered, e.g. by {@link #renderToBitmap}.
+     * @param overlay The rendered overlay, scaled to the view's size when drawn.
+     */
+    public HeatmapRendererView(Context context, Bitmap overlay) {
+        super(context);
+        this.heatmapData = null;
+        this.heatmapStyle = null;
+        this.painter = null;
+        this.prerendered = overlay;
+    }
+
+    /**
+     * Renders the heatmap overlay for a view of the given size into a new bitmap, without creating a view.
+     * Can be called on any thread. The renderer only supplies the style, so calls may share one.
+     */
+    public static Bitmap renderToBitmap(Context context, HeatmapData data, DensityGridRenderer renderer, int width, int height) {
+        return renderToBitmap(context, data, renderer, width, height, null);
+    }
+
+    /**
+     * @param metrics Receives the render time, or null.
+     */
+    public static Bitmap renderToBitmap(Context context, HeatmapData data, DensityGridRenderer renderer, int width, int height,
+                                        HeatmapMetrics metrics) {
+        long start = System.nanoTime();
+        Bitmap bitmap = new HeatmapPainter(renderer.copy(), SwipeMode.RAW).render(data, width, height, null);
+        if (metrics != null) {
+            metrics.onRender(System.nanoTime() - start);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Records the time each draw of heatmap data takes. Drawing an overlay rendered earlier is not timed.
+     * @param metrics Receives the render times, or null to stop recording.
+     */
+    public void setMetrics(HeatmapMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Replaces the heatmap data shown, e.g. after more events were recorded. A background render of the
+     * old data still in progress is cancelled; the last finished frame stays on screen until the new one is ready.
+     */
+    public void setData(@NonNull HeatmapData data) {
+        if (heatmapStyle == null) {
+            throw new IllegalStateException("This view shows a prerendered overlay.");
+        }
+        heatmapData = data;
+        painter = new HeatmapPainter(heatmapStyle.copy(), swipeMode);
+        resetTiles();
+        cancelRender();
+        frameStale = true;
+        invalidate();
+    }
+
+    /**
+     * Sets how swipes are drawn. Defaults to {@link SwipeMode#RAW}.
+     */
+    public void setSwipeMode(@NonNull SwipeMode mode) {
+        if (mode == swipeMode) return;
+        swipeMode = mode;
+        if (heatmapStyle != null) {
+            painter = new HeatmapPainter(heatmapStyle.copy(), mode);
+        }
+        cancelRender();
+        frameStale = renderExecutor != null;
+        invalidate();
+    }
+
+    /**
+     * Rasterizes the heatmap into an offscreen bitmap on the executor, so drawing a large heatmap never
+     * holds up the UI thread. The view draws the last finished frame, scaled to its size, and nothing
+     * before the first one is ready. A render in progress is cancelled when the data changes, when the view
+     * is detached, or by {@link #cancelRender}. A render the executor refuses or drops is tried again on
+     * the next draw. While zoom is enabled, tiles are drawn instead, and the executor builds their source.
+     * @param executor Where to render, or null to draw on the UI thread again.
+     */
+    public void setRenderExecutor(Executor executor) {
+        cancelRender();
+        renderExecutor = executor;
+        frameStale = executor != null;
+        if (executor == null) {
+            frames = null;
+        } else if (frames == null) {
+            frames = new FrameBuffers<>();
+        }
+        invalidate();
+    }
+
+    /**
+     * Stops the background render in progress, if any, e.g. when the screen showing the view is paused.
+     * The next draw starts a new one.
+     */
+    public void cancelRender() {
+        HeatmapPainter render = frames != null ? frames.cancel() : null;
+        if (render != null) {
+            render.cancel();
+            frameStale = true;
+        }
+    }
+
+    /**
+     * Lets the user pinch to zoom in up to 8x and drag to pan. While enabled, the view handles touches,
+     * and the tap/press density is drawn from tiles at the level of detail of the current zoom, which are
+     * cached between frames. With a render executor, the tiles' source is built on it, and the unzoomed
+     * heatmap is drawn scaled until it is ready. Only views showing heatmap data can zoom.
+     */
+    public void setZoomEnabled(boolean enabled) {
+        if (enabled == zoomEnabled || heatmapData == null) return;
+        zoomEnabled = enabled;
+        if (enabled && scaleDetector == null) {
+            scaleDetector = new ScaleGestureDetector(getContext(), new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+                @Override
+                public boolean onScale(ScaleGestureDetector detector) {
+                    zoomBy(detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+                    return true;
+                }
+            });
+            panDetector = new GestureDetector(getContext(), new GestureDetector.SimpleOnGestureListener() {
+                @Override
+                public boolean onDown(MotionEvent e) {
+                    return true;
+                }
+
+                @Override
+                public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                    panX += distanceX;
+                    panY += distanceY;
+                    clampPan();
+                    invalidate();
+                    return true;
+                }
+            });
+        }
+        if (!enabled) {
+            zoom = 1f;
+            panX = 0f;
+            panY = 0f;
+            resetTiles();
+        } else if (renderExecutor != null && getWidth() > 0 && getHeight() > 0) {
+            startPyramidBuild(getWidth(), getHeight(), heatmapStyle.getCellSize());
+        }
+        invalidate();
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (!zoomEnabled) return super.onTouchEvent(event);
+        boolean handled = scaleDetector.onTouchEvent(event);
+        handled |= panDetector.onTouchEvent(event);
+        return handled || super.onTouchEvent(event);
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+        resetTiles();
+        clampPan();
+        if (renderExecutor != null) {
+            cancelRender();
+            frameStale = true;
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        cancelRender();
+    }
+
+    /** Zooms by the factor, keeping the content under the focus point in place. */
+    private void zoomBy(float factor, float focusX, float focusY) {
+        float newZoom = Math.max(1f, Math.min(MAX_ZOOM, zoom * factor));
+        float applied = newZoom / zoom;
+        panX = (panX + focusX) * applied - focusX;
+        panY = (panY + focusY) * applied - focusY;
+        zoom = newZoom;
+        clampPan();
+        invalidate();
+    }
+
+    private void clampPan() {
+        panX = Math.max(0f, Math.min(getWidth() * (zoom - 1f), panX));
+        panY = Math.max(0f, Math.min(getHeight() * (zoom - 1f), panY));
     }
 
     @Override
     protected void onDraw(@NonNull Canvas canvas) {
         super.onDraw(canvas);
 
+        if (prerendered != null) {
+            bounds.set(0, 0, getWidth(), getHeight());
+            canvas.drawBitmap(prerendered, null, bounds, bitmapPaint);
+            return;
+        }
         if (heatmapData == null) return;
+        if (renderExecutor != null && !zoomEnabled) {
+            if (frameStale) {
+                startRender();
+            }
+            Bitmap frame = frames.getFront();
+            if (frame != null) {
+                bounds.set(0, 0, getWidth(), getHeight());
+                canvas.drawBitmap(frame, null, bounds, bitmapPaint);
+            }
+            return;
+        }
 
-        drawPoints(canvas);
-        drawSwipes(canvas);
+        long start = System.nanoTime();
+        if (zoomEnabled) {
+            canvas.save();
+            canvas.translate(-panX, -panY);
+            canvas.scale(zoom, zoom);
+            if (!drawTiles(canvas, start + TILE_BUDGET_NANOS)) {
+                Bitmap frame = frames != null ? frames.getFront() : null;
+                if (frame != null) {
+                    // The last unzoomed frame already has the trails and swipes.
+                    bounds.set(0, 0, getWidth(), getHeight());
+                    canvas.drawBitmap(frame, null, bounds, bitmapPaint);
+                    canvas.restore();
+                    return;
+                }
+                painter.drawPoints(canvas, heatmapData, getWidth(), getHeight());
+            }
+        } else {
+            painter.drawPoints(canvas, heatmapData, getWidth(), getHeight());
+        }
+        painter.drawTrails(canvas, heatmapData);
+        painter.drawSwipes(canvas, heatmapData, getWidth(), getHeight());
+        if (zoomEnabled) {
+            canvas.restore();
+        }
+        if (metrics != null) {
+            metrics.onRender(System.nanoTime() - start);
+        }
     }
 
-    /** Draws tap/press points using radial gradient intensity. */
-    private void drawPoints(Canvas canvas) {
-        if (heatmapData.getPoints() == null || heatmapData.getPoints().isEmpty()) return;
-
-        for (HeatmapDataPoint point : heatmapData.getPoints()) {
-            float intensity = point.getIntensity();
-            float radius = POINT_RADIUS * intensity;
+    /**
+     * Renders a frame of the current data and size into the back buffer on the render executor.
+     * A finished frame is swapped in unless the render was cancelled meanwhile.
+     */
+    private void startRender() {
+        int width = getWidth();
+        int height = getHeight();
+        if (width == 0 || height == 0) return;
+        frameStale = false;
 
-            RadialGradient gradient = new RadialGradient(
-                    point.getX(),
-                    point.getY(),
-                    radius,
-                    GRADIENT_COLORS,
-                    GRADIENT_STOPS,
-                    Shader.TileMode.CLAMP
-            );
-
-            paint.setShader(gradient);
-            canvas.drawCircle(point.getX(), point.getY(), radius, paint);
+        HeatmapData data = heatmapData;
+        FrameBuffers<HeatmapPainter, Bitmap> buffers = frames;
+        HeatmapPainter render = new HeatmapPainter(heatmapStyle.copy(), swipeMode);
+        Bitmap reuse = buffers.begin(render);
+        HeatmapMetrics renderMetrics = metrics;
+        Runnable task = () -> {
+            if (render.isCancelled()) {
+                post(() -> buffers.finish(render, null, reuse));
+                return;
+            }
+            long start = System.nanoTime();
+            Bitmap frame = render.render(data, width, height, reuse);
+            if (frame != null && renderMetrics != null) {
+                renderMetrics.onRender(System.nanoTime() - start);
+            }
+            post(() -> {
+                if (buffers.finish(render, frame, reuse)) {
+                    invalidate();
+                }
+            });
+        };
+        try {
+            renderExecutor.execute(HeatmapScheduler.droppable(task,
+                    () -> post(() -> onRenderDropped(buffers, render, reuse))));
+        } catch (RejectedExecutionException e) {
+            onRenderDropped(buffers, render, reuse);
         }
+    }
 
-        paint.setShader(null);
+    /**
+     * Ends a render that never ran. The frame is rendered again on the next draw rather than right away,
+     * which would only fill the full queue again.
+     */
+    private void onRenderDropped(FrameBuffers<HeatmapPainter, Bitmap> buffers, HeatmapPainter render, Bitmap reuse) {
+        if (buffers == frames && buffers.getPending() == render) {
+            frameStale = true;
+        }
+        buffers.finish(render, null, reuse);
     }
 
-    /** Draws swipe gestures as intensity-based lines. */
-    private void drawSwipes(Canvas canvas) {
-        if (heatmapData.getSwipes() == null || heatmapData.getSwipes().isEmpty()) return;
+    /**
+     * Draws the visible tiles of tap/press density at the level of detail of the current zoom.
+     * Tiles that would take past the deadline to render are drawn from a coarser cached tile this frame.
+     * The canvas is in content coordinates.
+     * @return False if the tiles cannot be drawn yet, because their pyramid is still being built.
+     */
+    private boolean drawTiles(Canvas canvas, long deadline) {
+        if (heatmapData.getPoints() == null || heatmapData.getPoints().isEmpty()) return true;
 
-        paint.setShader(null);
-        paint.setStyle(Paint.Style.STROKE);
-        paint.setStrokeCap(Paint.Cap.ROUND);
+        int width = getWidth();
+        int height = getHeight();
+        if (width == 0 || height == 0) return true;
 
-        for (HeatmapSwipe swipe : heatmapData.getSwipes()) {
-            float startX = swipe.getStartX();
-            float startY = swipe.getStartY();
-            float endX = swipe.getEndX();
-            float endY = swipe.getEndY();
+        int cellSize = heatmapStyle.getCellSize();
+        if (pyramid == null) {
+            if (renderExecutor != null) {
+                startPyramidBuild(width, height, cellSize);
+                return false;
+            }
+            setPyramid(new DensityPyramid(heatmapData.getPoints(), width, height, Math.max(1, cellSize / 2)));
+        }
+        int level = pyramid.levelFor(zoom, cellSize);
+        int tilePx = DensityPyramid.TILE_SIZE * pyramid.getCellSize(level);
+        int firstColumn = (int) (panX / zoom) / tilePx;
+        int lastColumn = Math.min(pyramid.getTileColumns(level) - 1, (int) ((panX + width) / zoom) / tilePx);
+        int firstRow = (int) (panY / zoom) / tilePx;
+        int lastRow = Math.min(pyramid.getTileRows(level) - 1, (int) ((panY + height) / zoom) / tilePx);
 
-            // Debug log to verify coordinates
-            Log.d("HeatmapRendererView", "Drawing swipe: (" + startX + "," + startY + ") -> (" + endX + "," + endY + ")");
+        boolean incomplete = false;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                Bitmap tile = tiles.get(tileKey(level, column, row));
+                if (tile == null && System.nanoTime() < deadline) {
+                    tile = renderTile(level, column, row);
+                }
+                if (tile != null) {
+                    drawTile(canvas, tile, level, column, row);
+                } else {
+                    drawCoarserTile(canvas, level, column, row, tilePx);
+                    incomplete = true;
+                }
+            }
+        }
+        if (incomplete) {
+            postInvalidateOnAnimation();
+        }
+        return true;
+    }
 
-            int alpha = (int) (swipe.getIntensity() * 255);
-            paint.setColor(Color.argb(alpha, 255, 69, 0)); // Orange-red
-            paint.setStrokeWidth(10 * swipe.getIntensity());
+    /**
+     * Builds the pyramid for the current data and size on the render executor, unless a build is already
+     * in progress. A build the executor refuses or drops is tried again on the next draw.
+     */
+    private void startPyramidBuild(int width, int height, int cellSize) {
+        if (pyramidBuild != null || heatmapData.getPoints() == null) return;
+        Object build = new Object();
+        pyramidBuild = build;
+        HeatmapData data = heatmapData;
+        Runnable task = () -> {
+            DensityPyramid built = new DensityPyramid(data.getPoints(), width, height, Math.max(1, cellSize / 2));
+            post(() -> {
+                if (pyramidBuild == build) {
+                    setPyramid(built);
+                    invalidate();
+                }
+            });
+        };
+        Runnable dropped = () -> {
+            if (pyramidBuild == build) {
+                pyramidBuild = null;
+            }
+        };
+        try {
+            renderExecutor.execute(HeatmapScheduler.droppable(task, () -> post(dropped)));
+        } catch (RejectedExecutionException e) {
+            dropped.run();
+        }
+    }
 
-            canvas.drawLine(startX, startY, endX, endY, paint);
+    private void setPyramid(DensityPyramid built) {
+        pyramid = built;
+        pyramidBuild = null;
+        tileRenderer = new DensityTileRenderer(built, heatmapStyle);
+    }
 
-            paint.setStyle(Paint.Style.FILL);
-            canvas.drawCircle(startX, startY, 10, paint);
-            canvas.drawCircle(endX, endY, 10, paint);
+    /** Drops the pyramid, any build of it in progress and its tiles, e.g. when the data changes. */
+    private void resetTiles() {
+        pyramid = null;
+        pyramidBuild = null;
+        tileRenderer = null;
+        tiles.evictAll();
+    }
 
-            paint.setStyle(Paint.Style.STROKE);
+    /** Draws the part of the closest cached coarser tile that covers a tile, rendering the coarsest if none is cached. */
+    private void drawCoarserTile(Canvas canvas, int level, int column, int row, int tilePx) {
+        int coarsest = pyramid.getLevelCount() - 1;
+        Bitmap coarser = null;
+        int coarserLevel = level;
+        while (coarser == null && coarserLevel < coarsest) {
+            coarserLevel++;
+            coarser = tiles.get(tileKey(coarserLevel, column >> (coarserLevel - level), row >> (coarserLevel - level)));
+        }
+        if (coarser == null) {
+            // A single-tile level, as fine as possible, so there is always something cheap to fall back on.
+            coarserLevel = level;
+            while (pyramid.getTileColumns(coarserLevel) > 1 || pyramid.getTileRows(coarserLevel) > 1) {
+                coarserLevel++;
+            }
+            coarser = renderTile(coarserLevel, 0, 0);
         }
+        int left = column * tilePx;
+        int top = row * tilePx;
+        canvas.save();
+        canvas.clipRect(left, top, left + tilePx, top + tilePx);
+        int shift = coarserLevel - level;
+        drawTile(canvas, coarser, coarserLevel, column >> shift, row >> shift);
+        canvas.restore();
+    }
+
+    private void drawTile(Canvas canvas, Bitmap tile, int level, int column, int row) {
+        int cellSize = pyramid.getCellSize(level);
+        int left = column * DensityPyramid.TILE_SIZE * cellSize;
+        int top = row * DensityPyramid.TILE_SIZE * cellSize;
+        bounds.set(left, top, left + tile.getWidth() * cellSize, top + tile.getHeight() * cellSize);
+        canvas.drawBitmap(tile, null, bounds, bitmapPaint);
+    }
+
+    private Bitmap renderTile(int level, int column, int row) {
+        int[] pixels = tileRenderer.renderTile(level, column, row);
+        Bitmap tile = Bitmap.createBitmap(pixels, tileRenderer.getTileWidth(level, column),
+                tileRenderer.getTileHeight(level, row), Bitmap.Config.ARGB_8888);
+        tiles.put(tileKey(level, column, row), tile);
+        return tile;
+    }
+
+    private static long tileKey(int level, int column, int row) {
+        return ((long) level << 48) | ((long) row << 24) | column;
     }
 }
@@ -4,44 +4,129 @@ import android.app.Application;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 
-import androidx.room.Room;
-
+import com.emanthus.heatmap.sdk.concurrent.HeatmapScheduler;
+import com.emanthus.heatmap.sdk.database.EventBuffer;
+import com.emanthus.heatmap.sdk.database.EventDao;
 import com.emanthus.heatmap.sdk.database.EventDatabase;
+import com.emanthus.heatmap.sdk.database.EventType;
 import com.emanthus.heatmap.sdk.database.HeatmapEvent;
+import com.emanthus.heatmap.sdk.database.StringTable;
+import com.emanthus.heatmap.sdk.database.TrailCodec;
+import com.emanthus.heatmap.sdk.metrics.HeatmapMetrics;
+import com.emanthus.heatmap.sdk.metrics.MetricsSnapshot;
 import com.emanthus.heatmap.sdk.models.HeatmapData;
 import com.emanthus.heatmap.sdk.network.NetworkClient;
+import com.emanthus.heatmap.sdk.render.BitmapPool;
+import com.emanthus.heatmap.sdk.render.DensityGridRenderer;
+import com.emanthus.heatmap.sdk.render.HeatmapBitmapCache;
+import com.emanthus.heatmap.sdk.render.PerceptualHash;
 import com.emanthus.heatmapdemoapp.R;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class HeatmapSDK {
     private static final String TAG = "HeatmapSDK";
     private static volatile HeatmapSDK instance;
     private static final String HEATMAP_VIEW_TAG = "heatmap_renderer_view_tag";
 
+    // Staging buffer limits: events are written in batches of BUFFER_BATCH_SIZE,
+    // or after BUFFER_FLUSH_WINDOW_MS, whichever comes first.
+    private static final int BUFFER_CAPACITY = 1024;
+    private static final int BUFFER_BATCH_SIZE = 128;
+    private static final long BUFFER_FLUSH_WINDOW_MS = 2000;
+    private static final float SWIPE_INTENSITY = 0.8f;
+    private static final int FLUSH_PAGE_SIZE = 500;
+    // Approximate JSON size of one event, excluding the screen name.
+    private static final int ESTIMATED_EVENT_BYTES = 150;
+    private static final int HEATMAP_CACHE_MEMORY_FRACTION = 8;
+    private static final String HEATMAP_CACHE_DIR = "heatmaps";
+    // Screenshot bitmaps kept for reuse; one is drawn into while the previous one is encoded.
+    private static final int SCREENSHOT_POOL_SIZE = 2;
+    private static final String SCREENSHOT_SPOOL_DIR = "heatmap_screenshots";
+
     private final EventDatabase database;
     private final NetworkClient networkClient;
-    private final ExecutorService executorService;
+    private final HeatmapScheduler scheduler;
+    private final EventBuffer eventBuffer;
+    private final FlushScheduler flushScheduler;
     private final ActivityLifecycleManager lifecycleManager;
 
     private String currentUserId;
-    private String authToken;
-    private boolean isInitialized = false;
+    private volatile int currentUserKey = StringTable.NONE;
+    // Read by queued screenshot uploads on worker threads.
+    private volatile String authToken;
+    private volatile boolean isInitialized = false;
+    private final Application application;
     private final Context applicationContext;
-
-    private HeatmapSDK(Application application, String apiBaseUrl) {
-        this.database = Room.databaseBuilder(application, EventDatabase.class, "heatmap-db").build();
-        this.networkClient = new NetworkClient(apiBaseUrl);
-        this.executorService = Executors.newSingleThreadExecutor();
+    // Holds the style only. Renders run concurrently, so each one draws with a copy.
+    private volatile DensityGridRenderer heatmapStyle = new DensityGridRenderer();
+    private volatile HeatmapRendererView.SwipeMode swipeMode = HeatmapRendererView.SwipeMode.RAW;
+    private final HeatmapBitmapCache heatmapCache;
+    // The overlay being loaded for each screen, cancelled when the screen is paused. Main thread only.
+    private final Map<String, HeatmapPainter> overlayRenders = new HashMap<>();
+    private final BitmapPool screenshotPool = new BitmapPool(SCREENSHOT_POOL_SIZE);
+    private final float screenshotScale;
+    private final ScreenshotDeduplicator screenshotDeduplicator;
+    private final HeatmapMetrics metrics = new HeatmapMetrics();
+    private volatile HeatmapMetrics.Listener metricsListener;
+
+    private HeatmapSDK(Application application, String apiBaseUrl, HeatmapConfig config) {
+        this.application = application;
+        this.database = EventDatabase.getInstance(application);
+        this.scheduler = new HeatmapScheduler(config.getWorkerThreads(), config.getTaskQueueCapacity(),
+                config.getTaskRejectionPolicy());
+        this.networkClient = new NetworkClient(apiBaseUrl, new File(application.getFilesDir(), SCREENSHOT_SPOOL_DIR), scheduler,
+                metrics);
+        this.networkClient.setScreenshotFormat(config.getScreenshotFormat(), config.getScreenshotQuality());
+        this.networkClient.setTokenProvider(() -> authToken);
+        this.screenshotScale = config.getScreenshotScale();
+        this.screenshotDeduplicator = new ScreenshotDeduplicator(application, config.getScreenshotDedupDistance());
+        this.flushScheduler = new FlushScheduler(config, scheduler.executor(HeatmapScheduler.Priority.UPLOAD),
+                this::flushStoredEvents);
+        this.eventBuffer = new EventBuffer(BUFFER_CAPACITY, BUFFER_BATCH_SIZE, BUFFER_FLUSH_WINDOW_MS,
+                scheduler.executor(HeatmapScheduler.Priority.PERSIST),
+                batch -> {
+                    long start = System.nanoTime();
+                    database.runInTransaction(() -> {
+                        database.eventDao().insertAll(batch);
+                        database.screenAggregateDao().addEvents(batch);
+                    });
+                    metrics.onEventsPersisted(batch.size(), System.nanoTime() - start);
+                    Log.d(TAG, "Persisted batch of " + batch.size() + " events.");
+                    flushScheduler.onEventsStored(batch.size(), estimateUploadBytes(batch), batch.get(0).getTimestamp());
+                },
+                config.newLoadShedder(), config.getBufferOverflowPolicy());
         this.lifecycleManager = new ActivityLifecycleManager(this);
         application.registerActivityLifecycleCallbacks(lifecycleManager);
         this.applicationContext = application.getApplicationContext();
+        this.heatmapCache = new HeatmapBitmapCache(
+                (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / HEATMAP_CACHE_MEMORY_FRACTION),
+                new File(application.getCacheDir(), HEATMAP_CACHE_DIR));
+
+        networkClient.retryPendingScreenshots();
+
+        // Events left over from earlier sessions count towards the flush thresholds too.
+        // Batches that were in flight when the process died are retried under their original IDs.
+        scheduler.execute(HeatmapScheduler.Priority.PERSIST, () -> {
+            database.eventDao().resetInFlight();
+            int stored = database.eventDao().count();
+            if (stored > 0) {
+                flushScheduler.onEventsStored(stored, (long) stored * ESTIMATED_EVENT_BYTES,
+                        database.eventDao().getOldestTimestamp());
+            }
+        });
     }
 
     /**
@@ -49,10 +134,19 @@ public class HeatmapSDK {
      * @param application The application instance.
      */
     public static void initialize(Application application , String apiBaseUrl) {
+        initialize(application, apiBaseUrl, HeatmapConfig.defaults());
+    }
+
+    /**
+     * Initializes the SDK with custom tuning options.
+     * @param application The application instance.
+     * @param config Thresholds and limits, see {@link HeatmapConfig.Builder}.
+     */
+    public static void initialize(Application application, String apiBaseUrl, HeatmapConfig config) {
         if (instance == null) {
             synchronized (HeatmapSDK.class) {
                 if (instance == null) {
-                    instance = new HeatmapSDK(application, apiBaseUrl);
+                    instance = new HeatmapSDK(application, apiBaseUrl, config);
                     instance.isInitialized = true;
                     Log.d(TAG, "Heatmap SDK Initialized successfully with URL: "+ apiBaseUrl );
                 }
@@ -79,50 +173,97 @@ public class HeatmapSDK {
      */
     public void identifyUser(String userId, String token) {
         this.currentUserId = userId;
+        this.currentUserKey = eventBuffer.internUser(userId);
         this.authToken = token;
         Log.d(TAG, "User identified: " + userId);
         flushEvents();
     }
 
+    /**
+     * Uploads events in a gzip-compressed binary encoding instead of JSON.
+     * Requires server support for the compact content type; uploads fall back to JSON otherwise.
+     * @param enabled Whether to use the compact encoding.
+     */
+    public void setCompactUploadsEnabled(boolean enabled) {
+        networkClient.setCompactEncoding(enabled);
+    }
+
+    /**
+     * Sets how heatmaps are colored.
+     * @param gradientColors ARGB colors from lowest to highest density.
+     * @param gradientStops Positions of the colors in [0, 1], ascending, one per color.
+     * @param radiusPx How far, in pixels, a single tap spreads on the heatmap.
+     */
+    public void setHeatmapStyle(int[] gradientColors, float[] gradientStops, int radiusPx) {
+        this.heatmapStyle = new DensityGridRenderer(gradientColors, gradientStops, radiusPx,
+                DensityGridRenderer.DEFAULT_CELL_SIZE_PX);
+        scheduler.execute(HeatmapScheduler.Priority.PERSIST, heatmapCache::clear);
+    }
+
+    /**
+     * Sets how swipes are drawn on heatmaps. {@link HeatmapRendererView.SwipeMode#FLOW_FIELD} keeps screens
+     * with thousands of swipes readable. Defaults to {@link HeatmapRendererView.SwipeMode#RAW}.
+     */
+    public void setSwipeMode(HeatmapRendererView.SwipeMode mode) {
+        this.swipeMode = mode;
+        scheduler.execute(HeatmapScheduler.Priority.PERSIST, heatmapCache::clear);
+    }
+
     /**
      * Clears user identification. Call this when a user logs out.
      */
     public void clearUser() {
         Log.d(TAG, "User cleared. Events will be tracked anonymously.");
         this.currentUserId = null;
+        this.currentUserKey = StringTable.NONE;
         this.authToken = null;
     }
 
     /**
-     * Records a single interaction event.
+     * Returns the ID that events on the given screen are recorded with.
+     * Resolve this once per screen and size, outside of the touch path.
+     * @param screenName The name of the screen.
+     * @param width Width in pixels of the view whose coordinates events are recorded in.
+     * @param height Height in pixels of that view.
+     * @return The screen ID, or {@link StringTable#NONE} if the name is null or empty.
+     */
+    int screenId(String screenName, int width, int height) {
+        if (screenName == null || screenName.isEmpty()) {
+            Log.w(TAG, "Screen name is null or empty. Events on this screen will be skipped.");
+            return StringTable.NONE;
+        }
+        return eventBuffer.internScreen(screenName, width, height);
+    }
+
+    /**
+     * Returns the ID that events on the view with the given resource name are tagged with.
+     * Resolve this once per view, outside of the touch path.
+     * @param viewId The resource entry name of the view, e.g. "checkout_button".
+     */
+    int viewKey(String viewId) {
+        return eventBuffer.internView(viewId);
+    }
+
+    /**
+     * Records a single interaction event. Does not allocate; safe to call on every touch.
+     * @param eventType One of the {@link EventType} codes.
      * @param x The x-coordinate of the event.
      * @param y The y-coordinate of the event.
-     * @param screenName The name of the screen where the event occurred.
+     * @param screenId The screen where the event occurred, from {@link #screenId(String, int, int)}.
+     * @param viewKey The view the event hit, from {@link #viewKey(String)}, or {@link StringTable#NONE}.
      */
-    void recordEvent(String eventType, float x, float y, float intensity, String screenName) {
+    void recordEvent(int eventType, float x, float y, float intensity, int screenId, int viewKey) {
         if (!isInitialized) {
             Log.w(TAG, "SDK not initialized. Skipping event recording.");
             return;
         }
-        if (screenName == null || screenName.isEmpty()) {
-            Log.w(TAG, "Screen name is null or empty. Skipping event.");
+        if (screenId == StringTable.NONE) {
             return;
         }
 
-        final HeatmapEvent event = new HeatmapEvent(
-                System.currentTimeMillis(),
-                eventType,
-                x,
-                y,
-                intensity,
-                screenName,
-                currentUserId
-        );
-
-        executorService.execute(() -> {
-            database.eventDao().insert(event);
-            Log.d(TAG, "Event Recorded: " + eventType + " on " + screenName + " at (" + x + "," + y + ")");
-        });
+        // Dropped events are counted by the buffer and reported with the next upload.
+        countOffer(eventBuffer.offer(System.currentTimeMillis(), eventType, x, y, Float.NaN, Float.NaN,
+                intensity, screenId, currentUserKey, viewKey, null));
     }
 
     /**
@@ -131,60 +272,175 @@ public class HeatmapSDK {
      * @param startY The starting y-coordinate.
      * @param endX   The ending x-coordinate.
      * @param endY   The ending y-coordinate.
-     * @param screenName The screen where the swipe occurred.
+     * @param screenId The screen where the swipe occurred, from {@link #screenId(String, int, int)}.
+     * @param viewKey The view the swipe started on, from {@link #viewKey(String)}, or {@link StringTable#NONE}.
      */
-    void recordEvent(String eventType, float startX, float startY, float endX, float endY, String screenName) {
+    void recordEvent(int eventType, float startX, float startY, float endX, float endY, int screenId, int viewKey) {
         if (!isInitialized) {
             Log.w(TAG, "SDK not initialized. Skipping swipe event recording.");
             return;
         }
-        if (screenName == null || screenName.isEmpty()) {
-            Log.w(TAG, "Screen name is null or empty. Skipping swipe event.");
+        if (screenId == StringTable.NONE) {
             return;
         }
 
-        final HeatmapEvent event = new HeatmapEvent(
-                System.currentTimeMillis(),
-                eventType,
-                startX,
-                startY,
-                endX,
-                endY,
-                screenName,
-                currentUserId
-        );
-
-        executorService.execute(() -> {
-            database.eventDao().insert(event);
-            Log.d(TAG, "Swipe Recorded: from (" + startX + "," + startY + ") to (" + endX + "," + endY + ") on " + screenName);
-        });
+        countOffer(eventBuffer.offer(System.currentTimeMillis(), eventType, startX, startY, endX, endY,
+                SWIPE_INTENSITY, screenId, currentUserKey, viewKey, null));
+    }
+
+    /**
+     * Records a whole scroll gesture as one event.
+     * Allocates only the encoded trail, once per gesture.
+     * @param points x, y pairs of the simplified path, from start to end.
+     * @param pointCount The number of points; at least two.
+     * @param screenId The screen where the scroll occurred, from {@link #screenId(String, int, int)}.
+     * @param viewKey The view the scroll started on, from {@link #viewKey(String)}, or {@link StringTable#NONE}.
+     */
+    void recordTrail(float[] points, int pointCount, int screenId, int viewKey) {
+        if (!isInitialized) {
+            Log.w(TAG, "SDK not initialized. Skipping scroll recording.");
+            return;
+        }
+        if (screenId == StringTable.NONE || pointCount < 2) {
+            return;
+        }
+
+        int last = (pointCount - 1) * 2;
+        countOffer(eventBuffer.offer(System.currentTimeMillis(), EventType.SCROLL, points[0], points[1],
+                points[last], points[last + 1], SWIPE_INTENSITY, screenId, currentUserKey, viewKey,
+                TrailCodec.encode(points, pointCount)));
+    }
+
+    private void countOffer(boolean buffered) {
+        if (buffered) {
+            metrics.onEventRecorded();
+        } else {
+            metrics.onEventDropped();
+        }
+    }
+
+    /**
+     * Writes any buffered events to the local database without waiting for the flush window.
+     * Called when a screen is paused so that events survive the process being killed.
+     */
+    void persistBufferedEvents() {
+        scheduler.execute(HeatmapScheduler.Priority.PERSIST, eventBuffer::drain);
+    }
+
+    /**
+     * Cancels the heatmap overlay being loaded or rendered for a screen, if any.
+     * Called on the main thread when the screen is paused, so no work is spent on an overlay nobody will see.
+     */
+    void cancelHeatmapRender(String screenName) {
+        HeatmapPainter render = overlayRenders.remove(screenName);
+        if (render != null) {
+            render.cancel();
+            Log.d(TAG, "Cancelled heatmap render for " + screenName);
+        }
     }
 
 
     /**
-     * Triggers an asynchronous upload of all locally stored events to the server.
+     * Requests an upload of all locally stored events to the server.
+     * Uploads also start on their own once enough events are stored or the oldest is old enough,
+     * see {@link HeatmapConfig}. Overlapping requests are combined into one upload, and a request
+     * made while a failed upload waits for its retry is served by that retry.
      */
     public void flushEvents() {
-        executorService.execute(() -> {
-            List<HeatmapEvent> events = database.eventDao().getAll();
-            if (events.isEmpty()) {
-                Log.d(TAG, "No events to flush.");
-                return;
+        flushScheduler.requestFlush();
+    }
+
+    /**
+     * Stops the SDK. Buffered events are written to the database and work already queued finishes
+     * in the background, after which the SDK's threads exit; pending retries are dropped and resume
+     * from the database on the next start. Events recorded after this call are ignored.
+     * Call {@link #initialize} again to start a new instance.
+     */
+    public void shutdown() {
+        synchronized (HeatmapSDK.class) {
+            if (instance == this) {
+                instance = null;
             }
-            Log.d(TAG, "Flushing " + events.size() + " events.");
-            networkClient.uploadEvents(events, currentUserId,authToken, new NetworkClient.Callback() {
-                @Override
-                public void onSuccess() {
-                    Log.d(TAG, "Events uploaded successfully. Events:" + events );
-                    executorService.execute(() -> database.eventDao().delete(events));
-                }
+        }
+        if (!isInitialized) {
+            return;
+        }
+        isInitialized = false;
+        application.unregisterActivityLifecycleCallbacks(lifecycleManager);
+        scheduler.execute(HeatmapScheduler.Priority.PERSIST, eventBuffer::drain);
+        scheduler.shutdown();
+        Log.d(TAG, "Heatmap SDK shut down.");
+    }
 
-                @Override
-                public void onFailure(Exception e) {
-                    Log.e(TAG, "Failed to upload events", e);
-                }
-            });
-        });
+    /**
+     * Waits until the SDK has no background work running or queued, e.g. before a test inspects
+     * the database. Work scheduled for later, such as a delayed retry, is not waited for.
+     * @return false if the timeout passed first.
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        return scheduler.awaitIdle(timeout, unit);
+    }
+
+    /**
+     * Uploads stored events on the executor, one batch at a time, so memory use does not depend on
+     * how many events are stored. Each batch is marked in flight before it is sent and acknowledged
+     * once the server accepts it; acknowledged events are deleted at the end. A failed batch returns
+     * to pending under the same batch ID and stops the flush, so its retry can be recognized by the
+     * server if the failed attempt did arrive.
+     * @return false if an upload failed.
+     */
+    private boolean flushStoredEvents() {
+        long start = System.nanoTime();
+        eventBuffer.drain();
+        EventDao dao = database.eventDao();
+        int flushed = 0;
+        boolean succeeded = true;
+        // Events shed under load go with the first batch, so the server can reweight what it received.
+        long[] dropped = eventBuffer.takeDroppedCounts();
+        while (true) {
+            List<HeatmapEvent> batch = dao.claimNextBatch(FLUSH_PAGE_SIZE);
+            if (batch.isEmpty()) {
+                break;
+            }
+            String batchId = batch.get(0).getBatchId();
+            try {
+                networkClient.uploadEventsBlocking(batch, currentUserId, authToken, batchId, dropped);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to upload batch " + batchId, e);
+                dao.setBatchState(batchId, HeatmapEvent.UPLOAD_PENDING);
+                succeeded = false;
+                break;
+            }
+            dao.setBatchState(batchId, HeatmapEvent.UPLOAD_ACKED);
+            dropped = null;
+            flushScheduler.onEventsUploaded(batch.size());
+            flushed += batch.size();
+        }
+        if (dropped != null) {
+            eventBuffer.restoreDroppedCounts(dropped);
+        }
+        dao.deleteAcked();
+        Log.d(TAG, flushed == 0 ? "No events flushed." : "Flushed " + flushed + " events.");
+        if (succeeded) {
+            // The server is reachable again; send screenshots left over from failed uploads too.
+            networkClient.retryPendingScreenshots();
+        }
+        metrics.onFlush(System.nanoTime() - start);
+        HeatmapMetrics.Listener listener = metricsListener;
+        if (listener != null) {
+            listener.onMetrics(getMetrics());
+        }
+        return succeeded;
+    }
+
+    /** Rough size of the events once serialized for upload. */
+    private static long estimateUploadBytes(List<HeatmapEvent> events) {
+        long bytes = 0;
+        for (HeatmapEvent event : events) {
+            bytes += ESTIMATED_EVENT_BYTES + (event.getScreenName() != null ? event.getScreenName().length() : 0)
+                    + (event.getTrail() != null ? event.getTrail().length() : 0);
+        }
+        return bytes;
     }
 
     /**
@@ -192,6 +448,15 @@ public class HeatmapSDK {
      * @param rootView The root view group to draw the heatmap on.
      */
     public void showHeatmap(ViewGroup rootView) {
+        showHeatmap(rootView, false);
+    }
+
+    /**
+     * @param zoomable Whether the overlay can be pinched to zoom and dragged to pan, see
+     *                 {@link HeatmapRendererView#setZoomEnabled}. A zoomable overlay keeps the heatmap data
+     *                 rather than a rendered bitmap, is not cached, and takes the touches on the screen.
+     */
+    public void showHeatmap(ViewGroup rootView, boolean zoomable) {
         Context context = rootView.getContext();
         String screenName = context.getClass().getSimpleName();
 
@@ -201,16 +466,36 @@ public class HeatmapSDK {
             Log.d(TAG, "Removed stale heatmap view.");
         }
 
-        networkClient.fetchHeatmapData(screenName, currentUserId, authToken,applicationContext, new NetworkClient.DataCallback<HeatmapData>() {
+        if (zoomable) {
+            loadHeatmapData(rootView, screenName, applicationContext, new NetworkClient.DataCallback<HeatmapData>() {
+                @Override
+                public void onSuccess(HeatmapData data) {
+                    if (data == null || data.getPoints().isEmpty()) {
+                        Log.d(TAG, "No heatmap data available for screen: " + screenName);
+                        return;
+                    }
+                    HeatmapRendererView heatmapView = new HeatmapRendererView(context, data, heatmapStyle.copy());
+                    heatmapView.setSwipeMode(swipeMode);
+                    heatmapView.setMetrics(metrics);
+                    // The tiles' pyramid is built on the render lane, so it queues behind no upload.
+                    heatmapView.setRenderExecutor(scheduler.executor(HeatmapScheduler.Priority.RENDER));
+                    heatmapView.setZoomEnabled(true);
+                    addHeatmapView(rootView, heatmapView, screenName);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    Log.e(TAG, "Failed to fetch heatmap data", e);
+                }
+            });
+            return;
+        }
+
+        loadHeatmapOverlay(rootView, screenName, applicationContext, new NetworkClient.DataCallback<Bitmap>() {
             @Override
-            public void onSuccess(HeatmapData data) {
-                if (data != null && !data.getPoints().isEmpty()) {
-                    HeatmapRendererView heatmapView = new HeatmapRendererView(context, data);
-                    rootView.addView(heatmapView);
-                    Log.d(TAG, "Heatmap rendered for screen: " + screenName);
-
-                    // After rendering, capture and upload
-                    captureAndUploadScreenshot(rootView);
+            public void onSuccess(Bitmap overlay) {
+                if (overlay != null) {
+                    addHeatmapView(rootView, new HeatmapRendererView(context, overlay), screenName);
                 } else {
                     Log.d(TAG, "No heatmap data available for screen: " + screenName);
                 }
@@ -223,17 +508,185 @@ public class HeatmapSDK {
         });
     }
 
+    private void addHeatmapView(ViewGroup rootView, HeatmapRendererView heatmapView, String screenName) {
+        heatmapView.setTag(HEATMAP_VIEW_TAG);
+        rootView.addView(heatmapView);
+        Log.d(TAG, "Heatmap rendered for screen: " + screenName);
+
+        // After rendering, capture and upload
+        captureAndUploadScreenshot(rootView);
+    }
+
+    /**
+     * Runs a render task. If the render queue drops or refuses it, the callback fails on the main thread
+     * instead, so a load waiting for the task always hears back.
+     */
+    private void executeRender(View view, NetworkClient.DataCallback<?> callback, Runnable task) {
+        try {
+            scheduler.execute(HeatmapScheduler.Priority.RENDER, HeatmapScheduler.droppable(task, () -> view.post(() ->
+                    callback.onFailure(new RejectedExecutionException("Render queue is full")))));
+        } catch (RejectedExecutionException e) {
+            view.post(() -> callback.onFailure(e));
+        }
+    }
+
+    /**
+     * Delivers the rendered heatmap overlay for a screen on the main thread, or null if there is no data.
+     * The overlay comes from the cache when no events were recorded on the screen since it was rendered,
+     * which skips both reading the aggregates and drawing them. Otherwise it is rendered on a worker thread.
+     * Loading it again, or pausing the screen, cancels the load and the callback is not called.
+     */
+    private void loadHeatmapOverlay(ViewGroup rootView, String screenName, Context dataContext,
+                                    NetworkClient.DataCallback<Bitmap> callback) {
+        int width = rootView.getWidth();
+        int height = rootView.getHeight();
+        if (width == 0 || height == 0) {
+            callback.onFailure(new IllegalStateException("Root view has not been laid out yet."));
+            return;
+        }
+
+        HeatmapPainter render = new HeatmapPainter(heatmapStyle.copy(), swipeMode);
+        NetworkClient.DataCallback<Bitmap> delivery = track(screenName, render, callback);
+        executeRender(rootView, delivery, () -> {
+            if (render.isCancelled()) return;
+            // Store buffered events first, so the data version below includes them.
+            eventBuffer.drain();
+            String key = HeatmapBitmapCache.key(screenName, width, height,
+                    String.valueOf(database.screenAggregateDao().getEventCount(screenName)));
+            Bitmap cached = heatmapCache.get(key);
+            if (cached != null) {
+                Log.d(TAG, "Heatmap cache hit for " + key);
+                rootView.post(() -> delivery.onSuccess(cached));
+                return;
+            }
+
+            rootView.post(() -> networkClient.fetchHeatmapData(screenName, currentUserId, authToken, dataContext, new NetworkClient.DataCallback<HeatmapData>() {
+                @Override
+                public void onSuccess(HeatmapData data) {
+                    if (data == null || data.getPoints().isEmpty()) {
+                        delivery.onSuccess(null);
+                        return;
+                    }
+                    executeRender(rootView, delivery, () -> {
+                        long start = System.nanoTime();
+                        Bitmap overlay = render.render(data, width, height, null);
+                        if (overlay == null) return;
+                        metrics.onRender(System.nanoTime() - start);
+                        // The PNG is written on the cache's own thread.
+                        heatmapCache.put(key, overlay);
+                        rootView.post(() -> delivery.onSuccess(overlay));
+                    });
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    delivery.onFailure(e);
+                }
+            }));
+        });
+    }
+
+    /**
+     * Delivers the heatmap data for a screen on the main thread, for a view that draws it itself.
+     * Loading it again, or pausing the screen, cancels the load and the callback is not called.
+     */
+    private void loadHeatmapData(ViewGroup rootView, String screenName, Context dataContext,
+                                 NetworkClient.DataCallback<HeatmapData> callback) {
+        // Only cancellation is asked of this painter; the view draws with its own.
+        HeatmapPainter load = new HeatmapPainter(heatmapStyle.copy(), swipeMode);
+        NetworkClient.DataCallback<HeatmapData> delivery = track(screenName, load, callback);
+        executeRender(rootView, delivery, () -> {
+            if (load.isCancelled()) return;
+            // Store buffered events first, so the data includes them.
+            eventBuffer.drain();
+            rootView.post(() -> networkClient.fetchHeatmapData(screenName, currentUserId, authToken, dataContext, delivery));
+        });
+    }
+
+    /**
+     * Makes a load the screen's current one, cancelling the one before, since the data may have changed
+     * since it started; only the latest is delivered.
+     * @return The callback to deliver the load's result through. It drops the result once the load is cancelled.
+     */
+    private <T> NetworkClient.DataCallback<T> track(String screenName, HeatmapPainter load,
+                                                    NetworkClient.DataCallback<T> callback) {
+        cancelHeatmapRender(screenName);
+        overlayRenders.put(screenName, load);
+        return new NetworkClient.DataCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                if (finish()) {
+                    callback.onSuccess(result);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                if (finish()) {
+                    callback.onFailure(e);
+                }
+            }
+
+            private boolean finish() {
+                overlayRenders.remove(screenName, load);
+                return !load.isCancelled();
+            }
+        };
+    }
+
+    /**
+     * @return The SDK's counters and latency histograms since it was initialized.
+     */
+    public MetricsSnapshot getMetrics() {
+        return metrics.snapshot(eventBuffer.size(), scheduler.getQueuedCount());
+    }
+
+    /**
+     * Receives a metrics snapshot after every flush, on a background thread, e.g. to forward
+     * the numbers to your own monitoring.
+     * @param listener The listener, or null to remove it.
+     */
+    public void setMetricsListener(HeatmapMetrics.Listener listener) {
+        this.metricsListener = listener;
+    }
+
+    /**
+     * @return Hit, miss and eviction counts for the rendered heatmap cache.
+     */
+    public HeatmapBitmapCache.Stats getHeatmapCacheStats() {
+        return heatmapCache.getStats();
+    }
+
+    /**
+     * Also keeps rendered heatmaps in the app cache directory, so they survive process restarts.
+     * @param enabled Whether to use the disk cache.
+     */
+    public void setHeatmapDiskCacheEnabled(boolean enabled) {
+        heatmapCache.setDiskEnabled(enabled);
+    }
+
     private void captureAndUploadScreenshot(ViewGroup rootView) {
 
         rootView.post(() -> {
-            Bitmap screenshot = ScreenshotModule.capture(rootView);
+            Bitmap screenshot = ScreenshotModule.capture(rootView, screenshotScale, screenshotPool);
             if (screenshot != null) {
                 Log.d(TAG, "Screenshot captured.");
+                String screenName = rootView.getContext().getClass().getSimpleName();
+
+                String hashKey = ScreenshotDeduplicator.key(ScreenshotDeduplicator.Kind.SCREEN, screenName,
+                        rootView.getWidth(), rootView.getHeight());
+                long hash = PerceptualHash.of(screenshot);
+                if (screenshotDeduplicator.isUnchanged(hashKey, hash)) {
+                    Log.d(TAG, "Screen unchanged since the last upload. Skipping screenshot for " + screenName);
+                    screenshotPool.release(screenshot);
+                    return;
+                }
 
-                networkClient.uploadScreenshot(screenshot, rootView.getContext().getClass().getSimpleName(), currentUserId, authToken, new NetworkClient.Callback() {
+                networkClient.uploadScreenshot(screenshot, screenName, currentUserId, authToken, screenshotPool, new NetworkClient.Callback() {
                     @Override
                     public void onSuccess() {
-                        Log.d(TAG,  screenshot+" Screenshot uploaded successfully.");
+                        screenshotDeduplicator.remember(hashKey, hash);
+                        Log.d(TAG, "Screenshot uploaded successfully.");
                     }
 
                     @Override
@@ -262,56 +715,76 @@ public class HeatmapSDK {
             Log.d(TAG, "Removed stale heatmap view.");
         }
 
-        networkClient.fetchHeatmapData(screenName, currentUserId, authToken, context, new NetworkClient.DataCallback<HeatmapData>() {
+        loadHeatmapOverlay(rootView, screenName, context, new NetworkClient.DataCallback<Bitmap>() {
             @Override
-            public void onSuccess(HeatmapData data) {
-                if (data == null || data.getPoints().isEmpty()) {
+            public void onSuccess(Bitmap overlay) {
+                if (overlay == null) {
                     Log.d(TAG, "No heatmap data available to generate screenshot for screen: " + screenName);
                     return;
                 }
 
-                Bitmap baseScreenshot = ScreenshotModule.capture(rootView);
+                Bitmap baseScreenshot = ScreenshotModule.capture(rootView, screenshotScale, screenshotPool);
                 if (baseScreenshot == null) {
                     Log.e(TAG, "Failed to capture base screenshot.");
                     return;
                 }
 
-                Canvas canvas = new Canvas(baseScreenshot);
-
-                HeatmapRendererView heatmapView = new HeatmapRendererView(context, data);
-                heatmapView.measure(
-                        View.MeasureSpec.makeMeasureSpec(rootView.getWidth(), View.MeasureSpec.EXACTLY),
-                        View.MeasureSpec.makeMeasureSpec(rootView.getHeight(), View.MeasureSpec.EXACTLY)
-                );
-                heatmapView.layout(0, 0, heatmapView.getMeasuredWidth(), heatmapView.getMeasuredHeight());
+                // Drawing the view hierarchy has to happen here; compositing and hashing run on a worker.
+                int viewWidth = rootView.getWidth();
+                int viewHeight = rootView.getHeight();
+                Runnable composite = () -> {
+                    // The overlay is view-sized; scale it down with the screenshot.
+                    Canvas canvas = new Canvas(baseScreenshot);
+                    canvas.drawBitmap(overlay, null, new Rect(0, 0, baseScreenshot.getWidth(), baseScreenshot.getHeight()),
+                            new Paint(Paint.FILTER_BITMAP_FLAG));
+                    Log.d(TAG, "Heatmap drawn onto screenshot in memory.");
+                    long hash = PerceptualHash.of(baseScreenshot);
+                    rootView.post(() -> uploadHeatmapScreenshot(baseScreenshot, hash, screenName, viewWidth, viewHeight));
+                };
+                Runnable discard = () -> {
+                    Log.w(TAG, "Render queue is full. Skipping heatmap screenshot for " + screenName);
+                    screenshotPool.release(baseScreenshot);
+                };
+                try {
+                    scheduler.execute(HeatmapScheduler.Priority.RENDER, HeatmapScheduler.droppable(composite, discard));
+                } catch (RejectedExecutionException e) {
+                    discard.run();
+                }
+            }
 
-                heatmapView.draw(canvas);
-                Log.d(TAG, "Heatmap drawn onto screenshot in memory.");
+            @Override
+            public void onFailure(Exception e) {
+                Log.e(TAG, "Failed to fetch heatmap data for screenshot", e);
+            }
+        });
+    }
 
-//                android.app.Activity activity = (android.app.Activity) rootView.getContext();
-//                android.widget.ImageView debugView = activity.findViewById(R.id.debug_screenshot_view);
-//                if (debugView != null) {
-//                    debugView.setImageBitmap(baseScreenshot);
-//                    debugView.setVisibility(View.VISIBLE);
-//                    Log.d(TAG, "Screenshot displayed in debug ImageView.");
-//                }
+    private void uploadHeatmapScreenshot(Bitmap screenshot, long hash, String screenName, int viewWidth, int viewHeight) {
+        String hashKey = ScreenshotDeduplicator.key(ScreenshotDeduplicator.Kind.HEATMAP, screenName, viewWidth, viewHeight);
+        if (screenshotDeduplicator.isUnchanged(hashKey, hash)) {
+            Log.d(TAG, "Heatmap screenshot unchanged since the last upload. Skipping for " + screenName);
+            screenshotPool.release(screenshot);
+            return;
+        }
 
-                networkClient.uploadScreenshot(baseScreenshot, screenName, currentUserId, authToken, new NetworkClient.Callback() {
-                    @Override
-                    public void onSuccess() {
-                        Log.d(TAG, "Heatmap screenshot uploaded successfully.");
-                    }
+//        android.app.Activity activity = (android.app.Activity) rootView.getContext();
+//        android.widget.ImageView debugView = activity.findViewById(R.id.debug_screenshot_view);
+//        if (debugView != null) {
+//            debugView.setImageBitmap(screenshot);
+//            debugView.setVisibility(View.VISIBLE);
+//            Log.d(TAG, "Screenshot displayed in debug ImageView.");
+//        }
 
-                    @Override
-                    public void onFailure(Exception e) {
-                        Log.e(TAG, "Heatmap screenshot upload failed", e);
-                    }
-                });
+        networkClient.uploadScreenshot(screenshot, screenName, currentUserId, authToken, screenshotPool, new NetworkClient.Callback() {
+            @Override
+            public void onSuccess() {
+                screenshotDeduplicator.remember(hashKey, hash);
+                Log.d(TAG, "Heatmap screenshot uploaded successfully.");
             }
 
             @Override
             public void onFailure(Exception e) {
-                Log.e(TAG, "Failed to fetch heatmap data for screenshot", e);
+                Log.e(TAG, "Heatmap screenshot upload failed", e);
             }
         });
     }
@@ -0,0 +1,57 @@
+package com.emanthus.heatmap.sdk;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.emanthus.heatmap.sdk.render.PerceptualHash;
+
+import java.util.Locale;
+
+/**
+ * Remembers the perceptual hash of the last screenshot uploaded for each kind of screenshot, screen and
+ * view size, so that a screen that has not visibly changed is not uploaded again.
+ * Hashes are kept in shared preferences and survive restarts.
+ */
+class ScreenshotDeduplicator {
+
+    private static final String PREFS_NAME = "heatmap_screenshot_hashes";
+
+    /** What a screenshot shows. Each kind is compared only with the last upload of the same kind. */
+    enum Kind {
+        /** The screen as the user sees it. */
+        SCREEN,
+        /** The screen with the heatmap drawn over it. */
+        HEATMAP
+    }
+
+    private final SharedPreferences prefs;
+    private final int maxDistance;
+
+    /**
+     * @param maxDistance The most hash bits that may differ for a screenshot to count as unchanged,
+     *                    or a negative value to upload every screenshot.
+     */
+    ScreenshotDeduplicator(Context context, int maxDistance) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.maxDistance = maxDistance;
+    }
+
+    static String key(Kind kind, String screenName, int viewWidth, int viewHeight) {
+        String key = screenName + "_" + viewWidth + "x" + viewHeight;
+        // Plain screenshots keep the keys they were remembered under before kinds were told apart.
+        return kind == Kind.SCREEN ? key : key + "_" + kind.name().toLowerCase(Locale.ROOT);
+    }
+
+    /** @return Whether the last screenshot uploaded under the key looks the same as one with this hash. */
+    boolean isUnchanged(String key, long hash) {
+        if (maxDistance < 0 || !prefs.contains(key)) {
+            return false;
+        }
+        return PerceptualHash.distance(prefs.getLong(key, 0L), hash) <= maxDistance;
+    }
+
+    /** Records the hash of a screenshot that was uploaded. */
+    void remember(String key, long hash) {
+        prefs.edit().putLong(key, hash).apply();
+    }
+}
@@ -5,6 +5,8 @@ import android.graphics.Canvas;
 import android.util.Log;
 import android.view.View;
 
+import com.emanthus.heatmap.sdk.render.BitmapPool;
+
 public class ScreenshotModule {
 
     private static final String TAG = "ScreenshotModule";
@@ -15,17 +17,39 @@ public class ScreenshotModule {
      * @return A Bitmap of the view, or null if capturing fails.
      */
     public static Bitmap capture(View view) {
+        return capture(view, 1f, null);
+    }
+
+    /**
+     * Captures the contents of a view at a reduced size. The view is drawn straight at the target
+     * size, so no full-resolution bitmap is created.
+     * @param view The view to capture.
+     * @param scale Size of the result relative to the view, in (0, 1].
+     * @param pool Where to take the bitmap from, or null to allocate a new one.
+     *             Release the bitmap back to the pool once it has been encoded.
+     * @return A Bitmap of the view, or null if capturing fails.
+     */
+    public static Bitmap capture(View view, float scale, BitmapPool pool) {
         if (view.getWidth() == 0 || view.getHeight() == 0) {
             Log.e(TAG, "View has no dimensions, cannot capture screenshot.");
             return null;
         }
+        int width = Math.max(1, Math.round(view.getWidth() * scale));
+        int height = Math.max(1, Math.round(view.getHeight() * scale));
+        Bitmap bitmap = null;
         try {
-            Bitmap bitmap = Bitmap.createBitmap(view.getWidth(), view.getHeight(), Bitmap.Config.ARGB_8888);
+            bitmap = pool != null
+                    ? pool.acquire(width, height)
+                    : Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
             Canvas canvas = new Canvas(bitmap);
+            canvas.scale(width / (float) view.getWidth(), height / (float) view.getHeight());
             view.draw(canvas);
             return bitmap;
         } catch (Exception e) {
             Log.e(TAG, "Error capturing view", e);
+            if (pool != null) {
+                pool.release(bitmap);
+            }
             return null;
         }
     }
@@ -0,0 +1,149 @@
+package com.emanthus.heatmap.sdk;
+
+import java.util.Arrays;
+
+/**
+ * Collects the points of one scroll gesture so that it can be recorded as a single event.
+ * <p>
+ * Points are kept in a preallocated buffer and simplified with the Ramer–Douglas–Peucker algorithm
+ * when the gesture ends: points closer than the tolerance to the line between their neighbours are
+ * dropped. If the buffer fills up mid-gesture it is simplified early to make room. Used on the UI
+ * thread and does not allocate.
+ */
+class ScrollTrailRecorder {
+
+    static final int DEFAULT_MAX_POINTS = 256;
+
+    private final float tolerance;
+    private final float[] points;
+    private final boolean[] keep;
+    private final int[] stack;
+    private final int maxPoints;
+    private int count;
+
+    /**
+     * @param tolerance How far, in pixels, the simplified trail may deviate from the recorded one.
+     * @param maxPoints The most points held before the trail is simplified early.
+     */
+    ScrollTrailRecorder(float tolerance, int maxPoints) {
+        if (maxPoints < 2) {
+            throw new IllegalArgumentException("A trail needs room for at least two points.");
+        }
+        this.tolerance = tolerance;
+        this.maxPoints = maxPoints;
+        this.points = new float[maxPoints * 2];
+        this.keep = new boolean[maxPoints];
+        this.stack = new int[maxPoints * 2];
+    }
+
+    /** @return Whether a gesture is being recorded. */
+    boolean isActive() {
+        return count > 0;
+    }
+
+    /** Starts a new trail at the given point, discarding any unfinished one. */
+    void start(float x, float y) {
+        count = 0;
+        append(x, y);
+    }
+
+    /** Adds the next point of the current trail. Repeats of the last point are ignored. */
+    void add(float x, float y) {
+        if (count > 0 && points[count * 2 - 2] == x && points[count * 2 - 1] == y) {
+            return;
+        }
+        if (count == maxPoints) {
+            count = simplify(points, count, tolerance, keep, stack);
+        }
+        if (count == maxPoints) {
+            // Still full after simplifying: keep following the finger with the last point.
+            count--;
+        }
+        append(x, y);
+    }
+
+    /**
+     * Simplifies the trail and ends the gesture.
+     * @return The number of points left, readable from {@link #getPoints()} until the next {@link #start}.
+     */
+    int finish() {
+        int simplified = simplify(points, count, tolerance, keep, stack);
+        count = 0;
+        return simplified;
+    }
+
+    /** @return x, y pairs of the trail. The array is reused by the next gesture. */
+    float[] getPoints() {
+        return points;
+    }
+
+    private void append(float x, float y) {
+        points[count * 2] = x;
+        points[count * 2 + 1] = y;
+        count++;
+    }
+
+    /**
+     * Ramer–Douglas–Peucker simplification in place, using an explicit stack instead of recursion.
+     * @param points x, y pairs; the kept points are moved to the front, in order.
+     * @param keep Scratch space for at least count flags.
+     * @param stack Scratch space for at least 2 * count indices.
+     * @return The number of points kept. The first and last points are always kept.
+     */
+    static int simplify(float[] points, int count, float tolerance, boolean[] keep, int[] stack) {
+        if (count <= 2) {
+            return count;
+        }
+        Arrays.fill(keep, 0, count, false);
+        keep[0] = true;
+        keep[count - 1] = true;
+        float toleranceSquared = tolerance * tolerance;
+
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            float maxDistance = 0f;
+            int farthest = -1;
+            for (int i = first + 1; i < last; i++) {
+                float distance = distanceToSegmentSquared(points, i, first, last);
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    farthest = i;
+                }
+            }
+            if (farthest != -1 && maxDistance > toleranceSquared) {
+                keep[farthest] = true;
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (keep[i]) {
+                points[kept * 2] = points[i * 2];
+                points[kept * 2 + 1] = points[i * 2 + 1];
+                kept++;
+            }
+        }
+        return kept;
+    }
+
+    private static float distanceToSegmentSquared(float[] points, int point, int start, int end) {
+        float px = points[point * 2], py = points[point * 2 + 1];
+        float ax = points[start * 2], ay = points[start * 2 + 1];
+        float bx = points[end * 2], by = points[end * 2 + 1];
+        float dx = bx - ax, dy = by - ay;
+        float lengthSquared = dx * dx + dy * dy;
+        float t = lengthSquared == 0f ? 0f : ((px - ax) * dx + (py - ay) * dy) / lengthSquared;
+        t = Math.max(0f, Math.min(1f, t));
+        float ex = ax + t * dx - px;
+        float ey = ay + t * dy - py;
+        return ex * ex + ey * ey;
+    }
+}
@@ -10,32 +10,58 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.core.view.GestureDetectorCompat;
 
+import com.emanthus.heatmap.sdk.database.EventType;
+import com.emanthus.heatmap.sdk.database.StringTable;
+
 public class TouchEventInterceptor implements View.OnTouchListener {
 
     private final HeatmapSDK sdkInstance;
     private final String screenName;
     private static final String TAG = "GestureInterceptor";
+    // How far a stored scroll trail may deviate from the finger's path.
+    private static final float TRAIL_TOLERANCE_DP = 2f;
     private final GestureDetectorCompat gestureDetector;
+    private final GestureListener gestureListener;
+    // Size the screen ID was resolved for; coordinates are stored relative to it.
+    private int screenWidth = -1;
+    private int screenHeight = -1;
 
-    public TouchEventInterceptor(Context context, HeatmapSDK sdkInstance, String screenName) {
+    /**
+     * @param viewBounds Finds the view each event hit, or null to record events without their view.
+     */
+    public TouchEventInterceptor(Context context, HeatmapSDK sdkInstance, String screenName, ViewBoundsTracker viewBounds) {
         this.sdkInstance = sdkInstance;
         this.screenName = screenName;
-        this.gestureDetector = new GestureDetectorCompat(context, new GestureListener(sdkInstance, screenName));
+        float tolerance = TRAIL_TOLERANCE_DP * context.getResources().getDisplayMetrics().density;
+        this.gestureListener = new GestureListener(sdkInstance,
+                new ScrollTrailRecorder(tolerance, ScrollTrailRecorder.DEFAULT_MAX_POINTS), viewBounds);
+        this.gestureDetector = new GestureDetectorCompat(context, gestureListener);
     }
 
     @Override
     public boolean onTouch(View view, MotionEvent motionEvent) {
+        if (view.getWidth() != screenWidth || view.getHeight() != screenHeight) {
+            // First touch, or the window was resized, e.g. rotated.
+            screenWidth = view.getWidth();
+            screenHeight = view.getHeight();
+            gestureListener.screenId = sdkInstance.screenId(screenName, screenWidth, screenHeight);
+        }
 
 //        if (motionEvent.getAction() == MotionEvent.ACTION_DOWN) {
 //            sdkInstance.recordEvent( "TOUCH",motionEvent.getX(), motionEvent.getY(), screenName);
 //        }
         gestureDetector.onTouchEvent(motionEvent);
 
+        int action = motionEvent.getActionMasked();
+        if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+            gestureListener.finishScroll();
+        }
         return false;
     }
 
     /**
      * The listener that receives gesture callbacks from the GestureDetector.
+     * Runs on the UI thread, so it only passes primitives to the SDK.
      */
     private static class GestureListener extends GestureDetector.SimpleOnGestureListener {
 
@@ -43,11 +69,27 @@ public class TouchEventInterceptor implements View.OnTouchListener {
         private static final int SWIPE_MIN_DISTANCE = 120;
 
         private final HeatmapSDK sdkInstance;
-        private final String screenName;
+        int screenId = StringTable.NONE;
+        private final ScrollTrailRecorder scrollTrail;
+        private final ViewBoundsTracker viewBounds;
+        private int scrollViewKey = StringTable.NONE;
 
-        GestureListener(HeatmapSDK sdk, String screenName) {
+        GestureListener(HeatmapSDK sdk, ScrollTrailRecorder scrollTrail, ViewBoundsTracker viewBounds) {
             this.sdkInstance = sdk;
-            this.screenName = screenName;
+            this.scrollTrail = scrollTrail;
+            this.viewBounds = viewBounds;
+        }
+
+        private int viewAt(MotionEvent e) {
+            return viewBounds != null ? viewBounds.viewAt(e.getX(), e.getY()) : StringTable.NONE;
+        }
+
+        /** Records the scroll in progress, if any, as a single event. Called when the finger lifts. */
+        void finishScroll() {
+            if (scrollTrail.isActive()) {
+                int pointCount = scrollTrail.finish();
+                sdkInstance.recordTrail(scrollTrail.getPoints(), pointCount, screenId, scrollViewKey);
+            }
         }
 
         @Override
@@ -58,20 +100,26 @@ public class TouchEventInterceptor implements View.OnTouchListener {
 
         @Override
         public boolean onScroll(@Nullable MotionEvent e1, @NonNull MotionEvent e2, float distanceX, float distanceY) {
-            sdkInstance.recordEvent("SCROLL", e1.getX(), e1.getY(), e2.getX(), e2.getY(), screenName);
+            // Called about once per frame; the gesture is recorded once, when it ends.
+            if (!scrollTrail.isActive()) {
+                MotionEvent start = e1 != null ? e1 : e2;
+                scrollTrail.start(start.getX(), start.getY());
+                scrollViewKey = viewAt(start);
+            }
+            scrollTrail.add(e2.getX(), e2.getY());
             return super.onScroll(e1, e2, distanceX, distanceY);
         }
 
         @Override
         public boolean onSingleTapUp(MotionEvent e) {
 
-            sdkInstance.recordEvent("TOUCH", e.getX(), e.getY(), e.getPressure() , screenName);
+            sdkInstance.recordEvent(EventType.TOUCH, e.getX(), e.getY(), e.getPressure() , screenId, viewAt(e));
             return super.onSingleTapUp(e);
         }
 
         @Override
         public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY) {
-            String swipeDirection = "";
+            int swipeDirection = -1;
             assert e1 != null;
             float diffX = e2.getX() - e1.getX();
             float diffY = e2.getY() - e1.getY();
@@ -79,24 +127,24 @@ public class TouchEventInterceptor implements View.OnTouchListener {
             if (Math.abs(diffX) > Math.abs(diffY)) {
                 if (Math.abs(diffX) > SWIPE_MIN_DISTANCE && Math.abs(velocityX) > SWIPE_THRESHOLD_VELOCITY) {
                     if (diffX > 0) {
-                        swipeDirection = "SWIPE_RIGHT";
+                        swipeDirection = EventType.SWIPE_RIGHT;
                     } else {
-                        swipeDirection = "SWIPE_LEFT";
+                        swipeDirection = EventType.SWIPE_LEFT;
                     }
                 }
             } else {
                 if (Math.abs(diffY) > SWIPE_MIN_DISTANCE && Math.abs(velocityY) > SWIPE_THRESHOLD_VELOCITY) {
                     if (diffY > 0) {
-                        swipeDirection = "SWIPE_DOWN";
+                        swipeDirection = EventType.SWIPE_DOWN;
                     } else {
-                        swipeDirection = "SWIPE_UP";
+                        swipeDirection = EventType.SWIPE_UP;
                     }
                 }
             }
 
-            if (!swipeDirection.isEmpty()) {
-                sdkInstance.recordEvent(swipeDirection, e1.getX(), e1.getY(), e2.getX(), e2.getY(), screenName);
-                Log.d(TAG, "Swipe detected: " + swipeDirection);
+            if (swipeDirection != -1) {
+                sdkInstance.recordEvent(swipeDirection, e1.getX(), e1.getY(), e2.getX(), e2.getY(), screenId, viewAt(e1));
+                Log.d(TAG, EventType.name(swipeDirection));
                 return true;
             }
 
@@ -0,0 +1,244 @@
+package com.emanthus.heatmap.sdk;
+
+import com.emanthus.heatmap.sdk.database.StringTable;
+
+import java.util.Arrays;
+
+/**
+ * Window rectangles of views, bucketed into a grid of {@link #CELL_SIZE_PX} cells, so that the view
+ * under a touch is found among the few views overlapping one cell instead of by walking the view tree.
+ * <p>
+ * Views are added in view tree pre-order, parents before children and siblings in drawing order.
+ * The last view added that contains a point is then the one drawn on top there, like the one
+ * touch dispatch reaches first. Views added between {@link #beginGroup} and {@link #endGroup} are
+ * clipped to the group, e.g. the children of a ViewGroup, and {@link #offsetGroup} moves them all,
+ * e.g. when it scrolls, without adding them again. Used on the UI thread; lookups do not allocate.
+ */
+class ViewBoundsIndex {
+
+    static final int CELL_SIZE_PX = 128;
+    /** The group {@link #reset} starts, which clips everything to the window. */
+    static final int WINDOW = 0;
+
+    // Rectangles are stored as 4 ints each: left, top, right, bottom.
+    private static final int LEFT = 0;
+    private static final int TOP = 1;
+    private static final int RIGHT = 2;
+    private static final int BOTTOM = 3;
+
+    private int count;
+    // Per view: its bounds as added, the part of them left after clipping to its group, and its group.
+    private int[] bounds = new int[64 * 4];
+    private int[] visible = new int[64 * 4];
+    private int[] keys = new int[64];
+    private int[] viewGroups = new int[64];
+
+    // Per group: the same two rectangles and the enclosing group. Group g holds the views
+    // groupFirstViews[g] .. groupEndViews[g] and the groups g + 1 .. groupEndGroups[g], both exclusive.
+    private int groupCount;
+    private int[] groupBounds = new int[16 * 4];
+    private int[] groupVisible = new int[16 * 4];
+    private int[] groupParents = new int[16];
+    private int[] groupFirstViews = new int[16];
+    private int[] groupEndViews = new int[16];
+    private int[] groupEndGroups = new int[16];
+    private int currentGroup = -1;
+
+    private int columns;
+    private int rows;
+    // The views overlapping cell c are cellEntries[cellStarts[c] .. cellStarts[c + 1]), in the order added.
+    private int[] cellStarts = new int[1];
+    private int[] cellEntries = new int[0];
+
+    /** Empties the index for a window of the given size. */
+    void reset(int width, int height) {
+        count = 0;
+        groupCount = 0;
+        currentGroup = -1;
+        columns = Math.max(1, (width + CELL_SIZE_PX - 1) / CELL_SIZE_PX);
+        rows = Math.max(1, (height + CELL_SIZE_PX - 1) / CELL_SIZE_PX);
+        beginGroup(0, 0, width, height);
+    }
+
+    /**
+     * Adds a view, clipped to the innermost open group. Call {@link #build()} once all views are added.
+     * @param key What {@link #find} returns for points on the view.
+     */
+    void add(int left, int top, int right, int bottom, int key) {
+        if (right <= left || bottom <= top) {
+            return;
+        }
+        if (count == keys.length) {
+            int capacity = count * 2;
+            bounds = Arrays.copyOf(bounds, capacity * 4);
+            visible = Arrays.copyOf(visible, capacity * 4);
+            keys = Arrays.copyOf(keys, capacity);
+            viewGroups = Arrays.copyOf(viewGroups, capacity);
+        }
+        setRect(bounds, count, left, top, right, bottom);
+        keys[count] = key;
+        viewGroups[count] = currentGroup;
+        count++;
+    }
+
+    /**
+     * Opens a group inside the innermost open one. Views and groups added until the matching
+     * {@link #endGroup} are clipped to its bounds.
+     * @return The group, for {@link #offsetGroup}. Groups are numbered in the order they are begun.
+     */
+    int beginGroup(int left, int top, int right, int bottom) {
+        if (groupCount == groupParents.length) {
+            int capacity = groupCount * 2;
+            groupBounds = Arrays.copyOf(groupBounds, capacity * 4);
+            groupVisible = Arrays.copyOf(groupVisible, capacity * 4);
+            groupParents = Arrays.copyOf(groupParents, capacity);
+            groupFirstViews = Arrays.copyOf(groupFirstViews, capacity);
+            groupEndViews = Arrays.copyOf(groupEndViews, capacity);
+            groupEndGroups = Arrays.copyOf(groupEndGroups, capacity);
+        }
+        int group = groupCount++;
+        setRect(groupBounds, group, left, top, right, bottom);
+        groupParents[group] = currentGroup;
+        groupFirstViews[group] = count;
+        currentGroup = group;
+        return group;
+    }
+
+    /** Closes the innermost open group. */
+    void endGroup() {
+        int group = currentGroup;
+        groupEndViews[group] = count;
+        groupEndGroups[group] = groupCount;
+        currentGroup = groupParents[group];
+    }
+
+    /** Moves the views and groups inside a group, but not the group itself. Call {@link #build()} afterwards. */
+    void offsetGroup(int group, int dx, int dy) {
+        for (int i = groupFirstViews[group]; i < groupEndViews[group]; i++) {
+            offsetRect(bounds, i, dx, dy);
+        }
+        for (int g = group + 1; g < groupEndGroups[group]; g++) {
+            offsetRect(groupBounds, g, dx, dy);
+        }
+    }
+
+    /** Clips the added views to their groups and buckets them into cells. Closes any groups left open. */
+    void build() {
+        while (currentGroup >= 0) {
+            endGroup();
+        }
+        // Parents are begun before their children, so their visible bounds are ready first.
+        for (int g = 0; g < groupCount; g++) {
+            int parent = groupParents[g];
+            if (parent < 0) {
+                clip(groupBounds, g, groupBounds, g, groupVisible);
+            } else {
+                clip(groupBounds, g, groupVisible, parent, groupVisible);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            clip(bounds, i, groupVisible, viewGroups[i], visible);
+        }
+
+        int cells = columns * rows;
+        if (cellStarts.length < cells + 1) {
+            cellStarts = new int[cells + 1];
+        }
+        Arrays.fill(cellStarts, 0, cells + 1, 0);
+        for (int i = 0; i < count; i++) {
+            if (isEmpty(visible, i)) continue;
+            for (int row = firstCell(visible[i * 4 + TOP], rows); row <= lastCell(visible[i * 4 + BOTTOM], rows); row++) {
+                for (int column = firstCell(visible[i * 4 + LEFT], columns); column <= lastCell(visible[i * 4 + RIGHT], columns); column++) {
+                    cellStarts[row * columns + column + 1]++;
+                }
+            }
+        }
+        for (int cell = 0; cell < cells; cell++) {
+            cellStarts[cell + 1] += cellStarts[cell];
+        }
+        if (cellEntries.length < cellStarts[cells]) {
+            cellEntries = new int[cellStarts[cells]];
+        }
+        // Fill each cell from its start, shifting the starts along; they are shifted back below.
+        for (int i = 0; i < count; i++) {
+            if (isEmpty(visible, i)) continue;
+            for (int row = firstCell(visible[i * 4 + TOP], rows); row <= lastCell(visible[i * 4 + BOTTOM], rows); row++) {
+                for (int column = firstCell(visible[i * 4 + LEFT], columns); column <= lastCell(visible[i * 4 + RIGHT], columns); column++) {
+                    cellEntries[cellStarts[row * columns + column]++] = i;
+                }
+            }
+        }
+        for (int cell = cells; cell > 0; cell--) {
+            cellStarts[cell] = cellStarts[cell - 1];
+        }
+        cellStarts[0] = 0;
+    }
+
+    /** @return The key of the topmost view containing the point, or {@link StringTable#NONE}. */
+    int find(float x, float y) {
+        if (x < 0 || y < 0) {
+            return StringTable.NONE;
+        }
+        int column = (int) (x / CELL_SIZE_PX);
+        int row = (int) (y / CELL_SIZE_PX);
+        if (column >= columns || row >= rows) {
+            return StringTable.NONE;
+        }
+        int cell = row * columns + column;
+        for (int e = cellStarts[cell + 1] - 1; e >= cellStarts[cell]; e--) {
+            int i = cellEntries[e] * 4;
+            if (x >= visible[i + LEFT] && x < visible[i + RIGHT] && y >= visible[i + TOP] && y < visible[i + BOTTOM]) {
+                return keys[cellEntries[e]];
+            }
+        }
+        return StringTable.NONE;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /** @return The number of groups, including {@link #WINDOW}. */
+    int groupCount() {
+        return groupCount;
+    }
+
+    private static void setRect(int[] rects, int index, int left, int top, int right, int bottom) {
+        int i = index * 4;
+        rects[i + LEFT] = left;
+        rects[i + TOP] = top;
+        rects[i + RIGHT] = right;
+        rects[i + BOTTOM] = bottom;
+    }
+
+    private static void offsetRect(int[] rects, int index, int dx, int dy) {
+        int i = index * 4;
+        rects[i + LEFT] += dx;
+        rects[i + TOP] += dy;
+        rects[i + RIGHT] += dx;
+        rects[i + BOTTOM] += dy;
+    }
+
+    /** Writes rects[index] cut to clips[clip] into out[index]. */
+    private static void clip(int[] rects, int index, int[] clips, int clip, int[] out) {
+        int i = index * 4;
+        int c = clip * 4;
+        out[i + LEFT] = Math.max(rects[i + LEFT], clips[c + LEFT]);
+        out[i + TOP] = Math.max(rects[i + TOP], clips[c + TOP]);
+        out[i + RIGHT] = Math.min(rects[i + RIGHT], clips[c + RIGHT]);
+        out[i + BOTTOM] = Math.min(rects[i + BOTTOM], clips[c + BOTTOM]);
+    }
+
+    private static boolean isEmpty(int[] rects, int index) {
+        int i = index * 4;
+        return rects[i + RIGHT] <= rects[i + LEFT] || rects[i + BOTTOM] <= rects[i + TOP];
+    }
+
+    private static int firstCell(int position, int cells) {
+        return Math.max(0, Math.min(cells - 1, position / CELL_SIZE_PX));
+    }
+
+    private static int lastCell(int end, int cells) {
+        return Math.max(0, Math.min(cells - 1, (end - 1) / CELL_SIZE_PX));
+    }
+}
@@ -0,0 +1,196 @@
+package com.emanthus.heatmap.sdk;
+
+import android.content.res.Resources;
+import android.util.SparseIntArray;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
+
+import com.emanthus.heatmap.sdk.database.StringTable;
+
+import java.util.Arrays;
+
+/**
+ * Keeps a {@link ViewBoundsIndex} of the views with resource IDs in a window, so that events can be
+ * tagged with the view they hit without walking the view tree on every touch.
+ * <p>
+ * The index is rebuilt after layout passes. After a scroll, the views inside each ViewGroup that moved
+ * its content, by its scroll position or by offsetting its children as RecyclerView does, are moved
+ * by the same distance instead, without walking the tree; it is still rebuilt if a group's children
+ * changed. Either happens at most once per frame, and a lookup that arrives first does it first, so it
+ * never sees stale bounds. Views are positioned from their layout, scroll and translation; rotation
+ * and scale are ignored. Used on the UI thread.
+ */
+class ViewBoundsTracker implements ViewTreeObserver.OnGlobalLayoutListener, ViewTreeObserver.OnScrollChangedListener {
+
+    private static final int UNRESOLVED = Integer.MIN_VALUE;
+    // Per tracked group, 4 ints: scroll x and y, and the position of its first child, as last indexed.
+    private static final int SCROLL_X = 0;
+    private static final int SCROLL_Y = 1;
+    private static final int CHILD_X = 2;
+    private static final int CHILD_Y = 3;
+
+    private final HeatmapSDK sdkInstance;
+    private final View root;
+    private final ViewBoundsIndex index = new ViewBoundsIndex();
+    // Resource ID -> view key, StringTable.NONE for IDs without a resource name, e.g. generated ones.
+    private final SparseIntArray viewKeys = new SparseIntArray();
+    private final Runnable updateTask = this::updateIfStale;
+    // The ViewGroup behind each index group but the window, and where its content was when indexed.
+    private ViewGroup[] groupViews = new ViewGroup[16];
+    private int[] groupChildCounts = new int[16];
+    private int[] groupPositions = new int[16 * 4];
+    // Set by a layout pass, which needs a rebuild, and by a scroll, which usually does not.
+    private boolean stale;
+    private boolean scrolled;
+
+    ViewBoundsTracker(HeatmapSDK sdkInstance, View root) {
+        this.sdkInstance = sdkInstance;
+        this.root = root;
+    }
+
+    void attach() {
+        ViewTreeObserver observer = root.getViewTreeObserver();
+        observer.addOnGlobalLayoutListener(this);
+        observer.addOnScrollChangedListener(this);
+        onGlobalLayout();
+    }
+
+    void detach() {
+        ViewTreeObserver observer = root.getViewTreeObserver();
+        observer.removeOnGlobalLayoutListener(this);
+        observer.removeOnScrollChangedListener(this);
+        root.removeCallbacks(updateTask);
+        Arrays.fill(groupViews, null);
+    }
+
+    /**
+     * @param x The x-coordinate in the window.
+     * @param y The y-coordinate in the window.
+     * @return The key of the deepest view with an ID at the point, or {@link StringTable#NONE}.
+     */
+    int viewAt(float x, float y) {
+        updateIfStale();
+        return index.find(x, y);
+    }
+
+    @Override
+    public void onGlobalLayout() {
+        if (!stale && !scrolled) {
+            root.postOnAnimation(updateTask);
+        }
+        stale = true;
+    }
+
+    @Override
+    public void onScrollChanged() {
+        if (!stale && !scrolled) {
+            root.postOnAnimation(updateTask);
+        }
+        scrolled = true;
+    }
+
+    private void updateIfStale() {
+        if (stale || (scrolled && !applyScrolls())) {
+            rebuild();
+        }
+        stale = false;
+        scrolled = false;
+    }
+
+    private void rebuild() {
+        index.reset(root.getWidth(), root.getHeight());
+        addViews(root, 0, 0);
+        index.build();
+    }
+
+    /**
+     * Adds the view and its visible descendants, including those scrolled out of view, which the index clips.
+     * @param originX The window x-coordinate of the parent's content, i.e. after its scroll.
+     * @param originY The window y-coordinate of the parent's content.
+     */
+    private void addViews(View view, int originX, int originY) {
+        if (view.getVisibility() != View.VISIBLE) {
+            return;
+        }
+        int left = originX + view.getLeft() + (int) view.getTranslationX();
+        int top = originY + view.getTop() + (int) view.getTranslationY();
+        int right = left + view.getWidth();
+        int bottom = top + view.getHeight();
+
+        int key = keyFor(view);
+        if (key != StringTable.NONE) {
+            index.add(left, top, right, bottom, key);
+        }
+        if (view instanceof ViewGroup) {
+            ViewGroup group = (ViewGroup) view;
+            track(index.beginGroup(left, top, right, bottom), group);
+            int childOriginX = left - view.getScrollX();
+            int childOriginY = top - view.getScrollY();
+            for (int i = 0; i < group.getChildCount(); i++) {
+                addViews(group.getChildAt(i), childOriginX, childOriginY);
+            }
+            index.endGroup();
+        }
+    }
+
+    private void track(int indexGroup, ViewGroup group) {
+        if (indexGroup == groupViews.length) {
+            int capacity = indexGroup * 2;
+            groupViews = Arrays.copyOf(groupViews, capacity);
+            groupChildCounts = Arrays.copyOf(groupChildCounts, capacity);
+            groupPositions = Arrays.copyOf(groupPositions, capacity * 4);
+        }
+        groupViews[indexGroup] = group;
+        groupChildCounts[indexGroup] = group.getChildCount();
+        int i = indexGroup * 4;
+        groupPositions[i + SCROLL_X] = group.getScrollX();
+        groupPositions[i + SCROLL_Y] = group.getScrollY();
+        View first = group.getChildCount() > 0 ? group.getChildAt(0) : null;
+        groupPositions[i + CHILD_X] = first == null ? 0 : first.getLeft() + (int) first.getTranslationX();
+        groupPositions[i + CHILD_Y] = first == null ? 0 : first.getTop() + (int) first.getTranslationY();
+    }
+
+    /**
+     * Moves the content of each group by how far it scrolled, or how far its first child moved.
+     * @return False if a group gained or lost children, which needs a rebuild instead.
+     */
+    private boolean applyScrolls() {
+        for (int g = ViewBoundsIndex.WINDOW + 1; g < index.groupCount(); g++) {
+            ViewGroup group = groupViews[g];
+            if (group.getChildCount() != groupChildCounts[g]) {
+                return false;
+            }
+            int i = g * 4;
+            int scrollX = groupPositions[i + SCROLL_X];
+            int scrollY = groupPositions[i + SCROLL_Y];
+            int childX = groupPositions[i + CHILD_X];
+            int childY = groupPositions[i + CHILD_Y];
+            track(g, group);
+            int dx = scrollX - groupPositions[i + SCROLL_X] + groupPositions[i + CHILD_X] - childX;
+            int dy = scrollY - groupPositions[i + SCROLL_Y] + groupPositions[i + CHILD_Y] - childY;
+            if (dx != 0 || dy != 0) {
+                index.offsetGroup(g, dx, dy);
+            }
+        }
+        index.build();
+        return true;
+    }
+
+    private int keyFor(View view) {
+        int id = view.getId();
+        if (id == View.NO_ID) {
+            return StringTable.NONE;
+        }
+        int key = viewKeys.get(id, UNRESOLVED);
+        if (key == UNRESOLVED) {
+            try {
+                key = sdkInstance.viewKey(view.getResources().getResourceEntryName(id));
+            } catch (Resources.NotFoundException e) {
+                key = StringTable.NONE;
+            }
+            viewKeys.put(id, key);
+        }
+        return key;
+    }
+}
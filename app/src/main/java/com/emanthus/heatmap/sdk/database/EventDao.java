@@ -1,24 +1,204 @@
 package com.emanthus.heatmap.sdk.database;
 
 import androidx.room.Dao;
-import androidx.room.Delete;
 import androidx.room.Insert;
 import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
+import androidx.room.Transaction;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
+/**
+ * Stores {@link HeatmapEvent}s as compact {@link StoredEvent} rows and reads them back.
+ * Queries that return events join the dictionary names back in and restore coordinates and intensity.
+ */
 @Dao
 public interface EventDao {
 
+    /** Columns of {@link HeatmapEvent}, computed from a stored row aliased e and its dictionary rows. */
+    String EVENT_COLUMNS = "SELECT e.id, e.timestamp, t.name AS eventType, s.name AS screenName, "
+            + "s.width AS screenWidth, s.height AS screenHeight, u.name AS userId, v.name AS viewId, "
+            + "((e.x + " + StoredEvent.QUANTIZATION_OFFSET + ") * " + StoredEvent.RANGE_SIZE + " / " + StoredEvent.QUANTIZATION_STEPS
+            + " + (" + StoredEvent.RANGE_MIN + ")) * s.width AS x, "
+            + "((e.y + " + StoredEvent.QUANTIZATION_OFFSET + ") * " + StoredEvent.RANGE_SIZE + " / " + StoredEvent.QUANTIZATION_STEPS
+            + " + (" + StoredEvent.RANGE_MIN + ")) * s.height AS y, "
+            + "((e.endX + " + StoredEvent.QUANTIZATION_OFFSET + ") * " + StoredEvent.RANGE_SIZE + " / " + StoredEvent.QUANTIZATION_STEPS
+            + " + (" + StoredEvent.RANGE_MIN + ")) * s.width AS endX, "
+            + "((e.endY + " + StoredEvent.QUANTIZATION_OFFSET + ") * " + StoredEvent.RANGE_SIZE + " / " + StoredEvent.QUANTIZATION_STEPS
+            + " + (" + StoredEvent.RANGE_MIN + ")) * s.height AS endY, "
+            + "e.intensity / " + StoredEvent.INTENSITY_SCALE + ".0 AS intensity, e.trail, e.uploadState, e.batchId ";
+    String EVENT_TABLES = "FROM events e JOIN screens s ON s.id = e.screenId JOIN event_types t ON t.id = e.typeId "
+            + "LEFT JOIN users u ON u.id = e.userId LEFT JOIN views v ON v.id = e.viewId ";
+
+    default void insert(HeatmapEvent event) {
+        insertAll(Collections.singletonList(event));
+    }
+
+    /**
+     * Stores the events, adding names the dictionaries do not have yet.
+     * Each name is looked up once per call.
+     */
+    @Transaction
+    default void insertAll(List<HeatmapEvent> events) {
+        Map<String, Integer> screens = new HashMap<>();
+        Map<String, Integer> types = new HashMap<>();
+        Map<String, Integer> users = new HashMap<>();
+        Map<String, Integer> views = new HashMap<>();
+        List<StoredEvent> rows = new ArrayList<>(events.size());
+        for (HeatmapEvent event : events) {
+            String screenName = event.getScreenName() != null ? event.getScreenName() : "";
+            int width = StoredEvent.extent(event.getScreenWidth());
+            int height = StoredEvent.extent(event.getScreenHeight());
+            String screenKey = screenName + '\n' + width + 'x' + height;
+            Integer screenId = screens.get(screenKey);
+            if (screenId == null) {
+                insertScreen(screenName, width, height);
+                screenId = getScreenId(screenName, width, height);
+                screens.put(screenKey, screenId);
+            }
+            String eventType = event.getEventType() != null ? event.getEventType() : "";
+            Integer typeId = types.get(eventType);
+            if (typeId == null) {
+                insertEventType(eventType);
+                typeId = getEventTypeId(eventType);
+                types.put(eventType, typeId);
+            }
+            Integer userId = null;
+            if (event.getUserId() != null) {
+                userId = users.get(event.getUserId());
+                if (userId == null) {
+                    insertUser(event.getUserId());
+                    userId = getUserId(event.getUserId());
+                    users.put(event.getUserId(), userId);
+                }
+            }
+            Integer viewId = null;
+            if (event.getViewId() != null) {
+                viewId = views.get(event.getViewId());
+                if (viewId == null) {
+                    insertView(event.getViewId());
+                    viewId = getViewId(event.getViewId());
+                    views.put(event.getViewId(), viewId);
+                }
+            }
+            rows.add(new StoredEvent(event, screenId, typeId, userId, viewId, width, height));
+        }
+        insertRows(rows);
+    }
+
     @Insert(onConflict = OnConflictStrategy.REPLACE)
-    void insert(HeatmapEvent event);
+    void insertRows(List<StoredEvent> rows);
+
+    @Query("INSERT OR IGNORE INTO screens (name, width, height) VALUES (:name, :width, :height)")
+    void insertScreen(String name, int width, int height);
+
+    @Query("SELECT id FROM screens WHERE name = :name AND width = :width AND height = :height")
+    int getScreenId(String name, int width, int height);
+
+    @Query("INSERT OR IGNORE INTO event_types (name) VALUES (:name)")
+    void insertEventType(String name);
+
+    @Query("SELECT id FROM event_types WHERE name = :name")
+    int getEventTypeId(String name);
+
+    @Query("INSERT OR IGNORE INTO users (name) VALUES (:name)")
+    void insertUser(String name);
+
+    @Query("SELECT id FROM users WHERE name = :name")
+    int getUserId(String name);
+
+    @Query("INSERT OR IGNORE INTO views (name) VALUES (:name)")
+    void insertView(String name);
+
+    @Query("SELECT id FROM views WHERE name = :name")
+    int getViewId(String name);
 
-    @Query("SELECT * FROM events ORDER BY timestamp ASC")
+    @Query(EVENT_COLUMNS + EVENT_TABLES + "ORDER BY e.timestamp ASC")
     List<HeatmapEvent> getAll();
 
-    @Delete
-    void delete(List<HeatmapEvent> events);
+    /**
+     * Marks the next batch to upload as in flight and returns it. A batch that failed earlier is
+     * returned first, unchanged and under its original ID; otherwise up to limit unbatched events
+     * form a new batch with a fresh ID. Every returned event carries the batch ID.
+     * @return The batch, or an empty list if nothing is waiting.
+     */
+    @Transaction
+    default List<HeatmapEvent> claimNextBatch(int limit) {
+        String retryBatchId = getRetryBatchId();
+        if (retryBatchId != null) {
+            setBatchState(retryBatchId, HeatmapEvent.UPLOAD_IN_FLIGHT);
+            return getBatch(retryBatchId);
+        }
+        List<HeatmapEvent> events = getUnbatched(limit);
+        if (events.isEmpty()) {
+            return events;
+        }
+        String batchId = UUID.randomUUID().toString();
+        List<Integer> ids = new ArrayList<>(events.size());
+        for (HeatmapEvent event : events) {
+            ids.add(event.getId());
+            event.setBatchId(batchId);
+            event.setUploadState(HeatmapEvent.UPLOAD_IN_FLIGHT);
+        }
+        assignBatch(ids, batchId);
+        return events;
+    }
+
+    /** The oldest events that have never been assigned to an upload batch. */
+    @Query(EVENT_COLUMNS + EVENT_TABLES + "WHERE e.uploadState = " + HeatmapEvent.UPLOAD_PENDING
+            + " AND e.batchId IS NULL ORDER BY e.id ASC LIMIT :limit")
+    List<HeatmapEvent> getUnbatched(int limit);
+
+    /** A batch whose upload failed or was interrupted and must be re-sent under the same ID, or null. */
+    @Query("SELECT batchId FROM events WHERE uploadState = " + HeatmapEvent.UPLOAD_PENDING
+            + " AND batchId IS NOT NULL ORDER BY id ASC LIMIT 1")
+    String getRetryBatchId();
+
+    @Query(EVENT_COLUMNS + EVENT_TABLES + "WHERE e.batchId = :batchId ORDER BY e.id ASC")
+    List<HeatmapEvent> getBatch(String batchId);
+
+    /** Assigns the events to a batch and marks them in flight. */
+    @Query("UPDATE events SET batchId = :batchId, uploadState = " + HeatmapEvent.UPLOAD_IN_FLIGHT
+            + " WHERE id IN (:ids)")
+    int assignBatch(List<Integer> ids, String batchId);
+
+    /** @param state One of the {@code HeatmapEvent.UPLOAD_*} states. */
+    @Query("UPDATE events SET uploadState = :state WHERE batchId = :batchId")
+    int setBatchState(String batchId, int state);
+
+    /**
+     * Returns batches left in flight by a flush that never finished, e.g. because the process was killed,
+     * to pending. They keep their batch IDs, so the server can recognize them if they did arrive.
+     */
+    @Query("UPDATE events SET uploadState = " + HeatmapEvent.UPLOAD_PENDING
+            + " WHERE uploadState = " + HeatmapEvent.UPLOAD_IN_FLIGHT)
+    int resetInFlight();
+
+    @Query("DELETE FROM events WHERE uploadState = " + HeatmapEvent.UPLOAD_ACKED)
+    int deleteAcked();
+
+    /** @return The number of events not yet accepted by the server. */
+    @Query("SELECT COUNT(*) FROM events WHERE uploadState != " + HeatmapEvent.UPLOAD_ACKED)
+    int count();
+
+    @Query("SELECT COALESCE(MIN(timestamp), 0) FROM events WHERE uploadState != " + HeatmapEvent.UPLOAD_ACKED)
+    long getOldestTimestamp();
+
+    default void delete(List<HeatmapEvent> events) {
+        List<Integer> ids = new ArrayList<>(events.size());
+        for (HeatmapEvent event : events) {
+            ids.add(event.getId());
+        }
+        deleteByIds(ids);
+    }
+
+    @Query("DELETE FROM events WHERE id IN (:ids)")
+    void deleteByIds(List<Integer> ids);
 
     @Query("DELETE FROM events")
     void clearAll();
@@ -10,16 +10,19 @@ import androidx.room.migration.Migration;
 import androidx.sqlite.db.SupportSQLiteDatabase;
 
 
-@Database(entities = {HeatmapEvent.class}, version = 1)
+@Database(entities = {StoredEvent.class, ScreenEntry.class, EventTypeEntry.class, UserEntry.class, ViewEntry.class,
+        ScreenAggregate.class, ScreenTrail.class}, version = 7)
 public abstract class EventDatabase extends RoomDatabase {
     public abstract EventDao eventDao();
+    public abstract ScreenAggregateDao screenAggregateDao();
 
     private static EventDatabase INSTANCE;
 
     public static synchronized EventDatabase getInstance(Context context) {
         if (INSTANCE == null) {
             INSTANCE = Room.databaseBuilder(context.getApplicationContext(), EventDatabase.class, "heatmap-db")
-                    .addMigrations(MIGRATION_1_2)
+                    .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5,
+                            MIGRATION_5_6, MIGRATION_6_7)
                     .build();
         }
         return INSTANCE;
@@ -28,10 +31,109 @@ public abstract class EventDatabase extends RoomDatabase {
     public static final Migration MIGRATION_1_2 = new Migration(1, 2) {
         @Override
         public void migrate(@NonNull SupportSQLiteDatabase database) {
-            // Add new columns with default values
-            database.execSQL("ALTER TABLE events ADD COLUMN endX REAL");
-            database.execSQL("ALTER TABLE events ADD COLUMN endY REAL");
-            database.execSQL("ALTER TABLE events ADD COLUMN intensity REAL NOT NULL DEFAULT 1.0");
+            // Version 1 already has endX, endY and intensity; add the per-screen aggregates.
+            database.execSQL("CREATE TABLE IF NOT EXISTS `screen_aggregates` (`screenName` TEXT NOT NULL, "
+                    + "`kind` INTEGER NOT NULL, `cellX` INTEGER NOT NULL, `cellY` INTEGER NOT NULL, "
+                    + "`count` INTEGER NOT NULL, `intensitySum` REAL NOT NULL, `dxSum` REAL NOT NULL, "
+                    + "`dySum` REAL NOT NULL, PRIMARY KEY(`screenName`, `kind`, `cellX`, `cellY`))");
+            // Seed them from the events that have not been flushed yet.
+            database.execSQL("INSERT INTO screen_aggregates (screenName, kind, cellX, cellY, count, intensitySum, dxSum, dySum) "
+                    + "SELECT screenName, CASE WHEN eventType LIKE 'SWIPE%' THEN " + ScreenAggregate.KIND_SWIPE
+                    + " ELSE " + ScreenAggregate.KIND_POINT + " END, "
+                    + "CAST(x / " + ScreenAggregate.CELL_SIZE_PX + " AS INTEGER), "
+                    + "CAST(y / " + ScreenAggregate.CELL_SIZE_PX + " AS INTEGER), "
+                    + "COUNT(*), SUM(intensity), "
+                    + "SUM(CASE WHEN endX IS NULL OR endY IS NULL THEN 0 ELSE endX - x END), "
+                    + "SUM(CASE WHEN endX IS NULL OR endY IS NULL THEN 0 ELSE endY - y END) "
+                    + "FROM events WHERE screenName IS NOT NULL GROUP BY 1, 2, 3, 4");
+        }
+    };
+
+    public static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            // Upload state and batch ID, so that each batch is sent once and retried under the same ID.
+            database.execSQL("ALTER TABLE `events` ADD COLUMN `uploadState` INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("ALTER TABLE `events` ADD COLUMN `batchId` TEXT");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_events_uploadState_batchId` ON `events` (`uploadState`, `batchId`)");
+        }
+    };
+
+    public static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            // A scroll gesture is stored as one event with its simplified path.
+            database.execSQL("ALTER TABLE `events` ADD COLUMN `trail` TEXT");
+        }
+    };
+
+    public static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            // Events are tagged with the resource name of the view they hit.
+            database.execSQL("ALTER TABLE `events` ADD COLUMN `viewId` TEXT");
+        }
+    };
+
+    public static final Migration MIGRATION_5_6 = new Migration(5, 6) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            // Names move to dictionary tables, and coordinates and intensity are quantized to 16 bits.
+            database.execSQL("CREATE TABLE IF NOT EXISTS `screens` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                    + "`name` TEXT NOT NULL, `width` INTEGER NOT NULL, `height` INTEGER NOT NULL)");
+            database.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS `index_screens_name_width_height` ON `screens` (`name`, `width`, `height`)");
+            for (String dictionary : new String[] {"event_types", "users", "views"}) {
+                database.execSQL("CREATE TABLE IF NOT EXISTS `" + dictionary + "` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                        + "`name` TEXT NOT NULL)");
+                database.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS `index_" + dictionary + "_name` ON `" + dictionary + "` (`name`)");
+            }
+
+            // Stored events have no screen size, so each screen's coordinates are normalized to their largest value.
+            database.execSQL("INSERT INTO screens (name, width, height) SELECT COALESCE(screenName, ''), "
+                    + "MAX(1, CAST(MAX(MAX(x, COALESCE(endX, x))) AS INTEGER) + 1), "
+                    + "MAX(1, CAST(MAX(MAX(y, COALESCE(endY, y))) AS INTEGER) + 1) FROM events GROUP BY 1");
+            database.execSQL("INSERT INTO event_types (name) SELECT DISTINCT COALESCE(eventType, '') FROM events");
+            database.execSQL("INSERT INTO users (name) SELECT DISTINCT userId FROM events WHERE userId IS NOT NULL");
+            database.execSQL("INSERT INTO views (name) SELECT DISTINCT viewId FROM events WHERE viewId IS NOT NULL");
+
+            database.execSQL("CREATE TABLE IF NOT EXISTS `events_new` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                    + "`timestamp` INTEGER NOT NULL, `screenId` INTEGER NOT NULL, `typeId` INTEGER NOT NULL, "
+                    + "`userId` INTEGER, `viewId` INTEGER, `x` INTEGER NOT NULL, `y` INTEGER NOT NULL, `endX` INTEGER, "
+                    + "`endY` INTEGER, `intensity` INTEGER NOT NULL, `trail` TEXT, "
+                    + "`uploadState` INTEGER NOT NULL DEFAULT 0, `batchId` TEXT)");
+            database.execSQL("INSERT INTO events_new (id, timestamp, screenId, typeId, userId, viewId, x, y, endX, endY, "
+                    + "intensity, trail, uploadState, batchId) "
+                    + "SELECT e.id, e.timestamp, s.id, t.id, u.id, v.id, "
+                    + quantize("e.x", "s.width") + ", " + quantize("e.y", "s.height") + ", "
+                    + quantize("e.endX", "s.width") + ", " + quantize("e.endY", "s.height") + ", "
+                    + "MIN(" + Short.MAX_VALUE + ", MAX(0, CAST(ROUND(e.intensity * " + StoredEvent.INTENSITY_SCALE + ") AS INTEGER))), "
+                    + "e.trail, e.uploadState, e.batchId FROM events e "
+                    + "JOIN screens s ON s.name = COALESCE(e.screenName, '') "
+                    + "JOIN event_types t ON t.name = COALESCE(e.eventType, '') "
+                    + "LEFT JOIN users u ON u.name = e.userId LEFT JOIN views v ON v.name = e.viewId");
+            database.execSQL("DROP TABLE events");
+            database.execSQL("ALTER TABLE events_new RENAME TO events");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_events_uploadState_batchId` ON `events` (`uploadState`, `batchId`)");
+        }
+
+        /** SQL for {@link StoredEvent#quantize}; null stays null. */
+        private String quantize(String column, String extent) {
+            return "CAST(ROUND(MIN(1.0, MAX(0.0, (" + column + " * 1.0 / " + extent + " - (" + StoredEvent.RANGE_MIN + ")) / "
+                    + StoredEvent.RANGE_SIZE + ")) * " + StoredEvent.QUANTIZATION_STEPS + ") AS INTEGER) - " + StoredEvent.QUANTIZATION_OFFSET;
+        }
+    };
+
+    public static final Migration MIGRATION_6_7 = new Migration(6, 7) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            // Trails move next to the aggregates, so uploading and deleting events no longer takes them away.
+            database.execSQL("CREATE TABLE IF NOT EXISTS `screen_trails` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                    + "`screenName` TEXT NOT NULL, `timestamp` INTEGER NOT NULL, `trail` TEXT NOT NULL)");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_screen_trails_screenName_timestamp` "
+                    + "ON `screen_trails` (`screenName`, `timestamp`)");
+            database.execSQL("INSERT INTO screen_trails (screenName, timestamp, trail) "
+                    + "SELECT s.name, e.timestamp, e.trail FROM events e JOIN screens s ON s.id = e.screenId "
+                    + "WHERE e.trail IS NOT NULL");
         }
     };
 }
@@ -0,0 +1,65 @@
+package com.emanthus.heatmap.sdk.database;
+
+import androidx.annotation.NonNull;
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.Query;
+import androidx.room.Transaction;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+@Dao
+public interface ScreenAggregateDao {
+
+    @Query("SELECT * FROM screen_aggregates WHERE screenName = :screenName")
+    List<ScreenAggregate> getForScreen(String screenName);
+
+    /** @return The number of events aggregated for the screen. Only ever grows, so it doubles as a data version. */
+    @Query("SELECT COALESCE(SUM(count), 0) FROM screen_aggregates WHERE screenName = :screenName")
+    long getEventCount(String screenName);
+
+    @Query("INSERT OR IGNORE INTO screen_aggregates (screenName, kind, cellX, cellY, count, intensitySum, dxSum, dySum) "
+            + "VALUES (:screenName, :kind, :cellX, :cellY, 0, 0, 0, 0)")
+    void insertEmptyCell(String screenName, int kind, int cellX, int cellY);
+
+    @Query("UPDATE screen_aggregates SET count = count + :count, intensitySum = intensitySum + :intensitySum, "
+            + "dxSum = dxSum + :dxSum, dySum = dySum + :dySum "
+            + "WHERE screenName = :screenName AND kind = :kind AND cellX = :cellX AND cellY = :cellY")
+    void addToCell(String screenName, int kind, int cellX, int cellY, int count, float intensitySum, float dxSum, float dySum);
+
+    /** Encoded trails of the most recent scroll gestures on a screen, newest first. */
+    @Query("SELECT trail FROM screen_trails WHERE screenName = :screenName ORDER BY timestamp DESC LIMIT :limit")
+    List<String> getRecentTrails(String screenName, int limit);
+
+    @Insert
+    void insertTrails(List<ScreenTrail> trails);
+
+    @Query("DELETE FROM screen_trails WHERE screenName = :screenName AND id NOT IN "
+            + "(SELECT id FROM screen_trails WHERE screenName = :screenName ORDER BY timestamp DESC LIMIT :keep)")
+    void trimTrails(String screenName, int keep);
+
+    /**
+     * Adds a batch of newly persisted events to the running totals, and keeps their trails.
+     * Events are first combined per cell, so each touched cell is written once.
+     */
+    @Transaction
+    default void addEvents(@NonNull List<HeatmapEvent> events) {
+        for (ScreenAggregate delta : ScreenAggregate.combine(events)) {
+            insertEmptyCell(delta.getScreenName(), delta.getKind(), delta.getCellX(), delta.getCellY());
+            addToCell(delta.getScreenName(), delta.getKind(), delta.getCellX(), delta.getCellY(),
+                    delta.getCount(), delta.getIntensitySum(), delta.getDxSum(), delta.getDySum());
+        }
+
+        List<ScreenTrail> trails = ScreenTrail.of(events);
+        if (trails.isEmpty()) return;
+        insertTrails(trails);
+        Set<String> screens = new HashSet<>();
+        for (ScreenTrail trail : trails) {
+            if (screens.add(trail.getScreenName())) {
+                trimTrails(trail.getScreenName(), ScreenTrail.MAX_PER_SCREEN);
+            }
+        }
+    }
+}
@@ -6,51 +6,108 @@ import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
-import androidx.annotation.NonNull;
-
+import com.emanthus.heatmap.sdk.concurrent.HeatmapScheduler;
 import com.emanthus.heatmap.sdk.database.EventDatabase;
+import com.emanthus.heatmap.sdk.database.EventType;
 import com.emanthus.heatmap.sdk.database.HeatmapEvent;
+import com.emanthus.heatmap.sdk.database.ScreenAggregate;
+import com.emanthus.heatmap.sdk.database.ScreenTrail;
+import com.emanthus.heatmap.sdk.database.TrailCodec;
+import com.emanthus.heatmap.sdk.metrics.HeatmapMetrics;
 import com.emanthus.heatmap.sdk.models.HeatmapData;
-import com.emanthus.heatmap.sdk.models.HeatmapDataPoint;
-import com.emanthus.heatmap.sdk.models.HeatmapSwipe;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import com.emanthus.heatmap.sdk.models.HeatmapTrail;
+import com.emanthus.heatmap.sdk.render.BitmapPool;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
-import java.util.Objects;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 
 import okhttp3.Call;
-import okhttp3.Callback;
-import okhttp3.MediaType;
-import okhttp3.MultipartBody;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
-import okhttp3.RequestBody;
 import okhttp3.Response;
-import okhttp3.ResponseBody;
 
 public class NetworkClient {
 
     private static final String TAG = "NetworkClient";
     private final String apiBaseUrl;
     private final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
-    private final ExecutorService executorService = Executors.newFixedThreadPool(4);
-    private final OkHttpClient client = new OkHttpClient();
+    private final HeatmapScheduler scheduler;
+    private final HeatmapMetrics metrics;
+    private final OkHttpClient client;
+    private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+    private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    static final String DROPPED_EVENTS_HEADER = "X-Heatmap-Dropped-Events";
+    // Stored trails have no intensity of their own. Each is drawn translucent, so paths many scrolls share show darker.
+    private static final float TRAIL_INTENSITY = 0.8f;
+
+    private volatile boolean compactEncoding = false;
+    private volatile boolean compactSupported = true;
+    private static final String SCREENSHOT_SPOOL_DIR = "heatmap_screenshots";
+    // Screenshots larger than this are uploaded in resumable chunks of this size.
+    private static final long SCREENSHOT_CHUNK_BYTES = 512 * 1024;
+    private static final int MAX_QUEUED_SCREENSHOTS = 20;
+    private final ScreenshotUploadQueue screenshotQueue;
+    // Queued screenshots are sent with the token current at upload time; by default the latest one passed in.
+    private volatile String latestScreenshotToken;
+    private volatile ScreenshotUploadQueue.TokenProvider tokenProvider = () -> latestScreenshotToken;
+    private volatile ScreenshotFormat screenshotFormat = ScreenshotFormat.PNG;
+    private volatile int screenshotQuality = 90;
+    // Used when no scheduler is shared with the SDK.
+    private static final int DEFAULT_THREADS = 2;
+    private static final int DEFAULT_QUEUE_CAPACITY = 64;
 
     public NetworkClient(String apiBaseUrl) {
+        this(apiBaseUrl, new File(System.getProperty("java.io.tmpdir"), SCREENSHOT_SPOOL_DIR));
+    }
+
+    /**
+     * @param screenshotSpoolDir Where screenshots wait for upload. Use a directory that is not
+     *                           cleared under storage pressure for failed uploads to survive restarts.
+     */
+    public NetworkClient(String apiBaseUrl, File screenshotSpoolDir) {
+        this(apiBaseUrl, screenshotSpoolDir, new HeatmapScheduler(DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY,
+                HeatmapScheduler.RejectionPolicy.DISCARD_OLDEST));
+    }
+
+    /**
+     * @param scheduler Runs uploads, and OkHttp's asynchronous calls, at upload priority,
+     *                  and reads for heatmap display at render priority.
+     */
+    public NetworkClient(String apiBaseUrl, File screenshotSpoolDir, HeatmapScheduler scheduler) {
+        this(apiBaseUrl, screenshotSpoolDir, scheduler, new HeatmapMetrics());
+    }
+
+    /**
+     * @param metrics Receives upload sizes and failures and screenshot encoding times.
+     */
+    public NetworkClient(String apiBaseUrl, File screenshotSpoolDir, HeatmapScheduler scheduler, HeatmapMetrics metrics) {
 
         if (apiBaseUrl == null || apiBaseUrl.isEmpty()) {
             throw new IllegalArgumentException("API Base URL cannot be null or empty.");
         }
         this.apiBaseUrl = apiBaseUrl;
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.client = new OkHttpClient.Builder()
+                .dispatcher(new Dispatcher(scheduler.executor(HeatmapScheduler.Priority.UPLOAD)))
+                .eventListener(new EventListener() {
+                    @Override
+                    public void requestBodyEnd(Call call, long byteCount) {
+                        metrics.onBytesUploaded(byteCount);
+                    }
+                })
+                .build();
+        this.screenshotQueue = new ScreenshotUploadQueue(screenshotSpoolDir, client, apiBaseUrl,
+                () -> tokenProvider.currentToken(), SCREENSHOT_CHUNK_BYTES, MAX_QUEUED_SCREENSHOTS);
     }
 
     public interface Callback {
@@ -64,86 +121,118 @@ public class NetworkClient {
     }
 
 
+    /**
+     * Sets where queued screenshot uploads get their auth token, so uploads retried later use the token
+     * current then rather than the one they were captured with. Tokens are never written to the queue.
+     * Defaults to the token passed with the latest {@link #uploadScreenshot} call.
+     */
+    public void setTokenProvider(ScreenshotUploadQueue.TokenProvider provider) {
+        this.tokenProvider = provider;
+    }
+
+    /**
+     * Sends ingest-events batches in the compact binary encoding instead of JSON.
+     * If the server answers a compact batch with 415 Unsupported Media Type, the batch is
+     * re-sent as JSON and JSON is used from then on.
+     */
+    public void setCompactEncoding(boolean enabled) {
+        this.compactEncoding = enabled;
+    }
+
     public void uploadEvents(List<HeatmapEvent> events,String userId ,String token, Callback callback) {
         Log.d(TAG, "Uploading " + events.size() + " events...");
 
-        executorService.execute(() -> {
+        scheduler.execute(HeatmapScheduler.Priority.UPLOAD, () -> {
             try {
-                JSONObject payload = new JSONObject();
-                payload.put("id", userId);
-                payload.put("token", token);
-
-                JSONArray eventsArray = getJsonArray(events);
-
-                payload.put("events", eventsArray);
-
-                RequestBody body = RequestBody.create(
-                        payload.toString(),
-                        MediaType.parse("application/json; charset=utf-8")
-                );
-
-                Request request = new Request.Builder()
-                        .url( this.apiBaseUrl +"ingest-events")
-                        .post(body)
-                        .build();
-
-                client.newCall(request).enqueue(new okhttp3.Callback() {
-                    @Override
-                    public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                        Log.e(TAG, "Upload failed", e);
-                        mainThreadHandler.post(() -> callback.onFailure(e));
-                    }
-
-                    @Override
-                    public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-                        if (response.isSuccessful()) {
-                            assert response.body() != null;
-                            Log.d(TAG, "Upload successful: " + response.body().string());
-                            mainThreadHandler.post(callback::onSuccess);
-                        } else {
-                            Log.e(TAG, "Server error: " + response.code());
-                            mainThreadHandler.post(() -> callback.onFailure(
-                                    new Exception("Server error: " + response.code())
-                            ));
-                        }
-                    }
-                });
-
-            } catch (JSONException e) {
-                e.printStackTrace();
+                uploadEventsBlocking(events, userId, token, UUID.randomUUID().toString());
+                mainThreadHandler.post(callback::onSuccess);
+            } catch (IOException e) {
+                Log.e(TAG, "Upload failed", e);
                 mainThreadHandler.post(() -> callback.onFailure(e));
             }
         });
     }
 
-    private static @NonNull JSONArray getJsonArray(List<HeatmapEvent> events) throws JSONException {
-        JSONArray eventsArray = new JSONArray();
-        for (int i = 0; i < events.size(); i++) {
-            HeatmapEvent e = events.get(i);
-
-            Date date = new Date(e.getTimestamp());
+    /**
+     * Uploads a batch of events on the calling thread.
+     * Used by the flush, which must know a batch was accepted before removing it.
+     * @param batchId Sent as the Idempotency-Key header. Re-sending a batch must reuse its ID,
+     *                so that the server can drop the copy if the first attempt did arrive.
+     * @throws IOException if the request fails or the server does not accept the batch.
+     */
+    public void uploadEventsBlocking(List<HeatmapEvent> events, String userId, String token, String batchId) throws IOException {
+        uploadEventsBlocking(events, userId, token, batchId, null);
+    }
 
-            Log.d(TAG, "Event: " + e.getEventType());
-            JSONObject eventObj = new JSONObject();
-            eventObj.put("screen_name", e.getScreenName());
-            eventObj.put("event_type", e.getEventType());
-            eventObj.put("coordinate_x", e.getX());
-            eventObj.put("coordinate_y", e.getY());
-            eventObj.put("timestamp", date);
+    /**
+     * Uploads a batch of events together with the number of events dropped on the device since
+     * the last report, sent as the X-Heatmap-Dropped-Events header, e.g. "TOUCH=3, SCROLL=120".
+     * @param droppedByType Counts indexed by {@link EventType} code, or null.
+     */
+    public void uploadEventsBlocking(List<HeatmapEvent> events, String userId, String token, String batchId,
+                                     long[] droppedByType) throws IOException {
+        try {
+            sendEvents(events, userId, token, batchId, droppedByType);
+        } catch (IOException e) {
+            metrics.onUploadFailed();
+            throw e;
+        }
+    }
 
-            if (Objects.equals(e.getEventType(), "SWIPE_UP")|| Objects.equals(e.getEventType(), "SWIPE_DOWN") || Objects.equals(e.getEventType(), "SCROLL")){
-                eventObj.put("end_x", e.getEndX());
-                eventObj.put("end_y", e.getEndY());
-                eventObj.put("intensity", e.getIntensity());
+    private void sendEvents(List<HeatmapEvent> events, String userId, String token, String batchId,
+                            long[] droppedByType) throws IOException {
+        boolean compact = compactEncoding && compactSupported;
+        Request request = buildEventsRequest(events, userId, token, batchId, droppedByType, compact);
+        try (Response response = client.newCall(request).execute()) {
+            if (compact && response.code() == HTTP_UNSUPPORTED_MEDIA_TYPE) {
+                Log.w(TAG, "Server does not accept compact event batches. Falling back to JSON.");
+                compactSupported = false;
+            } else if (!response.isSuccessful()) {
+                throw new IOException("Server error: " + response.code());
+            } else {
+                Log.d(TAG, "Uploaded " + events.size() + " events.");
+                return;
             }
+        }
+        sendEvents(events, userId, token, batchId, droppedByType);
+    }
 
-            eventsArray.put(eventObj);
+    private Request buildEventsRequest(List<HeatmapEvent> events, String userId, String token, String batchId,
+                                       long[] droppedByType, boolean compact) {
+        Request.Builder builder = new Request.Builder()
+                .url( this.apiBaseUrl +"ingest-events")
+                .header(IDEMPOTENCY_KEY_HEADER, batchId);
+        String dropped = formatDroppedCounts(droppedByType);
+        if (dropped != null) {
+            builder.header(DROPPED_EVENTS_HEADER, dropped);
+        }
+        if (compact) {
+            builder.header("Content-Encoding", "gzip")
+                    .post(new CompactEventsRequestBody(events, userId, token));
+        } else {
+            builder.post(new EventsRequestBody(events, userId, token));
         }
-        Log.d(TAG, "Events: " + eventsArray);
-        return eventsArray;
+        return builder.build();
     }
 
 
+    /** @return "TYPE=count" pairs for the non-zero counts, or null if there are none. */
+    static String formatDroppedCounts(long[] droppedByType) {
+        if (droppedByType == null) {
+            return null;
+        }
+        StringBuilder value = new StringBuilder();
+        for (int type = 0; type < droppedByType.length; type++) {
+            if (droppedByType[type] > 0) {
+                if (value.length() > 0) {
+                    value.append(", ");
+                }
+                value.append(EventType.name(type)).append('=').append(droppedByType[type]);
+            }
+        }
+        return value.length() == 0 ? null : value.toString();
+    }
+
     public void fetchHeatmapData(String screenName,
                                  String userId,
                                  String authToken,
@@ -151,49 +240,44 @@ public class NetworkClient {
                                  DataCallback<HeatmapData> callback) {
         Log.d(TAG, "Simulating fetch for heatmap data for screen: " + screenName);
         mainThreadHandler.postDelayed(() -> {
-            ArrayList<HeatmapDataPoint> points = new ArrayList<>();
-            ArrayList<HeatmapSwipe> swipes = new ArrayList<>();
-
             EventDatabase database = EventDatabase.getInstance(context);
-            executorService.execute(() -> {
-                List<HeatmapEvent> events = database.eventDao().getAll();
-
-                uploadEvents(events, userId ,authToken, new Callback() {
-                    @Override
-                    public void onSuccess() {
-                        Log.d(TAG, "Mock upload successful. "+events.get(0).getUserId());
-                    }
-
-                    @Override
-                    public void onFailure(Exception e) {
-                        Log.e(TAG, "Mock upload failed.", e);
-                    }
-                });
-
-                for (HeatmapEvent event : events) {
-                    if (event.getEventType().startsWith("SWIPE")) {
-                        HeatmapSwipe swipe = new HeatmapSwipe(
-                                event.getX(), event.getY(),
-                                event.getEndX(), event.getEndY(),
-                                event.getIntensity()
-                        );
-                        swipes.add(swipe);
-                    } else {
-                        points.add(new HeatmapDataPoint(event.getX(), event.getY(), event.getIntensity()));
-                    }
+            Runnable read = () -> {
+                // Read the per-screen running totals: one row per grid cell, however many events were recorded.
+                List<ScreenAggregate> cells = database.screenAggregateDao().getForScreen(screenName);
+
+                // Scroll paths are not aggregated; draw the most recent ones kept for the screen.
+                ArrayList<HeatmapTrail> trails = new ArrayList<>();
+                for (String trail : database.screenAggregateDao().getRecentTrails(screenName, ScreenTrail.MAX_PER_SCREEN)) {
+                    trails.add(new HeatmapTrail(TrailCodec.decode(trail), TRAIL_INTENSITY));
                 }
 
-                HeatmapData data = new HeatmapData(screenName, points, swipes);
+                HeatmapData data = ScreenAggregate.toHeatmapData(screenName, cells, trails);
 
                 mainThreadHandler.post(() -> {
                     callback.onSuccess(data);
                 });
 
-            });
+            };
+            Runnable dropped = () -> mainThreadHandler.post(() ->
+                    callback.onFailure(new RejectedExecutionException("Render queue is full")));
+            try {
+                scheduler.execute(HeatmapScheduler.Priority.RENDER, HeatmapScheduler.droppable(read, dropped));
+            } catch (RejectedExecutionException e) {
+                dropped.run();
+            }
 
         }, 1000);
     }
 
+    /**
+     * Sets the image format screenshots are uploaded in. Defaults to PNG.
+     * @param quality 0-100; ignored for {@link ScreenshotFormat#PNG}.
+     */
+    public void setScreenshotFormat(ScreenshotFormat format, int quality) {
+        this.screenshotFormat = format;
+        this.screenshotQuality = quality;
+    }
+
     /**
      * Uploads the captured screenshot and metadata to the server.
      * @param bitmap The bitmap of the screenshot.
@@ -203,52 +287,83 @@ public class NetworkClient {
      * @param callback The callback to be invoked on the main thread.
      */
     public void uploadScreenshot(Bitmap bitmap, String screenName, String userId, String authToken, Callback callback) {
+        uploadScreenshot(bitmap, screenName, userId, authToken, null, callback);
+    }
+
+    /**
+     * Uploads the captured screenshot and metadata to the server. The bitmap is encoded on a
+     * background thread, so the caller must not change it after this call.
+     * @param recycleTo Pool the bitmap is released to once it has been encoded, or null to leave it alone.
+     * @param callback The callback to be invoked on the main thread.
+     */
+    public void uploadScreenshot(Bitmap bitmap, String screenName, String userId, String authToken,
+                                 BitmapPool recycleTo, Callback callback) {
         if (userId == null || authToken == null) {
+            if (recycleTo != null) {
+                recycleTo.release(bitmap);
+            }
             callback.onFailure(new Exception("User ID or Auth Token is null. Cannot upload."));
             return;
         }
         Log.d(TAG, "Preparing to upload screenshot for screen: " + screenName);
+        latestScreenshotToken = authToken;
 
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.PNG, 90, stream);
-        byte[] byteArray = stream.toByteArray();
-
-        RequestBody requestBody = new MultipartBody.Builder()
-                .setType(MultipartBody.FORM)
-                .addFormDataPart("id", userId)
-                .addFormDataPart("token", authToken)
-                .addFormDataPart("screen_name", screenName)
-                .addFormDataPart("screenshot", "screenshot_" + System.currentTimeMillis() + ".png",
-                        RequestBody.create(byteArray, MediaType.parse("image/png")))
-                .build();
-
-        Request request = new Request.Builder()
-                .url( this.apiBaseUrl +"upload-screenshot")
-                .post(requestBody)
-                .build();
+        ScreenshotFormat format = screenshotFormat;
+        int quality = screenshotQuality;
+        scheduler.execute(HeatmapScheduler.Priority.UPLOAD, () -> {
+            // Encode straight into a spool file, so the screenshot survives a failed upload or a restart
+            // and is never held in memory as bytes.
+            try {
+                File spoolFile = screenshotQueue.newSpoolFile(format.getExtension());
+                boolean compressed;
+                long encodeStart = System.nanoTime();
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(spoolFile))) {
+                    compressed = bitmap.compress(format.toCompressFormat(), quality, out);
+                } finally {
+                    if (recycleTo != null) {
+                        recycleTo.release(bitmap);
+                    }
+                }
+                if (!compressed) {
+                    //noinspection ResultOfMethodCallIgnored
+                    spoolFile.delete();
+                    throw new IOException("Failed to encode screenshot as " + format);
+                }
+                metrics.onScreenshotEncoded(System.nanoTime() - encodeStart, spoolFile.length());
+                Log.d(TAG, "Spooled screenshot as " + format + ": " + spoolFile.length() + " bytes.");
+                screenshotQueue.enqueue(spoolFile, format.getMimeType(), screenName, userId);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to spool screenshot.", e);
+                mainThreadHandler.post(() -> callback.onFailure(e));
+                return;
+            }
 
-        client.newCall(request).enqueue(new okhttp3.Callback() {
-            @Override
-            public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                Log.e(TAG, "Screenshot upload failed.", e);
+            try {
+                int uploaded = screenshotQueue.drain();
+                Log.d(TAG, "Uploaded " + uploaded + " screenshot(s).");
+                mainThreadHandler.post(callback::onSuccess);
+            } catch (IOException e) {
+                metrics.onUploadFailed();
+                Log.e(TAG, "Screenshot upload failed. " + screenshotQueue.size() + " screenshot(s) queued for retry.", e);
                 mainThreadHandler.post(() -> callback.onFailure(e));
             }
+        });
+    }
 
-            @Override
-            public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-                // The response body must be closed to prevent resource leaks.
-                try (ResponseBody responseBody = response.body()) {
-                    if (response.isSuccessful()) {
-                        assert responseBody != null;
-                        Log.d(TAG, "Screenshot uploaded successfully. Response: " + responseBody.string());
-                        mainThreadHandler.post(callback::onSuccess);
-                    } else {
-                        assert responseBody != null;
-                        String errorBody = responseBody.string();
-                        Log.e(TAG, "Screenshot upload failed with code: " + response.code() + " Body: " + errorBody);
-                        mainThreadHandler.post(() -> callback.onFailure(new IOException("Server responded with " + response.code() + ": " + errorBody)));
-                    }
+    /**
+     * Retries screenshot uploads that failed earlier, including ones queued before a restart.
+     * Runs in the background; failures leave the screenshots queued.
+     */
+    public void retryPendingScreenshots() {
+        scheduler.execute(HeatmapScheduler.Priority.UPLOAD, () -> {
+            try {
+                int uploaded = screenshotQueue.drain();
+                if (uploaded > 0) {
+                    Log.d(TAG, "Uploaded " + uploaded + " queued screenshot(s).");
                 }
+            } catch (IOException e) {
+                metrics.onUploadFailed();
+                Log.w(TAG, "Queued screenshots still cannot be uploaded: " + e.getMessage());
             }
         });
     }
@@ -0,0 +1,38 @@
+package com.emanthus.heatmap.sdk.network;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/** Image formats screenshots can be uploaded in. */
+public enum ScreenshotFormat {
+    /** Lossy WebP: the smallest files at a given quality. */
+    WEBP("image/webp", "webp"),
+    JPEG("image/jpeg", "jpg"),
+    /** Lossless; ignores the quality setting. */
+    PNG("image/png", "png");
+
+    private final String mimeType;
+    private final String extension;
+
+    ScreenshotFormat(String mimeType, String extension) {
+        this.mimeType = mimeType;
+        this.extension = extension;
+    }
+
+    public String getMimeType() { return mimeType; }
+    public String getExtension() { return extension; }
+
+    @SuppressWarnings("deprecation")
+    Bitmap.CompressFormat toCompressFormat() {
+        switch (this) {
+            case WEBP:
+                // Before API 30, WEBP is lossy for quality < 100.
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                        ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+            case JPEG:
+                return Bitmap.CompressFormat.JPEG;
+            default:
+                return Bitmap.CompressFormat.PNG;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.emanthus.heatmap.sdk.render;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A small pool of mutable ARGB_8888 bitmaps, so that repeated captures of the same screen
+ * reuse their pixel memory instead of allocating a new bitmap each time.
+ * A pooled bitmap that is larger than requested is reconfigured to the requested size.
+ * Thread-safe: bitmaps are usually acquired on the main thread and released after encoding
+ * on a background thread.
+ */
+public class BitmapPool {
+
+    private final int maxSize;
+    private final ArrayDeque<Bitmap> free = new ArrayDeque<>();
+
+    /** @param maxSize The most unused bitmaps kept; further released ones are recycled. */
+    public BitmapPool(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /** @return A cleared bitmap of the given size, reused from the pool if one fits. */
+    public Bitmap acquire(int width, int height) {
+        Bitmap reused = take(width, height);
+        if (reused == null) {
+            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        if (reused.getWidth() != width || reused.getHeight() != height) {
+            reused.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+        }
+        reused.eraseColor(Color.TRANSPARENT);
+        return reused;
+    }
+
+    /** Returns a bitmap to the pool. It must not be used by the caller afterwards. */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        if (free.size() == maxSize) {
+            free.removeFirst().recycle();
+        }
+        free.addLast(bitmap);
+    }
+
+    /** Recycles every pooled bitmap. */
+    public synchronized void clear() {
+        for (Bitmap bitmap : free) {
+            bitmap.recycle();
+        }
+        free.clear();
+    }
+
+    private synchronized Bitmap take(int width, int height) {
+        long needed = (long) width * height * 4;
+        Bitmap fallback = null;
+        for (Iterator<Bitmap> it = free.iterator(); it.hasNext(); ) {
+            Bitmap bitmap = it.next();
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                it.remove();
+                return bitmap;
+            }
+            if (fallback == null && bitmap.getAllocationByteCount() >= needed) {
+                fallback = bitmap;
+            }
+        }
+        if (fallback != null) {
+            free.remove(fallback);
+        }
+        return fallback;
+    }
+}
@@ -0,0 +1,60 @@
+package com.emanthus.heatmap.sdk.render;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link OverlayCache} of rendered heatmap bitmaps, kept on disk as PNGs.
+ * <p>
+ * Disk reads happen on the thread calling {@link #get}, so call it off the main thread when the disk
+ * tier is enabled. PNG encoding and disk writes run on a low-priority thread of the cache's own,
+ * which exits when idle, so they never take a worker from rendering or uploads.
+ */
+public class HeatmapBitmapCache extends OverlayCache<Bitmap> {
+
+    private static final String DISK_SUFFIX = ".png";
+    private static final long WRITER_KEEP_ALIVE_SECONDS = 10;
+
+    private static final Codec<Bitmap> PNG = new Codec<Bitmap>() {
+        @Override
+        public int sizeOf(Bitmap bitmap) {
+            return bitmap.getByteCount();
+        }
+
+        @Override
+        public boolean encode(Bitmap bitmap, OutputStream out) {
+            return bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        }
+
+        @Override
+        public Bitmap decode(File file) {
+            return BitmapFactory.decodeFile(file.getPath());
+        }
+    };
+
+    /**
+     * @param maxBytes Memory budget for cached bitmaps.
+     * @param diskDir Directory for the disk tier, e.g. a subdirectory of the app cache directory.
+     */
+    public HeatmapBitmapCache(int maxBytes, File diskDir) {
+        super(maxBytes, diskDir, DISK_SUFFIX, PNG, newDiskWriter());
+    }
+
+    private static ThreadPoolExecutor newDiskWriter() {
+        ThreadPoolExecutor writer = new ThreadPoolExecutor(1, 1, WRITER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), task -> {
+                    Thread thread = new Thread(task, "heatmap-cache-writer");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                });
+        writer.allowCoreThreadTimeOut(true);
+        return writer;
+    }
+}
@@ -0,0 +1,57 @@
+package com.emanthus.heatmap.sdk.render;
+
+import android.graphics.Bitmap;
+
+/**
+ * Difference hash ("dHash") of an image: 64 bits that change little when the image changes little.
+ * <p>
+ * The image is reduced to 9x8 grayscale pixels, and each bit records whether a pixel is brighter
+ * than its right-hand neighbour. Images that look alike have hashes a small Hamming distance apart,
+ * regardless of scale, compression artifacts or small shifts in brightness.
+ */
+public final class PerceptualHash {
+
+    static final int WIDTH = 9;
+    static final int HEIGHT = 8;
+
+    private PerceptualHash() {}
+
+    /** Hashes a bitmap. Allocates only the 9x8 copy it samples. */
+    public static long of(Bitmap bitmap) {
+        Bitmap small = Bitmap.createScaledBitmap(bitmap, WIDTH, HEIGHT, true);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        small.getPixels(pixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+        if (small != bitmap) {
+            small.recycle();
+        }
+        return of(pixels);
+    }
+
+    /**
+     * Hashes an image that is already reduced to 9x8 pixels.
+     * @param argb Row-major ARGB pixels, 9 per row.
+     */
+    static long of(int[] argb) {
+        long hash = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            int row = y * WIDTH;
+            for (int x = 0; x < WIDTH - 1; x++) {
+                hash <<= 1;
+                if (luminance(argb[row + x]) > luminance(argb[row + x + 1])) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /** @return The number of bits in which two hashes differ, 0 to 64. */
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    /** Rec. 601 luma, scaled by 1000 to stay in integers. */
+    private static int luminance(int argb) {
+        return 299 * ((argb >> 16) & 0xFF) + 587 * ((argb >> 8) & 0xFF) + 114 * (argb & 0xFF);
+    }
+}
@@ -0,0 +1,295 @@
+package com.emanthus.heatmap.sdk;
+
+import com.emanthus.heatmap.sdk.concurrent.HeatmapScheduler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FlushSchedulerTest {
+
+    @Test
+    public void eventCount_triggersAFlushOnceReached() {
+        FakeExecutor executor = new FakeExecutor();
+        AtomicInteger flushes = new AtomicInteger();
+        HeatmapConfig config = new HeatmapConfig.Builder().setFlushEventCount(10).build();
+        FlushScheduler[] scheduler = new FlushScheduler[1];
+        scheduler[0] = new FlushScheduler(config, executor, () -> {
+            flushes.incrementAndGet();
+            scheduler[0].onEventsUploaded(10);
+            return true;
+        });
+
+        scheduler[0].onEventsStored(4, 100, System.currentTimeMillis());
+        // Below the threshold: only the age check is scheduled.
+        assertEquals(1, executor.tasks.size());
+        assertTrue(executor.delaysMs.get(0) > 0);
+
+        scheduler[0].onEventsStored(6, 100, System.currentTimeMillis());
+        assertEquals(2, executor.tasks.size());
+        assertEquals(0L, (long) executor.delaysMs.get(1));
+
+        executor.runAll();
+        // The age check found nothing left to upload.
+        assertEquals(1, flushes.get());
+    }
+
+    @Test
+    public void bytes_triggerAFlushBeforeTheEventCount() {
+        FakeExecutor executor = new FakeExecutor();
+        AtomicInteger flushes = new AtomicInteger();
+        HeatmapConfig config = new HeatmapConfig.Builder().setFlushEventCount(1000).setFlushBytes(1024).build();
+        FlushScheduler scheduler = new FlushScheduler(config, executor, () -> {
+            flushes.incrementAndGet();
+            return true;
+        });
+
+        scheduler.onEventsStored(2, 600, System.currentTimeMillis());
+        scheduler.onEventsStored(2, 600, System.currentTimeMillis());
+        assertEquals(0L, (long) executor.delaysMs.get(executor.delaysMs.size() - 1));
+
+        executor.runNext();
+        executor.runNext();
+        assertEquals(1, flushes.get());
+    }
+
+    @Test
+    public void maxAge_triggersAFlushWhenTheOldestEventIsDue() {
+        FakeExecutor executor = new FakeExecutor();
+        AtomicInteger flushes = new AtomicInteger();
+        HeatmapConfig config = new HeatmapConfig.Builder().setFlushMaxAgeMs(60_000).build();
+        FlushScheduler scheduler = new FlushScheduler(config, executor, () -> {
+            flushes.incrementAndGet();
+            return true;
+        });
+
+        long start = System.currentTimeMillis();
+        scheduler.onEventsStored(1, 100, start - 45_000);
+        scheduler.onEventsStored(1, 100, start);
+        // One check, timed by the oldest event.
+        assertEquals(1, executor.tasks.size());
+        long delay = executor.delaysMs.get(0);
+        assertTrue("delay " + delay, delay <= 15_000 && delay > 15_000 - (System.currentTimeMillis() - start) - 1);
+
+        executor.runNext();
+        assertEquals(0, flushes.get());
+        assertEquals(0L, (long) executor.delaysMs.get(0));
+        executor.runNext();
+        assertEquals(1, flushes.get());
+    }
+
+    @Test
+    public void maxAge_doesNothingIfTheEventsWereUploadedMeanwhile() {
+        FakeExecutor executor = new FakeExecutor();
+        AtomicInteger flushes = new AtomicInteger();
+        FlushScheduler scheduler = new FlushScheduler(HeatmapConfig.defaults(), executor, () -> {
+            flushes.incrementAndGet();
+            return true;
+        });
+
+        scheduler.onEventsStored(3, 100, System.currentTimeMillis());
+        scheduler.onEventsUploaded(3);
+        executor.runAll();
+        assertEquals(0, flushes.get());
+    }
+
+    @Test
+    public void failedFlushes_backOffExponentiallyUpToTheMaximum() {
+        FakeExecutor executor = new FakeExecutor();
+        AtomicInteger flushes = new AtomicInteger();
+        boolean[] succeed = {false};
+        HeatmapConfig config = new HeatmapConfig.Builder().setRetryDelays(1000, 8000).build();
+        FlushScheduler scheduler = new FlushScheduler(config, executor, () -> {
+            flushes.incrementAndGet();
+            return succeed[0];
+        });
+
+        scheduler.requestFlush();
+        executor.runNext();
+        // Equal jitter: each retry waits between half of the ceiling and the ceiling, which doubles up to 8 s.
+        long[] ceilings = {1000, 2000, 4000, 8000, 8000};
+        for (long ceiling : ceilings) {
+            assertEquals(1, executor.tasks.size());
+            long delay = executor.delaysMs.get(0);
+            assertTrue("delay " + delay + " for ceiling " + ceiling, delay <= ceiling && delay >= ceiling / 2 - 100);
+
+            // Explicit requests wait for the retry too.
+            scheduler.requestFlush();
+            assertEquals(1, executor.tasks.size());
+            executor.runNext();
+        }
+        assertEquals(ceilings.length + 1, flushes.get());
+
+        // A success resets the backoff.
+        succeed[0] = true;
+        executor.runNext();
+        succeed[0] = false;
+        scheduler.requestFlush();
+        assertEquals(0L, (long) executor.delaysMs.get(0));
+        executor.runNext();
+        long delay = executor.delaysMs.get(0);
+        assertTrue("delay " + delay, delay <= 1000 && delay >= 400);
+    }
+
+    @Test
+    public void refusedFlush_canBeRequestedAgain() {
+        FakeExecutor executor = new FakeExecutor();
+        AtomicInteger flushes = new AtomicInteger();
+        FlushScheduler scheduler = new FlushScheduler(HeatmapConfig.defaults(), executor, () -> {
+            flushes.incrementAndGet();
+            return true;
+        });
+
+        executor.refuseNext = true;
+        scheduler.requestFlush();
+        assertTrue(executor.tasks.isEmpty());
+
+        scheduler.requestFlush();
+        executor.runAll();
+        assertEquals(1, flushes.get());
+    }
+
+    @Test
+    public void refusedAgeCheck_isScheduledWithTheNextEvents() {
+        FakeExecutor executor = new FakeExecutor();
+        FlushScheduler scheduler = new FlushScheduler(HeatmapConfig.defaults(), executor, () -> true);
+
+        executor.refuseNext = true;
+        scheduler.onEventsStored(1, 100, System.currentTimeMillis());
+        assertTrue(executor.tasks.isEmpty());
+
+        scheduler.onEventsStored(1, 100, System.currentTimeMillis());
+        assertEquals(1, executor.tasks.size());
+    }
+
+    @Test
+    public void flushes_stillRunWhenTheUploadQueueIsFull() throws InterruptedException {
+        HeatmapScheduler workers = new HeatmapScheduler(1, 1, HeatmapScheduler.RejectionPolicy.DISCARD_NEWEST);
+        try {
+            AtomicInteger flushes = new AtomicInteger();
+            FlushScheduler scheduler = new FlushScheduler(HeatmapConfig.defaults(),
+                    workers.executor(HeatmapScheduler.Priority.UPLOAD), () -> {
+                        flushes.incrementAndGet();
+                        return true;
+                    });
+            CountDownLatch release = new CountDownLatch(1);
+            workers.execute(HeatmapScheduler.Priority.UPLOAD, () -> awaitQuietly(release));
+            for (int i = 0; i < 3; i++) {
+                workers.execute(HeatmapScheduler.Priority.UPLOAD, () -> { });
+            }
+
+            scheduler.requestFlush();
+            release.countDown();
+            assertTrue(workers.awaitIdle(5, TimeUnit.SECONDS));
+            assertEquals(1, flushes.get());
+
+            // The flush ran, so a new request queues another one.
+            scheduler.requestFlush();
+            assertTrue(awaitCount(flushes, 2));
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    private static boolean awaitCount(AtomicInteger count, int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (count.get() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        return count.get() == expected;
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Records scheduled tasks and their delays; the test runs them. */
+    static final class FakeExecutor extends AbstractExecutorService implements ScheduledExecutorService {
+        final List<Runnable> tasks = new ArrayList<>();
+        final List<Long> delaysMs = new ArrayList<>();
+        boolean refuseNext;
+
+        /** Runs the tasks scheduled so far, and any they schedule, in order. */
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                runNext();
+            }
+        }
+
+        /** Runs the first task scheduled, whatever its delay. */
+        void runNext() {
+            delaysMs.remove(0);
+            tasks.remove(0).run();
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            if (refuseNext) {
+                refuseNext = false;
+                throw new RejectedExecutionException("Refused for the test");
+            }
+            tasks.add(command);
+            delaysMs.add(unit.toMillis(delay));
+            return null;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            schedule(command, 0, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.emanthus.heatmap.sdk;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameBuffersTest {
+
+    @Test
+    public void finishedFrame_isSwappedInAndTheOldFrontIsReused() {
+        FrameBuffers<String, int[]> frames = new FrameBuffers<>();
+        int[] first = new int[1];
+        int[] second = new int[1];
+
+        assertNull(frames.begin("first"));
+        assertTrue(frames.finish("first", first, null));
+        assertSame(first, frames.getFront());
+        assertNull(frames.getPending());
+
+        assertNull(frames.begin("second"));
+        assertTrue(frames.finish("second", second, null));
+        assertSame(second, frames.getFront());
+
+        // The frame replaced by the second one is the next render's buffer.
+        assertSame(first, frames.begin("third"));
+    }
+
+    @Test
+    public void cancelledRender_isNotShownAndGivesItsBufferBack() {
+        FrameBuffers<String, int[]> frames = new FrameBuffers<>();
+        int[] shown = new int[1];
+        frames.begin("shown");
+        frames.finish("shown", shown, null);
+
+        // Cancelled while rendering: the frame it drew anyway is kept for the next render, not shown.
+        assertNull(frames.begin("cancelled"));
+        assertEquals("cancelled", frames.cancel());
+        assertNull(frames.getPending());
+        assertNull(frames.cancel());
+        int[] drawn = new int[1];
+        assertFalse(frames.finish("cancelled", drawn, null));
+        assertSame(shown, frames.getFront());
+
+        // Cancelled before drawing: the buffer it was handed comes back.
+        int[] handed = frames.begin("early");
+        assertSame(drawn, handed);
+        frames.cancel();
+        assertFalse(frames.finish("early", null, handed));
+        assertSame(handed, frames.begin("next"));
+    }
+
+    @Test
+    public void supersededRender_isNotShownOverTheNewerOne() {
+        FrameBuffers<String, int[]> frames = new FrameBuffers<>();
+        int[] older = new int[1];
+        int[] newer = new int[1];
+
+        frames.begin("old");
+        frames.begin("new");
+        assertFalse(frames.finish("old", older, null));
+        assertNull(frames.getFront());
+        assertEquals("new", frames.getPending());
+
+        assertTrue(frames.finish("new", newer, null));
+        assertSame(newer, frames.getFront());
+    }
+
+    @Test
+    public void droppedRender_isNoLongerPending() {
+        FrameBuffers<String, int[]> frames = new FrameBuffers<>();
+        int[] reuse = frames.begin("dropped");
+
+        assertFalse(frames.finish("dropped", null, reuse));
+        assertNull(frames.getPending());
+        assertNull(frames.getFront());
+    }
+}
@@ -0,0 +1,18 @@
+package com.emanthus.heatmap.sdk;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScreenshotDeduplicatorTest {
+
+    @Test
+    public void key_keepsScreenAndHeatmapScreenshotsApart() {
+        String screen = ScreenshotDeduplicator.key(ScreenshotDeduplicator.Kind.SCREEN, "MainActivity", 1080, 2400);
+        String heatmap = ScreenshotDeduplicator.key(ScreenshotDeduplicator.Kind.HEATMAP, "MainActivity", 1080, 2400);
+
+        assertEquals("MainActivity_1080x2400", screen);
+        assertNotEquals(screen, heatmap);
+        assertNotEquals(heatmap, ScreenshotDeduplicator.key(ScreenshotDeduplicator.Kind.HEATMAP, "MainActivity", 2400, 1080));
+    }
+}
@@ -0,0 +1,59 @@
+package com.emanthus.heatmap.sdk;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScrollTrailRecorderTest {
+
+    @Test
+    public void simplify_dropsPointsOnAStraightLine() {
+        float[] points = {0f, 0f, 10f, 10.5f, 20f, 19.8f, 30f, 30f};
+        int kept = ScrollTrailRecorder.simplify(points, 4, 1f, new boolean[4], new int[8]);
+
+        assertEquals(2, kept);
+        assertEquals(0f, points[0], 0f);
+        assertEquals(30f, points[2], 0f);
+        assertEquals(30f, points[3], 0f);
+    }
+
+    @Test
+    public void simplify_keepsCorners() {
+        float[] points = {0f, 0f, 50f, 1f, 100f, 0f, 100f, 50f, 100f, 100f};
+        int kept = ScrollTrailRecorder.simplify(points, 5, 2f, new boolean[5], new int[10]);
+
+        assertEquals(3, kept);
+        assertEquals(100f, points[2], 0f);
+        assertEquals(0f, points[3], 0f);
+    }
+
+    @Test
+    public void scrollGesture_becomesOneShortTrail() {
+        ScrollTrailRecorder recorder = new ScrollTrailRecorder(4f, ScrollTrailRecorder.DEFAULT_MAX_POINTS);
+        // One onScroll callback per frame for a one-second vertical scroll with a slight drift.
+        int frames = 60;
+        recorder.start(540f, 1600f);
+        for (int i = 1; i <= frames; i++) {
+            recorder.add(540f + (float) Math.sin(i / 20.0) * 30f, 1600f - i * 20f);
+        }
+        int points = recorder.finish();
+
+        assertFalse(recorder.isActive());
+        assertTrue(points >= 2 && points * 5 <= frames);
+        assertEquals(540f, recorder.getPoints()[0], 0f);
+        assertEquals(400f, recorder.getPoints()[points * 2 - 1], 0f);
+    }
+
+    @Test
+    public void longGesture_isSimplifiedEarlyInsteadOfOverflowing() {
+        ScrollTrailRecorder recorder = new ScrollTrailRecorder(1f, 16);
+        recorder.start(0f, 0f);
+        for (int i = 1; i <= 1000; i++) {
+            recorder.add(0f, i);
+        }
+        int points = recorder.finish();
+
+        assertEquals(2, points);
+        assertEquals(1000f, recorder.getPoints()[3], 0f);
+    }
+}
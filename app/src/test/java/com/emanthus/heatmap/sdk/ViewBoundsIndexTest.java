@@ -0,0 +1,106 @@
+package com.emanthus.heatmap.sdk;
+
+import com.emanthus.heatmap.sdk.database.StringTable;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ViewBoundsIndexTest {
+
+    @Test
+    public void find_returnsTheLastAddedViewContainingThePoint() {
+        ViewBoundsIndex index = new ViewBoundsIndex();
+        index.reset(1080, 2400);
+        index.add(0, 0, 1080, 2400, 1);      // content
+        index.add(40, 300, 1040, 700, 2);    // card
+        index.add(60, 600, 400, 680, 3);     // button in the card
+        index.add(0, 2200, 1080, 2400, 4);   // bottom bar, added after and drawn over the content
+        index.build();
+
+        assertEquals(3, index.find(100f, 650f));
+        assertEquals(2, index.find(500f, 650f));
+        assertEquals(1, index.find(500f, 1000f));
+        assertEquals(4, index.find(10f, 2300f));
+        assertEquals(3, index.find(60f, 600f));
+        assertEquals(2, index.find(400f, 600f)); // right and bottom edges are outside
+    }
+
+    @Test
+    public void find_returnsNoneOutsideEveryView() {
+        ViewBoundsIndex index = new ViewBoundsIndex();
+        index.reset(500, 500);
+        index.add(100, 100, 200, 200, 7);
+        index.add(300, 300, 300, 400, 8); // empty, ignored
+        index.build();
+
+        assertEquals(StringTable.NONE, index.find(50f, 50f));
+        assertEquals(StringTable.NONE, index.find(350f, 350f));
+        assertEquals(StringTable.NONE, index.find(-1f, 150f));
+        assertEquals(StringTable.NONE, index.find(150f, 5000f));
+        assertEquals(7, index.find(150f, 150f));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void build_canBeRepeatedAfterLayoutChanges() {
+        ViewBoundsIndex index = new ViewBoundsIndex();
+        index.reset(300, 300);
+        for (int i = 0; i < 100; i++) {
+            index.add(i, i, i + 10, i + 10, i);
+        }
+        index.build();
+        assertEquals(99, index.find(105f, 105f));
+
+        index.reset(1000, 300);
+        index.add(700, 0, 1000, 300, 5);
+        index.build();
+        assertEquals(5, index.find(800f, 10f));
+        assertEquals(StringTable.NONE, index.find(105f, 105f));
+    }
+
+    @Test
+    public void group_clipsTheViewsInsideIt() {
+        ViewBoundsIndex index = new ViewBoundsIndex();
+        index.reset(1080, 2400);
+        index.beginGroup(0, 400, 1080, 1400);   // scrolling list
+        index.add(0, 300, 1080, 500, 1);        // row half scrolled out at the top
+        index.add(0, 1300, 1080, 1600, 2);      // row half scrolled out at the bottom
+        index.add(0, 1500, 1080, 1700, 3);      // row entirely out of view
+        index.endGroup();
+        index.build();
+
+        assertEquals(StringTable.NONE, index.find(10f, 350f));
+        assertEquals(1, index.find(10f, 450f));
+        assertEquals(2, index.find(10f, 1350f));
+        assertEquals(StringTable.NONE, index.find(10f, 1450f));
+        assertEquals(StringTable.NONE, index.find(10f, 1650f));
+    }
+
+    @Test
+    public void offsetGroup_movesItsContentAndClipsItAgain() {
+        ViewBoundsIndex index = new ViewBoundsIndex();
+        index.reset(1080, 2400);
+        index.add(0, 0, 1080, 200, 9);                      // toolbar, outside the list
+        int list = index.beginGroup(0, 400, 1080, 1400);
+        index.add(0, 400, 1080, 600, 1);
+        index.add(0, 1500, 1080, 1700, 2);                  // below the fold
+        int card = index.beginGroup(100, 800, 500, 1000);   // nested group scrolls along
+        index.add(100, 800, 500, 1000, 3);
+        index.endGroup();
+        index.endGroup();
+        index.build();
+        assertEquals(ViewBoundsIndex.WINDOW + 2, card);
+        assertEquals(3, index.groupCount());
+
+        // Scroll the list down by 300 pixels.
+        index.offsetGroup(list, 0, -300);
+        index.build();
+
+        assertEquals(9, index.find(10f, 100f));
+        assertEquals(StringTable.NONE, index.find(10f, 450f));
+        assertEquals(3, index.find(200f, 600f));
+        assertEquals(StringTable.NONE, index.find(200f, 900f));
+        assertEquals(2, index.find(10f, 1300f));
+    }
+}
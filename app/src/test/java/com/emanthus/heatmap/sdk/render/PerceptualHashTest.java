@@ -0,0 +1,42 @@
+package com.emanthus.heatmap.sdk.render;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PerceptualHashTest {
+
+    @Test
+    public void similarImages_haveCloseHashes() {
+        int[] gradient = image((x, y) -> x * 28 + y * 3);
+        // Same picture, uniformly brighter and with a little noise.
+        int[] brighter = image((x, y) -> x * 28 + y * 3 + 12 + ((x * 7 + y * 13) % 3));
+
+        assertTrue(PerceptualHash.distance(PerceptualHash.of(gradient), PerceptualHash.of(brighter)) <= 5);
+    }
+
+    @Test
+    public void differentImages_haveDistantHashes() {
+        int[] gradient = image((x, y) -> x * 28);
+        int[] mirrored = image((x, y) -> (8 - x) * 28);
+        int[] checker = image((x, y) -> (x + y) % 2 == 0 ? 255 : 0);
+
+        assertEquals(64, PerceptualHash.distance(PerceptualHash.of(gradient), PerceptualHash.of(mirrored)));
+        assertTrue(PerceptualHash.distance(PerceptualHash.of(gradient), PerceptualHash.of(checker)) > 20);
+    }
+
+    private interface Shade {
+        int at(int x, int y);
+    }
+
+    private static int[] image(Shade shade) {
+        int[] pixels = new int[PerceptualHash.WIDTH * PerceptualHash.HEIGHT];
+        for (int y = 0; y < PerceptualHash.HEIGHT; y++) {
+            for (int x = 0; x < PerceptualHash.WIDTH; x++) {
+                int v = Math.max(0, Math.min(255, shade.at(x, y)));
+                pixels[y * PerceptualHash.WIDTH + x] = 0xFF000000 | (v << 16) | (v << 8) | v;
+            }
+        }
+        return pixels;
+    }
+}
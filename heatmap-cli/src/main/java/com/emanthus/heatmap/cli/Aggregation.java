@@ -0,0 +1,98 @@
+package com.emanthus.heatmap.cli;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Aggregates input splits in parallel on a fork/join pool.
+ * <p>
+ * The split list is divided recursively until each task holds one split. Each worker thread adds
+ * events to its own grids, so there is no sharing or locking while reading; the per-thread grids
+ * are merged once all splits are done.
+ */
+final class Aggregation {
+
+    /** Everything one worker thread has read. */
+    private static final class WorkerState {
+        final Map<String, ScreenGrid> screens = new HashMap<>();
+        final EventBatchReader reader = new EventBatchReader(screens);
+    }
+
+    private final ConcurrentLinkedQueue<WorkerState> workers = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<WorkerState> workerState = new ThreadLocal<WorkerState>() {
+        @Override
+        protected WorkerState initialValue() {
+            WorkerState state = new WorkerState();
+            workers.add(state);
+            return state;
+        }
+    };
+
+    private long eventCount;
+    private long malformedCount;
+
+    /**
+     * @return The merged grids, by screen name in alphabetical order.
+     * @throws UncheckedIOException if an input cannot be read.
+     */
+    Map<String, ScreenGrid> run(ForkJoinPool pool, List<InputSplit> splits) {
+        pool.invoke(new SplitTask(splits, 0, splits.size()));
+
+        Map<String, ScreenGrid> merged = new TreeMap<>();
+        for (WorkerState worker : workers) {
+            eventCount += worker.reader.getEventCount();
+            malformedCount += worker.reader.getMalformedCount();
+            for (ScreenGrid grid : worker.screens.values()) {
+                ScreenGrid total = merged.get(grid.getScreenName());
+                if (total == null) {
+                    merged.put(grid.getScreenName(), grid);
+                } else {
+                    total.merge(grid);
+                }
+            }
+        }
+        return merged;
+    }
+
+    long getEventCount() { return eventCount; }
+    long getMalformedCount() { return malformedCount; }
+
+    private final class SplitTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<InputSplit> splits;
+        private final int from;
+        private final int to;
+
+        SplitTask(List<InputSplit> splits, int from, int to) {
+            this.splits = splits;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new SplitTask(splits, from, middle), new SplitTask(splits, middle, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                InputSplit split = splits.get(i);
+                try {
+                    workerState.get().reader.read(split);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Cannot read " + split.file, e);
+                }
+            }
+        }
+    }
+}
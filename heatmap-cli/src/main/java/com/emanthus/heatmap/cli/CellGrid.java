@@ -0,0 +1,123 @@
+package com.emanthus.heatmap.cli;
+
+import com.emanthus.heatmap.sdk.database.ScreenAggregate;
+
+import java.util.List;
+
+/**
+ * Running totals per grid cell for one kind of event on one screen, in the same cells as
+ * {@link ScreenAggregate}. Grows to fit the coordinates it is given; events at negative
+ * coordinates are ignored.
+ */
+final class CellGrid {
+
+    private static final int INITIAL_CELLS = 64;
+
+    private final int kind;
+    private int width;
+    private int height;
+    private int[] counts;
+    private float[] intensitySums;
+    private float[] dxSums;
+    private float[] dySums;
+
+    CellGrid(int kind) {
+        this.kind = kind;
+        allocate(INITIAL_CELLS, INITIAL_CELLS);
+    }
+
+    void add(float x, float y, float intensity, float dx, float dy) {
+        if (!(x >= 0 && y >= 0)) {
+            return;
+        }
+        int cx = ScreenAggregate.cellOf(x);
+        int cy = ScreenAggregate.cellOf(y);
+        ensureCell(cx, cy);
+        int i = cy * width + cx;
+        counts[i]++;
+        intensitySums[i] += intensity;
+        dxSums[i] += dx;
+        dySums[i] += dy;
+    }
+
+    /** Adds the other grid's totals to this one. */
+    void merge(CellGrid other) {
+        if (other.width == 0) {
+            return;
+        }
+        ensureCell(other.width - 1, other.height - 1);
+        for (int y = 0; y < other.height; y++) {
+            for (int x = 0; x < other.width; x++) {
+                int from = y * other.width + x;
+                if (other.counts[from] == 0) {
+                    continue;
+                }
+                int to = y * width + x;
+                counts[to] += other.counts[from];
+                intensitySums[to] += other.intensitySums[from];
+                dxSums[to] += other.dxSums[from];
+                dySums[to] += other.dySums[from];
+            }
+        }
+    }
+
+    /** Adds one aggregate per non-empty cell to the list. */
+    void toAggregates(String screenName, List<ScreenAggregate> into) {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                if (counts[i] == 0) {
+                    continue;
+                }
+                ScreenAggregate cell = new ScreenAggregate(screenName, kind, x, y);
+                cell.setCount(counts[i]);
+                cell.setIntensitySum(intensitySums[i]);
+                cell.setDxSum(dxSums[i]);
+                cell.setDySum(dySums[i]);
+                into.add(cell);
+            }
+        }
+    }
+
+    long getEventCount() {
+        long total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    private void ensureCell(int cx, int cy) {
+        if (cx < width && cy < height) {
+            return;
+        }
+        int newWidth = width;
+        while (newWidth <= cx) newWidth *= 2;
+        int newHeight = height;
+        while (newHeight <= cy) newHeight *= 2;
+
+        int[] oldCounts = counts;
+        float[] oldIntensity = intensitySums;
+        float[] oldDx = dxSums;
+        float[] oldDy = dySums;
+        int oldWidth = width;
+        int oldHeight = height;
+        allocate(newWidth, newHeight);
+        for (int y = 0; y < oldHeight; y++) {
+            System.arraycopy(oldCounts, y * oldWidth, counts, y * newWidth, oldWidth);
+            System.arraycopy(oldIntensity, y * oldWidth, intensitySums, y * newWidth, oldWidth);
+            System.arraycopy(oldDx, y * oldWidth, dxSums, y * newWidth, oldWidth);
+            System.arraycopy(oldDy, y * oldWidth, dySums, y * newWidth, oldWidth);
+        }
+    }
+
+    private void allocate(int width, int height) {
+        this.width = width;
+        this.height = height;
+        int cells = width * height;
+        counts = new int[cells];
+        intensitySums = new float[cells];
+        dxSums = new float[cells];
+        dySums = new float[cells];
+    }
+}
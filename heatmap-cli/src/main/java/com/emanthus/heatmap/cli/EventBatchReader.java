@@ -0,0 +1,155 @@
+package com.emanthus.heatmap.cli;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Reads exported ingest-events payloads, {@code {"id", "token", "events": [...]}} as the SDK
+ * uploads them, and adds their events to per-screen grids.
+ * <p>
+ * A .json file holds one payload or an array of payloads; a .jsonl or .ndjson file holds one
+ * payload per line. Malformed payloads are skipped and counted.
+ */
+final class EventBatchReader {
+
+    private static final int BUFFER_BYTES = 64 * 1024;
+    // Defaults for values the upload leaves out: taps carry no pressure, left/right swipes no intensity.
+    private static final float DEFAULT_POINT_INTENSITY = 1f;
+    private static final float DEFAULT_SWIPE_INTENSITY = 0.8f;
+
+    private final Map<String, ScreenGrid> screens;
+    private long events;
+    private long malformed;
+
+    /** @param screens Where events are added, keyed by screen name. */
+    EventBatchReader(Map<String, ScreenGrid> screens) {
+        this.screens = screens;
+    }
+
+    long getEventCount() { return events; }
+    long getMalformedCount() { return malformed; }
+
+    void read(InputSplit split) throws IOException {
+        if (split.lines) {
+            readLines(split);
+        } else {
+            readFile(split);
+        }
+    }
+
+    private void readFile(InputSplit split) throws IOException {
+        try (Reader reader = new InputStreamReader(
+                new BufferedInputStream(new FileInputStream(split.file), BUFFER_BYTES), StandardCharsets.UTF_8)) {
+            Object root = new JSONTokener(reader).nextValue();
+            if (root instanceof JSONArray) {
+                JSONArray payloads = (JSONArray) root;
+                for (int i = 0; i < payloads.length(); i++) {
+                    addPayload(payloads.optJSONObject(i));
+                }
+            } else {
+                addPayload(root instanceof JSONObject ? (JSONObject) root : null);
+            }
+        } catch (JSONException e) {
+            malformed++;
+        }
+    }
+
+    private void readLines(InputSplit split) throws IOException {
+        try (FileInputStream file = new FileInputStream(split.file)) {
+            long position = split.start;
+            InputStream in;
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            if (split.start > 0) {
+                // The line that was running at the start of the range belongs to the previous range.
+                file.getChannel().position(split.start - 1);
+                in = new BufferedInputStream(file, BUFFER_BYTES);
+                position = split.start - 1 + readLine(in, line);
+                line.reset();
+            } else {
+                in = new BufferedInputStream(file, BUFFER_BYTES);
+            }
+            while (position < split.end) {
+                int read = readLine(in, line);
+                if (read == 0) {
+                    break;
+                }
+                position += read;
+                addLine(line);
+                line.reset();
+            }
+        }
+    }
+
+    /** Reads up to and including the next newline. @return The number of bytes read, 0 at the end. */
+    private static int readLine(InputStream in, ByteArrayOutputStream line) throws IOException {
+        int read = 0;
+        for (int b; (b = in.read()) != -1; ) {
+            read++;
+            if (b == '\n') {
+                break;
+            }
+            line.write(b);
+        }
+        return read;
+    }
+
+    private void addLine(ByteArrayOutputStream line) {
+        String text = new String(line.toByteArray(), StandardCharsets.UTF_8).trim();
+        if (text.isEmpty()) {
+            return;
+        }
+        try {
+            addPayload(new JSONObject(text));
+        } catch (JSONException e) {
+            malformed++;
+        }
+    }
+
+    private void addPayload(JSONObject payload) {
+        JSONArray batch = payload == null ? null : payload.optJSONArray("events");
+        if (batch == null) {
+            malformed++;
+            return;
+        }
+        for (int i = 0; i < batch.length(); i++) {
+            JSONObject event = batch.optJSONObject(i);
+            if (event != null) {
+                addEvent(event);
+            }
+        }
+    }
+
+    private void addEvent(JSONObject event) {
+        String screenName = event.optString("screen_name", "");
+        float x = (float) event.optDouble("coordinate_x");
+        float y = (float) event.optDouble("coordinate_y");
+        if (screenName.isEmpty() || Float.isNaN(x) || Float.isNaN(y)) {
+            return;
+        }
+        ScreenGrid grid = screens.get(screenName);
+        if (grid == null) {
+            grid = new ScreenGrid(screenName);
+            screens.put(screenName, grid);
+        }
+        // Same split as ScreenAggregate.kindOf: swipes are aggregated with their displacement.
+        if (event.optString("event_type", "").startsWith("SWIPE")) {
+            grid.addSwipe(x, y, (float) event.optDouble("end_x", x), (float) event.optDouble("end_y", y),
+                    (float) event.optDouble("intensity", DEFAULT_SWIPE_INTENSITY));
+        } else {
+            grid.addPoint(x, y, (float) event.optDouble("intensity", DEFAULT_POINT_INTENSITY));
+        }
+        events++;
+    }
+}
@@ -0,0 +1,177 @@
+package com.emanthus.heatmap.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders heatmap PNGs per screen from exported ingest-events payloads, on all cores.
+ * Run without arguments for usage.
+ */
+public final class HeatmapCli {
+
+    private static final String USAGE =
+            "Usage: heatmap-cli [options] <file or directory>...\n"
+            + "Reads ingest-events payloads from .json files (one payload or an array of them) and\n"
+            + ".jsonl/.ndjson files (one payload per line), and writes <screen>.png per screen.\n"
+            + "\n"
+            + "  --out DIR           Where to write the PNGs (default: heatmaps)\n"
+            + "  --screenshots DIR   Draw each heatmap over DIR/<screen>.png, .jpg or .jpeg\n"
+            + "  --size WxH          Screen size the events were recorded at (default: largest coordinates)\n"
+            + "  --threads N         Worker threads (default: available processors)\n"
+            + "  --radius PX         How far a single tap spreads, in pixels (default: 100)\n"
+            + "  --split-mb N        Size of the pieces .jsonl/.ndjson files are read in (default: 8)\n";
+
+    static final int EXIT_OK = 0;
+    static final int EXIT_FAILED = 1;
+    static final int EXIT_USAGE = 2;
+
+    private File outputDir = new File("heatmaps");
+    private File screenshotDir;
+    private int screenWidth;
+    private int screenHeight;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int kernelRadiusPx = 100;
+    private long splitBytes = 8L * 1024 * 1024;
+    private final List<File> inputs = new ArrayList<>();
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        System.exit(run(args, System.out, System.err));
+    }
+
+    /** Runs the tool. @return The process exit code. */
+    static int run(String[] args, PrintStream out, PrintStream err) {
+        HeatmapCli cli = new HeatmapCli();
+        try {
+            cli.parse(args);
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            err.print(USAGE);
+            return EXIT_USAGE;
+        }
+        try {
+            return cli.execute(out, err);
+        } catch (IOException | UncheckedIOException e) {
+            err.println("heatmap-cli: " + e.getMessage());
+            return EXIT_FAILED;
+        }
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                inputs.add(new File(arg));
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--out": outputDir = new File(value); break;
+                case "--screenshots": screenshotDir = new File(value); break;
+                case "--size": {
+                    String[] parts = value.toLowerCase().split("x");
+                    if (parts.length != 2) throw new IllegalArgumentException("Size must be WxH, e.g. 1080x2400.");
+                    screenWidth = positive(arg, parts[0]);
+                    screenHeight = positive(arg, parts[1]);
+                    break;
+                }
+                case "--threads": threads = positive(arg, value); break;
+                case "--radius": kernelRadiusPx = positive(arg, value); break;
+                case "--split-mb": splitBytes = positive(arg, value) * 1024L * 1024; break;
+                default: throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("No input files given.");
+        }
+    }
+
+    private static int positive(String option, String value) {
+        try {
+            int number = Integer.parseInt(value.trim());
+            if (number > 0) return number;
+        } catch (NumberFormatException ignored) {
+            // Reported below.
+        }
+        throw new IllegalArgumentException(option + " must be a positive number, got " + value);
+    }
+
+    private int execute(PrintStream out, PrintStream err) throws IOException {
+        List<File> files = new ArrayList<>();
+        for (File input : inputs) {
+            collect(input, files);
+        }
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Cannot create output directory " + outputDir);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            long start = System.nanoTime();
+            Aggregation aggregation = new Aggregation();
+            Map<String, ScreenGrid> screens = aggregation.run(pool, InputSplit.plan(files, splitBytes));
+            long aggregated = System.nanoTime();
+            out.printf("Aggregated %d events from %d file(s) into %d screen(s) in %d ms on %d thread(s).%n",
+                    aggregation.getEventCount(), files.size(), screens.size(),
+                    TimeUnit.NANOSECONDS.toMillis(aggregated - start), threads);
+            if (aggregation.getMalformedCount() > 0) {
+                err.println("Skipped " + aggregation.getMalformedCount() + " malformed payload(s).");
+            }
+
+            // Screens render independently, so they are written in parallel too.
+            HeatmapImageWriter writer = new HeatmapImageWriter(outputDir, screenshotDir, screenWidth, screenHeight,
+                    kernelRadiusPx);
+            List<ForkJoinTask<File>> writes = new ArrayList<>();
+            for (ScreenGrid grid : screens.values()) {
+                writes.add(pool.submit(() -> writer.write(grid)));
+            }
+            for (ForkJoinTask<File> write : writes) {
+                out.println("Wrote " + write.get());
+            }
+            out.printf("Rendered %d heatmap(s) in %d ms.%n", writes.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - aggregated));
+            return EXIT_OK;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Adds the input files in the file or directory, in name order. */
+    private static void collect(File input, List<File> into) throws IOException {
+        if (input.isFile()) {
+            into.add(input);
+            return;
+        }
+        File[] children = input.listFiles();
+        if (children == null) {
+            throw new IOException("Cannot read " + input);
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            if (child.isDirectory()) {
+                collect(child, into);
+            } else if (InputSplit.isInput(child)) {
+                into.add(child);
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.emanthus.heatmap.cli;
+
+import com.emanthus.heatmap.sdk.models.HeatmapData;
+import com.emanthus.heatmap.sdk.models.HeatmapSwipe;
+import com.emanthus.heatmap.sdk.render.DensityGridRenderer;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Renders a screen's aggregated events to a PNG the way the SDK's HeatmapRendererView draws them:
+ * the density through {@link DensityGridRenderer}, then the average swipe of each cell on top.
+ * <p>
+ * With a screenshot directory, the heatmap is scaled to and drawn over {@code <screen>.png},
+ * {@code .jpg} or {@code .jpeg} from it, named as {@link #fileName} names the heatmap. WebP screenshots have to be converted first; the JDK
+ * cannot read them.
+ */
+final class HeatmapImageWriter {
+
+    private static final String[] SCREENSHOT_EXTENSIONS = {"png", "jpg", "jpeg"};
+    private static final float SWIPE_END_RADIUS = 10f;
+
+    private final File outputDir;
+    private final File screenshotDir;
+    private final int screenWidth;
+    private final int screenHeight;
+    private final int kernelRadiusPx;
+
+    /**
+     * @param screenshotDir Screenshots to draw the heatmaps over, or null.
+     * @param screenWidth Width in pixels the events were recorded at, or 0 to use the largest coordinate.
+     * @param screenHeight Height in pixels the events were recorded at, or 0 to use the largest coordinate.
+     */
+    HeatmapImageWriter(File outputDir, File screenshotDir, int screenWidth, int screenHeight, int kernelRadiusPx) {
+        this.outputDir = outputDir;
+        this.screenshotDir = screenshotDir;
+        this.screenWidth = screenWidth;
+        this.screenHeight = screenHeight;
+        this.kernelRadiusPx = kernelRadiusPx;
+    }
+
+    /** Renders one screen. Safe to call from several threads at once. @return The written file. */
+    File write(ScreenGrid grid) throws IOException {
+        int width = screenWidth > 0 ? screenWidth : (int) Math.ceil(grid.getMaxX()) + 1;
+        int height = screenHeight > 0 ? screenHeight : (int) Math.ceil(grid.getMaxY()) + 1;
+        HeatmapData data = grid.toHeatmapData();
+
+        // Renderers reuse their buffers, so each call gets its own.
+        DensityGridRenderer renderer = new DensityGridRenderer(DensityGridRenderer.DEFAULT_GRADIENT_COLORS,
+                DensityGridRenderer.DEFAULT_GRADIENT_STOPS, kernelRadiusPx, DensityGridRenderer.DEFAULT_CELL_SIZE_PX);
+        int[] pixels = renderer.render(data.getPoints(), width, height);
+        int gridWidth = renderer.getGridWidth();
+        int gridHeight = renderer.getGridHeight();
+        BufferedImage density = new BufferedImage(gridWidth, gridHeight, BufferedImage.TYPE_INT_ARGB);
+        density.setRGB(0, 0, gridWidth, gridHeight, pixels, 0, gridWidth);
+
+        BufferedImage screenshot = readScreenshot(grid.getScreenName());
+        int outputWidth = screenshot != null ? screenshot.getWidth() : width;
+        int outputHeight = screenshot != null ? screenshot.getHeight() : height;
+        BufferedImage image = new BufferedImage(outputWidth, outputHeight, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            if (screenshot != null) {
+                g.drawImage(screenshot, 0, 0, null);
+            }
+            // Everything below is in the coordinates the events were recorded in.
+            g.scale((double) outputWidth / width, (double) outputHeight / height);
+            int cellSize = renderer.getCellSize();
+            g.drawImage(density, 0, 0, gridWidth * cellSize, gridHeight * cellSize, null);
+            drawSwipes(g, data);
+        } finally {
+            g.dispose();
+        }
+
+        File file = new File(outputDir, fileName(grid.getScreenName()) + ".png");
+        if (!ImageIO.write(image, "png", file)) {
+            throw new IOException("No PNG writer available for " + file);
+        }
+        return file;
+    }
+
+    private static void drawSwipes(Graphics2D g, HeatmapData data) {
+        for (HeatmapSwipe swipe : data.getSwipes()) {
+            float intensity = Math.max(0f, Math.min(1f, swipe.getIntensity()));
+            g.setColor(new Color(255, 69, 0, Math.round(intensity * 255))); // Orange-red
+            g.setStroke(new BasicStroke(10 * intensity, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+            g.draw(new Line2D.Float(swipe.getStartX(), swipe.getStartY(), swipe.getEndX(), swipe.getEndY()));
+            g.fill(endCircle(swipe.getStartX(), swipe.getStartY()));
+            g.fill(endCircle(swipe.getEndX(), swipe.getEndY()));
+        }
+    }
+
+    private static Ellipse2D endCircle(float x, float y) {
+        return new Ellipse2D.Float(x - SWIPE_END_RADIUS, y - SWIPE_END_RADIUS, SWIPE_END_RADIUS * 2, SWIPE_END_RADIUS * 2);
+    }
+
+    private BufferedImage readScreenshot(String screenName) throws IOException {
+        if (screenshotDir == null) {
+            return null;
+        }
+        // Screenshots may be named like the heatmap, or after the screen without the hash.
+        for (String name : new String[] {fileName(screenName), safeName(screenName)}) {
+            for (String extension : SCREENSHOT_EXTENSIONS) {
+                File file = new File(screenshotDir, name + "." + extension);
+                if (file.isFile()) {
+                    BufferedImage image = ImageIO.read(file);
+                    if (image == null) {
+                        throw new IOException("Cannot decode screenshot " + file);
+                    }
+                    return image;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The screen name if it is safe in file names. Otherwise the name with unsafe characters
+     * replaced and a hash of the original appended, so that e.g. "Main Activity" and "Main_Activity"
+     * do not overwrite each other.
+     */
+    static String fileName(String screenName) {
+        String safe = safeName(screenName);
+        return safe.equals(screenName) ? safe : safe + "-" + String.format("%08x", screenName.hashCode());
+    }
+
+    private static String safeName(String screenName) {
+        return screenName.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+}
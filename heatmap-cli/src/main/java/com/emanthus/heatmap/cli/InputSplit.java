@@ -0,0 +1,53 @@
+package com.emanthus.heatmap.cli;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A unit of input work: a whole JSON file, or a byte range of a JSON-lines file.
+ * A range owns every line that starts inside it, so lines split across ranges are read once.
+ */
+final class InputSplit {
+
+    final File file;
+    final long start;
+    final long end;
+    final boolean lines;
+
+    private InputSplit(File file, long start, long end, boolean lines) {
+        this.file = file;
+        this.start = start;
+        this.end = end;
+        this.lines = lines;
+    }
+
+    /**
+     * @param splitBytes Size of the ranges JSON-lines files are cut into. Whole JSON files are not cut.
+     */
+    static List<InputSplit> plan(List<File> files, long splitBytes) {
+        List<InputSplit> splits = new ArrayList<>();
+        for (File file : files) {
+            long length = file.length();
+            if (!isJsonLines(file)) {
+                splits.add(new InputSplit(file, 0, length, false));
+                continue;
+            }
+            for (long start = 0; start < length; start += splitBytes) {
+                splits.add(new InputSplit(file, start, Math.min(length, start + splitBytes), true));
+            }
+        }
+        return splits;
+    }
+
+    /** @return Whether the file holds one upload payload per line. */
+    static boolean isJsonLines(File file) {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        return name.endsWith(".jsonl") || name.endsWith(".ndjson");
+    }
+
+    static boolean isInput(File file) {
+        return file.getName().toLowerCase(Locale.ROOT).endsWith(".json") || isJsonLines(file);
+    }
+}
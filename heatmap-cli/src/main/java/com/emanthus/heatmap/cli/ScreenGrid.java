@@ -0,0 +1,65 @@
+package com.emanthus.heatmap.cli;
+
+import com.emanthus.heatmap.sdk.database.ScreenAggregate;
+import com.emanthus.heatmap.sdk.models.HeatmapData;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Aggregated events of one screen: tap and scroll density plus average swipes per cell,
+ * the same totals the SDK keeps in its screen_aggregates table.
+ */
+final class ScreenGrid {
+
+    private final String screenName;
+    private final CellGrid points = new CellGrid(ScreenAggregate.KIND_POINT);
+    private final CellGrid swipes = new CellGrid(ScreenAggregate.KIND_SWIPE);
+    private float maxX;
+    private float maxY;
+
+    ScreenGrid(String screenName) {
+        this.screenName = screenName;
+    }
+
+    void addPoint(float x, float y, float intensity) {
+        points.add(x, y, intensity, 0f, 0f);
+        extend(x, y);
+    }
+
+    void addSwipe(float x, float y, float endX, float endY, float intensity) {
+        swipes.add(x, y, intensity, endX - x, endY - y);
+        extend(x, y);
+        extend(endX, endY);
+    }
+
+    void merge(ScreenGrid other) {
+        points.merge(other.points);
+        swipes.merge(other.swipes);
+        maxX = Math.max(maxX, other.maxX);
+        maxY = Math.max(maxY, other.maxY);
+    }
+
+    String getScreenName() { return screenName; }
+
+    /** @return The largest x-coordinate seen, a lower bound for the screen width. */
+    float getMaxX() { return maxX; }
+    float getMaxY() { return maxY; }
+
+    long getEventCount() {
+        return points.getEventCount() + swipes.getEventCount();
+    }
+
+    HeatmapData toHeatmapData() {
+        List<ScreenAggregate> cells = new ArrayList<>();
+        points.toAggregates(screenName, cells);
+        swipes.toAggregates(screenName, cells);
+        return ScreenAggregate.toHeatmapData(screenName, cells, Collections.emptyList());
+    }
+
+    private void extend(float x, float y) {
+        if (x > maxX) maxX = x;
+        if (y > maxY) maxY = y;
+    }
+}
@@ -0,0 +1,155 @@
+package com.emanthus.heatmap.cli;
+
+import com.emanthus.heatmap.sdk.database.HeatmapEvent;
+import com.emanthus.heatmap.sdk.network.EventsRequestBody;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+public class HeatmapCliTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void aggregation_countsEveryEventOnceAcrossSplits() throws IOException {
+        File lines = folder.newFile("events.jsonl");
+        File array = folder.newFile("events.json");
+        Random random = new Random(7);
+        try (OutputStream out = new FileOutputStream(lines)) {
+            for (int i = 0; i < 50; i++) {
+                out.write(payload(events(random, 1 + random.nextInt(20), i % 2 == 0 ? "Home" : "Settings")));
+                out.write('\n');
+            }
+        }
+        try (OutputStream out = new FileOutputStream(array)) {
+            out.write('[');
+            out.write(payload(events(random, 30, "Home")));
+            out.write(',');
+            out.write(payload(events(random, 10, "Detail")));
+            out.write(']');
+        }
+
+        // Tiny splits so most lines straddle a split boundary.
+        List<File> files = new ArrayList<>();
+        Collections.addAll(files, lines, array);
+        List<InputSplit> splits = InputSplit.plan(files, 97);
+        assertTrue(splits.size() > 50);
+
+        Aggregation parallel = new Aggregation();
+        Map<String, ScreenGrid> screens = parallel.run(new ForkJoinPool(4), splits);
+        Aggregation single = new Aggregation();
+        Map<String, ScreenGrid> reference = single.run(new ForkJoinPool(1), InputSplit.plan(files, Long.MAX_VALUE));
+
+        assertEquals(0, parallel.getMalformedCount());
+        assertEquals(single.getEventCount(), parallel.getEventCount());
+        assertEquals(reference.keySet(), screens.keySet());
+        long total = 0;
+        for (Map.Entry<String, ScreenGrid> screen : screens.entrySet()) {
+            assertEquals(reference.get(screen.getKey()).getEventCount(), screen.getValue().getEventCount());
+            total += screen.getValue().getEventCount();
+        }
+        assertEquals(parallel.getEventCount(), total);
+    }
+
+    @Test
+    public void aggregation_skipsMalformedLines() throws IOException {
+        File lines = folder.newFile("events.ndjson");
+        try (OutputStream out = new FileOutputStream(lines)) {
+            out.write(payload(events(new Random(1), 5, "Home")));
+            out.write("\n{not json\n".getBytes(StandardCharsets.UTF_8));
+            out.write(payload(events(new Random(2), 3, "Home")));
+        }
+
+        Aggregation aggregation = new Aggregation();
+        aggregation.run(new ForkJoinPool(2), InputSplit.plan(Collections.singletonList(lines), 16));
+
+        assertEquals(8, aggregation.getEventCount());
+        assertEquals(1, aggregation.getMalformedCount());
+    }
+
+    @Test
+    public void run_writesPngPerScreen() throws IOException {
+        File input = folder.newFile("batch.jsonl");
+        try (OutputStream out = new FileOutputStream(input)) {
+            out.write(payload(events(new Random(3), 40, "Main/Activity")));
+        }
+        File outputDir = new File(folder.getRoot(), "out");
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+
+        int exit = HeatmapCli.run(new String[] {"--out", outputDir.getPath(), "--size", "540x1200",
+                "--threads", "2", input.getPath()}, new PrintStream(stdout), new PrintStream(new ByteArrayOutputStream()));
+
+        assertEquals(HeatmapCli.EXIT_OK, exit);
+        BufferedImage image = ImageIO.read(new File(outputDir, HeatmapImageWriter.fileName("Main/Activity") + ".png"));
+        assertNotNull(image);
+        assertEquals(540, image.getWidth());
+        assertEquals(1200, image.getHeight());
+        assertTrue(stdout.toString().contains("Aggregated 40 events"));
+    }
+
+    @Test
+    public void fileName_keepsSafeNamesAndKeepsOthersApart() {
+        assertEquals("Main_Activity", HeatmapImageWriter.fileName("Main_Activity"));
+        String slash = HeatmapImageWriter.fileName("Main/Activity");
+        String space = HeatmapImageWriter.fileName("Main Activity");
+        assertTrue(slash, slash.matches("Main_Activity-[0-9a-f]{8}"));
+        assertNotEquals(slash, space);
+        assertNotEquals("Main_Activity", slash);
+    }
+
+    @Test
+    public void run_rejectsBadArguments() {
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        PrintStream err = new PrintStream(stderr);
+        PrintStream out = new PrintStream(new ByteArrayOutputStream());
+
+        assertEquals(HeatmapCli.EXIT_USAGE, HeatmapCli.run(new String[0], out, err));
+        assertEquals(HeatmapCli.EXIT_USAGE, HeatmapCli.run(new String[] {"--size", "1080", "a.json"}, out, err));
+        assertEquals(HeatmapCli.EXIT_USAGE, HeatmapCli.run(new String[] {"--threads"}, out, err));
+        assertTrue(stderr.toString().contains("Usage: heatmap-cli"));
+    }
+
+    private static List<HeatmapEvent> events(Random random, int count, String screenName) {
+        List<HeatmapEvent> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            float x = random.nextFloat() * 540;
+            float y = random.nextFloat() * 1200;
+            if (i % 4 == 3) {
+                events.add(new HeatmapEvent(1_700_000_000_000L + i, "SWIPE_LEFT", x, y,
+                        random.nextFloat() * 540, y, screenName, "user-1"));
+            } else {
+                events.add(new HeatmapEvent(1_700_000_000_000L + i, "TOUCH", x, y, 0.7f, screenName, "user-1"));
+            }
+        }
+        return events;
+    }
+
+    private static byte[] payload(List<HeatmapEvent> events) throws IOException {
+        Buffer buffer = new Buffer();
+        new EventsRequestBody(events, "user-1", "token").writeTo(buffer);
+        return buffer.readByteArray();
+    }
+}
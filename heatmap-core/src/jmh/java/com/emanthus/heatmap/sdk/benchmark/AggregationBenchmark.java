@@ -0,0 +1,57 @@
+package com.emanthus.heatmap.sdk.benchmark;
+
+import com.emanthus.heatmap.sdk.database.HeatmapEvent;
+import com.emanthus.heatmap.sdk.database.ScreenAggregate;
+import com.emanthus.heatmap.sdk.models.HeatmapData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to turn recorded events into heatmap data: combining them into grid cells, as when a batch
+ * is persisted, and building the points and swipes from the cells, as when a heatmap is shown.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AggregationBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int eventCount;
+
+    private List<HeatmapEvent> events;
+    private List<ScreenAggregate> cells;
+
+    @Setup
+    public void setUp() {
+        events = BenchmarkEvents.generate(eventCount, 42);
+        cells = new ArrayList<>(ScreenAggregate.combine(events));
+    }
+
+    @Benchmark
+    public HeatmapData eventsToHeatmap() {
+        List<ScreenAggregate> combined = new ArrayList<>(ScreenAggregate.combine(events));
+        return ScreenAggregate.toHeatmapData(BenchmarkEvents.SCREEN_NAME, combined, Collections.emptyList());
+    }
+
+    @Benchmark
+    public int combine() {
+        return ScreenAggregate.combine(events).size();
+    }
+
+    @Benchmark
+    public HeatmapData cellsToHeatmap() {
+        return ScreenAggregate.toHeatmapData(BenchmarkEvents.SCREEN_NAME, cells, Collections.emptyList());
+    }
+}
@@ -0,0 +1,51 @@
+package com.emanthus.heatmap.sdk.benchmark;
+
+import com.emanthus.heatmap.sdk.database.EventType;
+import com.emanthus.heatmap.sdk.database.HeatmapEvent;
+import com.emanthus.heatmap.sdk.database.TrailCodec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** Generates a repeatable mix of recorded events for the benchmarks. */
+final class BenchmarkEvents {
+
+    static final String SCREEN_NAME = "MainActivity";
+    private static final int SCREEN_WIDTH = 1080;
+    private static final int SCREEN_HEIGHT = 2400;
+
+    private BenchmarkEvents() {}
+
+    /** About 80% taps, 15% swipes and 5% scrolls with a short trail, spread over one phone-sized screen. */
+    static List<HeatmapEvent> generate(int count, long seed) {
+        Random random = new Random(seed);
+        List<HeatmapEvent> events = new ArrayList<>(count);
+        float[] trail = new float[8];
+        long timestamp = 1_700_000_000_000L;
+        for (int i = 0; i < count; i++) {
+            timestamp += random.nextInt(500);
+            float x = random.nextFloat() * SCREEN_WIDTH;
+            float y = random.nextFloat() * SCREEN_HEIGHT;
+            int kind = random.nextInt(100);
+            if (kind < 80) {
+                events.add(new HeatmapEvent(timestamp, EventType.name(EventType.TOUCH), x, y,
+                        random.nextFloat(), SCREEN_NAME, "user-1"));
+            } else if (kind < 95) {
+                int direction = EventType.SWIPE_LEFT + random.nextInt(4);
+                events.add(new HeatmapEvent(timestamp, EventType.name(direction), x, y,
+                        x + random.nextFloat() * 400 - 200, y + random.nextFloat() * 400 - 200, SCREEN_NAME, "user-1"));
+            } else {
+                for (int p = 0; p < trail.length; p += 2) {
+                    trail[p] = x + p * 3;
+                    trail[p + 1] = y - p * 40;
+                }
+                HeatmapEvent scroll = new HeatmapEvent(timestamp, EventType.name(EventType.SCROLL), x, y,
+                        trail[trail.length - 2], trail[trail.length - 1], SCREEN_NAME, "user-1");
+                scroll.setTrail(TrailCodec.encode(trail, trail.length / 2));
+                events.add(scroll);
+            }
+        }
+        return events;
+    }
+}
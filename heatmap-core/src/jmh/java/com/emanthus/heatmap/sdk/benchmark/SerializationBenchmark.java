@@ -0,0 +1,62 @@
+package com.emanthus.heatmap.sdk.benchmark;
+
+import com.emanthus.heatmap.sdk.database.HeatmapEvent;
+import com.emanthus.heatmap.sdk.network.CompactEventsRequestBody;
+import com.emanthus.heatmap.sdk.network.EventsRequestBody;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okio.Buffer;
+
+/**
+ * Events serialized per second for an ingest-events upload, in both wire formats.
+ * One operation is one event; a batch has the flush page size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SerializationBenchmark {
+
+    private static final int BATCH_SIZE = 500;
+
+    private List<HeatmapEvent> batch;
+    private Buffer sink;
+
+    @Setup
+    public void setUp() {
+        batch = BenchmarkEvents.generate(BATCH_SIZE, 42);
+        sink = new Buffer();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public long json() throws IOException {
+        new EventsRequestBody(batch, "user-1", "token").writeTo(sink);
+        return drain();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public long compact() throws IOException {
+        new CompactEventsRequestBody(batch, "user-1", "token").writeTo(sink);
+        return drain();
+    }
+
+    /** Empties the sink so its segments are reused, and returns the bytes written. */
+    private long drain() {
+        long size = sink.size();
+        sink.clear();
+        return size;
+    }
+}
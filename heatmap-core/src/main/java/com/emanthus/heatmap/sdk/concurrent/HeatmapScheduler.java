@@ -0,0 +1,582 @@
+package com.emanthus.heatmap.sdk.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The SDK's only worker threads. Work is queued by {@link Priority}: a free worker always takes
+ * the oldest task of the highest priority that has one, and background uploads never occupy every
+ * worker, so preparing a heatmap for display is not stuck behind a slow network.
+ * <p>
+ * Render tasks have a bounded queue; what happens to a task that does not fit is set by the
+ * {@link RejectionPolicy}. A dropped task that is a {@link Future} is cancelled, and a {@link Droppable}
+ * is told, so whoever waits for it can give up. Storage and upload tasks are never dropped: their callers
+ * keep at most a few of them queued, and rely on each one running. Tasks can be delayed, which is how
+ * buffered events and retries are timed, without a separate timer thread. {@link #executor(Priority)} exposes a priority as a
+ * {@link ScheduledExecutorService} for code that takes one, such as OkHttp's dispatcher.
+ */
+public final class HeatmapScheduler {
+
+    /** Task priorities, highest first. */
+    public enum Priority {
+        /** Work someone is waiting to see, e.g. reading aggregates for a heatmap. The only bounded queue. */
+        RENDER(true),
+        /** Local storage: writing buffered events, maintaining caches. Never dropped. */
+        PERSIST(false),
+        /** Network uploads and retries. Never dropped. */
+        UPLOAD(false);
+
+        final boolean bounded;
+
+        Priority(boolean bounded) {
+            this.bounded = bounded;
+        }
+    }
+
+    /**
+     * A task that wants to know when it is dropped from a full queue, e.g. to release what it holds
+     * or to fail a callback. {@link #onDropped} runs on the thread whose task took its place, outside
+     * the scheduler's lock; keep it short.
+     */
+    public interface Droppable extends Runnable {
+        void onDropped();
+    }
+
+    /** @return A task that runs {@code task}, or {@code onDropped} if it is dropped from a full queue. */
+    public static Droppable droppable(Runnable task, Runnable onDropped) {
+        return new Droppable() {
+            @Override
+            public void run() {
+                task.run();
+            }
+
+            @Override
+            public void onDropped() {
+                onDropped.run();
+            }
+        };
+    }
+
+    /** What happens to a render task submitted while the render queue is full. */
+    public enum RejectionPolicy {
+        /** Throw {@link RejectedExecutionException} to the caller. */
+        ABORT,
+        /** Drop the new task. */
+        DISCARD_NEWEST,
+        /** Drop the oldest queued task of the same priority to make room. */
+        DISCARD_OLDEST
+    }
+
+    private final int threadCount;
+    private final int queueCapacity;
+    private final RejectionPolicy rejectionPolicy;
+    private final int maxRunningUploads;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+    private final Condition idle = lock.newCondition();
+    private final Condition terminated = lock.newCondition();
+
+    // Guarded by lock.
+    private final List<ArrayDeque<Runnable>> ready = new ArrayList<>();
+    private final PriorityQueue<DelayedTask<?>> delayed = new PriorityQueue<>();
+    private final int[] running = new int[Priority.values().length];
+    // Dropped from a full queue, waiting to be cancelled and told outside the lock.
+    private final List<Runnable> dropped = new ArrayList<>();
+    private int liveThreads;
+    private boolean shutdown;
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Lane[] lanes = new Lane[Priority.values().length];
+
+    /**
+     * @param threadCount The number of worker threads, started right away.
+     * @param queueCapacity The most render tasks waiting, not counting delayed ones.
+     * @param rejectionPolicy What to do with a task that does not fit.
+     */
+    public HeatmapScheduler(int threadCount, int queueCapacity, RejectionPolicy rejectionPolicy) {
+        if (threadCount <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("Thread count and queue capacity must be positive.");
+        }
+        this.threadCount = threadCount;
+        this.queueCapacity = queueCapacity;
+        this.rejectionPolicy = rejectionPolicy;
+        // With more than one worker, keep one free for rendering and persistence.
+        this.maxRunningUploads = Math.max(1, threadCount - 1);
+        for (Priority priority : Priority.values()) {
+            ready.add(new ArrayDeque<>());
+            lanes[priority.ordinal()] = new Lane(priority);
+        }
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(this::work, "heatmap-worker-" + i);
+            thread.setDaemon(true);
+            liveThreads++;
+            thread.start();
+        }
+    }
+
+    public int getThreadCount() { return threadCount; }
+
+    /** @return The number of tasks waiting to run, including delayed ones. */
+    public int getQueuedCount() {
+        lock.lock();
+        try {
+            int queued = delayed.size();
+            for (ArrayDeque<Runnable> queue : ready) {
+                queued += queue.size();
+            }
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return The number of render tasks dropped or refused because their queue was full. */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /** Runs the task as soon as a worker is free for its priority. */
+    public void execute(Priority priority, Runnable task) {
+        lock.lock();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException("Scheduler is shut down");
+            }
+            enqueue(priority.ordinal(), task);
+        } finally {
+            lock.unlock();
+        }
+        notifyDropped();
+    }
+
+    /** Runs the task once the delay has passed, then as soon as a worker is free for its priority. */
+    public ScheduledFuture<?> schedule(Priority priority, Runnable task, long delay, TimeUnit unit) {
+        return schedule(new DelayedTask<>(priority, task, null, unit.toNanos(delay)));
+    }
+
+    /**
+     * Runs the task after the initial delay, then again each period after the previous run started,
+     * or right after it ended if it ran late, until it is cancelled, throws or the scheduler shuts down.
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(Priority priority, Runnable task, long initialDelay, long period,
+                                                  TimeUnit unit) {
+        if (period <= 0) throw new IllegalArgumentException("Period must be positive.");
+        return schedule(new DelayedTask<>(priority, task, unit.toNanos(initialDelay), unit.toNanos(period)));
+    }
+
+    /**
+     * Runs the task after the initial delay, then again each delay after the previous run ended,
+     * until it is cancelled, throws or the scheduler shuts down.
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(Priority priority, Runnable task, long initialDelay, long delay,
+                                                     TimeUnit unit) {
+        if (delay <= 0) throw new IllegalArgumentException("Delay must be positive.");
+        return schedule(new DelayedTask<>(priority, task, unit.toNanos(initialDelay), -unit.toNanos(delay)));
+    }
+
+    /** @return A view of one priority as an executor. Shutting the view down shuts the whole scheduler down. */
+    public ScheduledExecutorService executor(Priority priority) {
+        return lanes[priority.ordinal()];
+    }
+
+    /**
+     * Stops accepting tasks. Tasks already waiting to run still run; tasks delayed into the future
+     * are dropped. Returns immediately; see {@link #awaitTermination}.
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            for (DelayedTask<?> task : delayed) {
+                task.cancel(false);
+            }
+            delayed.clear();
+            workAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isShutdown() {
+        lock.lock();
+        try {
+            return shutdown;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until no task is running or waiting to run. Delayed tasks that are not due yet are not waited for.
+     * @return false if the timeout passed first.
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (!isIdleLocked()) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = idle.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every worker has exited after {@link #shutdown()}.
+     * @return false if the timeout passed first.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (liveThreads > 0) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = terminated.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ScheduledFuture<?> schedule(DelayedTask<?> task) {
+        lock.lock();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException("Scheduler is shut down");
+            }
+            delayed.add(task);
+            workAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+        return task;
+    }
+
+    /** Called with the lock held. Dropped tasks are collected for {@link #notifyDropped}. */
+    private void enqueue(int lane, Runnable task) {
+        ArrayDeque<Runnable> queue = ready.get(lane);
+        if (Priority.values()[lane].bounded && queue.size() >= queueCapacity) {
+            rejectedCount.incrementAndGet();
+            switch (rejectionPolicy) {
+                case ABORT:
+                    throw new RejectedExecutionException(Priority.values()[lane] + " queue is full");
+                case DISCARD_NEWEST:
+                    dropped.add(task);
+                    return;
+                case DISCARD_OLDEST:
+                    dropped.add(queue.pollFirst());
+                    break;
+            }
+        }
+        queue.addLast(task);
+        workAvailable.signal();
+    }
+
+    /** Cancels and tells the tasks dropped so far. Called without the lock held. */
+    private void notifyDropped() {
+        List<Runnable> tasks;
+        lock.lock();
+        try {
+            if (dropped.isEmpty()) {
+                return;
+            }
+            tasks = new ArrayList<>(dropped);
+            dropped.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (Runnable task : tasks) {
+            try {
+                if (task instanceof Future) {
+                    ((Future<?>) task).cancel(false);
+                }
+                if (task instanceof Droppable) {
+                    ((Droppable) task).onDropped();
+                }
+            } catch (RuntimeException e) {
+                Thread current = Thread.currentThread();
+                current.getUncaughtExceptionHandler().uncaughtException(current, e);
+            }
+        }
+    }
+
+    /** Puts a periodic task back in the delay queue for its next run, unless the scheduler shut down. */
+    private void reschedule(DelayedTask<?> task) {
+        lock.lock();
+        try {
+            if (shutdown) {
+                task.cancel(false);
+                return;
+            }
+            delayed.add(task);
+            workAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void work() {
+        try {
+            while (true) {
+                int lane;
+                Runnable task;
+                lock.lock();
+                try {
+                    while (true) {
+                        promoteDueTasks();
+                        lane = nextLane();
+                        if (lane >= 0) {
+                            break;
+                        }
+                        if (shutdown) {
+                            return;
+                        }
+                        DelayedTask<?> next = delayed.peek();
+                        if (next == null) {
+                            workAvailable.await();
+                        } else {
+                            workAvailable.awaitNanos(next.getDelay(TimeUnit.NANOSECONDS));
+                        }
+                    }
+                    task = ready.get(lane).pollFirst();
+                    running[lane]++;
+                } finally {
+                    lock.unlock();
+                }
+                notifyDropped();
+
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Thread current = Thread.currentThread();
+                    current.getUncaughtExceptionHandler().uncaughtException(current, e);
+                } finally {
+                    lock.lock();
+                    try {
+                        running[lane]--;
+                        if (isIdleLocked()) {
+                            idle.signalAll();
+                        }
+                        // A freed upload slot may let a waiting worker take an upload.
+                        workAvailable.signal();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.lock();
+            try {
+                liveThreads--;
+                if (liveThreads == 0) {
+                    idle.signalAll();
+                    terminated.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Moves delayed tasks that are due into their ready queues. Called with the lock held. */
+    private void promoteDueTasks() {
+        DelayedTask<?> task;
+        while ((task = delayed.peek()) != null && task.getDelay(TimeUnit.NANOSECONDS) <= 0) {
+            delayed.poll();
+            if (task.isCancelled()) {
+                continue;
+            }
+            try {
+                enqueue(task.priority.ordinal(), task);
+            } catch (RejectedExecutionException e) {
+                // Nobody to throw to: the task was accepted earlier. It is counted as rejected.
+                dropped.add(task);
+            }
+        }
+    }
+
+    /** @return The highest-priority lane with a task that may start now, or -1. Called with the lock held. */
+    private int nextLane() {
+        for (int lane = 0; lane < ready.size(); lane++) {
+            if (ready.get(lane).isEmpty()) {
+                continue;
+            }
+            if (lane == Priority.UPLOAD.ordinal() && running[lane] >= maxRunningUploads) {
+                continue;
+            }
+            return lane;
+        }
+        return -1;
+    }
+
+    private boolean isIdleLocked() {
+        for (int lane = 0; lane < ready.size(); lane++) {
+            if (running[lane] > 0 || !ready.get(lane).isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private final class DelayedTask<V> extends FutureTask<V> implements ScheduledFuture<V>, Droppable {
+        final Priority priority;
+        // What to tell when dropped, if it wants to know.
+        private final Runnable source;
+        // Positive for a fixed rate, negative for a fixed delay, 0 for a one-shot task.
+        private final long periodNanos;
+        // Only changed between runs of a periodic task, while it is in no queue.
+        private volatile long dueNanos;
+        private final long order = sequence.getAndIncrement();
+
+        DelayedTask(Priority priority, Runnable runnable, V result, long delayNanos) {
+            super(runnable, result);
+            this.priority = priority;
+            this.source = runnable;
+            this.periodNanos = 0;
+            this.dueNanos = System.nanoTime() + delayNanos;
+        }
+
+        DelayedTask(Priority priority, Callable<V> callable, long delayNanos) {
+            super(callable);
+            this.priority = priority;
+            this.source = null;
+            this.periodNanos = 0;
+            this.dueNanos = System.nanoTime() + delayNanos;
+        }
+
+        DelayedTask(Priority priority, Runnable runnable, long delayNanos, long periodNanos) {
+            super(runnable, null);
+            this.priority = priority;
+            this.source = runnable;
+            this.periodNanos = periodNanos;
+            this.dueNanos = System.nanoTime() + delayNanos;
+        }
+
+        @Override
+        public void run() {
+            if (periodNanos == 0) {
+                super.run();
+            } else if (runAndReset()) {
+                long now = System.nanoTime();
+                dueNanos = periodNanos > 0 ? Math.max(dueNanos + periodNanos, now) : now - periodNanos;
+                reschedule(this);
+            }
+        }
+
+        @Override
+        public void onDropped() {
+            if (source instanceof Droppable) {
+                ((Droppable) source).onDropped();
+            }
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other == this) {
+                return 0;
+            }
+            DelayedTask<?> task = (DelayedTask<?>) other;
+            int byTime = Long.compare(dueNanos, task.dueNanos);
+            return byTime != 0 ? byTime : Long.compare(order, task.order);
+        }
+    }
+
+    /** One priority of the scheduler, seen as an executor. */
+    private final class Lane extends AbstractExecutorService implements ScheduledExecutorService {
+        private final Priority priority;
+
+        Lane(Priority priority) {
+            this.priority = priority;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            HeatmapScheduler.this.execute(priority, command);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            return HeatmapScheduler.this.schedule(priority, command, delay, unit);
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+            DelayedTask<V> task = new DelayedTask<>(priority, callable, unit.toNanos(delay));
+            HeatmapScheduler.this.schedule(task);
+            return task;
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+            return HeatmapScheduler.this.scheduleAtFixedRate(priority, command, initialDelay, period, unit);
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+            return HeatmapScheduler.this.scheduleWithFixedDelay(priority, command, initialDelay, delay, unit);
+        }
+
+        @Override
+        public void shutdown() {
+            HeatmapScheduler.this.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            HeatmapScheduler.this.shutdown();
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return HeatmapScheduler.this.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            lock.lock();
+            try {
+                return shutdown && liveThreads == 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return HeatmapScheduler.this.awaitTermination(timeout, unit);
+        }
+    }
+}
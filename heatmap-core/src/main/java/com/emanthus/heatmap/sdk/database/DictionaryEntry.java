@@ -0,0 +1,27 @@
+package com.emanthus.heatmap.sdk.database;
+
+import androidx.annotation.NonNull;
+import androidx.room.PrimaryKey;
+
+/**
+ * A row of one of the string dictionaries that {@link StoredEvent} refers to by ID.
+ * Each dictionary is its own table; the subclasses name them.
+ */
+public abstract class DictionaryEntry {
+
+    @PrimaryKey(autoGenerate = true)
+    private int id;
+    @NonNull
+    private String name;
+
+    protected DictionaryEntry(@NonNull String name) {
+        this.name = name;
+    }
+
+    public int getId() { return id; }
+    public void setId(int id) { this.id = id; }
+
+    @NonNull
+    public String getName() { return name; }
+    public void setName(@NonNull String name) { this.name = name; }
+}
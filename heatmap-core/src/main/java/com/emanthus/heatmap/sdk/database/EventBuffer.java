@@ -0,0 +1,288 @@
+package com.emanthus.heatmap.sdk.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded in-memory staging area for recorded events.
+ * Events are held in a ring buffer and written to storage in batches, either as soon as
+ * a full batch is available or once the oldest buffered event has waited for the flush window.
+ * <p>
+ * The buffer is stored as preallocated primitive columns so that recording an event on the
+ * UI thread does not allocate. {@link HeatmapEvent} objects are only created when a batch is
+ * drained on the executor.
+ * <p>
+ * When events arrive faster than they can be stored, an optional {@link LoadShedder} turns some
+ * away before they reach the buffer, and the {@link OverflowPolicy} decides what gives once it is
+ * full. Every event lost either way is counted per type, see {@link #takeDroppedCounts()}.
+ */
+public class EventBuffer {
+
+    /** What happens to an event offered while the buffer is full. */
+    public enum OverflowPolicy {
+        /** The new event is dropped. */
+        DROP_NEWEST,
+        /** The oldest buffered event is dropped to make room. */
+        DROP_OLDEST
+    }
+
+    /** Receives drained batches on the executor thread. */
+    public interface Sink {
+        void write(List<HeatmapEvent> batch);
+    }
+
+    private final int capacity;
+    private final int batchSize;
+    private final long flushWindowMs;
+    private final ScheduledExecutorService executor;
+    private final Sink sink;
+    private final LoadShedder shedder;
+    private final OverflowPolicy overflowPolicy;
+    private final Runnable drainTask = this::drain;
+
+    private final ScreenTable screens = new ScreenTable();
+    private final StringTable userIds = new StringTable();
+    private final StringTable viewIds = new StringTable();
+
+    // One slot per buffered event. endX/endY are NaN for events that have no end point.
+    private final long[] timestamps;
+    private final int[] eventTypes;
+    private final float[] xs;
+    private final float[] ys;
+    private final float[] endXs;
+    private final float[] endYs;
+    private final float[] intensities;
+    private final int[] screenIds;
+    private final int[] userKeys;
+    private final int[] viewKeys;
+    private final String[] trails;
+
+    private int head;
+    private int size;
+    private long droppedCount;
+    private final long[] droppedByType = new long[EventType.count()];
+    private boolean drainScheduled;
+
+    /**
+     * @param capacity Maximum number of events held in memory.
+     * @param batchSize Number of buffered events that triggers an immediate drain.
+     * @param flushWindowMs Maximum time an event waits in memory before being drained.
+     * @param executor The executor drains run on.
+     * @param sink Where drained batches are written.
+     */
+    public EventBuffer(int capacity, int batchSize, long flushWindowMs, ScheduledExecutorService executor, Sink sink) {
+        this(capacity, batchSize, flushWindowMs, executor, sink, null, OverflowPolicy.DROP_NEWEST);
+    }
+
+    /**
+     * @param shedder Decides which events are admitted under load, or null to admit all while there is room.
+     * @param overflowPolicy What gives when the buffer is full.
+     */
+    public EventBuffer(int capacity, int batchSize, long flushWindowMs, ScheduledExecutorService executor, Sink sink,
+                       LoadShedder shedder, OverflowPolicy overflowPolicy) {
+        if (capacity <= 0 || batchSize <= 0 || batchSize > capacity) {
+            throw new IllegalArgumentException("Invalid buffer capacity " + capacity + " / batch size " + batchSize);
+        }
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.flushWindowMs = flushWindowMs;
+        this.executor = executor;
+        this.sink = sink;
+        this.shedder = shedder;
+        this.overflowPolicy = overflowPolicy;
+
+        this.timestamps = new long[capacity];
+        this.eventTypes = new int[capacity];
+        this.xs = new float[capacity];
+        this.ys = new float[capacity];
+        this.endXs = new float[capacity];
+        this.endYs = new float[capacity];
+        this.intensities = new float[capacity];
+        this.screenIds = new int[capacity];
+        this.userKeys = new int[capacity];
+        this.viewKeys = new int[capacity];
+        this.trails = new String[capacity];
+    }
+
+    /** @return The ID to record events for this screen with, when its size is not known. */
+    public int internScreen(String screenName) {
+        return screens.intern(screenName, 0, 0);
+    }
+
+    /**
+     * @param width Width in pixels of the view the screen's coordinates are relative to.
+     * @param height Height in pixels of that view.
+     * @return The ID to record events for this screen at this size with.
+     */
+    public int internScreen(String screenName, int width, int height) {
+        return screens.intern(screenName, width, height);
+    }
+
+    /** @return The ID to record events for this user with, or {@link StringTable#NONE} for null. */
+    public int internUser(String userId) {
+        return userIds.intern(userId);
+    }
+
+    /** @return The ID to tag events on this view with, or {@link StringTable#NONE} for null. */
+    public int internView(String viewId) {
+        return viewIds.intern(viewId);
+    }
+
+    /**
+     * Adds an event to the buffer. Does not allocate once the buffer is warm.
+     * @param eventType One of the {@link EventType} codes.
+     * @param endX The end x-coordinate, or NaN if the event has no end point.
+     * @param endY The end y-coordinate, or NaN if the event has no end point.
+     * @param screenId An ID from {@link #internScreen(String, int, int)}.
+     * @param userKey An ID from {@link #internUser(String)}.
+     * @return false if the event was dropped.
+     */
+    public boolean offer(long timestamp, int eventType, float x, float y, float endX, float endY,
+                         float intensity, int screenId, int userKey) {
+        return offer(timestamp, eventType, x, y, endX, endY, intensity, screenId, userKey, null);
+    }
+
+    /**
+     * Adds an event with a trail, e.g. a whole scroll gesture.
+     * @param trail The path from (x, y) to (endX, endY), encoded with {@link TrailCodec}, or null.
+     * @return false if the event was dropped.
+     */
+    public boolean offer(long timestamp, int eventType, float x, float y, float endX, float endY,
+                         float intensity, int screenId, int userKey, String trail) {
+        return offer(timestamp, eventType, x, y, endX, endY, intensity, screenId, userKey, StringTable.NONE, trail);
+    }
+
+    /**
+     * Adds an event tagged with the view it started on.
+     * @param viewKey An ID from {@link #internView(String)}, or {@link StringTable#NONE}.
+     * @return false if the event was dropped.
+     */
+    public boolean offer(long timestamp, int eventType, float x, float y, float endX, float endY,
+                         float intensity, int screenId, int userKey, int viewKey, String trail) {
+        synchronized (this) {
+            if (shedder != null && !shedder.admit(eventType, timestamp, size, capacity)) {
+                countDrop(eventType);
+                return false;
+            }
+            if (size == capacity) {
+                if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                    countDrop(eventType);
+                    return false;
+                }
+                countDrop(eventTypes[head]);
+                trails[head] = null;
+                head = (head + 1) % capacity;
+                size--;
+            }
+            int slot = (head + size) % capacity;
+            timestamps[slot] = timestamp;
+            eventTypes[slot] = eventType;
+            xs[slot] = x;
+            ys[slot] = y;
+            endXs[slot] = endX;
+            endYs[slot] = endY;
+            intensities[slot] = intensity;
+            screenIds[slot] = screenId;
+            userKeys[slot] = userKey;
+            viewKeys[slot] = viewKey;
+            trails[slot] = trail;
+            size++;
+
+            try {
+                if (size == batchSize) {
+                    executor.execute(drainTask);
+                    drainScheduled = true;
+                } else if (!drainScheduled) {
+                    executor.schedule(drainTask, flushWindowMs, TimeUnit.MILLISECONDS);
+                    drainScheduled = true;
+                }
+            } catch (RejectedExecutionException e) {
+                // Nothing would store the event, e.g. after shutdown. Callers are on the UI thread; don't throw.
+                size--;
+                trails[slot] = null;
+                countDrop(eventType);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes every buffered event to the sink, one batch at a time.
+     * Runs on the calling thread; normally invoked on the executor.
+     */
+    public void drain() {
+        while (true) {
+            List<HeatmapEvent> batch;
+            synchronized (this) {
+                drainScheduled = false;
+                if (size == 0) {
+                    return;
+                }
+                int count = Math.min(size, batchSize);
+                batch = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    batch.add(toEvent(head));
+                    head = (head + 1) % capacity;
+                }
+                size -= count;
+            }
+            sink.write(batch);
+        }
+    }
+
+    private HeatmapEvent toEvent(int slot) {
+        String eventType = EventType.name(eventTypes[slot]);
+        String screenName = screens.getName(screenIds[slot]);
+        String userId = userIds.get(userKeys[slot]);
+        HeatmapEvent event;
+        if (Float.isNaN(endXs[slot])) {
+            event = new HeatmapEvent(timestamps[slot], eventType, xs[slot], ys[slot], intensities[slot], screenName, userId);
+        } else {
+            event = new HeatmapEvent(timestamps[slot], eventType, xs[slot], ys[slot],
+                    endXs[slot], endYs[slot], screenName, userId);
+            event.setIntensity(intensities[slot]);
+            event.setTrail(trails[slot]);
+            trails[slot] = null;
+        }
+        event.setScreenWidth(screens.getWidth(screenIds[slot]));
+        event.setScreenHeight(screens.getHeight(screenIds[slot]));
+        event.setViewId(viewIds.get(viewKeys[slot]));
+        return event;
+    }
+
+    private void countDrop(int eventType) {
+        droppedCount++;
+        droppedByType[eventType]++;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /** @return The number of events dropped since the buffer was created. */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Returns and resets the per-type drop counts, e.g. to report them with an upload.
+     * @return Counts indexed by {@link EventType} code.
+     */
+    public synchronized long[] takeDroppedCounts() {
+        long[] counts = droppedByType.clone();
+        Arrays.fill(droppedByType, 0);
+        return counts;
+    }
+
+    /** Adds counts from {@link #takeDroppedCounts()} back, e.g. when reporting them failed. */
+    public synchronized void restoreDroppedCounts(long[] counts) {
+        for (int type = 0; type < droppedByType.length; type++) {
+            droppedByType[type] += counts[type];
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.emanthus.heatmap.sdk.database;
+
+/**
+ * Integer codes for the event types recorded by the SDK.
+ * The capture path works with these codes; names are only resolved when events are persisted.
+ */
+public final class EventType {
+
+    public static final int TOUCH = 0;
+    public static final int SCROLL = 1;
+    public static final int SWIPE_LEFT = 2;
+    public static final int SWIPE_RIGHT = 3;
+    public static final int SWIPE_UP = 4;
+    public static final int SWIPE_DOWN = 5;
+
+    private static final String[] NAMES = {
+            "TOUCH",
+            "SCROLL",
+            "SWIPE_LEFT",
+            "SWIPE_RIGHT",
+            "SWIPE_UP",
+            "SWIPE_DOWN"
+    };
+
+    private EventType() {}
+
+    /** @return The stored name of the event type, e.g. "SWIPE_UP". */
+    public static String name(int code) {
+        return NAMES[code];
+    }
+
+    /** @return The code for a stored event type name, or -1 if it is unknown. */
+    public static int code(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static int count() {
+        return NAMES.length;
+    }
+}
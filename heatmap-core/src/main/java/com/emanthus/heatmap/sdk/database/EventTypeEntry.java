@@ -0,0 +1,14 @@
+package com.emanthus.heatmap.sdk.database;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Index;
+
+/** Event type names, e.g. "TOUCH". */
+@Entity(tableName = "event_types", indices = {@Index(value = "name", unique = true)})
+public class EventTypeEntry extends DictionaryEntry {
+
+    public EventTypeEntry(@NonNull String name) {
+        super(name);
+    }
+}
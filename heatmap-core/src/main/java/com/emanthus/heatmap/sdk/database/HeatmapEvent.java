@@ -1,12 +1,18 @@
 package com.emanthus.heatmap.sdk.database;
 
-import androidx.room.Entity;
-import androidx.room.PrimaryKey;
-
-@Entity(tableName = "events")
+/**
+ * A recorded interaction. Stored as a {@link StoredEvent} row; DAO queries return it with the names
+ * joined back in and the coordinates restored.
+ */
 public class HeatmapEvent {
 
-    @PrimaryKey(autoGenerate = true)
+    /** Not sent yet, or sent in a batch that failed. Rows with a batch ID are re-sent under that ID. */
+    public static final int UPLOAD_PENDING = 0;
+    /** Part of a batch whose upload has started but not finished. */
+    public static final int UPLOAD_IN_FLIGHT = 1;
+    /** Accepted by the server; removed at the end of the flush. */
+    public static final int UPLOAD_ACKED = 2;
+
     private int id;
 
     private long timestamp;
@@ -15,9 +21,18 @@ public class HeatmapEvent {
     private float y;
     private Float endX;
     private Float endY;
+    // Scroll path from (x, y) to (endX, endY), see TrailCodec. Null for other events.
+    private String trail;
     private float intensity;
     private String screenName;
+    // Size in pixels of the screen the coordinates are relative to; 0 if unknown.
+    private int screenWidth;
+    private int screenHeight;
+    // Resource entry name of the deepest view with an ID under the event's start point, e.g. "checkout_button".
+    private String viewId;
     private String userId;
+    private int uploadState;
+    private String batchId;
 
     public HeatmapEvent(long timestamp, String eventType, float x, float y, float intensity, String screenName, String userId) {
         this.timestamp = timestamp;
@@ -64,12 +79,30 @@ public class HeatmapEvent {
     public Float getEndY() { return endY; }
     public void setEndY(Float endY) { this.endY = endY; }
 
+    public String getTrail() { return trail; }
+    public void setTrail(String trail) { this.trail = trail; }
+
     public float getIntensity() { return intensity; }
     public void setIntensity(float intensity) { this.intensity = intensity; }
 
     public String getScreenName() { return screenName; }
     public void setScreenName(String screenName) { this.screenName = screenName; }
 
+    public int getScreenWidth() { return screenWidth; }
+    public void setScreenWidth(int screenWidth) { this.screenWidth = screenWidth; }
+
+    public int getScreenHeight() { return screenHeight; }
+    public void setScreenHeight(int screenHeight) { this.screenHeight = screenHeight; }
+
+    public String getViewId() { return viewId; }
+    public void setViewId(String viewId) { this.viewId = viewId; }
+
     public String getUserId() { return userId; }
     public void setUserId(String userId) { this.userId = userId; }
+
+    public int getUploadState() { return uploadState; }
+    public void setUploadState(int uploadState) { this.uploadState = uploadState; }
+
+    public String getBatchId() { return batchId; }
+    public void setBatchId(String batchId) { this.batchId = batchId; }
 }
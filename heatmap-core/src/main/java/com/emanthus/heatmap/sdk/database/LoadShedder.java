@@ -0,0 +1,107 @@
+package com.emanthus.heatmap.sdk.database;
+
+import java.util.Arrays;
+
+/**
+ * Decides which recorded events enter the {@link EventBuffer} when events arrive faster than
+ * they can be stored.
+ * <p>
+ * Two rules apply, cheapest first:
+ * <ul>
+ *     <li>Each event type has a per-second budget, enforced by a token bucket that holds up to
+ *     one second's worth of events. Short bursts pass; a sustained flood is cut to the budget.</li>
+ *     <li>Once the buffer fills past the sampling threshold, SCROLL events are sampled, keeping a
+ *     share that shrinks linearly to none as the buffer fills. Swipes start being sampled halfway
+ *     between the threshold and full. TOUCH events are never sampled, so taps are the last
+ *     thing lost.</li>
+ * </ul>
+ * Sampling is deterministic (every n-th event is kept) and neither rule allocates.
+ * Not thread-safe; the buffer calls it under its own lock.
+ */
+public class LoadShedder {
+
+    /** Budget value that turns the limit off for an event type. */
+    public static final int UNLIMITED = 0;
+
+    private final int[] budgets;
+    private final float[] sampleFrom;
+    private final double[] tokens;
+    private final long[] refilledAt;
+    private final float[] sampleCredit;
+
+    /**
+     * @param budgets Events per second allowed per {@link EventType} code, or {@link #UNLIMITED}.
+     * @param samplingThreshold Buffer fill (0-1) above which SCROLL events are sampled; 1 disables sampling.
+     */
+    public LoadShedder(int[] budgets, float samplingThreshold) {
+        if (budgets.length != EventType.count()) {
+            throw new IllegalArgumentException("Expected one budget per event type, got " + budgets.length);
+        }
+        if (!(samplingThreshold >= 0f && samplingThreshold <= 1f)) {
+            throw new IllegalArgumentException("Sampling threshold must be in [0, 1].");
+        }
+        int types = EventType.count();
+        this.budgets = budgets.clone();
+        this.sampleFrom = new float[types];
+        for (int type = 0; type < types; type++) {
+            if (type == EventType.TOUCH) {
+                sampleFrom[type] = 1f;
+            } else if (type == EventType.SCROLL) {
+                sampleFrom[type] = samplingThreshold;
+            } else {
+                sampleFrom[type] = (samplingThreshold + 1f) / 2f;
+            }
+        }
+        this.tokens = new double[types];
+        for (int type = 0; type < types; type++) {
+            tokens[type] = budgets[type];
+        }
+        this.refilledAt = new long[types];
+        Arrays.fill(refilledAt, Long.MIN_VALUE);
+        this.sampleCredit = new float[types];
+    }
+
+    /**
+     * @param eventType One of the {@link EventType} codes.
+     * @param timestamp The event time in milliseconds.
+     * @param size The number of events in the buffer now.
+     * @param capacity The buffer capacity.
+     * @return true if the event should be buffered, false if it should be dropped.
+     */
+    public boolean admit(int eventType, long timestamp, int size, int capacity) {
+        return withinBudget(eventType, timestamp) && sampled(eventType, (float) size / capacity);
+    }
+
+    private boolean withinBudget(int eventType, long timestamp) {
+        int budget = budgets[eventType];
+        if (budget == UNLIMITED) {
+            return true;
+        }
+        long last = refilledAt[eventType];
+        if (last != Long.MIN_VALUE && timestamp > last) {
+            tokens[eventType] = Math.min(budget, tokens[eventType] + (timestamp - last) * budget / 1000.0);
+        }
+        if (last == Long.MIN_VALUE || timestamp > last) {
+            refilledAt[eventType] = timestamp;
+        }
+        if (tokens[eventType] < 1) {
+            return false;
+        }
+        tokens[eventType] -= 1;
+        return true;
+    }
+
+    private boolean sampled(int eventType, float fill) {
+        float from = sampleFrom[eventType];
+        if (fill < from || from >= 1f) {
+            return true;
+        }
+        // Share of events kept: 1 at the threshold, falling to 0 when the buffer is full.
+        sampleCredit[eventType] += (1f - fill) / (1f - from);
+        if (sampleCredit[eventType] < 1f) {
+            return false;
+        }
+        sampleCredit[eventType] -= 1f;
+        return true;
+    }
+}
@@ -0,0 +1,145 @@
+package com.emanthus.heatmap.sdk.database;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+
+import com.emanthus.heatmap.sdk.models.HeatmapData;
+import com.emanthus.heatmap.sdk.models.HeatmapDataPoint;
+import com.emanthus.heatmap.sdk.models.HeatmapSwipe;
+import com.emanthus.heatmap.sdk.models.HeatmapTrail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Running totals of the events recorded in one grid cell of a screen.
+ * Updated as events are persisted, so a heatmap can be built without reading raw events.
+ */
+@Entity(tableName = "screen_aggregates", primaryKeys = {"screenName", "kind", "cellX", "cellY"})
+public class ScreenAggregate {
+
+    /** Taps and other single-point events, binned by position. */
+    public static final int KIND_POINT = 0;
+    /** Swipes, binned by start position, with their summed displacement. */
+    public static final int KIND_SWIPE = 1;
+
+    /** Width and height of a grid cell in pixels. */
+    public static final int CELL_SIZE_PX = 8;
+
+    @NonNull
+    private String screenName;
+    private int kind;
+    private int cellX;
+    private int cellY;
+    private int count;
+    private float intensitySum;
+    private float dxSum;
+    private float dySum;
+
+    public ScreenAggregate(@NonNull String screenName, int kind, int cellX, int cellY) {
+        this.screenName = screenName;
+        this.kind = kind;
+        this.cellX = cellX;
+        this.cellY = cellY;
+    }
+
+    /** Adds one event to the totals of this cell. */
+    void add(HeatmapEvent event) {
+        count++;
+        intensitySum += event.getIntensity();
+        if (event.getEndX() != null && event.getEndY() != null) {
+            dxSum += event.getEndX() - event.getX();
+            dySum += event.getEndY() - event.getY();
+        }
+    }
+
+    /** Combines events into one aggregate per screen, kind and cell. */
+    public static Collection<ScreenAggregate> combine(List<HeatmapEvent> events) {
+        Map<String, ScreenAggregate> cells = new HashMap<>();
+        for (HeatmapEvent event : events) {
+            if (event.getScreenName() == null) {
+                continue;
+            }
+            int kind = kindOf(event);
+            int cellX = cellOf(event.getX());
+            int cellY = cellOf(event.getY());
+            String key = event.getScreenName() + '/' + kind + '/' + cellX + '/' + cellY;
+            ScreenAggregate cell = cells.get(key);
+            if (cell == null) {
+                cell = new ScreenAggregate(event.getScreenName(), kind, cellX, cellY);
+                cells.put(key, cell);
+            }
+            cell.add(event);
+        }
+        return cells.values();
+    }
+
+    /**
+     * Builds the heatmap for one screen from its cells: a density point per point cell, weighted by
+     * the summed intensity, and an average swipe per swipe cell.
+     * @param cells The screen's aggregates, in any order.
+     * @param trails Scroll paths to draw; they are not aggregated.
+     */
+    public static HeatmapData toHeatmapData(String screenName, List<ScreenAggregate> cells, List<HeatmapTrail> trails) {
+        List<HeatmapDataPoint> points = new ArrayList<>();
+        List<HeatmapSwipe> swipes = new ArrayList<>();
+        for (ScreenAggregate cell : cells) {
+            float x = cellCenter(cell.getCellX());
+            float y = cellCenter(cell.getCellY());
+            if (cell.getKind() == KIND_SWIPE) {
+                swipes.add(new HeatmapSwipe(
+                        x, y,
+                        x + cell.getDxSum() / cell.getCount(), y + cell.getDySum() / cell.getCount(),
+                        cell.getIntensitySum() / cell.getCount()
+                ));
+            } else {
+                points.add(new HeatmapDataPoint(x, y, cell.getIntensitySum()));
+            }
+        }
+        return new HeatmapData(screenName, points, swipes, trails);
+    }
+
+    /** @return The kind of aggregate an event is counted in. */
+    public static int kindOf(HeatmapEvent event) {
+        return event.getEventType() != null && event.getEventType().startsWith("SWIPE") ? KIND_SWIPE : KIND_POINT;
+    }
+
+    /** @return The grid cell a coordinate falls in. */
+    public static int cellOf(float coordinate) {
+        return (int) (coordinate / CELL_SIZE_PX);
+    }
+
+    /** @return The center of the cell in pixels. */
+    public static float cellCenter(int cell) {
+        return cell * CELL_SIZE_PX + CELL_SIZE_PX / 2f;
+    }
+
+    // --- Getters & Setters ---
+    @NonNull
+    public String getScreenName() { return screenName; }
+    public void setScreenName(@NonNull String screenName) { this.screenName = screenName; }
+
+    public int getKind() { return kind; }
+    public void setKind(int kind) { this.kind = kind; }
+
+    public int getCellX() { return cellX; }
+    public void setCellX(int cellX) { this.cellX = cellX; }
+
+    public int getCellY() { return cellY; }
+    public void setCellY(int cellY) { this.cellY = cellY; }
+
+    public int getCount() { return count; }
+    public void setCount(int count) { this.count = count; }
+
+    public float getIntensitySum() { return intensitySum; }
+    public void setIntensitySum(float intensitySum) { this.intensitySum = intensitySum; }
+
+    public float getDxSum() { return dxSum; }
+    public void setDxSum(float dxSum) { this.dxSum = dxSum; }
+
+    public float getDySum() { return dySum; }
+    public void setDySum(float dySum) { this.dySum = dySum; }
+}
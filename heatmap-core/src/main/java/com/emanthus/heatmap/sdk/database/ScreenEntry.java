@@ -0,0 +1,40 @@
+package com.emanthus.heatmap.sdk.database;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * A row of the {@code screens} dictionary: a screen name and the size that the coordinates of its
+ * stored events are normalized to. See {@link StoredEvent}.
+ */
+@Entity(tableName = "screens", indices = {@Index(value = {"name", "width", "height"}, unique = true)})
+public class ScreenEntry {
+
+    @PrimaryKey(autoGenerate = true)
+    private int id;
+    @NonNull
+    private String name;
+    private int width;
+    private int height;
+
+    public ScreenEntry(@NonNull String name, int width, int height) {
+        this.name = name;
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getId() { return id; }
+    public void setId(int id) { this.id = id; }
+
+    @NonNull
+    public String getName() { return name; }
+    public void setName(@NonNull String name) { this.name = name; }
+
+    public int getWidth() { return width; }
+    public void setWidth(int width) { this.width = width; }
+
+    public int getHeight() { return height; }
+    public void setHeight(int height) { this.height = height; }
+}
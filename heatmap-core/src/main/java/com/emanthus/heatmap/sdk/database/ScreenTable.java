@@ -0,0 +1,71 @@
+package com.emanthus.heatmap.sdk.database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps screens, by name and the size they were laid out at, to small integer IDs like {@link StringTable}.
+ * The same screen at another size, e.g. after a rotation, gets another ID.
+ */
+public class ScreenTable {
+
+    private final Map<Key, Integer> ids = new HashMap<>();
+    private final List<Key> screens = new ArrayList<>();
+
+    /**
+     * @param width Width in pixels the screen's coordinates are relative to, or 0 if unknown.
+     * @param height Height in pixels, or 0 if unknown.
+     * @return The screen's ID, or {@link StringTable#NONE} for a null name.
+     */
+    public synchronized int intern(String name, int width, int height) {
+        if (name == null) {
+            return StringTable.NONE;
+        }
+        Key key = new Key(name, width, height);
+        Integer id = ids.get(key);
+        if (id == null) {
+            id = screens.size();
+            screens.add(key);
+            ids.put(key, id);
+        }
+        return id;
+    }
+
+    public synchronized String getName(int id) {
+        return id == StringTable.NONE ? null : screens.get(id).name;
+    }
+
+    public synchronized int getWidth(int id) {
+        return id == StringTable.NONE ? 0 : screens.get(id).width;
+    }
+
+    public synchronized int getHeight(int id) {
+        return id == StringTable.NONE ? 0 : screens.get(id).height;
+    }
+
+    private static final class Key {
+        final String name;
+        final int width;
+        final int height;
+
+        Key(String name, int width, int height) {
+            this.name = name;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return width == other.width && height == other.height && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return (name.hashCode() * 31 + width) * 31 + height;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.emanthus.heatmap.sdk.database;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A scroll path kept for drawing heatmaps. Trails are not aggregated, so the most recent ones of each screen
+ * are copied here as events are persisted; unlike the events, they stay after an upload.
+ */
+@Entity(tableName = "screen_trails", indices = {@Index(value = {"screenName", "timestamp"})})
+public class ScreenTrail {
+
+    /** Trails kept per screen; older ones are deleted as new ones arrive. */
+    public static final int MAX_PER_SCREEN = 100;
+
+    @PrimaryKey(autoGenerate = true)
+    private int id;
+    @NonNull
+    private String screenName;
+    private long timestamp;
+    // See TrailCodec.
+    @NonNull
+    private String trail;
+
+    public ScreenTrail(@NonNull String screenName, long timestamp, @NonNull String trail) {
+        this.screenName = screenName;
+        this.timestamp = timestamp;
+        this.trail = trail;
+    }
+
+    /** The trails of the events that have one and a screen name, in order. */
+    public static List<ScreenTrail> of(List<HeatmapEvent> events) {
+        List<ScreenTrail> trails = new ArrayList<>();
+        for (HeatmapEvent event : events) {
+            if (event.getTrail() != null && event.getScreenName() != null) {
+                trails.add(new ScreenTrail(event.getScreenName(), event.getTimestamp(), event.getTrail()));
+            }
+        }
+        return trails;
+    }
+
+    public int getId() { return id; }
+    public void setId(int id) { this.id = id; }
+
+    @NonNull
+    public String getScreenName() { return screenName; }
+    public void setScreenName(@NonNull String screenName) { this.screenName = screenName; }
+
+    public long getTimestamp() { return timestamp; }
+    public void setTimestamp(long timestamp) { this.timestamp = timestamp; }
+
+    @NonNull
+    public String getTrail() { return trail; }
+    public void setTrail(@NonNull String trail) { this.trail = trail; }
+}
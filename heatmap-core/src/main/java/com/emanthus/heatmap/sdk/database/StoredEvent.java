@@ -0,0 +1,140 @@
+package com.emanthus.heatmap.sdk.database;
+
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * A row of the {@code events} table: a {@link HeatmapEvent} with its strings replaced by IDs from the
+ * {@code screens}, {@code event_types}, {@code users} and {@code views} tables, and its coordinates and
+ * intensity quantized to 16 bits. Queries join the names back and dequantize, so callers only see
+ * {@link HeatmapEvent}s.
+ * <p>
+ * Coordinates are stored in 65535 steps from {@link #RANGE_MIN} to {@link #RANGE_MIN} + {@link #RANGE_SIZE}
+ * times the screen's width or height, offset by -32768 so that SQLite stores each in two bytes. The range
+ * reaches past the screen, so a swipe that leaves it keeps its end. At 2400 pixels a step is 0.07 pixels.
+ */
+@Entity(tableName = "events", indices = {@Index({"uploadState", "batchId"})})
+public class StoredEvent {
+
+    public static final int QUANTIZATION_STEPS = 0xFFFF;
+    public static final int QUANTIZATION_OFFSET = 0x8000;
+    /** Lowest coordinate stored, as a fraction of the screen size. */
+    public static final float RANGE_MIN = -0.5f;
+    /** Span of the coordinates stored, as a fraction of the screen size. */
+    public static final float RANGE_SIZE = 2f;
+    /** Extent coordinates are normalized to when the screen size is not known. */
+    public static final int DEFAULT_EXTENT_PX = 4096;
+    /** Intensities are stored in thousandths, up to 32.767. */
+    public static final int INTENSITY_SCALE = 1000;
+
+    @PrimaryKey(autoGenerate = true)
+    private int id;
+
+    private long timestamp;
+    // References screens.id.
+    private int screenId;
+    // References event_types.id.
+    private int typeId;
+    // References users.id; null for events recorded without a user.
+    private Integer userId;
+    // References views.id; null for events that hit no view with an ID.
+    private Integer viewId;
+    private short x;
+    private short y;
+    private Short endX;
+    private Short endY;
+    private short intensity;
+    // Scroll path, see TrailCodec. Null for other events.
+    private String trail;
+    @ColumnInfo(defaultValue = "0")
+    private int uploadState;
+    private String batchId;
+
+    public StoredEvent() {
+    }
+
+    /**
+     * @param width Width of the screen's row in {@code screens}, which x and endX are relative to.
+     * @param height Height of the screen's row, which y and endY are relative to.
+     */
+    public StoredEvent(HeatmapEvent event, int screenId, int typeId, Integer userId, Integer viewId, int width, int height) {
+        this.id = event.getId();
+        this.timestamp = event.getTimestamp();
+        this.screenId = screenId;
+        this.typeId = typeId;
+        this.userId = userId;
+        this.viewId = viewId;
+        this.x = quantize(event.getX(), width);
+        this.y = quantize(event.getY(), height);
+        this.endX = event.getEndX() != null ? quantize(event.getEndX(), width) : null;
+        this.endY = event.getEndY() != null ? quantize(event.getEndY(), height) : null;
+        this.intensity = quantizeIntensity(event.getIntensity());
+        this.trail = event.getTrail();
+        this.uploadState = event.getUploadState();
+        this.batchId = event.getBatchId();
+    }
+
+    /** @return The extent coordinates on a screen of the given size are normalized to. */
+    public static int extent(int size) {
+        return size > 0 ? size : DEFAULT_EXTENT_PX;
+    }
+
+    /** @return The coordinate in steps of the stored range, clamped to it. */
+    public static short quantize(float value, int extent) {
+        float fraction = Math.max(0f, Math.min(1f, (value / extent - RANGE_MIN) / RANGE_SIZE));
+        return (short) (Math.round(fraction * QUANTIZATION_STEPS) - QUANTIZATION_OFFSET);
+    }
+
+    public static float dequantize(short value, int extent) {
+        return ((value + QUANTIZATION_OFFSET) * RANGE_SIZE / QUANTIZATION_STEPS + RANGE_MIN) * extent;
+    }
+
+    public static short quantizeIntensity(float intensity) {
+        return (short) Math.max(0, Math.min(Short.MAX_VALUE, Math.round(intensity * INTENSITY_SCALE)));
+    }
+
+    // --- Getters & Setters ---
+    public int getId() { return id; }
+    public void setId(int id) { this.id = id; }
+
+    public long getTimestamp() { return timestamp; }
+    public void setTimestamp(long timestamp) { this.timestamp = timestamp; }
+
+    public int getScreenId() { return screenId; }
+    public void setScreenId(int screenId) { this.screenId = screenId; }
+
+    public int getTypeId() { return typeId; }
+    public void setTypeId(int typeId) { this.typeId = typeId; }
+
+    public Integer getUserId() { return userId; }
+    public void setUserId(Integer userId) { this.userId = userId; }
+
+    public Integer getViewId() { return viewId; }
+    public void setViewId(Integer viewId) { this.viewId = viewId; }
+
+    public short getX() { return x; }
+    public void setX(short x) { this.x = x; }
+
+    public short getY() { return y; }
+    public void setY(short y) { this.y = y; }
+
+    public Short getEndX() { return endX; }
+    public void setEndX(Short endX) { this.endX = endX; }
+
+    public Short getEndY() { return endY; }
+    public void setEndY(Short endY) { this.endY = endY; }
+
+    public short getIntensity() { return intensity; }
+    public void setIntensity(short intensity) { this.intensity = intensity; }
+
+    public String getTrail() { return trail; }
+    public void setTrail(String trail) { this.trail = trail; }
+
+    public int getUploadState() { return uploadState; }
+    public void setUploadState(int uploadState) { this.uploadState = uploadState; }
+
+    public String getBatchId() { return batchId; }
+    public void setBatchId(String batchId) { this.batchId = batchId; }
+}
@@ -0,0 +1,36 @@
+package com.emanthus.heatmap.sdk.database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps strings such as screen names and user IDs to small integer IDs so they can be
+ * stored in primitive columns. IDs are assigned in insertion order and never reused.
+ */
+public class StringTable {
+
+    /** ID used for a null value. */
+    public static final int NONE = -1;
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> values = new ArrayList<>();
+
+    public synchronized int intern(String value) {
+        if (value == null) {
+            return NONE;
+        }
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = values.size();
+            values.add(value);
+            ids.put(value, id);
+        }
+        return id;
+    }
+
+    public synchronized String get(int id) {
+        return id == NONE ? null : values.get(id);
+    }
+}
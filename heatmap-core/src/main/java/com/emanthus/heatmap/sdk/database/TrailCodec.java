@@ -0,0 +1,79 @@
+package com.emanthus.heatmap.sdk.database;
+
+/**
+ * Text encoding of a gesture trail, as stored in {@link HeatmapEvent#getTrail()} and uploaded.
+ * <p>
+ * Uses the Encoded Polyline Algorithm Format: x and y alternate, each is rounded to a tenth of a
+ * pixel and written as the difference from the previous point in base64-like chunks of 5 bits.
+ * A simplified trail of a few dozen points encodes to a few hundred ASCII characters.
+ */
+public final class TrailCodec {
+
+    private static final float PRECISION = 10f;
+
+    private TrailCodec() {}
+
+    /**
+     * @param points x, y pairs.
+     * @param pointCount The number of points, i.e. half the number of values used.
+     */
+    public static String encode(float[] points, int pointCount) {
+        StringBuilder out = new StringBuilder(pointCount * 6);
+        int previousX = 0;
+        int previousY = 0;
+        for (int i = 0; i < pointCount; i++) {
+            int x = Math.round(points[i * 2] * PRECISION);
+            int y = Math.round(points[i * 2 + 1] * PRECISION);
+            writeValue(out, x - previousX);
+            writeValue(out, y - previousY);
+            previousX = x;
+            previousY = y;
+        }
+        return out.toString();
+    }
+
+    /** @return x, y pairs. */
+    public static float[] decode(String encoded) {
+        int length = encoded.length();
+        int[] values = new int[length];
+        int valueCount = 0;
+        int index = 0;
+        while (index < length) {
+            int result = 0;
+            int shift = 0;
+            int chunk;
+            do {
+                if (index >= length) {
+                    throw new IllegalArgumentException("Truncated trail: " + encoded);
+                }
+                chunk = encoded.charAt(index++) - 63;
+                result |= (chunk & 0x1F) << shift;
+                shift += 5;
+            } while (chunk >= 0x20);
+            values[valueCount++] = (result & 1) != 0 ? ~(result >> 1) : result >> 1;
+        }
+        if (valueCount % 2 != 0) {
+            throw new IllegalArgumentException("Trail has an odd number of coordinates: " + encoded);
+        }
+
+        float[] points = new float[valueCount];
+        int x = 0;
+        int y = 0;
+        for (int i = 0; i < valueCount; i += 2) {
+            x += values[i];
+            y += values[i + 1];
+            points[i] = x / PRECISION;
+            points[i + 1] = y / PRECISION;
+        }
+        return points;
+    }
+
+    private static void writeValue(StringBuilder out, int delta) {
+        int value = delta < 0 ? ~(delta << 1) : delta << 1;
+        while (value >= 0x20) {
+            out.append((char) ((0x20 | (value & 0x1F)) + 63));
+            value >>>= 5;
+        }
+        out.append((char) (value + 63));
+    }
+}
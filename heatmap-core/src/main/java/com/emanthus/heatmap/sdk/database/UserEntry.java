@@ -0,0 +1,14 @@
+package com.emanthus.heatmap.sdk.database;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Index;
+
+/** User IDs passed to {@code identifyUser}. */
+@Entity(tableName = "users", indices = {@Index(value = "name", unique = true)})
+public class UserEntry extends DictionaryEntry {
+
+    public UserEntry(@NonNull String name) {
+        super(name);
+    }
+}
@@ -0,0 +1,14 @@
+package com.emanthus.heatmap.sdk.database;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Index;
+
+/** Resource entry names of the views events hit. */
+@Entity(tableName = "views", indices = {@Index(value = "name", unique = true)})
+public class ViewEntry extends DictionaryEntry {
+
+    public ViewEntry(@NonNull String name) {
+        super(name);
+    }
+}
@@ -0,0 +1,96 @@
+package com.emanthus.heatmap.sdk.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms for the SDK pipeline, from capture to upload.
+ * <p>
+ * The SDK records into one instance through the {@code on...} methods; read it with
+ * {@code HeatmapSDK.getMetrics()}. Recording uses {@link LongAdder}s and
+ * {@link Histogram}s only, so it takes no locks and is cheap enough for the touch path.
+ * Latencies are recorded in microseconds.
+ */
+public final class HeatmapMetrics {
+
+    /** Receives a snapshot of the metrics after every flush, on a background thread. */
+    public interface Listener {
+        void onMetrics(MetricsSnapshot snapshot);
+    }
+
+    private final LongAdder eventsRecorded = new LongAdder();
+    private final LongAdder eventsDropped = new LongAdder();
+    private final LongAdder eventsPersisted = new LongAdder();
+    private final LongAdder bytesUploaded = new LongAdder();
+    private final LongAdder uploadFailures = new LongAdder();
+    private final Histogram insertLatency = new Histogram();
+    private final Histogram flushLatency = new Histogram();
+    private final Histogram screenshotEncodeTime = new Histogram();
+    private final Histogram screenshotBytes = new Histogram();
+    private final Histogram renderTime = new Histogram();
+
+    /** An event entered the in-memory buffer. */
+    public void onEventRecorded() {
+        eventsRecorded.increment();
+    }
+
+    /** An event was shed or did not fit in the buffer. */
+    public void onEventDropped() {
+        eventsDropped.increment();
+    }
+
+    /** A batch of events was written to the database. */
+    public void onEventsPersisted(int count, long elapsedNanos) {
+        eventsPersisted.add(count);
+        insertLatency.record(toMicros(elapsedNanos));
+    }
+
+    /** A flush of stored events finished, whether or not every batch was uploaded. */
+    public void onFlush(long elapsedNanos) {
+        flushLatency.record(toMicros(elapsedNanos));
+    }
+
+    /** Request body bytes sent to the server, for events and screenshots alike. */
+    public void onBytesUploaded(long bytes) {
+        bytesUploaded.add(bytes);
+    }
+
+    /** An upload of events or screenshots failed and will be retried. */
+    public void onUploadFailed() {
+        uploadFailures.increment();
+    }
+
+    public void onScreenshotEncoded(long elapsedNanos, long bytes) {
+        screenshotEncodeTime.record(toMicros(elapsedNanos));
+        screenshotBytes.record(bytes);
+    }
+
+    /** A heatmap overlay was rendered or drawn. */
+    public void onRender(long elapsedNanos) {
+        renderTime.record(toMicros(elapsedNanos));
+    }
+
+    /**
+     * @param bufferedEvents Events waiting in memory to be stored.
+     * @param queuedTasks Background tasks waiting to run.
+     */
+    public MetricsSnapshot snapshot(int bufferedEvents, int queuedTasks) {
+        return new MetricsSnapshot(
+                eventsRecorded.sum(),
+                eventsDropped.sum(),
+                eventsPersisted.sum(),
+                bufferedEvents,
+                queuedTasks,
+                insertLatency.snapshot(),
+                flushLatency.snapshot(),
+                bytesUploaded.sum(),
+                uploadFailures.sum(),
+                screenshotEncodeTime.snapshot(),
+                screenshotBytes.snapshot(),
+                renderTime.snapshot());
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,108 @@
+package com.emanthus.heatmap.sdk.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values, such as latencies in microseconds or sizes in bytes.
+ * <p>
+ * Values fall into power-of-two buckets, so recording is a few atomic increments with no locks or
+ * allocation, and percentiles are accurate to within a factor of two, which is enough to tell a
+ * 2 ms insert from a 40 ms one.
+ */
+public final class Histogram {
+
+    // Bucket 0 holds 0; bucket b holds [2^(b-1), 2^b - 1].
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /** Records one value; negative values are recorded as 0. */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    static int bucket(long value) {
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    /** @return The largest value that falls into the bucket. */
+    static long bucketUpperBound(int bucket) {
+        return bucket == 0 ? 0 : bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    /** @return The values recorded so far. Recording may continue while the snapshot is taken. */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return new Snapshot(counts, count.sum(), sum.sum(), max.get());
+    }
+
+    /** An immutable copy of a histogram. */
+    public static final class Snapshot {
+
+        private final long[] buckets;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] buckets, long count, long sum, long max) {
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() { return count; }
+        public long getSum() { return sum; }
+        public long getMax() { return max; }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @param fraction In [0, 1], e.g. 0.99 for the 99th percentile.
+         * @return An upper bound for the value at that fraction, at most twice the true value; 0 if empty.
+         */
+        public long getPercentile(double fraction) {
+            long total = 0;
+            for (long bucketCount : buckets) {
+                total += bucketCount;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(fraction * total));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + Math.round(getMean()) + " p50=" + getPercentile(0.5)
+                    + " p99=" + getPercentile(0.99) + " max=" + max;
+        }
+    }
+}
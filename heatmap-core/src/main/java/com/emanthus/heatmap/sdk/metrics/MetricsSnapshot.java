@@ -0,0 +1,75 @@
+package com.emanthus.heatmap.sdk.metrics;
+
+/**
+ * The SDK's metrics at one point in time. Counters are totals since the SDK was initialized;
+ * latency histograms are in microseconds and size histograms in bytes.
+ */
+public final class MetricsSnapshot {
+
+    private final long eventsRecorded;
+    private final long eventsDropped;
+    private final long eventsPersisted;
+    private final int bufferedEvents;
+    private final int queuedTasks;
+    private final Histogram.Snapshot insertLatency;
+    private final Histogram.Snapshot flushLatency;
+    private final long bytesUploaded;
+    private final long uploadFailures;
+    private final Histogram.Snapshot screenshotEncodeTime;
+    private final Histogram.Snapshot screenshotBytes;
+    private final Histogram.Snapshot renderTime;
+
+    MetricsSnapshot(long eventsRecorded, long eventsDropped, long eventsPersisted, int bufferedEvents,
+                    int queuedTasks, Histogram.Snapshot insertLatency, Histogram.Snapshot flushLatency,
+                    long bytesUploaded, long uploadFailures, Histogram.Snapshot screenshotEncodeTime,
+                    Histogram.Snapshot screenshotBytes, Histogram.Snapshot renderTime) {
+        this.eventsRecorded = eventsRecorded;
+        this.eventsDropped = eventsDropped;
+        this.eventsPersisted = eventsPersisted;
+        this.bufferedEvents = bufferedEvents;
+        this.queuedTasks = queuedTasks;
+        this.insertLatency = insertLatency;
+        this.flushLatency = flushLatency;
+        this.bytesUploaded = bytesUploaded;
+        this.uploadFailures = uploadFailures;
+        this.screenshotEncodeTime = screenshotEncodeTime;
+        this.screenshotBytes = screenshotBytes;
+        this.renderTime = renderTime;
+    }
+
+    public long getEventsRecorded() { return eventsRecorded; }
+    public long getEventsDropped() { return eventsDropped; }
+    public long getEventsPersisted() { return eventsPersisted; }
+    /** Events waiting in memory to be stored. */
+    public int getBufferedEvents() { return bufferedEvents; }
+    /** Background tasks waiting to run, including delayed ones. */
+    public int getQueuedTasks() { return queuedTasks; }
+    /** Time to write one batch of events to the database. */
+    public Histogram.Snapshot getInsertLatency() { return insertLatency; }
+    /** Time for one flush of stored events, including every upload it made. */
+    public Histogram.Snapshot getFlushLatency() { return flushLatency; }
+    public long getBytesUploaded() { return bytesUploaded; }
+    public long getUploadFailures() { return uploadFailures; }
+    public Histogram.Snapshot getScreenshotEncodeTime() { return screenshotEncodeTime; }
+    public Histogram.Snapshot getScreenshotBytes() { return screenshotBytes; }
+    /** Time to render a heatmap overlay. */
+    public Histogram.Snapshot getRenderTime() { return renderTime; }
+
+    @Override
+    public String toString() {
+        return "MetricsSnapshot{"
+                + "eventsRecorded=" + eventsRecorded
+                + ", eventsDropped=" + eventsDropped
+                + ", eventsPersisted=" + eventsPersisted
+                + ", bufferedEvents=" + bufferedEvents
+                + ", queuedTasks=" + queuedTasks
+                + ", insertLatencyUs={" + insertLatency + "}"
+                + ", flushLatencyUs={" + flushLatency + "}"
+                + ", bytesUploaded=" + bytesUploaded
+                + ", uploadFailures=" + uploadFailures
+                + ", screenshotEncodeTimeUs={" + screenshotEncodeTime + "}"
+                + ", screenshotBytes={" + screenshotBytes + "}"
+                + ", renderTimeUs={" + renderTime + "}"
+                + '}';
+    }
+}
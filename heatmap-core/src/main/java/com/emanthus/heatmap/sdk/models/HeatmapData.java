@@ -7,14 +7,21 @@ public class HeatmapData {
     private String screenName;
     private final List<HeatmapSwipe> swipes;
     private final List<HeatmapDataPoint> points;
+    private final List<HeatmapTrail> trails;
 
     public HeatmapData(String screenName, List<HeatmapDataPoint> points,  List<HeatmapSwipe> swipes) {
+        this(screenName, points, swipes, null);
+    }
+
+    public HeatmapData(String screenName, List<HeatmapDataPoint> points, List<HeatmapSwipe> swipes, List<HeatmapTrail> trails) {
         this.screenName = screenName;
         this.points = points;
         this.swipes = swipes != null ? swipes : new ArrayList<>();
+        this.trails = trails != null ? trails : new ArrayList<>();
     }
 
     public String getScreenName() { return screenName; }
     public List<HeatmapDataPoint> getPoints() { return points; }
     public List<HeatmapSwipe> getSwipes() { return swipes; }
+    public List<HeatmapTrail> getTrails() { return trails; }
 }
@@ -0,0 +1,18 @@
+package com.emanthus.heatmap.sdk.models;
+
+public class HeatmapTrail {
+    private final float[] points;
+    private final float intensity;
+
+    /**
+     * @param points x, y pairs of the path, from start to end.
+     */
+    public HeatmapTrail(float[] points, float intensity) {
+        this.points = points;
+        this.intensity = intensity;
+    }
+
+    public float[] getPoints() { return points; }
+    public int getPointCount() { return points.length / 2; }
+    public float getIntensity() { return intensity; }
+}
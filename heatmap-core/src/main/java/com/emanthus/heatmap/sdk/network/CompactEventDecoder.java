@@ -0,0 +1,124 @@
+package com.emanthus.heatmap.sdk.network;
+
+import com.emanthus.heatmap.sdk.database.HeatmapEvent;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.List;
+
+import okio.BufferedSource;
+import okio.GzipSource;
+import okio.Okio;
+
+/**
+ * Reference decoder for {@link CompactEventsRequestBody}.
+ * Lets the ingest endpoint be tested against the encoding without a device.
+ */
+public final class CompactEventDecoder {
+
+    /** A decoded ingest-events batch. */
+    public static final class Batch {
+        public final String userId;
+        public final String token;
+        public final List<HeatmapEvent> events;
+
+        Batch(String userId, String token, List<HeatmapEvent> events) {
+            this.userId = userId;
+            this.token = token;
+            this.events = events;
+        }
+    }
+
+    private CompactEventDecoder() {}
+
+    /** Decodes a request body exactly as it was sent, i.e. gzip-compressed. */
+    public static Batch decode(BufferedSource body) throws IOException {
+        try (BufferedSource source = Okio.buffer(new GzipSource(body))) {
+            return decodeUncompressed(source);
+        }
+    }
+
+    static Batch decodeUncompressed(BufferedSource source) throws IOException {
+        if (source.readInt() != CompactEventsRequestBody.MAGIC) {
+            throw new ProtocolException("Not a compact event batch");
+        }
+        int version = source.readByte() & 0xFF;
+        if (version != CompactEventsRequestBody.VERSION) {
+            throw new ProtocolException("Unsupported compact event batch version " + version);
+        }
+        String userId = readString(source);
+        String token = readString(source);
+        String[] screens = new String[(int) readVarint(source)];
+        for (int i = 0; i < screens.length; i++) {
+            screens[i] = readString(source);
+        }
+        String[] types = new String[(int) readVarint(source)];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = readString(source);
+        }
+        String[] views = new String[(int) readVarint(source)];
+        for (int i = 0; i < views.length; i++) {
+            views[i] = readString(source);
+        }
+        float minX = Float.intBitsToFloat(source.readInt());
+        float maxX = Float.intBitsToFloat(source.readInt());
+        float minY = Float.intBitsToFloat(source.readInt());
+        float maxY = Float.intBitsToFloat(source.readInt());
+
+        int count = (int) readVarint(source);
+        List<HeatmapEvent> events = new ArrayList<>(count);
+        long timestamp = 0;
+        for (int i = 0; i < count; i++) {
+            int flags = source.readByte() & 0xFF;
+            String screen = screens[(int) readVarint(source)];
+            String type = types[(int) readVarint(source)];
+            String view = (flags & CompactEventsRequestBody.FLAG_HAS_VIEW) != 0 ? views[(int) readVarint(source)] : null;
+            long zigzag = readVarint(source);
+            timestamp += (zigzag >>> 1) ^ -(zigzag & 1);
+
+            float x = dequantize(source.readShort(), minX, maxX);
+            float y = dequantize(source.readShort(), minY, maxY);
+            HeatmapEvent event;
+            if ((flags & CompactEventsRequestBody.FLAG_HAS_END) != 0) {
+                float endX = dequantize(source.readShort(), minX, maxX);
+                float endY = dequantize(source.readShort(), minY, maxY);
+                event = new HeatmapEvent(timestamp, type, x, y, endX, endY, screen, userId);
+                event.setIntensity(readIntensity(source));
+            } else {
+                event = new HeatmapEvent(timestamp, type, x, y, readIntensity(source), screen, userId);
+            }
+            if ((flags & CompactEventsRequestBody.FLAG_HAS_TRAIL) != 0) {
+                event.setTrail(readString(source));
+            }
+            event.setViewId(view);
+            events.add(event);
+        }
+        return new Batch(userId, token, events);
+    }
+
+    private static float readIntensity(BufferedSource source) throws IOException {
+        return (source.readShort() & 0xFFFF) / CompactEventsRequestBody.INTENSITY_SCALE;
+    }
+
+    private static float dequantize(short quantized, float min, float max) {
+        return min + (quantized & 0xFFFF) * (max - min) / CompactEventsRequestBody.QUANTIZATION_STEPS;
+    }
+
+    private static String readString(BufferedSource source) throws IOException {
+        long length = readVarint(source);
+        return length == 0 ? null : source.readUtf8(length - 1);
+    }
+
+    private static long readVarint(BufferedSource source) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = source.readByte() & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+}
@@ -0,0 +1,198 @@
+package com.emanthus.heatmap.sdk.network;
+
+import androidx.annotation.NonNull;
+
+import com.emanthus.heatmap.sdk.database.HeatmapEvent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+import okio.Utf8;
+
+/**
+ * Gzip-compressed binary encoding of an ingest-events batch, sent with the
+ * {@link #CONTENT_TYPE} content type. {@link CompactEventDecoder} is the reference decoder.
+ * <p>
+ * Layout, after gzip decompression (multi-byte integers are big-endian, varints are unsigned LEB128):
+ * <pre>
+ * "HMEV" version:u8
+ * userId:string token:string            string = varint(length + 1) utf8, length 0 means null
+ * screenCount:varint screenName:string*
+ * typeCount:varint   eventType:string*
+ * viewCount:varint   viewId:string*
+ * minX:f32 maxX:f32 minY:f32 maxY:f32   quantization range of all coordinates in the batch
+ * eventCount:varint
+ * event*:
+ *   flags:u8                            bit 0: has end point, bit 1: has trail, bit 2: has view
+ *   screen:varint type:varint           dictionary indices
+ *   [view:varint]                       dictionary index
+ *   timestampDelta:zigzag varint        milliseconds since the previous event (since 0 for the first)
+ *   x:u16 y:u16 [endX:u16 endY:u16]     (v - min) / (max - min) * 65535
+ *   intensity:u16                       intensity * 1000, clamped to 0..65535
+ *   [trail:string]                      scroll path, see TrailCodec
+ * </pre>
+ */
+public class CompactEventsRequestBody extends RequestBody {
+
+    public static final String CONTENT_TYPE = "application/vnd.heatmap.events+binary";
+
+    static final MediaType MEDIA_TYPE = MediaType.parse(CONTENT_TYPE);
+    static final int MAGIC = 0x484D4556; // "HMEV"
+    static final int VERSION = 1;
+    static final int FLAG_HAS_END = 1;
+    static final int FLAG_HAS_TRAIL = 2;
+    static final int FLAG_HAS_VIEW = 4;
+    static final int QUANTIZATION_STEPS = 0xFFFF;
+    static final float INTENSITY_SCALE = 1000f;
+
+    private final List<HeatmapEvent> events;
+    private final String userId;
+    private final String token;
+
+    public CompactEventsRequestBody(List<HeatmapEvent> events, String userId, String token) {
+        this.events = events;
+        this.userId = userId;
+        this.token = token;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return MEDIA_TYPE;
+    }
+
+    @Override
+    public void writeTo(@NonNull BufferedSink sink) throws IOException {
+        BufferedSink gzip = Okio.buffer(new GzipSink(sink));
+        encode(gzip);
+        gzip.close();
+    }
+
+    /** Writes the uncompressed encoding of the batch. */
+    void encode(BufferedSink sink) throws IOException {
+        List<String> screens = new ArrayList<>();
+        List<String> types = new ArrayList<>();
+        List<String> views = new ArrayList<>();
+        Map<String, Integer> screenIndex = new HashMap<>();
+        Map<String, Integer> typeIndex = new HashMap<>();
+        Map<String, Integer> viewIndex = new HashMap<>();
+        float minX = Float.MAX_VALUE, maxX = -Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+
+        for (int i = 0; i < events.size(); i++) {
+            HeatmapEvent e = events.get(i);
+            index(e.getScreenName(), screens, screenIndex);
+            index(e.getEventType(), types, typeIndex);
+            if (e.getViewId() != null) {
+                index(e.getViewId(), views, viewIndex);
+            }
+            minX = Math.min(minX, e.getX());
+            maxX = Math.max(maxX, e.getX());
+            minY = Math.min(minY, e.getY());
+            maxY = Math.max(maxY, e.getY());
+            if (hasEnd(e)) {
+                minX = Math.min(minX, e.getEndX());
+                maxX = Math.max(maxX, e.getEndX());
+                minY = Math.min(minY, e.getEndY());
+                maxY = Math.max(maxY, e.getEndY());
+            }
+        }
+        if (events.isEmpty()) {
+            minX = maxX = minY = maxY = 0f;
+        }
+
+        sink.writeInt(MAGIC);
+        sink.writeByte(VERSION);
+        writeString(sink, userId);
+        writeString(sink, token);
+        writeVarint(sink, screens.size());
+        for (String screen : screens) {
+            writeString(sink, screen);
+        }
+        writeVarint(sink, types.size());
+        for (String type : types) {
+            writeString(sink, type);
+        }
+        writeVarint(sink, views.size());
+        for (String view : views) {
+            writeString(sink, view);
+        }
+        sink.writeInt(Float.floatToIntBits(minX));
+        sink.writeInt(Float.floatToIntBits(maxX));
+        sink.writeInt(Float.floatToIntBits(minY));
+        sink.writeInt(Float.floatToIntBits(maxY));
+
+        writeVarint(sink, events.size());
+        long previousTimestamp = 0;
+        for (int i = 0; i < events.size(); i++) {
+            HeatmapEvent e = events.get(i);
+            boolean hasEnd = hasEnd(e);
+            String trail = e.getTrail();
+            String view = e.getViewId();
+            sink.writeByte((hasEnd ? FLAG_HAS_END : 0) | (trail != null ? FLAG_HAS_TRAIL : 0)
+                    | (view != null ? FLAG_HAS_VIEW : 0));
+            writeVarint(sink, screenIndex.get(e.getScreenName()));
+            writeVarint(sink, typeIndex.get(e.getEventType()));
+            if (view != null) {
+                writeVarint(sink, viewIndex.get(view));
+            }
+            long delta = e.getTimestamp() - previousTimestamp;
+            writeVarint(sink, (delta << 1) ^ (delta >> 63));
+            previousTimestamp = e.getTimestamp();
+
+            sink.writeShort(quantize(e.getX(), minX, maxX));
+            sink.writeShort(quantize(e.getY(), minY, maxY));
+            if (hasEnd) {
+                sink.writeShort(quantize(e.getEndX(), minX, maxX));
+                sink.writeShort(quantize(e.getEndY(), minY, maxY));
+            }
+            sink.writeShort(Math.max(0, Math.min(QUANTIZATION_STEPS, Math.round(e.getIntensity() * INTENSITY_SCALE))));
+            if (trail != null) {
+                writeString(sink, trail);
+            }
+        }
+    }
+
+    private static boolean hasEnd(HeatmapEvent e) {
+        return e.getEndX() != null && e.getEndY() != null;
+    }
+
+    private static void index(String value, List<String> values, Map<String, Integer> indices) {
+        if (!indices.containsKey(value)) {
+            indices.put(value, values.size());
+            values.add(value);
+        }
+    }
+
+    private static int quantize(float value, float min, float max) {
+        if (max <= min) {
+            return 0;
+        }
+        return Math.round((value - min) / (max - min) * QUANTIZATION_STEPS);
+    }
+
+    private static void writeString(BufferedSink sink, String value) throws IOException {
+        if (value == null) {
+            writeVarint(sink, 0);
+            return;
+        }
+        long length = Utf8.size(value);
+        writeVarint(sink, length + 1);
+        sink.writeUtf8(value);
+    }
+
+    private static void writeVarint(BufferedSink sink, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            sink.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        sink.writeByte((int) value);
+    }
+}
@@ -0,0 +1,202 @@
+package com.emanthus.heatmap.sdk.network;
+
+import androidx.annotation.NonNull;
+
+import com.emanthus.heatmap.sdk.database.HeatmapEvent;
+
+import java.io.IOException;
+import java.util.List;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * Request body for the ingest-events endpoint that serializes events straight into the
+ * request sink, instead of building a JSON tree and a string copy of it first.
+ * <p>
+ * The payload has the same shape as before: {@code {"id", "token", "events": [...]}}.
+ * Scroll events also carry their path as a {@code "trail"} string, see {@link com.emanthus.heatmap.sdk.database.TrailCodec}.
+ * Events that started on a view with an ID carry its resource entry name as {@code "view_id"}.
+ * Numbers are written digit by digit and timestamps as ISO-8601 UTC strings
+ * (e.g. {@code "2025-01-31T09:15:00.250Z"}), so serializing an event does not allocate.
+ */
+public class EventsRequestBody extends RequestBody {
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+
+    private final List<HeatmapEvent> events;
+    private final String userId;
+    private final String token;
+
+    public EventsRequestBody(List<HeatmapEvent> events, String userId, String token) {
+        this.events = events;
+        this.userId = userId;
+        this.token = token;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return JSON;
+    }
+
+    @Override
+    public void writeTo(@NonNull BufferedSink sink) throws IOException {
+        sink.writeByte('{');
+        // Like JSONObject.put, null values leave the key out.
+        if (userId != null) {
+            sink.writeUtf8("\"id\":");
+            writeString(sink, userId);
+            sink.writeByte(',');
+        }
+        if (token != null) {
+            sink.writeUtf8("\"token\":");
+            writeString(sink, token);
+            sink.writeByte(',');
+        }
+        sink.writeUtf8("\"events\":[");
+        for (int i = 0; i < events.size(); i++) {
+            if (i > 0) {
+                sink.writeByte(',');
+            }
+            writeEvent(sink, events.get(i));
+        }
+        sink.writeUtf8("]}");
+    }
+
+    private static void writeEvent(BufferedSink sink, HeatmapEvent e) throws IOException {
+        sink.writeUtf8("{\"screen_name\":");
+        writeString(sink, e.getScreenName());
+        sink.writeUtf8(",\"event_type\":");
+        writeString(sink, e.getEventType());
+        sink.writeUtf8(",\"coordinate_x\":");
+        writeNumber(sink, e.getX());
+        sink.writeUtf8(",\"coordinate_y\":");
+        writeNumber(sink, e.getY());
+        sink.writeUtf8(",\"timestamp\":");
+        writeTimestamp(sink, e.getTimestamp());
+        if (e.getViewId() != null) {
+            sink.writeUtf8(",\"view_id\":");
+            writeString(sink, e.getViewId());
+        }
+
+        if (hasEndPoint(e.getEventType())) {
+            if (e.getEndX() != null) {
+                sink.writeUtf8(",\"end_x\":");
+                writeNumber(sink, e.getEndX());
+            }
+            if (e.getEndY() != null) {
+                sink.writeUtf8(",\"end_y\":");
+                writeNumber(sink, e.getEndY());
+            }
+            sink.writeUtf8(",\"intensity\":");
+            writeNumber(sink, e.getIntensity());
+        }
+        if (e.getTrail() != null) {
+            sink.writeUtf8(",\"trail\":");
+            writeString(sink, e.getTrail());
+        }
+        sink.writeByte('}');
+    }
+
+    /** Event types whose end point and intensity are part of the upload. */
+    static boolean hasEndPoint(String eventType) {
+        return "SWIPE_UP".equals(eventType) || "SWIPE_DOWN".equals(eventType) || "SCROLL".equals(eventType);
+    }
+
+    static void writeString(BufferedSink sink, String value) throws IOException {
+        if (value == null) {
+            sink.writeUtf8("null");
+            return;
+        }
+        sink.writeByte('"');
+        int runStart = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            sink.writeUtf8(value, runStart, i);
+            switch (c) {
+                case '"': sink.writeUtf8("\\\""); break;
+                case '\\': sink.writeUtf8("\\\\"); break;
+                case '\n': sink.writeUtf8("\\n"); break;
+                case '\r': sink.writeUtf8("\\r"); break;
+                case '\t': sink.writeUtf8("\\t"); break;
+                default:
+                    sink.writeUtf8("\\u00");
+                    sink.writeByte(Character.forDigit(c >> 4, 16));
+                    sink.writeByte(Character.forDigit(c & 0xF, 16));
+            }
+            runStart = i + 1;
+        }
+        sink.writeUtf8(value, runStart, length);
+        sink.writeByte('"');
+    }
+
+    /** Writes a number with at most three decimals, dropping trailing zeros. */
+    static void writeNumber(BufferedSink sink, float value) throws IOException {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            sink.writeUtf8("null");
+            return;
+        }
+        long scaled = Math.round((double) value * 1000);
+        if (scaled < 0) {
+            sink.writeByte('-');
+            scaled = -scaled;
+        }
+        sink.writeDecimalLong(scaled / 1000);
+        int fraction = (int) (scaled % 1000);
+        if (fraction != 0) {
+            sink.writeByte('.');
+            for (int divisor = 100; fraction != 0; divisor /= 10) {
+                sink.writeByte('0' + fraction / divisor);
+                fraction %= divisor;
+            }
+        }
+    }
+
+    /** Writes epoch milliseconds as a quoted ISO-8601 UTC timestamp. */
+    static void writeTimestamp(BufferedSink sink, long epochMillis) throws IOException {
+        long days = Math.floorDiv(epochMillis, MILLIS_PER_DAY);
+        int millisOfDay = (int) Math.floorMod(epochMillis, MILLIS_PER_DAY);
+
+        // Civil date from days since 1970-01-01 (proleptic Gregorian calendar).
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+        int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        sink.writeByte('"');
+        writePadded(sink, year, 4);
+        sink.writeByte('-');
+        writePadded(sink, month, 2);
+        sink.writeByte('-');
+        writePadded(sink, day, 2);
+        sink.writeByte('T');
+        writePadded(sink, millisOfDay / 3_600_000, 2);
+        sink.writeByte(':');
+        writePadded(sink, millisOfDay / 60_000 % 60, 2);
+        sink.writeByte(':');
+        writePadded(sink, millisOfDay / 1000 % 60, 2);
+        sink.writeByte('.');
+        writePadded(sink, millisOfDay % 1000, 3);
+        sink.writeUtf8("Z\"");
+    }
+
+    private static void writePadded(BufferedSink sink, long value, int width) throws IOException {
+        for (long limit = 10; width > 1; width--, limit *= 10) {
+            if (value < limit) {
+                sink.writeByte('0');
+            }
+        }
+        sink.writeDecimalLong(value);
+    }
+}
@@ -0,0 +1,68 @@
+package com.emanthus.heatmap.sdk.network;
+
+import androidx.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * Request body that streams a byte range of a file from disk, a segment at a time,
+ * so the file is never held in memory. Can be written more than once, e.g. on a retry.
+ */
+public class FileRangeRequestBody extends RequestBody {
+
+    private static final long SEGMENT_BYTES = 8192;
+
+    private final File file;
+    private final long offset;
+    private final long length;
+    private final MediaType contentType;
+
+    /** The whole file. */
+    public FileRangeRequestBody(File file, MediaType contentType) {
+        this(file, 0, file.length(), contentType);
+    }
+
+    public FileRangeRequestBody(File file, long offset, long length, MediaType contentType) {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+        this.contentType = contentType;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return contentType;
+    }
+
+    @Override
+    public long contentLength() {
+        return length;
+    }
+
+    @Override
+    public void writeTo(@NonNull BufferedSink sink) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            in.getChannel().position(offset);
+            try (Source source = Okio.source(in)) {
+                long remaining = length;
+                while (remaining > 0) {
+                    long read = source.read(sink.getBuffer(), Math.min(remaining, SEGMENT_BYTES));
+                    if (read == -1) {
+                        throw new EOFException(file + " is shorter than expected");
+                    }
+                    remaining -= read;
+                    sink.emitCompleteSegments();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package com.emanthus.heatmap.sdk.network;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Persistent queue of encoded screenshots waiting for upload, kept in a spool directory.
+ * <p>
+ * Each entry is an image file plus a small properties file with what the upload needs, apart from the
+ * auth token, which is fetched when the upload starts. Entries survive process restarts and are uploaded
+ * oldest first. An entry whose upload fails stays at the head of the queue until a later {@link #drain()}
+ * succeeds, unless the server refused it for good with a client error, in which case it is dropped.
+ * Auth failures are not refusals: the entry waits for a drain with a new token.
+ * Files are streamed from disk, so heap use does not depend on their size.
+ * <p>
+ * Files up to the chunk size are sent as one multipart request to {@code upload-screenshot}.
+ * Larger files use a resumable upload to {@code upload-screenshot/resumable/<upload id>}: chunks are
+ * PUT with a {@code Content-Range} header, and the server answers 308 with a {@code Range} header
+ * naming the bytes it has, or 200/201 once the file is complete. When an interrupted upload is
+ * retried, an empty PUT with {@code Content-Range: bytes *}{@code /<total>} asks the server where to
+ * resume. If the server no longer knows the upload, e.g. it expired, the upload starts over.
+ */
+public class ScreenshotUploadQueue {
+
+    static final int HTTP_RESUME_INCOMPLETE = 308;
+    static final int HTTP_NOT_FOUND = 404;
+    static final int HTTP_GONE = 410;
+    static final String HEADER_USER_ID = "X-Heatmap-User-Id";
+    static final String HEADER_TOKEN = "X-Heatmap-Token";
+    static final String HEADER_SCREEN_NAME = "X-Heatmap-Screen-Name";
+
+    private static final String META_SUFFIX = ".meta";
+    private static final String KEY_IMAGE = "image";
+    private static final String KEY_MIME_TYPE = "mime_type";
+    private static final String KEY_SCREEN_NAME = "screen_name";
+    private static final String KEY_USER_ID = "id";
+    private static final String KEY_UPLOAD_ID = "upload_id";
+    // Entries spooled by earlier versions kept the auth token; the sweep removes it.
+    private static final String LEGACY_KEY_TOKEN = "token";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** Supplies the auth token uploads are sent with. */
+    public interface TokenProvider {
+        /** @return The current token, or null if there is none. */
+        String currentToken();
+    }
+
+    private final File directory;
+    private final OkHttpClient client;
+    private final String apiBaseUrl;
+    private final TokenProvider tokens;
+    private final long chunkBytes;
+    private final int maxEntries;
+    private final AtomicInteger sequence = new AtomicInteger();
+    // Spool files named before this were written by an earlier process. See sweep().
+    private final long startedAtMillis = System.currentTimeMillis();
+    private boolean swept;
+    private int rejected;
+
+    /**
+     * @param directory The spool directory; created if missing.
+     * @param tokens Asked for the auth token each time an upload starts.
+     * @param chunkBytes Files larger than this are uploaded in resumable chunks of this size.
+     * @param maxEntries The most screenshots kept; the oldest are dropped to make room.
+     */
+    public ScreenshotUploadQueue(File directory, OkHttpClient client, String apiBaseUrl, TokenProvider tokens,
+                                 long chunkBytes, int maxEntries) {
+        this.directory = directory;
+        this.client = client;
+        this.apiBaseUrl = apiBaseUrl;
+        this.tokens = tokens;
+        this.chunkBytes = chunkBytes;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return A new file in the spool directory to write an encoded screenshot into.
+     *         It is not part of the queue until passed to {@link #enqueue}.
+     */
+    public File newSpoolFile(String extension) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Cannot create screenshot spool directory " + directory);
+        }
+        String name = String.format(Locale.US, "%013d_%04d", System.currentTimeMillis(), sequence.getAndIncrement() % 10000);
+        return new File(directory, name + "." + extension);
+    }
+
+    /** Adds a written spool file to the queue. */
+    public synchronized void enqueue(File image, String mimeType, String screenName, String userId)
+            throws IOException {
+        Properties meta = new Properties();
+        meta.setProperty(KEY_IMAGE, image.getName());
+        meta.setProperty(KEY_MIME_TYPE, mimeType);
+        meta.setProperty(KEY_SCREEN_NAME, screenName);
+        meta.setProperty(KEY_USER_ID, userId);
+        writeMeta(metaFile(image), meta);
+
+        List<File> entries = entries();
+        for (int i = 0; i < entries.size() - maxEntries; i++) {
+            remove(entries.get(i));
+        }
+    }
+
+    /** @return The number of screenshots waiting for upload. */
+    public synchronized int size() {
+        return entries().size();
+    }
+
+    /** @return The number of screenshots dropped because the server refused them with a client error. */
+    public synchronized int getRejectedCount() {
+        return rejected;
+    }
+
+    /**
+     * Uploads queued screenshots, oldest first, until the queue is empty or an upload fails.
+     * A screenshot the server refuses with a client error, such as 400 or 413, is dropped and the
+     * next one is tried; a 401 or 403 stops the drain like any other failure, since a new token may fix it. The first call also deletes files left behind by an earlier process.
+     * Runs on the calling thread.
+     * @return The number of screenshots uploaded.
+     * @throws IOException if an upload failed otherwise, or there is no auth token; it and every
+     *         later entry stay queued.
+     */
+    public synchronized int drain() throws IOException {
+        if (!swept) {
+            sweep();
+            swept = true;
+        }
+        int uploaded = 0;
+        for (File metaFile : entries()) {
+            Properties meta = readMeta(metaFile);
+            File image = meta == null ? null : new File(directory, meta.getProperty(KEY_IMAGE, ""));
+            if (image == null || !image.isFile()) {
+                // Half-written entry, e.g. the process died while spooling. Nothing to send.
+                remove(metaFile);
+                continue;
+            }
+            String token = tokens.currentToken();
+            if (token == null) {
+                throw new IOException("No auth token to upload screenshots with.");
+            }
+            try {
+                if (image.length() <= chunkBytes) {
+                    uploadWhole(image, meta, token);
+                } else {
+                    uploadResumable(image, meta, metaFile, token);
+                }
+                uploaded++;
+            } catch (RejectedException e) {
+                rejected++;
+            }
+            remove(metaFile);
+        }
+        return uploaded;
+    }
+
+    /**
+     * Deletes temporary metadata files and images without metadata, which a process that died while
+     * writing them leaves behind. Images named after this queue was created are being spooled, and stay.
+     * Also takes auth tokens out of metadata written by earlier versions.
+     */
+    private void sweep() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            String name = file.getName();
+            boolean stray;
+            if (name.endsWith(TEMP_SUFFIX)) {
+                // Metadata is only written while holding the lock, so none is being written now.
+                stray = true;
+            } else if (name.endsWith(META_SUFFIX)) {
+                stray = false;
+                Properties meta = readMeta(file);
+                if (meta != null && meta.remove(LEGACY_KEY_TOKEN) != null) {
+                    try {
+                        writeMeta(file, meta);
+                    } catch (IOException e) {
+                        remove(file);
+                    }
+                }
+            } else {
+                stray = spooledAt(name) < startedAtMillis && !metaFile(file).exists();
+            }
+            if (stray) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    /** @return When {@link #newSpoolFile} named the file, or Long.MAX_VALUE if it did not. */
+    private static long spooledAt(String name) {
+        int underscore = name.indexOf('_');
+        try {
+            return underscore < 0 ? Long.MAX_VALUE : Long.parseLong(name.substring(0, underscore));
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private void uploadWhole(File image, Properties meta, String token) throws IOException {
+        RequestBody body = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addFormDataPart("id", meta.getProperty(KEY_USER_ID))
+                .addFormDataPart("token", token)
+                .addFormDataPart("screen_name", meta.getProperty(KEY_SCREEN_NAME))
+                .addFormDataPart("screenshot", "screenshot_" + image.getName(),
+                        new FileRangeRequestBody(image, MediaType.parse(meta.getProperty(KEY_MIME_TYPE))))
+                .build();
+        Request request = new Request.Builder()
+                .url(apiBaseUrl + "upload-screenshot")
+                .post(body)
+                .build();
+        try (Response response = client.newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                throw failure(response.code(), image.getName());
+            }
+        }
+    }
+
+    private void uploadResumable(File image, Properties meta, File metaFile, String token) throws IOException {
+        try {
+            sendResumable(image, meta, metaFile, token);
+        } catch (SessionGoneException e) {
+            // Start over under a new ID. Should the new session be gone too, the screenshot is dropped.
+            meta.remove(KEY_UPLOAD_ID);
+            writeMeta(metaFile, meta);
+            sendResumable(image, meta, metaFile, token);
+        }
+    }
+
+    private void sendResumable(File image, Properties meta, File metaFile, String token) throws IOException {
+        long total = image.length();
+        long offset;
+        String uploadId = meta.getProperty(KEY_UPLOAD_ID);
+        if (uploadId == null) {
+            // Persist the ID before the first byte goes out, so a retry after a crash resumes this upload.
+            uploadId = UUID.randomUUID().toString();
+            meta.setProperty(KEY_UPLOAD_ID, uploadId);
+            writeMeta(metaFile, meta);
+            offset = 0;
+        } else {
+            offset = queryOffset(uploadId, meta, token, total);
+        }
+
+        MediaType mediaType = MediaType.parse(meta.getProperty(KEY_MIME_TYPE));
+        while (offset < total) {
+            long length = Math.min(chunkBytes, total - offset);
+            Request request = resumableRequest(uploadId, meta, token)
+                    .header("Content-Range", "bytes " + offset + "-" + (offset + length - 1) + "/" + total)
+                    .put(new FileRangeRequestBody(image, offset, length, mediaType))
+                    .build();
+            offset = confirmedOffset(request, total);
+        }
+    }
+
+    /** Asks the server how much of an interrupted upload it already has. */
+    private long queryOffset(String uploadId, Properties meta, String token, long total) throws IOException {
+        Request request = resumableRequest(uploadId, meta, token)
+                .header("Content-Range", "bytes */" + total)
+                .put(RequestBody.create(new byte[0], null))
+                .build();
+        return confirmedOffset(request, total);
+    }
+
+    /** @return The offset the server has confirmed receiving up to, or total once it has the whole file. */
+    private long confirmedOffset(Request request, long total) throws IOException {
+        try (Response response = client.newCall(request).execute()) {
+            if (response.isSuccessful()) {
+                return total;
+            }
+            if (response.code() == HTTP_NOT_FOUND || response.code() == HTTP_GONE) {
+                throw new SessionGoneException("Server no longer knows " + request.url());
+            }
+            if (response.code() != HTTP_RESUME_INCOMPLETE) {
+                throw failure(response.code(), request.url().toString());
+            }
+            return parseRangeEnd(response.header("Range")) + 1;
+        }
+    }
+
+    /**
+     * Client errors mean the same request will never succeed, e.g. a malformed or oversized upload.
+     * Not so for a timeout, rate limiting, or an auth failure, which a new token fixes.
+     */
+    static boolean isPermanentFailure(int code) {
+        return code >= 400 && code < 500 && code != 401 && code != 403 && code != 408 && code != 429;
+    }
+
+    private static IOException failure(int code, String what) {
+        String message = "Server responded with " + code + " for " + what;
+        return isPermanentFailure(code) ? new RejectedException(message) : new IOException(message);
+    }
+
+    /** An upload the server refused for good; the entry is dropped rather than retried. */
+    private static class RejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RejectedException(String message) {
+            super(message);
+        }
+    }
+
+    /** A resumable upload whose session the server no longer knows; it is restarted rather than resumed. */
+    private static final class SessionGoneException extends RejectedException {
+        private static final long serialVersionUID = 1L;
+
+        SessionGoneException(String message) {
+            super(message);
+        }
+    }
+
+    /** @return The last byte index of a "bytes=0-N" range, or -1 if there is none. */
+    static long parseRangeEnd(String range) throws IOException {
+        if (range == null) {
+            return -1;
+        }
+        int dash = range.lastIndexOf('-');
+        try {
+            return Long.parseLong(range.substring(dash + 1).trim());
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new IOException("Malformed Range header: " + range);
+        }
+    }
+
+    private Request.Builder resumableRequest(String uploadId, Properties meta, String token) {
+        Request.Builder builder = new Request.Builder()
+                .url(apiBaseUrl + "upload-screenshot/resumable/" + uploadId);
+        header(builder, HEADER_USER_ID, meta.getProperty(KEY_USER_ID));
+        header(builder, HEADER_TOKEN, token);
+        header(builder, HEADER_SCREEN_NAME, meta.getProperty(KEY_SCREEN_NAME));
+        return builder;
+    }
+
+    private static void header(Request.Builder builder, String name, String value) {
+        if (value != null) {
+            builder.header(name, value);
+        }
+    }
+
+    /** Metadata files of the queued entries, oldest first. */
+    private List<File> entries() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(META_SUFFIX));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files);
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+    private File metaFile(File image) {
+        String name = image.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(directory, (dot < 0 ? name : name.substring(0, dot)) + META_SUFFIX);
+    }
+
+    private void remove(File metaFile) {
+        Properties meta = readMeta(metaFile);
+        if (meta != null) {
+            //noinspection ResultOfMethodCallIgnored
+            new File(directory, meta.getProperty(KEY_IMAGE, "")).delete();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        metaFile.delete();
+    }
+
+    private static Properties readMeta(File metaFile) {
+        Properties meta = new Properties();
+        try (InputStream in = new FileInputStream(metaFile)) {
+            meta.load(in);
+            return meta;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** Writes through a temporary file and a rename, so a crash never leaves a partial entry. */
+    private static void writeMeta(File metaFile, Properties meta) throws IOException {
+        File temp = new File(metaFile.getPath() + TEMP_SUFFIX);
+        try (OutputStream out = new FileOutputStream(temp)) {
+            meta.store(out, null);
+        }
+        if (!temp.renameTo(metaFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("Cannot write " + metaFile);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.emanthus.heatmap.sdk.render;
+
+import com.emanthus.heatmap.sdk.models.HeatmapDataPoint;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Renders heatmap points into an ARGB pixel buffer through a density grid.
+ * <p>
+ * Points are accumulated into a {@code float[]} grid with one cell per {@code cellSize} pixels,
+ * blurred with a precomputed separable Gaussian kernel, normalized, and mapped to colors through
+ * a 256-entry lookup table. The cost depends on the grid area and kernel radius, not on the
+ * number of points, apart from one add per point.
+ * <p>
+ * Not thread-safe: buffers are reused between renders of the same size, and {@link #render} returns one
+ * of them. Use one instance per thread; {@link #copy()} makes another with the same style.
+ */
+public class DensityGridRenderer {
+
+    /** Transparent → blue → green → yellow → red. */
+    public static final int[] DEFAULT_GRADIENT_COLORS = {
+            0x000000FF,
+            0x800000FF,
+            0x8000FF00,
+            0xC8FFFF00,
+            0xFFFF0000
+    };
+    public static final float[] DEFAULT_GRADIENT_STOPS = {0.0f, 0.25f, 0.5f, 0.75f, 1.0f};
+    public static final int DEFAULT_KERNEL_RADIUS_PX = 100;
+    public static final int DEFAULT_CELL_SIZE_PX = 4;
+
+    private final int cellSize;
+    final int kernelRadiusPx;
+    private final float[] kernel;
+    final int[] colorTable;
+
+    private int gridWidth;
+    private int gridHeight;
+    private float[] grid;
+    private float[] scratch;
+    private int[] pixels;
+
+    public DensityGridRenderer() {
+        this(DEFAULT_GRADIENT_COLORS, DEFAULT_GRADIENT_STOPS, DEFAULT_KERNEL_RADIUS_PX, DEFAULT_CELL_SIZE_PX);
+    }
+
+    /**
+     * @param gradientColors ARGB colors from lowest to highest density.
+     * @param gradientStops Positions of the colors in [0, 1], ascending, same length as the colors.
+     * @param kernelRadiusPx How far, in pixels, a single point spreads.
+     * @param cellSize Size of a grid cell in pixels. Larger cells render faster but coarser.
+     */
+    public DensityGridRenderer(int[] gradientColors, float[] gradientStops, int kernelRadiusPx, int cellSize) {
+        if (gradientColors.length != gradientStops.length || gradientColors.length < 2) {
+            throw new IllegalArgumentException("Gradient needs at least two colors and one stop per color.");
+        }
+        if (kernelRadiusPx <= 0 || cellSize <= 0) {
+            throw new IllegalArgumentException("Kernel radius and cell size must be positive.");
+        }
+        this.cellSize = cellSize;
+        this.kernelRadiusPx = kernelRadiusPx;
+        this.kernel = buildKernel(Math.max(1, kernelRadiusPx / cellSize));
+        this.colorTable = buildColorTable(gradientColors, gradientStops);
+    }
+
+    private DensityGridRenderer(DensityGridRenderer style) {
+        this.cellSize = style.cellSize;
+        this.kernelRadiusPx = style.kernelRadiusPx;
+        this.kernel = style.kernel;
+        this.colorTable = style.colorTable;
+    }
+
+    /** A renderer with the same gradient, radius and cell size, and buffers of its own. */
+    public DensityGridRenderer copy() {
+        return new DensityGridRenderer(this);
+    }
+
+    public int getCellSize() { return cellSize; }
+    public int getGridWidth() { return gridWidth; }
+    public int getGridHeight() { return gridHeight; }
+
+    /**
+     * Renders the points for a view of the given size.
+     * @return Row-major ARGB pixels of size {@link #getGridWidth()} x {@link #getGridHeight()},
+     *         to be scaled up by {@link #getCellSize()} when drawn. The array is reused by the next call.
+     */
+    public int[] render(List<HeatmapDataPoint> points, int width, int height) {
+        resize((width + cellSize - 1) / cellSize, (height + cellSize - 1) / cellSize);
+        Arrays.fill(grid, 0f);
+
+        for (int i = 0; i < points.size(); i++) {
+            HeatmapDataPoint point = points.get(i);
+            int cx = (int) (point.getX() / cellSize);
+            int cy = (int) (point.getY() / cellSize);
+            // Casting truncates towards zero, so check the point itself for being off the left or top edge.
+            if (point.getX() >= 0f && point.getY() >= 0f && cx < gridWidth && cy < gridHeight) {
+                grid[cy * gridWidth + cx] += point.getIntensity();
+            }
+        }
+
+        blur();
+        colorize();
+        return pixels;
+    }
+
+    private void resize(int width, int height) {
+        if (grid == null || width != gridWidth || height != gridHeight) {
+            gridWidth = width;
+            gridHeight = height;
+            grid = new float[width * height];
+            scratch = new float[width * height];
+            pixels = new int[width * height];
+        }
+    }
+
+    /** Separable blur: rows from grid into scratch, then columns from scratch back into grid. */
+    private void blur() {
+        int radius = kernel.length / 2;
+        for (int y = 0; y < gridHeight; y++) {
+            int row = y * gridWidth;
+            for (int x = 0; x < gridWidth; x++) {
+                float sum = 0f;
+                int from = Math.max(0, x - radius);
+                int to = Math.min(gridWidth - 1, x + radius);
+                for (int k = from; k <= to; k++) {
+                    sum += grid[row + k] * kernel[k - x + radius];
+                }
+                scratch[row + x] = sum;
+            }
+        }
+        // Accumulate whole rows so the vertical pass also walks memory sequentially.
+        Arrays.fill(grid, 0f);
+        for (int y = 0; y < gridHeight; y++) {
+            int row = y * gridWidth;
+            int from = Math.max(0, y - radius);
+            int to = Math.min(gridHeight - 1, y + radius);
+            for (int k = from; k <= to; k++) {
+                float weight = kernel[k - y + radius];
+                int sourceRow = k * gridWidth;
+                for (int x = 0; x < gridWidth; x++) {
+                    grid[row + x] += scratch[sourceRow + x] * weight;
+                }
+            }
+        }
+    }
+
+    private void colorize() {
+        float max = 0f;
+        for (float value : grid) {
+            if (value > max) {
+                max = value;
+            }
+        }
+        float scale = max > 0f ? 255f / max : 0f;
+        for (int i = 0; i < grid.length; i++) {
+            pixels[i] = colorTable[Math.min(255, (int) (grid[i] * scale))];
+        }
+    }
+
+    /** Gaussian weights over [-radius, radius], with sigma a third of the radius and a peak of 1. */
+    static float[] buildKernel(int radius) {
+        float[] weights = new float[radius * 2 + 1];
+        double sigma = radius / 3.0;
+        for (int i = -radius; i <= radius; i++) {
+            weights[i + radius] = (float) Math.exp(-(i * i) / (2 * sigma * sigma));
+        }
+        return weights;
+    }
+
+    private static int[] buildColorTable(int[] colors, float[] stops) {
+        int[] table = new int[256];
+        for (int i = 0; i < table.length; i++) {
+            float position = i / 255f;
+            int upper = 1;
+            while (upper < stops.length - 1 && stops[upper] < position) {
+                upper++;
+            }
+            float span = stops[upper] - stops[upper - 1];
+            float t = span > 0f ? (position - stops[upper - 1]) / span : 1f;
+            table[i] = lerpColor(colors[upper - 1], colors[upper], Math.max(0f, Math.min(1f, t)));
+        }
+        return table;
+    }
+
+    private static int lerpColor(int from, int to, float t) {
+        int a = lerp(from >>> 24, to >>> 24, t);
+        int r = lerp((from >> 16) & 0xFF, (to >> 16) & 0xFF, t);
+        int g = lerp((from >> 8) & 0xFF, (to >> 8) & 0xFF, t);
+        int b = lerp(from & 0xFF, to & 0xFF, t);
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    private static int lerp(int from, int to, float t) {
+        return Math.round(from + (to - from) * t);
+    }
+}
@@ -0,0 +1,134 @@
+package com.emanthus.heatmap.sdk.render;
+
+import com.emanthus.heatmap.sdk.models.HeatmapDataPoint;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tap/press intensities summed into a chain of grids, each with cells twice the size of the one before,
+ * down to a single cell. Built once per data set and view size, so zooming and panning only pick a level
+ * and read the cells of the visible tiles instead of going back over the points.
+ * <p>
+ * Levels are split into tiles of {@link #TILE_SIZE} x {@link #TILE_SIZE} cells, which
+ * {@link DensityTileRenderer} renders. Immutable once built.
+ */
+public class DensityPyramid {
+
+    /** Cells per side of a tile. */
+    public static final int TILE_SIZE = 64;
+
+    private final int baseCellSize;
+    private final float[][] levels;
+    private final int[] widths;
+    private final int[] heights;
+
+    /**
+     * @param width Width in pixels of the area the points were recorded in.
+     * @param height Height in pixels of the area the points were recorded in.
+     * @param baseCellSize Cell size in pixels of the finest level. Halving it quadruples the memory used.
+     */
+    public DensityPyramid(List<HeatmapDataPoint> points, int width, int height, int baseCellSize) {
+        if (width <= 0 || height <= 0 || baseCellSize <= 0) {
+            throw new IllegalArgumentException("Size and cell size must be positive.");
+        }
+        this.baseCellSize = baseCellSize;
+
+        int count = 1;
+        for (int w = cells(width, baseCellSize), h = cells(height, baseCellSize); w > 1 || h > 1; count++) {
+            w = (w + 1) / 2;
+            h = (h + 1) / 2;
+        }
+        levels = new float[count][];
+        widths = new int[count];
+        heights = new int[count];
+
+        int w = cells(width, baseCellSize);
+        int h = cells(height, baseCellSize);
+        float[] base = new float[w * h];
+        for (int i = 0; i < points.size(); i++) {
+            HeatmapDataPoint point = points.get(i);
+            int cx = (int) (point.getX() / baseCellSize);
+            int cy = (int) (point.getY() / baseCellSize);
+            // Same bounds as DensityGridRenderer: casting truncates towards zero, so check the point itself.
+            if (point.getX() >= 0f && point.getY() >= 0f && cx < w && cy < h) {
+                base[cy * w + cx] += point.getIntensity();
+            }
+        }
+        levels[0] = base;
+        widths[0] = w;
+        heights[0] = h;
+
+        for (int level = 1; level < count; level++) {
+            int sourceWidth = widths[level - 1];
+            int sourceHeight = heights[level - 1];
+            float[] source = levels[level - 1];
+            w = (sourceWidth + 1) / 2;
+            h = (sourceHeight + 1) / 2;
+            float[] sums = new float[w * h];
+            for (int y = 0; y < sourceHeight; y++) {
+                int row = y * sourceWidth;
+                int target = (y / 2) * w;
+                for (int x = 0; x < sourceWidth; x++) {
+                    sums[target + x / 2] += source[row + x];
+                }
+            }
+            levels[level] = sums;
+            widths[level] = w;
+            heights[level] = h;
+        }
+    }
+
+    public int getLevelCount() { return levels.length; }
+
+    /** @return Size in pixels of a cell on the level; level 0 is the finest. */
+    public int getCellSize(int level) { return baseCellSize << level; }
+
+    public int getLevelWidth(int level) { return widths[level]; }
+    public int getLevelHeight(int level) { return heights[level]; }
+
+    public int getTileColumns(int level) { return (widths[level] + TILE_SIZE - 1) / TILE_SIZE; }
+    public int getTileRows(int level) { return (heights[level] + TILE_SIZE - 1) / TILE_SIZE; }
+
+    /**
+     * @param zoom How many screen pixels one recorded pixel is drawn at.
+     * @param screenCellPx The smallest cell size on screen worth rendering, in pixels.
+     * @return The finest level whose cells are at least {@code screenCellPx} on screen at the zoom,
+     *         or level 0 when zoomed in past it.
+     */
+    public int levelFor(float zoom, int screenCellPx) {
+        for (int level = levels.length - 1; level > 0; level--) {
+            if (getCellSize(level - 1) * zoom < screenCellPx) {
+                return level;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Copies a rectangle of cells, which may reach past the edges of the level, into a row-major array.
+     * Cells outside the level are 0.
+     */
+    void copyRegion(int level, int x0, int y0, int width, int height, float[] into) {
+        float[] cells = levels[level];
+        int levelWidth = widths[level];
+        int levelHeight = heights[level];
+        int fromX = Math.max(0, x0);
+        int toX = Math.min(levelWidth, x0 + width);
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            int sourceY = y0 + y;
+            if (sourceY < 0 || sourceY >= levelHeight || fromX >= toX) {
+                Arrays.fill(into, row, row + width, 0f);
+                continue;
+            }
+            Arrays.fill(into, row, row + fromX - x0, 0f);
+            System.arraycopy(cells, sourceY * levelWidth + fromX, into, row + fromX - x0, toX - fromX);
+            Arrays.fill(into, row + toX - x0, row + width, 0f);
+        }
+    }
+
+    private static int cells(int pixels, int cellSize) {
+        return (pixels + cellSize - 1) / cellSize;
+    }
+}
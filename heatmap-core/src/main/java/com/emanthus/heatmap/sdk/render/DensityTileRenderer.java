@@ -0,0 +1,152 @@
+package com.emanthus.heatmap.sdk.render;
+
+/**
+ * Renders tiles of a {@link DensityPyramid} into ARGB pixels, blurred and colored like
+ * {@link DensityGridRenderer} does for a whole view.
+ * <p>
+ * A tile is blurred from its own cells plus a border of the kernel radius, so tiles rendered
+ * separately line up without seams. The kernel spans the same number of pixels on every level,
+ * and densities are scaled by cell area, so a spot keeps its color and size across zoom levels.
+ * Colors are normalized to the densest spot at the level {@code style} would render the whole
+ * view at, which makes that level's tiles match {@link DensityGridRenderer#render} exactly.
+ * <p>
+ * Not thread-safe: buffers are reused between tiles.
+ */
+public class DensityTileRenderer {
+
+    private final DensityPyramid pyramid;
+    private final int kernelRadiusPx;
+    private final int[] colorTable;
+    private final int referenceLevel;
+    private final float[][] kernels;
+    // Converts a level's blurred values to the reference level's, so equal densities get equal colors.
+    private final float[] levelScales;
+
+    private float referenceMax = -1f;
+    private float[] region = new float[0];
+    private float[] scratch = new float[0];
+    private float[] blurred = new float[0];
+    private int[] pixels = new int[0];
+
+    /**
+     * @param style Supplies the gradient, kernel radius and the cell size of the view at zoom 1.
+     */
+    public DensityTileRenderer(DensityPyramid pyramid, DensityGridRenderer style) {
+        this.pyramid = pyramid;
+        this.kernelRadiusPx = style.kernelRadiusPx;
+        this.colorTable = style.colorTable;
+        this.referenceLevel = pyramid.levelFor(1f, style.getCellSize());
+        this.kernels = new float[pyramid.getLevelCount()][];
+        this.levelScales = new float[pyramid.getLevelCount()];
+
+        double referenceWeight = weight(referenceLevel);
+        for (int level = 0; level < levelScales.length; level++) {
+            levelScales[level] = (float) (referenceWeight / weight(level));
+        }
+        levelScales[referenceLevel] = 1f;
+    }
+
+    public int getTileWidth(int level, int column) {
+        return Math.min(DensityPyramid.TILE_SIZE, pyramid.getLevelWidth(level) - column * DensityPyramid.TILE_SIZE);
+    }
+
+    public int getTileHeight(int level, int row) {
+        return Math.min(DensityPyramid.TILE_SIZE, pyramid.getLevelHeight(level) - row * DensityPyramid.TILE_SIZE);
+    }
+
+    /**
+     * @return Row-major ARGB pixels of size {@link #getTileWidth} x {@link #getTileHeight}, one per cell,
+     *         to be scaled up by the level's cell size when drawn. The array is reused by the next call.
+     */
+    public int[] renderTile(int level, int column, int row) {
+        if (referenceMax < 0f) {
+            referenceMax = findReferenceMax();
+        }
+        int width = getTileWidth(level, column);
+        int height = getTileHeight(level, row);
+        blur(level, column * DensityPyramid.TILE_SIZE, row * DensityPyramid.TILE_SIZE, width, height);
+
+        if (pixels.length < width * height) {
+            pixels = new int[width * height];
+        }
+        float scale = referenceMax > 0f ? 255f / referenceMax : 0f;
+        if (level != referenceLevel) {
+            scale *= levelScales[level];
+        }
+        for (int i = 0; i < width * height; i++) {
+            pixels[i] = colorTable[Math.min(255, (int) (blurred[i] * scale))];
+        }
+        return pixels;
+    }
+
+    private float findReferenceMax() {
+        int width = pyramid.getLevelWidth(referenceLevel);
+        int height = pyramid.getLevelHeight(referenceLevel);
+        blur(referenceLevel, 0, 0, width, height);
+        float max = 0f;
+        for (int i = 0; i < width * height; i++) {
+            if (blurred[i] > max) {
+                max = blurred[i];
+            }
+        }
+        return max;
+    }
+
+    /** Blurs a rectangle of the level's cells into {@link #blurred}, rows then columns. */
+    private void blur(int level, int x0, int y0, int width, int height) {
+        float[] kernel = kernel(level);
+        int radius = kernel.length / 2;
+        int paddedWidth = width + radius * 2;
+        int paddedHeight = height + radius * 2;
+        region = ensure(region, paddedWidth * paddedHeight);
+        scratch = ensure(scratch, width * paddedHeight);
+        blurred = ensure(blurred, width * height);
+        pyramid.copyRegion(level, x0 - radius, y0 - radius, paddedWidth, paddedHeight, region);
+
+        for (int y = 0; y < paddedHeight; y++) {
+            int source = y * paddedWidth;
+            int target = y * width;
+            for (int x = 0; x < width; x++) {
+                float sum = 0f;
+                for (int k = 0; k < kernel.length; k++) {
+                    sum += region[source + x + k] * kernel[k];
+                }
+                scratch[target + x] = sum;
+            }
+        }
+        for (int y = 0; y < height; y++) {
+            int target = y * width;
+            for (int x = 0; x < width; x++) {
+                blurred[target + x] = 0f;
+            }
+            for (int k = 0; k < kernel.length; k++) {
+                float weight = kernel[k];
+                int source = (y + k) * width;
+                for (int x = 0; x < width; x++) {
+                    blurred[target + x] += scratch[source + x] * weight;
+                }
+            }
+        }
+    }
+
+    private float[] kernel(int level) {
+        if (kernels[level] == null) {
+            kernels[level] = DensityGridRenderer.buildKernel(Math.max(1, kernelRadiusPx / pyramid.getCellSize(level)));
+        }
+        return kernels[level];
+    }
+
+    /** @return What an intensity of 1 per pixel, spread evenly, blurs to on the level. */
+    private double weight(int level) {
+        double sum = 0;
+        for (float value : kernel(level)) {
+            sum += value;
+        }
+        double cellSize = pyramid.getCellSize(level);
+        return sum * sum * cellSize * cellSize;
+    }
+
+    private static float[] ensure(float[] buffer, int size) {
+        return buffer.length < size ? new float[size] : buffer;
+    }
+}
@@ -0,0 +1,258 @@
+package com.emanthus.heatmap.sdk.render;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Cache of rendered heatmap overlays, keyed by screen, view size and data version.
+ * <p>
+ * The memory tier is an LRU sized in bytes. The optional disk tier keeps one file per screen and
+ * view size under the given directory, replacing it when the data version changes. Disk reads happen
+ * on the thread calling {@link #get}. Disk writes are handed to the writer executor, so that encoding
+ * never holds up whoever rendered the overlay; writes for a screen and size that were not started yet
+ * are replaced by newer ones. Thread-safe.
+ * @param <T> The overlay type.
+ */
+public class OverlayCache<T> {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** Encodes overlays for the disk tier and measures them for the memory tier. */
+    public interface Codec<T> {
+        int sizeOf(T overlay);
+
+        /** @return False if the overlay could not be encoded. */
+        boolean encode(T overlay, OutputStream out) throws IOException;
+
+        /** @return The decoded overlay, or null if the file cannot be read. */
+        T decode(File file);
+    }
+
+    /** Point-in-time counters for the cache. */
+    public static class Stats {
+        public final int memoryHits;
+        public final int diskHits;
+        public final int misses;
+        public final int evictions;
+        public final int sizeBytes;
+        public final int maxSizeBytes;
+
+        Stats(int memoryHits, int diskHits, int misses, int evictions, int sizeBytes, int maxSizeBytes) {
+            this.memoryHits = memoryHits;
+            this.diskHits = diskHits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.sizeBytes = sizeBytes;
+            this.maxSizeBytes = maxSizeBytes;
+        }
+
+        /** @return The fraction of lookups served from memory or disk. */
+        public float getHitRate() {
+            int lookups = memoryHits + diskHits + misses;
+            return lookups == 0 ? 0f : (memoryHits + diskHits) / (float) lookups;
+        }
+
+        @Override
+        public String toString() {
+            return "OverlayCache.Stats{memoryHits=" + memoryHits + ", diskHits=" + diskHits
+                    + ", misses=" + misses + ", evictions=" + evictions
+                    + ", sizeBytes=" + sizeBytes + "/" + maxSizeBytes + "}";
+        }
+    }
+
+    private final int maxBytes;
+    private final File diskDir;
+    private final String diskSuffix;
+    private final Codec<T> codec;
+    private final Executor diskWriter;
+    private volatile boolean diskEnabled;
+
+    // Guarded by this. Access order, least recently used first.
+    private final LinkedHashMap<String, T> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private int sizeBytes;
+    private int memoryHits;
+    private int diskHits;
+    private int misses;
+    private int evictions;
+    // Disk writes not started yet, by screen and size, and whether a task to write them is queued.
+    private final LinkedHashMap<String, Map.Entry<String, T>> pendingWrites = new LinkedHashMap<>();
+    private boolean writeQueued;
+    // Bumped by clear(), so a write that started before it does not leave its file behind.
+    private int generation;
+
+    /**
+     * @param maxBytes Memory budget for cached overlays.
+     * @param diskDir Directory for the disk tier, e.g. a subdirectory of the app cache directory.
+     * @param diskSuffix File name suffix of the disk tier, e.g. ".png".
+     * @param diskWriter Runs disk writes, e.g. a single low-priority thread.
+     */
+    public OverlayCache(int maxBytes, File diskDir, String diskSuffix, Codec<T> codec, Executor diskWriter) {
+        this.maxBytes = maxBytes;
+        this.diskDir = diskDir;
+        this.diskSuffix = diskSuffix;
+        this.codec = codec;
+        this.diskWriter = diskWriter;
+    }
+
+    public void setDiskEnabled(boolean enabled) {
+        this.diskEnabled = enabled;
+    }
+
+    /** Builds the cache key for a rendered overlay. */
+    public static String key(String screenName, int width, int height, String dataVersion) {
+        return screenName + "_" + width + "x" + height + "_" + dataVersion;
+    }
+
+    /** @return The cached overlay for the key, or null on a miss. */
+    public T get(String key) {
+        synchronized (this) {
+            T overlay = memory.get(key);
+            if (overlay != null) {
+                memoryHits++;
+                return overlay;
+            }
+        }
+        if (diskEnabled) {
+            File file = diskFile(key);
+            T overlay = file.exists() ? codec.decode(file) : null;
+            if (overlay != null) {
+                synchronized (this) {
+                    putInMemory(key, overlay);
+                    diskHits++;
+                }
+                return overlay;
+            }
+        }
+        synchronized (this) {
+            misses++;
+        }
+        return null;
+    }
+
+    public void put(String key, T overlay) {
+        synchronized (this) {
+            putInMemory(key, overlay);
+            if (!diskEnabled) {
+                return;
+            }
+            pendingWrites.put(versionPrefix(key), new AbstractMap.SimpleImmutableEntry<>(key, overlay));
+            if (writeQueued) {
+                return;
+            }
+            writeQueued = true;
+        }
+        diskWriter.execute(this::writePending);
+    }
+
+    /** Drops every cached overlay, e.g. after the heatmap style changes. */
+    public void clear() {
+        synchronized (this) {
+            memory.clear();
+            sizeBytes = 0;
+            pendingWrites.clear();
+            generation++;
+        }
+        File[] files = diskDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(memoryHits, diskHits, misses, evictions, sizeBytes, maxBytes);
+    }
+
+    private void putInMemory(String key, T overlay) {
+        T previous = memory.put(key, overlay);
+        if (previous != null) {
+            sizeBytes -= codec.sizeOf(previous);
+        }
+        sizeBytes += codec.sizeOf(overlay);
+        Iterator<T> eldest = memory.values().iterator();
+        while (sizeBytes > maxBytes && eldest.hasNext()) {
+            sizeBytes -= codec.sizeOf(eldest.next());
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private void writePending() {
+        while (true) {
+            Map.Entry<String, T> write;
+            int startGeneration;
+            synchronized (this) {
+                Iterator<Map.Entry<String, T>> next = pendingWrites.values().iterator();
+                if (!next.hasNext()) {
+                    writeQueued = false;
+                    return;
+                }
+                write = next.next();
+                next.remove();
+                startGeneration = generation;
+            }
+            File file = writeToDisk(write.getKey(), write.getValue());
+            synchronized (this) {
+                if (file != null && generation != startGeneration) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /** @return The file written, or null if it could not be. */
+    private File writeToDisk(String key, T overlay) {
+        if (!diskDir.exists() && !diskDir.mkdirs()) {
+            return null;
+        }
+        // Write through a temporary file, so a concurrent get() never decodes half a file.
+        File file = diskFile(key);
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        try (OutputStream out = new FileOutputStream(temp)) {
+            if (!codec.encode(overlay, out)) {
+                throw new IOException("Cannot encode " + key);
+            }
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return null;
+        }
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return null;
+        }
+
+        // Only the newest version of each screen and size is kept on disk.
+        String prefix = versionPrefix(key);
+        String name = file.getName();
+        File[] stale = diskDir.listFiles((dir, other) -> other.startsWith(prefix) && !other.equals(name)
+                && !other.endsWith(TEMP_SUFFIX));
+        if (stale != null) {
+            for (File old : stale) {
+                //noinspection ResultOfMethodCallIgnored
+                old.delete();
+            }
+        }
+        return file;
+    }
+
+    /** The key without its data version: everything up to and including the last underscore. */
+    private static String versionPrefix(String key) {
+        return key.substring(0, key.lastIndexOf('_') + 1);
+    }
+
+    private File diskFile(String key) {
+        return new File(diskDir, key + diskSuffix);
+    }
+}
@@ -0,0 +1,204 @@
+package com.emanthus.heatmap.sdk.render;
+
+import com.emanthus.heatmap.sdk.models.HeatmapSwipe;
+
+import java.util.List;
+
+/**
+ * Swipes binned by where they start into a grid of cells. Each cell holds a histogram of swipe directions
+ * and one of swipe lengths, weighted by intensity. It is drawn as one arrow per cell, pointing the way most
+ * swipes there went, so drawing costs the same for a thousand swipes as for a million.
+ * Immutable once built.
+ */
+public class SwipeFlowField {
+
+    public static final int DEFAULT_CELL_SIZE_PX = 96;
+    /** Direction bins, 45 degrees each. Bin 0 points right, bin 2 down, bin 4 left and bin 6 up. */
+    public static final int DIRECTION_BINS = 8;
+    /** Length bins, from short flicks to swipes across half the screen or more. */
+    public static final int MAGNITUDE_BINS = 4;
+    /** Floats per arrow written by {@link #getArrows}: start x, start y, end x, end y, strength. */
+    public static final int ARROW_STRIDE = 5;
+
+    // Upper edges of all but the last length bin, as a fraction of the shorter side of the screen.
+    private static final float[] MAGNITUDE_EDGES = {0.1f, 0.25f, 0.5f};
+    // Arrow length as a fraction of the cell size, for the shortest and the longest length bin.
+    private static final float MIN_ARROW_LENGTH = 0.35f;
+    private static final float MAX_ARROW_LENGTH = 0.9f;
+
+    private final int cellSize;
+    private final int columns;
+    private final int rows;
+    // Indexed by cell * DIRECTION_BINS + bin. The summed unit vectors give each bin's mean direction.
+    private final float[] directionWeights;
+    private final float[] directionX;
+    private final float[] directionY;
+    // Indexed by cell * MAGNITUDE_BINS + bin.
+    private final float[] magnitudeWeights;
+    private final float[] cellWeights;
+    private final float maxCellWeight;
+    private final int occupiedCells;
+
+    /**
+     * @param width Width in pixels of the area the swipes were recorded in.
+     * @param height Height in pixels of the area the swipes were recorded in.
+     * @param cellSize Cell size in pixels, which is also the most room an arrow gets.
+     */
+    public SwipeFlowField(List<HeatmapSwipe> swipes, int width, int height, int cellSize) {
+        if (width <= 0 || height <= 0 || cellSize <= 0) {
+            throw new IllegalArgumentException("Size and cell size must be positive.");
+        }
+        this.cellSize = cellSize;
+        this.columns = (width + cellSize - 1) / cellSize;
+        this.rows = (height + cellSize - 1) / cellSize;
+        int cells = columns * rows;
+        directionWeights = new float[cells * DIRECTION_BINS];
+        directionX = new float[cells * DIRECTION_BINS];
+        directionY = new float[cells * DIRECTION_BINS];
+        magnitudeWeights = new float[cells * MAGNITUDE_BINS];
+        cellWeights = new float[cells];
+
+        float shorterSide = Math.min(width, height);
+        for (int i = 0; i < swipes.size(); i++) {
+            HeatmapSwipe swipe = swipes.get(i);
+            int cx = (int) (swipe.getStartX() / cellSize);
+            int cy = (int) (swipe.getStartY() / cellSize);
+            float dx = swipe.getEndX() - swipe.getStartX();
+            float dy = swipe.getEndY() - swipe.getStartY();
+            float length = (float) Math.sqrt(dx * dx + dy * dy);
+            float weight = swipe.getIntensity();
+            // Casting truncates towards zero, so check the start itself for being off the left or top edge.
+            boolean onScreen = swipe.getStartX() >= 0f && swipe.getStartY() >= 0f && cx < columns && cy < rows;
+            if (!onScreen || length == 0f || !(weight > 0f)) continue;
+
+            int cell = cy * columns + cx;
+            int direction = cell * DIRECTION_BINS + directionBin(dx, dy);
+            directionWeights[direction] += weight;
+            directionX[direction] += weight * dx / length;
+            directionY[direction] += weight * dy / length;
+            magnitudeWeights[cell * MAGNITUDE_BINS + magnitudeBin(length / shorterSide)] += weight;
+            cellWeights[cell] += weight;
+        }
+
+        float max = 0f;
+        int occupied = 0;
+        for (float weight : cellWeights) {
+            if (weight > 0f) {
+                occupied++;
+                max = Math.max(max, weight);
+            }
+        }
+        maxCellWeight = max;
+        occupiedCells = occupied;
+    }
+
+    /** The direction bin of a vector in screen coordinates, where y grows downwards. */
+    static int directionBin(float dx, float dy) {
+        double turns = Math.atan2(dy, dx) / (2 * Math.PI);
+        return ((int) Math.round(turns * DIRECTION_BINS) + DIRECTION_BINS) % DIRECTION_BINS;
+    }
+
+    private static int magnitudeBin(float fraction) {
+        int bin = 0;
+        while (bin < MAGNITUDE_EDGES.length && fraction >= MAGNITUDE_EDGES[bin]) {
+            bin++;
+        }
+        return bin;
+    }
+
+    public int getCellSize() {
+        return cellSize;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    /** Summed intensity of the swipes starting in a cell. */
+    public float getWeight(int column, int row) {
+        return cellWeights[row * columns + column];
+    }
+
+    public float getDirectionWeight(int column, int row, int bin) {
+        return directionWeights[(row * columns + column) * DIRECTION_BINS + bin];
+    }
+
+    public float getMagnitudeWeight(int column, int row, int bin) {
+        return magnitudeWeights[(row * columns + column) * MAGNITUDE_BINS + bin];
+    }
+
+    /** @return The heaviest direction bin of a cell, the lowest on a tie, or -1 if no swipe starts there. */
+    public int getDominantDirection(int column, int row) {
+        int cell = row * columns + column;
+        if (cellWeights[cell] == 0f) return -1;
+        int base = cell * DIRECTION_BINS;
+        int best = 0;
+        for (int bin = 1; bin < DIRECTION_BINS; bin++) {
+            if (directionWeights[base + bin] > directionWeights[base + best]) {
+                best = bin;
+            }
+        }
+        return best;
+    }
+
+    /** Arrows {@link #getArrows} writes: one per cell that any swipe starts in. */
+    public int getArrowCount() {
+        return occupiedCells;
+    }
+
+    /**
+     * Writes one arrow per occupied cell, centered on the cell, in row order. An arrow points along the mean
+     * direction of the cell's dominant direction bin. Its length grows with the cell's weighted median length
+     * bin. Its strength, in (0, 1], is the cell's weight relative to the heaviest cell.
+     * @param into At least {@link #getArrowCount()} * {@link #ARROW_STRIDE} floats.
+     * @return The number of arrows written.
+     */
+    public int getArrows(float[] into) {
+        int count = 0;
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int cell = row * columns + column;
+                float weight = cellWeights[cell];
+                if (weight == 0f) continue;
+
+                int direction = cell * DIRECTION_BINS + getDominantDirection(column, row);
+                float vx = directionX[direction];
+                float vy = directionY[direction];
+                // Never zero: the unit vectors summed in a bin are all within 45 degrees of each other.
+                float norm = (float) Math.sqrt(vx * vx + vy * vy);
+
+                int magnitude = medianMagnitudeBin(cell, weight);
+                float length = cellSize * (MIN_ARROW_LENGTH
+                        + (MAX_ARROW_LENGTH - MIN_ARROW_LENGTH) * magnitude / (MAGNITUDE_BINS - 1));
+                float halfX = vx / norm * length / 2f;
+                float halfY = vy / norm * length / 2f;
+                float centerX = (column + 0.5f) * cellSize;
+                float centerY = (row + 0.5f) * cellSize;
+
+                int offset = count * ARROW_STRIDE;
+                into[offset] = centerX - halfX;
+                into[offset + 1] = centerY - halfY;
+                into[offset + 2] = centerX + halfX;
+                into[offset + 3] = centerY + halfY;
+                into[offset + 4] = weight / maxCellWeight;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int medianMagnitudeBin(int cell, float weight) {
+        int base = cell * MAGNITUDE_BINS;
+        float half = weight / 2f;
+        float seen = 0f;
+        for (int bin = 0; bin < MAGNITUDE_BINS - 1; bin++) {
+            seen += magnitudeWeights[base + bin];
+            if (seen >= half) return bin;
+        }
+        return MAGNITUDE_BINS - 1;
+    }
+}
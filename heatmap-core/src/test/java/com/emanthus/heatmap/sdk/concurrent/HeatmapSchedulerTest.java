@@ -0,0 +1,225 @@
+package com.emanthus.heatmap.sdk.concurrent;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HeatmapSchedulerTest {
+
+    private HeatmapScheduler scheduler;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void higherPriority_runsFirst() throws Exception {
+        scheduler = new HeatmapScheduler(1, 16, HeatmapScheduler.RejectionPolicy.ABORT);
+        CountDownLatch release = blockWorker();
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+        scheduler.execute(HeatmapScheduler.Priority.UPLOAD, () -> order.add("upload"));
+        scheduler.execute(HeatmapScheduler.Priority.PERSIST, () -> order.add("persist"));
+        scheduler.execute(HeatmapScheduler.Priority.RENDER, () -> order.add("render"));
+        release.countDown();
+
+        assertTrue(scheduler.awaitIdle(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("render", "persist", "upload"), order);
+    }
+
+    @Test
+    public void uploads_neverTakeEveryWorker() throws Exception {
+        scheduler = new HeatmapScheduler(2, 16, HeatmapScheduler.RejectionPolicy.ABORT);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch uploadsStarted = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            scheduler.execute(HeatmapScheduler.Priority.UPLOAD, () -> {
+                uploadsStarted.countDown();
+                await(release);
+            });
+        }
+        CountDownLatch rendered = new CountDownLatch(1);
+        scheduler.execute(HeatmapScheduler.Priority.RENDER, rendered::countDown);
+
+        assertTrue(rendered.await(5, TimeUnit.SECONDS));
+        assertEquals(1, uploadsStarted.getCount());
+        release.countDown();
+        assertTrue(uploadsStarted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void fullQueue_abortRejects() throws Exception {
+        scheduler = new HeatmapScheduler(1, 2, HeatmapScheduler.RejectionPolicy.ABORT);
+        CountDownLatch release = blockWorker();
+        scheduler.execute(HeatmapScheduler.Priority.RENDER, () -> { });
+        scheduler.execute(HeatmapScheduler.Priority.RENDER, () -> { });
+        try {
+            scheduler.execute(HeatmapScheduler.Priority.RENDER, () -> { });
+            fail("Third task should have been rejected");
+        } catch (RejectedExecutionException expected) {
+            // The queue holds two tasks.
+        }
+        // Each priority has its own queue.
+        scheduler.execute(HeatmapScheduler.Priority.UPLOAD, () -> { });
+        release.countDown();
+        assertEquals(1, scheduler.getRejectedCount());
+    }
+
+    @Test
+    public void fullQueue_discardOldestKeepsNewestTasks() throws Exception {
+        scheduler = new HeatmapScheduler(1, 2, HeatmapScheduler.RejectionPolicy.DISCARD_OLDEST);
+        CountDownLatch release = blockWorker();
+        List<Integer> ran = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 4; i++) {
+            int task = i;
+            scheduler.execute(HeatmapScheduler.Priority.RENDER, () -> ran.add(task));
+        }
+        release.countDown();
+
+        assertTrue(scheduler.awaitIdle(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(2, 3), ran);
+        assertEquals(2, scheduler.getRejectedCount());
+    }
+
+    @Test
+    public void fullQueue_storageAndUploadTasksAreNeverDropped() throws Exception {
+        scheduler = new HeatmapScheduler(1, 2, HeatmapScheduler.RejectionPolicy.ABORT);
+        CountDownLatch release = blockWorker();
+        AtomicInteger ran = new AtomicInteger();
+        for (int i = 0; i < 10; i++) {
+            scheduler.execute(HeatmapScheduler.Priority.PERSIST, ran::incrementAndGet);
+            scheduler.execute(HeatmapScheduler.Priority.UPLOAD, ran::incrementAndGet);
+        }
+        release.countDown();
+
+        assertTrue(scheduler.awaitIdle(5, TimeUnit.SECONDS));
+        assertEquals(20, ran.get());
+        assertEquals(0, scheduler.getRejectedCount());
+    }
+
+    @Test
+    public void droppedTasks_areCancelledAndTold() throws Exception {
+        scheduler = new HeatmapScheduler(1, 1, HeatmapScheduler.RejectionPolicy.DISCARD_OLDEST);
+        CountDownLatch release = blockWorker();
+        AtomicInteger ran = new AtomicInteger();
+        AtomicInteger told = new AtomicInteger();
+        Future<?> submitted = scheduler.executor(HeatmapScheduler.Priority.RENDER).submit(() -> {
+            ran.incrementAndGet();
+        });
+        // Each task pushes the one before it out of the single-slot queue.
+        scheduler.execute(HeatmapScheduler.Priority.RENDER,
+                HeatmapScheduler.droppable(ran::incrementAndGet, told::incrementAndGet));
+        scheduler.execute(HeatmapScheduler.Priority.RENDER,
+                HeatmapScheduler.droppable(ran::incrementAndGet, told::incrementAndGet));
+        release.countDown();
+
+        assertTrue(scheduler.awaitIdle(5, TimeUnit.SECONDS));
+        assertTrue(submitted.isCancelled());
+        assertEquals(1, told.get());
+        assertEquals(1, ran.get());
+        assertEquals(2, scheduler.getRejectedCount());
+    }
+
+    @Test
+    public void fixedRate_runsUntilCancelled() throws Exception {
+        scheduler = new HeatmapScheduler(1, 16, HeatmapScheduler.RejectionPolicy.ABORT);
+        CountDownLatch ranThrice = new CountDownLatch(3);
+        ScheduledFuture<?> task = scheduler.executor(HeatmapScheduler.Priority.PERSIST)
+                .scheduleAtFixedRate(ranThrice::countDown, 0, 10, TimeUnit.MILLISECONDS);
+
+        assertTrue(ranThrice.await(5, TimeUnit.SECONDS));
+        assertFalse(task.isDone());
+        task.cancel(false);
+        assertTrue(task.isCancelled());
+    }
+
+    @Test
+    public void fixedDelay_waitsAfterEachRunAndStopsAtShutdown() throws Exception {
+        scheduler = new HeatmapScheduler(1, 16, HeatmapScheduler.RejectionPolicy.ABORT);
+        List<Long> starts = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch ranTwice = new CountDownLatch(2);
+        ScheduledFuture<?> task = scheduler.executor(HeatmapScheduler.Priority.UPLOAD).scheduleWithFixedDelay(() -> {
+            starts.add(System.nanoTime());
+            ranTwice.countDown();
+        }, 0, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(ranTwice.await(5, TimeUnit.SECONDS));
+        assertTrue(starts.get(1) - starts.get(0) >= TimeUnit.MILLISECONDS.toNanos(50));
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+        assertTrue(task.isDone());
+    }
+
+    @Test
+    public void delayedTask_runsAfterItsDelay() throws Exception {
+        scheduler = new HeatmapScheduler(1, 16, HeatmapScheduler.RejectionPolicy.ABORT);
+        CountDownLatch ran = new CountDownLatch(1);
+        long start = System.nanoTime();
+        scheduler.schedule(HeatmapScheduler.Priority.UPLOAD, ran::countDown, 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void cancelledDelayedTask_neverRuns() throws Exception {
+        scheduler = new HeatmapScheduler(1, 16, HeatmapScheduler.RejectionPolicy.ABORT);
+        CountDownLatch ran = new CountDownLatch(1);
+        scheduler.schedule(HeatmapScheduler.Priority.UPLOAD, ran::countDown, 50, TimeUnit.MILLISECONDS).cancel(false);
+
+        assertFalse(ran.await(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void shutdown_runsQueuedTasksAndRejectsNewOnes() throws Exception {
+        scheduler = new HeatmapScheduler(1, 16, HeatmapScheduler.RejectionPolicy.ABORT);
+        CountDownLatch release = blockWorker();
+        CountDownLatch queued = new CountDownLatch(1);
+        scheduler.execute(HeatmapScheduler.Priority.PERSIST, queued::countDown);
+        scheduler.shutdown();
+        try {
+            scheduler.execute(HeatmapScheduler.Priority.PERSIST, () -> { });
+            fail("Task should have been rejected after shutdown");
+        } catch (RejectedExecutionException expected) {
+            // Shut down.
+        }
+        release.countDown();
+
+        assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, queued.getCount());
+    }
+
+    /** Occupies the only worker until the returned latch is released. */
+    private CountDownLatch blockWorker() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.execute(HeatmapScheduler.Priority.RENDER, () -> {
+            started.countDown();
+            await(release);
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.emanthus.heatmap.sdk.database;
+
+import com.emanthus.heatmap.sdk.concurrent.HeatmapScheduler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class EventBufferTest {
+
+    private static final long ONE_HOUR_MS = 60 * 60 * 1000;
+
+    private ScheduledExecutorService executor;
+    private final List<HeatmapEvent> written = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void drain_buildsEventsFromColumns() {
+        EventBuffer buffer = new EventBuffer(8, 8, ONE_HOUR_MS, executor, written::addAll);
+        int screen = buffer.internScreen("MainActivity");
+        int user = buffer.internUser("user-1");
+
+        buffer.offer(1000L, EventType.TOUCH, 10f, 20f, Float.NaN, Float.NaN, 0.5f, screen, user);
+        buffer.offer(2000L, EventType.SWIPE_UP, 1f, 2f, 3f, 4f, 0.8f, screen, StringTable.NONE);
+        buffer.drain();
+
+        assertEquals(2, written.size());
+        HeatmapEvent tap = written.get(0);
+        assertEquals("TOUCH", tap.getEventType());
+        assertEquals(10f, tap.getX(), 0f);
+        assertEquals(0.5f, tap.getIntensity(), 0f);
+        assertNull(tap.getEndX());
+        assertEquals("MainActivity", tap.getScreenName());
+        assertEquals("user-1", tap.getUserId());
+
+        HeatmapEvent swipe = written.get(1);
+        assertEquals("SWIPE_UP", swipe.getEventType());
+        assertEquals(3f, swipe.getEndX(), 0f);
+        assertEquals(4f, swipe.getEndY(), 0f);
+        assertNull(swipe.getUserId());
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void drain_tagsEventsWithTheirView() {
+        EventBuffer buffer = new EventBuffer(8, 8, ONE_HOUR_MS, executor, written::addAll);
+        int screen = buffer.internScreen("MainActivity");
+        int view = buffer.internView("checkout_button");
+
+        buffer.offer(1L, EventType.TOUCH, 1f, 2f, Float.NaN, Float.NaN, 1f, screen, StringTable.NONE, view, null);
+        buffer.offer(2L, EventType.SWIPE_UP, 1f, 2f, 3f, 4f, 0.8f, screen, StringTable.NONE, view, null);
+        buffer.offer(3L, EventType.TOUCH, 1f, 2f, Float.NaN, Float.NaN, 1f, screen, StringTable.NONE);
+        buffer.drain();
+
+        assertEquals("checkout_button", written.get(0).getViewId());
+        assertEquals("checkout_button", written.get(1).getViewId());
+        assertNull(written.get(2).getViewId());
+    }
+
+    @Test
+    public void drain_keepsTheScreenSizeEventsWereRecordedAt() {
+        EventBuffer buffer = new EventBuffer(8, 8, ONE_HOUR_MS, executor, written::addAll);
+        int portrait = buffer.internScreen("MainActivity", 1080, 2400);
+        int landscape = buffer.internScreen("MainActivity", 2400, 1080);
+        assertNotEquals(portrait, landscape);
+        assertEquals(portrait, buffer.internScreen("MainActivity", 1080, 2400));
+
+        buffer.offer(1L, EventType.TOUCH, 1f, 2f, Float.NaN, Float.NaN, 1f, portrait, StringTable.NONE);
+        buffer.offer(2L, EventType.TOUCH, 1f, 2f, Float.NaN, Float.NaN, 1f, landscape, StringTable.NONE);
+        buffer.drain();
+
+        assertEquals("MainActivity", written.get(1).getScreenName());
+        assertEquals(1080, written.get(0).getScreenWidth());
+        assertEquals(2400, written.get(0).getScreenHeight());
+        assertEquals(2400, written.get(1).getScreenWidth());
+    }
+
+    @Test
+    public void offer_dropsWhenFull() {
+        EventBuffer buffer = new EventBuffer(2, 2, ONE_HOUR_MS, executor, batch -> { });
+        int screen = buffer.internScreen("MainActivity");
+        // Fill the buffer while holding its lock so the size-triggered drain cannot run yet.
+        synchronized (buffer) {
+            assertTrue(buffer.offer(1L, EventType.TOUCH, 0f, 0f, Float.NaN, Float.NaN, 1f, screen, StringTable.NONE));
+            assertTrue(buffer.offer(2L, EventType.TOUCH, 0f, 0f, Float.NaN, Float.NaN, 1f, screen, StringTable.NONE));
+            assertFalse(buffer.offer(3L, EventType.TOUCH, 0f, 0f, Float.NaN, Float.NaN, 1f, screen, StringTable.NONE));
+        }
+        assertEquals(1, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void offer_dropOldestKeepsNewestEvents() {
+        EventBuffer buffer = new EventBuffer(2, 2, ONE_HOUR_MS, executor, written::addAll,
+                null, EventBuffer.OverflowPolicy.DROP_OLDEST);
+        int screen = buffer.internScreen("MainActivity");
+        synchronized (buffer) {
+            assertTrue(buffer.offer(1L, EventType.SCROLL, 0f, 0f, 1f, 1f, 1f, screen, StringTable.NONE, "trail"));
+            assertTrue(buffer.offer(2L, EventType.TOUCH, 0f, 0f, Float.NaN, Float.NaN, 1f, screen, StringTable.NONE));
+            assertTrue(buffer.offer(3L, EventType.TOUCH, 0f, 0f, Float.NaN, Float.NaN, 1f, screen, StringTable.NONE));
+            buffer.drain();
+        }
+
+        assertEquals(2, written.size());
+        assertEquals(2L, written.get(0).getTimestamp());
+        assertEquals(3L, written.get(1).getTimestamp());
+        long[] dropped = buffer.takeDroppedCounts();
+        assertEquals(1, dropped[EventType.SCROLL]);
+        assertEquals(0, dropped[EventType.TOUCH]);
+    }
+
+    @Test
+    public void drain_stillRunsWhenTheStorageQueueIsFull() throws InterruptedException {
+        HeatmapScheduler scheduler = new HeatmapScheduler(1, 1, HeatmapScheduler.RejectionPolicy.DISCARD_NEWEST);
+        try {
+            List<HeatmapEvent> stored = Collections.synchronizedList(new ArrayList<>());
+            EventBuffer buffer = new EventBuffer(8, 2, ONE_HOUR_MS,
+                    scheduler.executor(HeatmapScheduler.Priority.PERSIST), stored::addAll);
+            int screen = buffer.internScreen("MainActivity");
+            CountDownLatch release = new CountDownLatch(1);
+            scheduler.execute(HeatmapScheduler.Priority.PERSIST, () -> awaitQuietly(release));
+            for (int i = 0; i < 3; i++) {
+                scheduler.execute(HeatmapScheduler.Priority.PERSIST, () -> { });
+            }
+
+            buffer.offer(1L, EventType.TOUCH, 0f, 0f, Float.NaN, Float.NaN, 1f, screen, StringTable.NONE);
+            buffer.offer(2L, EventType.TOUCH, 0f, 0f, Float.NaN, Float.NaN, 1f, screen, StringTable.NONE);
+            release.countDown();
+            assertTrue(scheduler.awaitIdle(5, TimeUnit.SECONDS));
+            assertEquals(2, stored.size());
+
+            // The drain ran, so the next batch schedules another one.
+            buffer.offer(3L, EventType.TOUCH, 0f, 0f, Float.NaN, Float.NaN, 1f, screen, StringTable.NONE);
+            buffer.offer(4L, EventType.TOUCH, 0f, 0f, Float.NaN, Float.NaN, 1f, screen, StringTable.NONE);
+            assertTrue(scheduler.awaitIdle(5, TimeUnit.SECONDS));
+            assertEquals(4, stored.size());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void offer_countsADropWhenNoDrainCanBeScheduled() {
+        HeatmapScheduler scheduler = new HeatmapScheduler(1, 1, HeatmapScheduler.RejectionPolicy.ABORT);
+        scheduler.shutdown();
+        EventBuffer buffer = new EventBuffer(8, 8, ONE_HOUR_MS,
+                scheduler.executor(HeatmapScheduler.Priority.PERSIST), written::addAll);
+        int screen = buffer.internScreen("MainActivity");
+
+        assertFalse(buffer.offer(1L, EventType.SCROLL, 0f, 0f, 1f, 1f, 1f, screen, StringTable.NONE, "trail"));
+        assertEquals(0, buffer.size());
+        assertEquals(1, buffer.takeDroppedCounts()[EventType.SCROLL]);
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void droppedCounts_areTakenOnceAndCanBeRestored() {
+        int[] budgets = new int[EventType.count()];
+        budgets[EventType.SWIPE_LEFT] = 1;
+        EventBuffer buffer = new EventBuffer(8, 8, ONE_HOUR_MS, executor, written::addAll,
+                new LoadShedder(budgets, 1f), EventBuffer.OverflowPolicy.DROP_NEWEST);
+        int screen = buffer.internScreen("MainActivity");
+        for (int i = 0; i < 3; i++) {
+            buffer.offer(1000L, EventType.SWIPE_LEFT, 0f, 0f, 1f, 1f, 1f, screen, StringTable.NONE);
+        }
+
+        long[] dropped = buffer.takeDroppedCounts();
+        assertEquals(2, dropped[EventType.SWIPE_LEFT]);
+        assertEquals(0, buffer.takeDroppedCounts()[EventType.SWIPE_LEFT]);
+        buffer.restoreDroppedCounts(dropped);
+        assertEquals(2, buffer.takeDroppedCounts()[EventType.SWIPE_LEFT]);
+        assertEquals(2, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void offer_doesNotAllocateOnceWarm() {
+        java.lang.management.ThreadMXBean mxBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(mxBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadMxBean = (com.sun.management.ThreadMXBean) mxBean;
+        assumeTrue(threadMxBean.isThreadAllocatedMemorySupported());
+        threadMxBean.setThreadAllocatedMemoryEnabled(true);
+
+        int events = 10_000;
+        EventBuffer buffer = new EventBuffer(events * 2, events * 2, ONE_HOUR_MS, executor, batch -> { });
+        int screen = buffer.internScreen("MainActivity");
+        int user = buffer.internUser("user-1");
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up: the first event schedules the window drain, and the JIT compiles offer().
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < events; i++) {
+                buffer.offer(i, EventType.SCROLL, i, i, i + 1, i + 1, 0.8f, screen, user);
+            }
+            buffer.drain();
+        }
+        buffer.offer(0L, EventType.TOUCH, 0f, 0f, Float.NaN, Float.NaN, 1f, screen, user);
+
+        long before = threadMxBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < events; i++) {
+            buffer.offer(i, EventType.SCROLL, i, i, i + 1, i + 1, 0.8f, screen, user);
+        }
+        long allocated = threadMxBean.getThreadAllocatedBytes(threadId) - before;
+
+        // Allow for a few bytes of measurement noise, but nothing that scales with the event count.
+        assertTrue("Allocated " + allocated + " bytes for " + events + " events", allocated < 1024);
+    }
+}
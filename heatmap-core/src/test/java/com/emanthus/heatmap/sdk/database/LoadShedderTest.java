@@ -0,0 +1,65 @@
+package com.emanthus.heatmap.sdk.database;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class LoadShedderTest {
+
+    private static final int CAPACITY = 1000;
+
+    @Test
+    public void budget_allowsOneSecondBurstThenRefills() {
+        LoadShedder shedder = new LoadShedder(budgets(10), 1f);
+
+        assertEquals(10, admitted(shedder, EventType.TOUCH, 100, 1000L, 0));
+        // Half a second later, five tokens have come back.
+        assertEquals(5, admitted(shedder, EventType.TOUCH, 100, 1500L, 0));
+        // Other types have their own budget.
+        assertEquals(10, admitted(shedder, EventType.SCROLL, 100, 1500L, 0));
+    }
+
+    @Test
+    public void unlimitedBudget_admitsEverything() {
+        LoadShedder shedder = new LoadShedder(budgets(LoadShedder.UNLIMITED), 1f);
+        assertEquals(10_000, admitted(shedder, EventType.TOUCH, 10_000, 1000L, 0));
+    }
+
+    @Test
+    public void sampling_shedsScrollsBeforeSwipesAndNeverTaps() {
+        LoadShedder shedder = new LoadShedder(budgets(LoadShedder.UNLIMITED), 0.5f);
+
+        // Below the threshold nothing is sampled.
+        assertEquals(100, admitted(shedder, EventType.SCROLL, 100, 0L, 400));
+        // At 70% full, scrolls keep 60% while swipes (sampled from 75%) are untouched.
+        assertEquals(60, admitted(shedder, EventType.SCROLL, 100, 0L, 700));
+        assertEquals(100, admitted(shedder, EventType.SWIPE_UP, 100, 0L, 700));
+        // At 90% full, swipes are sampled too, but taps still all pass.
+        assertEquals(20, admitted(shedder, EventType.SCROLL, 100, 0L, 900));
+        assertEquals(40, admitted(shedder, EventType.SWIPE_UP, 100, 0L, 900));
+        assertEquals(100, admitted(shedder, EventType.TOUCH, 100, 0L, 900));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void budgets_mustCoverEveryType() {
+        new LoadShedder(new int[] {10}, 0.5f);
+    }
+
+    private static int[] budgets(int perSecond) {
+        int[] budgets = new int[EventType.count()];
+        Arrays.fill(budgets, perSecond);
+        return budgets;
+    }
+
+    private static int admitted(LoadShedder shedder, int eventType, int events, long timestamp, int size) {
+        int admitted = 0;
+        for (int i = 0; i < events; i++) {
+            if (shedder.admit(eventType, timestamp, size, CAPACITY)) {
+                admitted++;
+            }
+        }
+        return admitted;
+    }
+}
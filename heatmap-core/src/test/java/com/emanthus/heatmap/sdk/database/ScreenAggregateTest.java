@@ -0,0 +1,46 @@
+package com.emanthus.heatmap.sdk.database;
+
+import com.emanthus.heatmap.sdk.models.HeatmapData;
+import com.emanthus.heatmap.sdk.models.HeatmapSwipe;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScreenAggregateTest {
+
+    @Test
+    public void combine_thenToHeatmapData_sumsPointsAndAveragesSwipes() {
+        List<HeatmapEvent> events = Arrays.asList(
+                new HeatmapEvent(1L, "TOUCH", 1f, 1f, 0.5f, "Main", null),
+                new HeatmapEvent(2L, "TOUCH", 6f, 7f, 0.25f, "Main", null),
+                new HeatmapEvent(3L, "TOUCH", 100f, 100f, 1f, "Main", null),
+                new HeatmapEvent(4L, "SWIPE_UP", 2f, 50f, 2f, 10f, "Main", null),
+                new HeatmapEvent(5L, "SWIPE_UP", 3f, 51f, 3f, 31f, "Main", null),
+                new HeatmapEvent(6L, "TOUCH", 1f, 1f, 1f, null, null));
+
+        List<ScreenAggregate> cells = new ArrayList<>(ScreenAggregate.combine(events));
+        HeatmapData data = ScreenAggregate.toHeatmapData("Main", cells, Collections.emptyList());
+
+        // Two tap cells, one with two taps; the event without a screen is skipped.
+        assertEquals(3, cells.size());
+        assertEquals(2, data.getPoints().size());
+        float total = 0;
+        for (int i = 0; i < data.getPoints().size(); i++) {
+            total += data.getPoints().get(i).getIntensity();
+        }
+        assertEquals(1.75f, total, 1e-6f);
+
+        assertEquals(1, data.getSwipes().size());
+        HeatmapSwipe swipe = data.getSwipes().get(0);
+        assertEquals(ScreenAggregate.cellCenter(0), swipe.getStartX(), 0f);
+        assertEquals(ScreenAggregate.cellCenter(6), swipe.getStartY(), 0f);
+        // Average displacement of (0, -40) and (0, -20).
+        assertEquals(swipe.getStartY() - 30f, swipe.getEndY(), 1e-4f);
+    }
+}
@@ -0,0 +1,31 @@
+package com.emanthus.heatmap.sdk.database;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScreenTrailTest {
+
+    @Test
+    public void of_keepsTheTrailsOfEventsWithAScreen() {
+        HeatmapEvent scroll = new HeatmapEvent(1L, "SCROLL", 0f, 0f, 0f, 100f, "Main", null);
+        scroll.setTrail("0,0;0,100");
+        HeatmapEvent tap = new HeatmapEvent(2L, "TOUCH", 5f, 5f, 1f, "Main", null);
+        HeatmapEvent noScreen = new HeatmapEvent(3L, "SCROLL", 0f, 0f, 0f, 50f, null, null);
+        noScreen.setTrail("0,0;0,50");
+        HeatmapEvent later = new HeatmapEvent(4L, "SCROLL", 10f, 10f, 90f, 10f, "Settings", null);
+        later.setTrail("10,10;90,10");
+
+        List<ScreenTrail> trails = ScreenTrail.of(Arrays.asList(scroll, tap, noScreen, later));
+
+        assertEquals(2, trails.size());
+        assertEquals("Main", trails.get(0).getScreenName());
+        assertEquals(1L, trails.get(0).getTimestamp());
+        assertEquals("0,0;0,100", trails.get(0).getTrail());
+        assertEquals("Settings", trails.get(1).getScreenName());
+        assertEquals("10,10;90,10", trails.get(1).getTrail());
+    }
+}
@@ -0,0 +1,75 @@
+package com.emanthus.heatmap.sdk.database;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StoredEventTest {
+
+    @Test
+    public void quantize_roundTripsWithinAFractionOfAPixel() {
+        int extent = 2400;
+        for (float value = 0f; value <= extent; value += 0.37f) {
+            float restored = StoredEvent.dequantize(StoredEvent.quantize(value, extent), extent);
+            assertEquals(value, restored, StoredEvent.RANGE_SIZE * extent / (2f * StoredEvent.QUANTIZATION_STEPS) + 1e-3f);
+        }
+    }
+
+    @Test
+    public void quantize_usesTheWholeSignedShortRangeAndClamps() {
+        assertEquals(Short.MIN_VALUE, StoredEvent.quantize(-540f, 1080));
+        assertEquals(Short.MAX_VALUE, StoredEvent.quantize(1620f, 1080));
+        assertEquals(Short.MIN_VALUE, StoredEvent.quantize(-2000f, 1080));
+        assertEquals(Short.MAX_VALUE, StoredEvent.quantize(5000f, 1080));
+        assertEquals(-540f, StoredEvent.dequantize(Short.MIN_VALUE, 1080), 1e-3f);
+        assertEquals(1620f, StoredEvent.dequantize(Short.MAX_VALUE, 1080), 1e-3f);
+    }
+
+    @Test
+    public void quantize_keepsSwipeEndsThatLeaveTheScreen() {
+        HeatmapEvent swipe = new HeatmapEvent(44L, "SWIPE_LEFT", 100f, 1200f, -180f, 1250f, "MainActivity", null);
+        StoredEvent row = new StoredEvent(swipe, 3, 2, null, null, 1080, 2400);
+        assertEquals(-180f, StoredEvent.dequantize(row.getEndX(), 1080), 0.02f);
+
+        swipe = new HeatmapEvent(45L, "SWIPE_DOWN", 540f, 2000f, 560f, 2650f, "MainActivity", null);
+        row = new StoredEvent(swipe, 3, 2, null, null, 1080, 2400);
+        assertEquals(2650f, StoredEvent.dequantize(row.getEndY(), 2400), 0.04f);
+    }
+
+    @Test
+    public void extent_fallsBackWhenTheScreenSizeIsUnknown() {
+        assertEquals(1080, StoredEvent.extent(1080));
+        assertEquals(StoredEvent.DEFAULT_EXTENT_PX, StoredEvent.extent(0));
+    }
+
+    @Test
+    public void constructor_quantizesEventAndKeepsNullEndPoints() {
+        HeatmapEvent tap = new HeatmapEvent(42L, "TOUCH", 540f, 1200f, 0.734f, "MainActivity", null);
+        tap.setUploadState(HeatmapEvent.UPLOAD_IN_FLIGHT);
+        tap.setBatchId("batch-1");
+        StoredEvent row = new StoredEvent(tap, 3, 1, null, 7, 1080, 2400);
+
+        assertEquals(42L, row.getTimestamp());
+        assertEquals(3, row.getScreenId());
+        assertNull(row.getUserId());
+        assertEquals(Integer.valueOf(7), row.getViewId());
+        assertEquals(540f, StoredEvent.dequantize(row.getX(), 1080), 0.02f);
+        assertEquals(1200f, StoredEvent.dequantize(row.getY(), 2400), 0.04f);
+        assertNull(row.getEndX());
+        assertNull(row.getEndY());
+        assertEquals(734, row.getIntensity());
+        assertEquals(HeatmapEvent.UPLOAD_IN_FLIGHT, row.getUploadState());
+        assertEquals("batch-1", row.getBatchId());
+
+        HeatmapEvent swipe = new HeatmapEvent(43L, "SWIPE_UP", 10f, 2000f, 12f, 100f, "MainActivity", "user-1");
+        row = new StoredEvent(swipe, 3, 2, 1, null, 1080, 2400);
+        assertEquals(100f, StoredEvent.dequantize(row.getEndY(), 2400), 0.04f);
+        assertEquals(800, row.getIntensity());
+    }
+
+    @Test
+    public void quantizeIntensity_clampsToTheStoredRange() {
+        assertEquals(0, StoredEvent.quantizeIntensity(-1f));
+        assertEquals(Short.MAX_VALUE, StoredEvent.quantizeIntensity(100f));
+    }
+}
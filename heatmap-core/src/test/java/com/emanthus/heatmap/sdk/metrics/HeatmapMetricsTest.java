@@ -0,0 +1,38 @@
+package com.emanthus.heatmap.sdk.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HeatmapMetricsTest {
+
+    @Test
+    public void snapshot_reportsRecordedValues() {
+        HeatmapMetrics metrics = new HeatmapMetrics();
+        metrics.onEventRecorded();
+        metrics.onEventRecorded();
+        metrics.onEventDropped();
+        metrics.onEventsPersisted(2, TimeUnit.MILLISECONDS.toNanos(3));
+        metrics.onBytesUploaded(1200);
+        metrics.onBytesUploaded(800);
+        metrics.onUploadFailed();
+        metrics.onScreenshotEncoded(TimeUnit.MILLISECONDS.toNanos(40), 50_000);
+
+        MetricsSnapshot snapshot = metrics.snapshot(7, 3);
+
+        assertEquals(2, snapshot.getEventsRecorded());
+        assertEquals(1, snapshot.getEventsDropped());
+        assertEquals(2, snapshot.getEventsPersisted());
+        assertEquals(7, snapshot.getBufferedEvents());
+        assertEquals(3, snapshot.getQueuedTasks());
+        assertEquals(3000, snapshot.getInsertLatency().getMax());
+        assertEquals(2000, snapshot.getBytesUploaded());
+        assertEquals(1, snapshot.getUploadFailures());
+        assertEquals(40_000, snapshot.getScreenshotEncodeTime().getMax());
+        assertEquals(50_000, snapshot.getScreenshotBytes().getMax());
+        assertEquals(0, snapshot.getRenderTime().getCount());
+        assertEquals(0, snapshot.getFlushLatency().getCount());
+    }
+}
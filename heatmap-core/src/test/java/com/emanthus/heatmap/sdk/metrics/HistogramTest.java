@@ -0,0 +1,62 @@
+package com.emanthus.heatmap.sdk.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void bucket_isPowerOfTwoRange() {
+        assertEquals(0, Histogram.bucket(0));
+        assertEquals(1, Histogram.bucket(1));
+        assertEquals(2, Histogram.bucket(3));
+        assertEquals(3, Histogram.bucket(4));
+        assertEquals(63, Histogram.bucket(Long.MAX_VALUE));
+        assertEquals(7, Histogram.bucketUpperBound(3));
+    }
+
+    @Test
+    public void percentiles_areWithinAFactorOfTwo() {
+        Histogram histogram = new Histogram();
+        for (int value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500.5, snapshot.getMean(), 1e-9);
+        assertEquals(1000, snapshot.getMax());
+        long p50 = snapshot.getPercentile(0.5);
+        assertTrue("p50 was " + p50, p50 >= 500 && p50 < 1000);
+        // Capped at the largest recorded value rather than the bucket bound of 1023.
+        assertEquals(1000, snapshot.getPercentile(0.99));
+        assertEquals(0, new Histogram().snapshot().getPercentile(0.5));
+    }
+
+    @Test
+    public void concurrentRecording_losesNothing() throws Exception {
+        Histogram histogram = new Histogram();
+        int threads = 4;
+        int perThread = 100_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    histogram.record(i % 100);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(threads * perThread, snapshot.getCount());
+        assertEquals(threads * (perThread / 100) * 4950L, snapshot.getSum());
+        assertEquals(99, snapshot.getMax());
+    }
+}
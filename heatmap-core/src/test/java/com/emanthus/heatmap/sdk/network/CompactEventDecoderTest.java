@@ -0,0 +1,97 @@
+package com.emanthus.heatmap.sdk.network;
+
+import com.emanthus.heatmap.sdk.database.HeatmapEvent;
+import com.emanthus.heatmap.sdk.database.TrailCodec;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+public class CompactEventDecoderTest {
+
+    @Test
+    public void decode_roundTripsBatch() throws Exception {
+        List<HeatmapEvent> events = new ArrayList<>();
+        events.add(new HeatmapEvent(1_700_000_000_500L, "TOUCH", 12.5f, 300f, 0.75f, "MainActivity", "user-1"));
+        events.add(new HeatmapEvent(1_700_000_000_100L, "SWIPE_UP", 500f, 1800f, 510f, 200f, "SettingsActivity", "user-1"));
+        events.add(new HeatmapEvent(1_700_000_001_000L, "TOUCH", 0f, 0f, 1.2f, "MainActivity", "user-1"));
+        events.get(0).setViewId("checkout_button");
+        events.get(2).setViewId("checkout_button");
+
+        Buffer body = new Buffer();
+        new CompactEventsRequestBody(events, "user-1", null).writeTo(body);
+        CompactEventDecoder.Batch batch = CompactEventDecoder.decode(body);
+
+        assertEquals("user-1", batch.userId);
+        assertNull(batch.token);
+        assertEquals(events.size(), batch.events.size());
+        for (int i = 0; i < events.size(); i++) {
+            HeatmapEvent expected = events.get(i);
+            HeatmapEvent actual = batch.events.get(i);
+            assertEquals(expected.getTimestamp(), actual.getTimestamp());
+            assertEquals(expected.getEventType(), actual.getEventType());
+            assertEquals(expected.getScreenName(), actual.getScreenName());
+            assertEquals(expected.getViewId(), actual.getViewId());
+            assertEquals(expected.getX(), actual.getX(), 0.05f);
+            assertEquals(expected.getY(), actual.getY(), 0.05f);
+            assertEquals(expected.getIntensity(), actual.getIntensity(), 0.001f);
+            if (expected.getEndX() == null) {
+                assertNull(actual.getEndX());
+            } else {
+                assertEquals(expected.getEndX(), actual.getEndX(), 0.05f);
+                assertEquals(expected.getEndY(), actual.getEndY(), 0.05f);
+            }
+        }
+    }
+
+    @Test
+    public void decode_keepsScrollTrails() throws Exception {
+        float[] path = {540f, 1600f, 552.5f, 1200f, 530f, 640.3f, 541f, 400f};
+        HeatmapEvent scroll = new HeatmapEvent(1_700_000_000_000L, "SCROLL", 540f, 1600f, 541f, 400f, "MainActivity", null);
+        scroll.setTrail(TrailCodec.encode(path, 4));
+        List<HeatmapEvent> events = new ArrayList<>();
+        events.add(scroll);
+        events.add(new HeatmapEvent(1_700_000_000_500L, "TOUCH", 10f, 20f, 1f, "MainActivity", null));
+
+        Buffer body = new Buffer();
+        new CompactEventsRequestBody(events, null, null).writeTo(body);
+        CompactEventDecoder.Batch batch = CompactEventDecoder.decode(body);
+
+        assertEquals(scroll.getTrail(), batch.events.get(0).getTrail());
+        assertNull(batch.events.get(1).getTrail());
+        assertArrayEquals(path, TrailCodec.decode(batch.events.get(0).getTrail()), 0.05f);
+    }
+
+    @Test
+    public void compactBatch_isSeveralTimesSmallerThanJson() throws Exception {
+        Random random = new Random(42);
+        String[] screens = {"MainActivity", "ProductDetailActivity", "CheckoutActivity"};
+        List<HeatmapEvent> events = new ArrayList<>();
+        long timestamp = 1_700_000_000_000L;
+        for (int i = 0; i < 500; i++) {
+            timestamp += random.nextInt(400);
+            String screen = screens[i / 170];
+            float x = random.nextInt(10800) / 10f;
+            float y = random.nextInt(19200) / 10f;
+            if (i % 3 == 0) {
+                events.add(new HeatmapEvent(timestamp, "SCROLL", x, y, x + random.nextInt(50), y - random.nextInt(800), screen, "user-1"));
+            } else {
+                events.add(new HeatmapEvent(timestamp, "TOUCH", x, y, random.nextFloat(), screen, "user-1"));
+            }
+        }
+
+        Buffer json = new Buffer();
+        new EventsRequestBody(events, "user-1", "token").writeTo(json);
+        Buffer compact = new Buffer();
+        new CompactEventsRequestBody(events, "user-1", "token").writeTo(compact);
+
+        assertTrue("JSON " + json.size() + " bytes, compact " + compact.size() + " bytes",
+                compact.size() * 5 <= json.size());
+    }
+}
@@ -0,0 +1,145 @@
+package com.emanthus.heatmap.sdk.network;
+
+import com.emanthus.heatmap.sdk.database.HeatmapEvent;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class EventsRequestBodyTest {
+
+    @Test
+    public void writeTo_producesIngestPayload() throws Exception {
+        List<HeatmapEvent> events = new ArrayList<>();
+        events.add(new HeatmapEvent(1_700_000_000_123L, "TOUCH", 12.5f, 300f, 0.75f, "Main\"Activity", "user-1"));
+        events.add(new HeatmapEvent(86_399_999L, "SCROLL", 1f, 2f, 3.25f, 4f, "MainActivity", "user-1"));
+        events.get(0).setViewId("buy_button");
+
+        Buffer buffer = new Buffer();
+        new EventsRequestBody(events, "user-1", null).writeTo(buffer);
+        JSONObject payload = new JSONObject(buffer.readUtf8());
+
+        assertEquals("user-1", payload.getString("id"));
+        assertFalse(payload.has("token"));
+        JSONArray array = payload.getJSONArray("events");
+        assertEquals(2, array.length());
+
+        JSONObject tap = array.getJSONObject(0);
+        assertEquals("Main\"Activity", tap.getString("screen_name"));
+        assertEquals("TOUCH", tap.getString("event_type"));
+        assertEquals(12.5, tap.getDouble("coordinate_x"), 0);
+        assertEquals(300, tap.getDouble("coordinate_y"), 0);
+        assertEquals("2023-11-14T22:13:20.123Z", tap.getString("timestamp"));
+        assertFalse(tap.has("end_x"));
+        assertEquals("buy_button", tap.getString("view_id"));
+
+        JSONObject scroll = array.getJSONObject(1);
+        assertEquals("1970-01-01T23:59:59.999Z", scroll.getString("timestamp"));
+        assertEquals(3.25, scroll.getDouble("end_x"), 0);
+        assertEquals(4, scroll.getDouble("end_y"), 0);
+        assertEquals(0.8, scroll.getDouble("intensity"), 1e-6);
+        assertFalse(scroll.has("view_id"));
+    }
+
+    @Test
+    public void writeTimestamp_matchesIsoInstant() throws IOException {
+        long[] samples = {0L, -1L, 951_782_400_000L, 4_102_444_799_999L, 1_709_251_199_500L};
+        for (long millis : samples) {
+            Buffer buffer = new Buffer();
+            EventsRequestBody.writeTimestamp(buffer, millis);
+            String expected = Instant.ofEpochMilli(millis).toString();
+            if (!expected.contains(".")) {
+                expected = expected.replace("Z", ".000Z");
+            }
+            assertEquals("\"" + expected + "\"", buffer.readUtf8());
+        }
+    }
+
+    /**
+     * Compares bytes allocated per event by the previous org.json serialization
+     * and the streaming body. Writes to a discarding sink so only serialization is measured.
+     */
+    @Test
+    public void streamingBody_allocatesLessPerEventThanJsonTree() throws Exception {
+        java.lang.management.ThreadMXBean mxBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(mxBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadMxBean = (com.sun.management.ThreadMXBean) mxBean;
+        assumeTrue(threadMxBean.isThreadAllocatedMemorySupported());
+        threadMxBean.setThreadAllocatedMemoryEnabled(true);
+
+        int count = 5_000;
+        List<HeatmapEvent> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            events.add(new HeatmapEvent(1_700_000_000_000L + i, "SCROLL", i % 1080, i % 1920, 540f, 960.5f, "MainActivity", "user-1"));
+        }
+
+        long jsonTree = 0;
+        long streaming = 0;
+        for (int round = 0; round < 5; round++) {
+            jsonTree = measure(threadMxBean, jsonTreeBody(events));
+            streaming = measure(threadMxBean, () -> streamingBody(events));
+        }
+
+        String perEvent = "bytes allocated per event: org.json tree=" + jsonTree / count + ", streaming=" + streaming / count;
+        assertTrue(perEvent, streaming * 10 < jsonTree);
+        // Buffer segments are reused, so per-event allocation should stay near zero.
+        assertTrue(perEvent, streaming / count <= 64);
+    }
+
+    private static long measure(com.sun.management.ThreadMXBean threadMxBean, BodyFactory factory) throws Exception {
+        long threadId = Thread.currentThread().getId();
+        try (BufferedSink sink = Okio.buffer(Okio.blackhole())) {
+            long before = threadMxBean.getThreadAllocatedBytes(threadId);
+            factory.create().writeTo(sink);
+            sink.flush();
+            return threadMxBean.getThreadAllocatedBytes(threadId) - before;
+        }
+    }
+
+    private static BodyFactory jsonTreeBody(List<HeatmapEvent> events) {
+        return () -> {
+            JSONArray eventsArray = new JSONArray();
+            for (HeatmapEvent e : events) {
+                JSONObject eventObj = new JSONObject();
+                eventObj.put("screen_name", e.getScreenName());
+                eventObj.put("event_type", e.getEventType());
+                eventObj.put("coordinate_x", e.getX());
+                eventObj.put("coordinate_y", e.getY());
+                eventObj.put("timestamp", new Date(e.getTimestamp()));
+                eventObj.put("end_x", e.getEndX());
+                eventObj.put("end_y", e.getEndY());
+                eventObj.put("intensity", e.getIntensity());
+                eventsArray.put(eventObj);
+            }
+            JSONObject payload = new JSONObject();
+            payload.put("id", "user-1");
+            payload.put("token", "token");
+            payload.put("events", eventsArray);
+            return RequestBody.create(payload.toString(), MediaType.parse("application/json; charset=utf-8"));
+        };
+    }
+
+    private interface BodyFactory {
+        RequestBody create() throws Exception;
+    }
+
+    private static RequestBody streamingBody(List<HeatmapEvent> events) {
+        return new EventsRequestBody(events, "user-1", "token");
+    }
+}
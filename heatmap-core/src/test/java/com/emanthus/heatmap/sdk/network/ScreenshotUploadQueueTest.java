@@ -0,0 +1,350 @@
+package com.emanthus.heatmap.sdk.network;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okio.BufferedSink;
+import okio.Okio;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class ScreenshotUploadQueueTest {
+
+    private static final int CHUNK_BYTES = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private HttpServer server;
+    private String baseUrl;
+    private final OkHttpClient client = new OkHttpClient();
+
+    private static final Pattern TOKEN_PART = Pattern.compile("name=\"token\"\r\n(?:[^\r\n]+\r\n)*\r\n([^\r\n]*)");
+
+    private volatile String currentToken = "token";
+
+    // State of the fake screenshot endpoints.
+    private final AtomicInteger wholeUploads = new AtomicInteger();
+    private volatile String receivedToken;
+    private volatile int failNextRequests;
+    private volatile int failCode = 503;
+    private volatile int failChunkAtOffset = -1;
+    private volatile int failChunkCode = 500;
+    private final Map<String, ByteArrayOutputStream> resumable = new HashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/upload-screenshot", this::handle);
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+
+    @Test
+    public void smallScreenshot_isUploadedAndRemoved() throws Exception {
+        ScreenshotUploadQueue queue = newQueue();
+        enqueue(queue, 10_000);
+
+        assertEquals(1, queue.drain());
+        assertEquals(1, wholeUploads.get());
+        assertEquals(0, queue.size());
+        assertEquals(0, spoolDir().list().length);
+    }
+
+    @Test
+    public void failedUpload_isRetriedAfterRestart() throws Exception {
+        ScreenshotUploadQueue queue = newQueue();
+        enqueue(queue, 10_000);
+        failNextRequests = 1;
+
+        try {
+            queue.drain();
+            fail("Upload should have failed");
+        } catch (IOException expected) {
+            // The screenshot stays queued.
+        }
+        assertEquals(1, queue.size());
+
+        // A new queue over the same directory, as after a process restart.
+        ScreenshotUploadQueue restarted = newQueue();
+        assertEquals(1, restarted.drain());
+        assertEquals(1, wholeUploads.get());
+        assertEquals(0, restarted.size());
+    }
+
+    @Test
+    public void largeScreenshot_resumesWhereTheServerLeftOff() throws Exception {
+        ScreenshotUploadQueue queue = newQueue();
+        byte[] image = enqueue(queue, CHUNK_BYTES * 2 + 1234);
+        failChunkAtOffset = CHUNK_BYTES;
+
+        try {
+            queue.drain();
+            fail("Second chunk should have failed");
+        } catch (IOException expected) {
+            // The first chunk arrived; the rest is sent on the retry.
+        }
+
+        assertEquals(1, newQueue().drain());
+        assertEquals(1, resumable.size());
+        assertArrayEquals(image, resumable.values().iterator().next().toByteArray());
+        assertEquals(0, wholeUploads.get());
+    }
+
+    @Test
+    public void fileBody_streamsWithoutBufferingTheFile() throws Exception {
+        com.sun.management.ThreadMXBean mxBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(mxBean.isThreadAllocatedMemorySupported());
+        File file = temp.newFile();
+        writeRandom(file, 8 * 1024 * 1024);
+        FileRangeRequestBody body = new FileRangeRequestBody(file, MediaType.parse("image/webp"));
+        BufferedSink sink = Okio.buffer(Okio.blackhole());
+        body.writeTo(sink);
+
+        long before = mxBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        body.writeTo(sink);
+        long allocated = mxBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+        assertTrue(allocated < 512 * 1024);
+    }
+
+    @Test
+    public void refusedScreenshot_isDroppedAndTheNextOneUploaded() throws Exception {
+        ScreenshotUploadQueue queue = newQueue();
+        enqueue(queue, 10_000);
+        enqueue(queue, 20_000);
+        failNextRequests = 1;
+        failCode = 404;
+
+        assertEquals(1, queue.drain());
+        assertEquals(1, queue.getRejectedCount());
+        assertEquals(1, wholeUploads.get());
+        assertEquals(0, queue.size());
+        assertEquals(0, spoolDir().list().length);
+    }
+
+    @Test
+    public void refusedChunk_dropsTheResumableUpload() throws Exception {
+        ScreenshotUploadQueue queue = newQueue();
+        enqueue(queue, CHUNK_BYTES * 2);
+        enqueue(queue, 10_000);
+        failChunkAtOffset = CHUNK_BYTES;
+        failChunkCode = 413;
+
+        assertEquals(1, queue.drain());
+        assertEquals(1, queue.getRejectedCount());
+        assertEquals(1, wholeUploads.get());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void authFailure_keepsScreenshotsQueuedForANewToken() throws Exception {
+        ScreenshotUploadQueue queue = newQueue();
+        enqueue(queue, 10_000);
+        enqueue(queue, 20_000);
+        failNextRequests = 1;
+        failCode = 401;
+
+        try {
+            queue.drain();
+            fail("Upload should have failed");
+        } catch (IOException expected) {
+            // Neither the refused screenshot nor the next one is dropped.
+        }
+        assertEquals(2, queue.size());
+        assertEquals(0, queue.getRejectedCount());
+
+        currentToken = "fresh";
+        assertEquals(2, queue.drain());
+        assertEquals("fresh", receivedToken);
+    }
+
+    @Test
+    public void goneSession_restartsTheResumableUpload() throws Exception {
+        ScreenshotUploadQueue queue = newQueue();
+        byte[] image = enqueue(queue, CHUNK_BYTES * 2 + 1234);
+        failChunkAtOffset = CHUNK_BYTES;
+        failChunkCode = 410;
+
+        assertEquals(1, queue.drain());
+        assertEquals(0, queue.getRejectedCount());
+        // The first session has only the chunk sent before it expired; the second has the whole file.
+        assertEquals(2, resumable.size());
+        boolean complete = false;
+        for (ByteArrayOutputStream received : resumable.values()) {
+            complete |= Arrays.equals(image, received.toByteArray());
+        }
+        assertTrue(complete);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void token_isFetchedAtUploadTimeAndNeverSpooled() throws Exception {
+        ScreenshotUploadQueue queue = newQueue();
+        enqueue(queue, 10_000);
+        for (File file : spoolDir().listFiles()) {
+            assertFalse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1).contains("token"));
+        }
+
+        currentToken = null;
+        try {
+            queue.drain();
+            fail("Upload should wait for a token");
+        } catch (IOException expected) {
+            assertEquals(1, queue.size());
+        }
+
+        currentToken = "fresh";
+        assertEquals(1, queue.drain());
+        assertEquals("fresh", receivedToken);
+    }
+
+    @Test
+    public void firstDrain_sweepsWhatAnEarlierProcessLeftBehind() throws Exception {
+        File dir = spoolDir();
+        assertTrue(dir.mkdirs());
+        writeRandom(new File(dir, "0000000000001_0000.webp"), 100);
+        writeRandom(new File(dir, "0000000000002_0000.meta.tmp"), 100);
+        // An entry spooled by an earlier version, with the token in its metadata.
+        writeRandom(new File(dir, "0000000000003_0000.webp"), 10_000);
+        Properties legacy = new Properties();
+        legacy.setProperty("image", "0000000000003_0000.webp");
+        legacy.setProperty("mime_type", "image/webp");
+        legacy.setProperty("screen_name", "MainActivity");
+        legacy.setProperty("id", "user-1");
+        legacy.setProperty("token", "stale");
+        try (OutputStream out = new FileOutputStream(new File(dir, "0000000000003_0000.meta"))) {
+            legacy.store(out, null);
+        }
+
+        ScreenshotUploadQueue queue = newQueue();
+        // Being written by this process, not queued yet.
+        File spooling = queue.newSpoolFile("webp");
+        writeRandom(spooling, 100);
+
+        assertEquals(1, queue.drain());
+        assertEquals("token", receivedToken);
+        assertEquals(Arrays.asList(spooling.getName()), Arrays.asList(dir.list()));
+    }
+
+    private ScreenshotUploadQueue newQueue() {
+        return new ScreenshotUploadQueue(spoolDir(), client, baseUrl, () -> currentToken, CHUNK_BYTES, 10);
+    }
+
+    private File spoolDir() {
+        return new File(temp.getRoot(), "spool");
+    }
+
+    private byte[] enqueue(ScreenshotUploadQueue queue, int size) throws IOException {
+        File file = queue.newSpoolFile("webp");
+        byte[] bytes = writeRandom(file, size);
+        queue.enqueue(file, "image/webp", "MainActivity", "user-1");
+        return bytes;
+    }
+
+    private static byte[] writeRandom(File file, int size) throws IOException {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+        }
+        return bytes;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = readAll(exchange.getRequestBody());
+        String path = exchange.getRequestURI().getPath();
+        if (failNextRequests > 0) {
+            failNextRequests--;
+            respond(exchange, failCode, null);
+            return;
+        }
+        if (path.equals("/upload-screenshot")) {
+            assertTrue(exchange.getRequestHeaders().getFirst("Content-Type").startsWith("multipart/form-data"));
+            Matcher token = TOKEN_PART.matcher(new String(body, StandardCharsets.ISO_8859_1));
+            receivedToken = token.find() ? token.group(1) : null;
+            wholeUploads.incrementAndGet();
+            respond(exchange, 200, null);
+            return;
+        }
+
+        String uploadId = path.substring(path.lastIndexOf('/') + 1);
+        assertEquals("user-1", exchange.getRequestHeaders().getFirst(ScreenshotUploadQueue.HEADER_USER_ID));
+        receivedToken = exchange.getRequestHeaders().getFirst(ScreenshotUploadQueue.HEADER_TOKEN);
+        ByteArrayOutputStream received;
+        synchronized (resumable) {
+            received = resumable.computeIfAbsent(uploadId, id -> new ByteArrayOutputStream());
+        }
+        // "bytes start-end/total" or "bytes */total"
+        String range = exchange.getRequestHeaders().getFirst("Content-Range").substring("bytes ".length());
+        long total = Long.parseLong(range.substring(range.indexOf('/') + 1));
+        if (!range.startsWith("*")) {
+            long start = Long.parseLong(range.substring(0, range.indexOf('-')));
+            if (start == failChunkAtOffset) {
+                failChunkAtOffset = -1;
+                respond(exchange, failChunkCode, null);
+                return;
+            }
+            assertEquals(received.size(), start);
+            received.write(body);
+        }
+        if (received.size() == total) {
+            respond(exchange, 201, null);
+        } else {
+            respond(exchange, ScreenshotUploadQueue.HTTP_RESUME_INCOMPLETE,
+                    received.size() == 0 ? null : "bytes=0-" + (received.size() - 1));
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int code, String range) throws IOException {
+        if (range != null) {
+            exchange.getResponseHeaders().set("Range", range);
+        }
+        exchange.sendResponseHeaders(code, -1);
+        exchange.close();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int read; (read = in.read(buffer)) != -1; ) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
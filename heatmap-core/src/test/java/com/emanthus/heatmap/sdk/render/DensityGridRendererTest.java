@@ -0,0 +1,94 @@
+package com.emanthus.heatmap.sdk.render;
+
+import com.emanthus.heatmap.sdk.models.HeatmapDataPoint;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DensityGridRendererTest {
+
+    private static final int[] COLORS = {0x00000000, 0x800000FF, 0xFFFF0000};
+    private static final float[] STOPS = {0f, 0.4f, 1f};
+
+    @Test
+    public void kernel_isSymmetricWithAPeakOfOneAndAGaussianSum() {
+        int radius = 30;
+        float[] kernel = DensityGridRenderer.buildKernel(radius);
+
+        assertEquals(2 * radius + 1, kernel.length);
+        assertEquals(1f, kernel[radius], 0f);
+        float sum = 0f;
+        for (int i = 0; i < kernel.length; i++) {
+            assertEquals(kernel[i], kernel[kernel.length - 1 - i], 0f);
+            sum += kernel[i];
+        }
+        // Sigma is a third of the radius, so the weights cover 99.7% of sigma * sqrt(2 * pi).
+        double sigma = radius / 3.0;
+        assertEquals(sigma * Math.sqrt(2 * Math.PI) * 0.9973, sum, 0.05);
+    }
+
+    @Test
+    public void colorTable_hitsEveryStopAndBlendsBetweenThem() {
+        DensityGridRenderer renderer = new DensityGridRenderer(COLORS, STOPS, 40, 4);
+
+        assertEquals(COLORS[0], renderer.colorTable[0]);
+        assertEquals(COLORS[1], renderer.colorTable[102]);
+        assertEquals(COLORS[2], renderer.colorTable[255]);
+        // Halfway between the first two stops.
+        int blend = renderer.colorTable[51];
+        assertEquals(0x40, blend >>> 24);
+        assertEquals(0, (blend >> 8) & 0xFFFF);
+        assertEquals(0x80, blend & 0xFF, 1);
+    }
+
+    @Test
+    public void render_peaksAtThePointAndFadesToTheLowestColor() {
+        DensityGridRenderer renderer = new DensityGridRenderer(COLORS, STOPS, 40, 4);
+        int[] pixels = renderer.render(Collections.singletonList(new HeatmapDataPoint(202f, 102f, 1f)), 400, 200);
+
+        int width = renderer.getGridWidth();
+        assertEquals(COLORS[2], pixels[25 * width + 50]);
+        assertEquals(COLORS[0], pixels[0]);
+        assertEquals(COLORS[0], pixels[pixels.length - 1]);
+    }
+
+    @Test
+    public void render_roundsTheGridUpAndSkipsPointsOutsideIt() {
+        DensityGridRenderer renderer = new DensityGridRenderer(COLORS, STOPS, 40, 4);
+        List<HeatmapDataPoint> points = new ArrayList<>();
+        points.add(new HeatmapDataPoint(-2f, 50f, 1f));
+        points.add(new HeatmapDataPoint(50f, -2f, 1f));
+        points.add(new HeatmapDataPoint(404f, 50f, 1f));
+        points.add(new HeatmapDataPoint(50f, 204f, 1f));
+        int[] pixels = renderer.render(points, 401, 201);
+
+        assertEquals(101, renderer.getGridWidth());
+        assertEquals(51, renderer.getGridHeight());
+        for (int pixel : pixels) {
+            assertEquals(COLORS[0], pixel);
+        }
+
+        // The last, partial cell is part of the grid.
+        pixels = renderer.render(Collections.singletonList(new HeatmapDataPoint(400.5f, 200.5f, 1f)), 401, 201);
+        assertEquals(COLORS[2], pixels[pixels.length - 1]);
+    }
+
+    @Test
+    public void copy_rendersTheSameIntoBuffersOfItsOwn() {
+        DensityGridRenderer renderer = new DensityGridRenderer(COLORS, STOPS, 40, 4);
+        DensityGridRenderer copy = renderer.copy();
+        List<HeatmapDataPoint> points = Collections.singletonList(new HeatmapDataPoint(100f, 100f, 1f));
+
+        int[] original = renderer.render(points, 300, 300);
+        int[] copied = copy.render(points, 300, 300);
+
+        assertNotSame(original, copied);
+        assertArrayEquals(original, copied);
+        assertEquals(renderer.getCellSize(), copy.getCellSize());
+    }
+}
@@ -0,0 +1,125 @@
+package com.emanthus.heatmap.sdk.render;
+
+import com.emanthus.heatmap.sdk.models.HeatmapDataPoint;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DensityPyramidTest {
+
+    @Test
+    public void levels_halveDownToOneCellAndKeepTheTotal() {
+        List<HeatmapDataPoint> points = randomPoints(500, 1080, 2400);
+        DensityPyramid pyramid = new DensityPyramid(points, 1080, 2400, 2);
+
+        assertEquals(540, pyramid.getLevelWidth(0));
+        assertEquals(1200, pyramid.getLevelHeight(0));
+        assertEquals(270, pyramid.getLevelWidth(1));
+        assertEquals(4, pyramid.getCellSize(1));
+        int last = pyramid.getLevelCount() - 1;
+        assertEquals(1, pyramid.getLevelWidth(last));
+        assertEquals(1, pyramid.getLevelHeight(last));
+
+        float expected = 0f;
+        for (HeatmapDataPoint point : points) {
+            expected += point.getIntensity();
+        }
+        for (int level = 0; level <= last; level++) {
+            int width = pyramid.getLevelWidth(level);
+            int height = pyramid.getLevelHeight(level);
+            float[] cells = new float[width * height];
+            pyramid.copyRegion(level, 0, 0, width, height, cells);
+            float total = 0f;
+            for (float cell : cells) {
+                total += cell;
+            }
+            assertEquals("level " + level, expected, total, expected * 1e-4f);
+        }
+    }
+
+    @Test
+    public void levelFor_picksFinestLevelAtLeastTheScreenCellSize() {
+        DensityPyramid pyramid = new DensityPyramid(new ArrayList<>(), 1080, 2400, 2);
+
+        assertEquals(1, pyramid.levelFor(1f, 4));
+        assertEquals(1, pyramid.levelFor(1.5f, 4));
+        assertEquals(0, pyramid.levelFor(2f, 4));
+        assertEquals(0, pyramid.levelFor(8f, 4));
+        assertEquals(3, pyramid.levelFor(0.25f, 4));
+    }
+
+    @Test
+    public void copyRegion_zeroFillsOutsideTheLevel() {
+        List<HeatmapDataPoint> points = new ArrayList<>();
+        points.add(new HeatmapDataPoint(0f, 0f, 2f));
+        DensityPyramid pyramid = new DensityPyramid(points, 8, 8, 4);
+
+        float[] region = {9f, 9f, 9f, 9f, 9f, 9f, 9f, 9f, 9f};
+        pyramid.copyRegion(0, -1, -1, 3, 3, region);
+
+        assertArrayEquals(new float[] {0f, 0f, 0f, 0f, 2f, 0f, 0f, 0f, 0f}, region, 0f);
+    }
+
+    @Test
+    public void tiles_atZoomOneMatchTheWholeViewRender() {
+        int width = 700;
+        int height = 500;
+        List<HeatmapDataPoint> points = randomPoints(2000, width, height);
+        DensityGridRenderer grid = new DensityGridRenderer();
+        int[] expected = grid.render(points, width, height).clone();
+
+        DensityPyramid pyramid = new DensityPyramid(points, width, height, grid.getCellSize() / 2);
+        DensityTileRenderer tiles = new DensityTileRenderer(pyramid, new DensityGridRenderer());
+        int level = pyramid.levelFor(1f, grid.getCellSize());
+        assertEquals(grid.getGridWidth(), pyramid.getLevelWidth(level));
+        assertEquals(grid.getGridHeight(), pyramid.getLevelHeight(level));
+        assertTrue(pyramid.getTileColumns(level) > 1 && pyramid.getTileRows(level) > 1);
+
+        int[] stitched = new int[expected.length];
+        for (int row = 0; row < pyramid.getTileRows(level); row++) {
+            for (int column = 0; column < pyramid.getTileColumns(level); column++) {
+                int tileWidth = tiles.getTileWidth(level, column);
+                int tileHeight = tiles.getTileHeight(level, row);
+                int[] pixels = tiles.renderTile(level, column, row);
+                for (int y = 0; y < tileHeight; y++) {
+                    System.arraycopy(pixels, y * tileWidth, stitched,
+                            (row * DensityPyramid.TILE_SIZE + y) * grid.getGridWidth() + column * DensityPyramid.TILE_SIZE,
+                            tileWidth);
+                }
+            }
+        }
+        assertArrayEquals(expected, stitched);
+    }
+
+    @Test
+    public void tiles_keepASpotsColorAcrossLevels() {
+        List<HeatmapDataPoint> points = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            points.add(new HeatmapDataPoint(400f, 400f, 1f));
+        }
+        DensityPyramid pyramid = new DensityPyramid(points, 800, 800, 2);
+        DensityTileRenderer tiles = new DensityTileRenderer(pyramid, new DensityGridRenderer());
+
+        // The spot is the densest one, so it has the top color at zoom 1 and roughly keeps it zoomed in.
+        int top = DensityGridRenderer.DEFAULT_GRADIENT_COLORS[DensityGridRenderer.DEFAULT_GRADIENT_COLORS.length - 1];
+        int[] reference = tiles.renderTile(1, 1, 1);
+        assertEquals(top, reference[(100 - 64) * tiles.getTileWidth(1, 1) + (100 - 64)]);
+        int[] zoomed = tiles.renderTile(0, 3, 3);
+        assertEquals(0xFF, zoomed[(200 - 192) * tiles.getTileWidth(0, 3) + (200 - 192)] >>> 24);
+    }
+
+    private static List<HeatmapDataPoint> randomPoints(int count, int width, int height) {
+        Random random = new Random(42);
+        List<HeatmapDataPoint> points = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            points.add(new HeatmapDataPoint(random.nextFloat() * width, random.nextFloat() * height,
+                    0.2f + random.nextFloat() * 0.8f));
+        }
+        return points;
+    }
+}
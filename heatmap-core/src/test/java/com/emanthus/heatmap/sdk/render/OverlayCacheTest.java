@@ -0,0 +1,222 @@
+package com.emanthus.heatmap.sdk.render;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class OverlayCacheTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final QueuedExecutor writer = new QueuedExecutor();
+    private final BytesCodec codec = new BytesCodec();
+
+    @Test
+    public void key_differsByScreenSizeAndDataVersion() {
+        String key = OverlayCache.key("home", 100, 200, "5");
+        assertEquals("home_100x200_5", key);
+        assertNotEquals(key, OverlayCache.key("settings", 100, 200, "5"));
+        assertNotEquals(key, OverlayCache.key("home", 200, 100, "5"));
+        assertNotEquals(key, OverlayCache.key("home", 100, 200, "6"));
+    }
+
+    @Test
+    public void memory_evictsTheLeastRecentlyUsedOverlaysOverBudget() {
+        OverlayCache<byte[]> cache = newCache(250);
+        cache.put("a_1x1_1", new byte[100]);
+        cache.put("b_1x1_1", new byte[100]);
+        assertNotNull(cache.get("a_1x1_1"));
+        cache.put("c_1x1_1", new byte[100]);
+
+        assertNotNull(cache.get("a_1x1_1"));
+        assertNull(cache.get("b_1x1_1"));
+        assertNotNull(cache.get("c_1x1_1"));
+        OverlayCache.Stats stats = cache.getStats();
+        assertEquals(3, stats.memoryHits);
+        assertEquals(1, stats.misses);
+        assertEquals(1, stats.evictions);
+        assertEquals(200, stats.sizeBytes);
+        assertEquals(250, stats.maxSizeBytes);
+        assertEquals(0.75f, stats.getHitRate(), 1e-6f);
+    }
+
+    @Test
+    public void memory_replacingAnOverlayCountsOnlyTheNewOne() {
+        OverlayCache<byte[]> cache = newCache(1000);
+        cache.put("a_1x1_1", new byte[100]);
+        cache.put("a_1x1_1", new byte[300]);
+        assertEquals(300, cache.getStats().sizeBytes);
+    }
+
+    @Test
+    public void disk_isWrittenOnTheWriterAndReadAfterARestart() {
+        OverlayCache<byte[]> cache = newCache(1000);
+        cache.setDiskEnabled(true);
+        cache.put("home_10x10_1", new byte[]{1, 2, 3});
+        // Nothing is encoded on the thread that rendered the overlay.
+        assertEquals(0, diskFiles().length);
+        assertEquals(1, writer.tasks.size());
+        writer.runAll();
+        assertArrayEquals(new String[]{"home_10x10_1.bin"}, diskFiles());
+
+        OverlayCache<byte[]> restarted = newCache(1000);
+        restarted.setDiskEnabled(true);
+        assertArrayEquals(new byte[]{1, 2, 3}, restarted.get("home_10x10_1"));
+        assertNotNull(restarted.get("home_10x10_1"));
+        OverlayCache.Stats stats = restarted.getStats();
+        assertEquals(1, stats.diskHits);
+        assertEquals(1, stats.memoryHits);
+        assertEquals(0, stats.misses);
+    }
+
+    @Test
+    public void disk_keepsOnlyTheNewestDataVersionOfAScreenAndSize() {
+        OverlayCache<byte[]> cache = newCache(1000);
+        cache.setDiskEnabled(true);
+        cache.put("home_10x10_1", new byte[]{1});
+        cache.put("home_20x20_1", new byte[]{2});
+        writer.runAll();
+        cache.put("home_10x10_2", new byte[]{3});
+        writer.runAll();
+
+        assertArrayEquals(new String[]{"home_10x10_2.bin", "home_20x20_1.bin"}, diskFiles());
+        OverlayCache<byte[]> restarted = newCache(1000);
+        restarted.setDiskEnabled(true);
+        assertNull(restarted.get("home_10x10_1"));
+        assertArrayEquals(new byte[]{3}, restarted.get("home_10x10_2"));
+    }
+
+    @Test
+    public void disk_writesOnlyTheLatestOfVersionsPutBeforeTheWriterRuns() {
+        OverlayCache<byte[]> cache = newCache(1000);
+        cache.setDiskEnabled(true);
+        cache.put("home_10x10_1", new byte[]{1});
+        cache.put("home_10x10_2", new byte[]{2});
+        cache.put("settings_10x10_1", new byte[]{3});
+        assertEquals(1, writer.tasks.size());
+
+        writer.runAll();
+        assertEquals(2, codec.encodes);
+        assertArrayEquals(new String[]{"home_10x10_2.bin", "settings_10x10_1.bin"}, diskFiles());
+    }
+
+    @Test
+    public void clear_dropsMemoryFilesAndWritesNotStartedYet() {
+        OverlayCache<byte[]> cache = newCache(1000);
+        cache.setDiskEnabled(true);
+        cache.put("home_10x10_1", new byte[]{1});
+        writer.runAll();
+        cache.put("settings_10x10_1", new byte[]{2});
+
+        cache.clear();
+        writer.runAll();
+        assertEquals(0, diskFiles().length);
+        assertNull(cache.get("home_10x10_1"));
+        assertNull(cache.get("settings_10x10_1"));
+        assertEquals(0, cache.getStats().sizeBytes);
+
+        // The writer is scheduled again for later puts.
+        cache.put("home_10x10_2", new byte[]{3});
+        writer.runAll();
+        assertArrayEquals(new String[]{"home_10x10_2.bin"}, diskFiles());
+    }
+
+    @Test
+    public void diskDisabled_neitherWritesNorReads() throws IOException {
+        File dir = temp.newFolder("overlays");
+        Files.write(new File(dir, "home_10x10_1.bin").toPath(), new byte[]{1});
+        OverlayCache<byte[]> cache = newCache(1000);
+        cache.put("settings_10x10_1", new byte[]{2});
+
+        assertTrue(writer.tasks.isEmpty());
+        assertNull(cache.get("home_10x10_1"));
+        assertEquals(1, cache.getStats().misses);
+    }
+
+    @Test
+    public void failedEncode_leavesNoFile() {
+        OverlayCache<byte[]> cache = newCache(1000);
+        cache.setDiskEnabled(true);
+        cache.put("home_10x10_1", new byte[0]);
+        writer.runAll();
+        assertEquals(0, diskFiles().length);
+        assertNotNull(cache.get("home_10x10_1"));
+    }
+
+    private OverlayCache<byte[]> newCache(int maxBytes) {
+        return new OverlayCache<>(maxBytes, new File(temp.getRoot(), "overlays"), ".bin", codec, writer);
+    }
+
+    private String[] diskFiles() {
+        String[] names = new File(temp.getRoot(), "overlays").list();
+        if (names == null) {
+            return new String[0];
+        }
+        Arrays.sort(names);
+        return names;
+    }
+
+    /** Stores byte arrays as is, and refuses to encode empty ones. */
+    private final class BytesCodec implements OverlayCache.Codec<byte[]> {
+        int encodes;
+
+        @Override
+        public int sizeOf(byte[] overlay) {
+            return overlay.length;
+        }
+
+        @Override
+        public boolean encode(byte[] overlay, OutputStream out) throws IOException {
+            assertTrue("Encoded outside the writer", writer.running);
+            if (overlay.length == 0) {
+                return false;
+            }
+            encodes++;
+            out.write(overlay);
+            return true;
+        }
+
+        @Override
+        public byte[] decode(File file) {
+            try {
+                return Files.readAllBytes(file.toPath());
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+
+    /** Queues tasks until the test runs them. */
+    private static final class QueuedExecutor implements Executor {
+        boolean running;
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                running = true;
+                try {
+                    tasks.remove(0).run();
+                } finally {
+                    running = false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.emanthus.heatmap.sdk.render;
+
+import com.emanthus.heatmap.sdk.models.HeatmapSwipe;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SwipeFlowFieldTest {
+
+    @Test
+    public void directionBin_isCountedClockwiseFromRightInScreenCoordinates() {
+        assertEquals(0, SwipeFlowField.directionBin(10f, 0f));
+        assertEquals(1, SwipeFlowField.directionBin(10f, 10f));
+        assertEquals(2, SwipeFlowField.directionBin(0f, 10f));
+        assertEquals(4, SwipeFlowField.directionBin(-10f, 0f));
+        assertEquals(6, SwipeFlowField.directionBin(0f, -10f));
+        assertEquals(0, SwipeFlowField.directionBin(10f, -1f));
+    }
+
+    @Test
+    public void cells_holdDirectionAndLengthHistogramsWeightedByIntensity() {
+        List<HeatmapSwipe> swipes = new ArrayList<>();
+        swipes.add(new HeatmapSwipe(10f, 10f, 60f, 10f, 1f));    // right, short
+        swipes.add(new HeatmapSwipe(20f, 20f, 20f, 620f, 0.5f)); // down, over half the screen
+        swipes.add(new HeatmapSwipe(150f, 10f, 150f, 10f, 1f));  // no movement
+        swipes.add(new HeatmapSwipe(-5f, 10f, 50f, 10f, 1f));    // starts off screen
+        SwipeFlowField field = new SwipeFlowField(swipes, 1000, 1000, 100);
+
+        assertEquals(10, field.getColumns());
+        assertEquals(10, field.getRows());
+        assertEquals(1.5f, field.getWeight(0, 0), 1e-6f);
+        assertEquals(1f, field.getDirectionWeight(0, 0, 0), 1e-6f);
+        assertEquals(0.5f, field.getDirectionWeight(0, 0, 2), 1e-6f);
+        assertEquals(1f, field.getMagnitudeWeight(0, 0, 0), 1e-6f);
+        assertEquals(0.5f, field.getMagnitudeWeight(0, 0, SwipeFlowField.MAGNITUDE_BINS - 1), 1e-6f);
+        assertEquals(0, field.getDominantDirection(0, 0));
+        assertEquals(0f, field.getWeight(1, 0), 0f);
+        assertEquals(-1, field.getDominantDirection(1, 0));
+        assertEquals(1, field.getArrowCount());
+    }
+
+    @Test
+    public void arrows_areOnePerOccupiedCellHoweverManySwipes() {
+        Random random = new Random(7);
+        List<HeatmapSwipe> swipes = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            // Mostly upwards left of x = 600, on a cell edge, and mostly leftwards right of it.
+            float x = random.nextFloat() * 1080f;
+            float y = random.nextFloat() * 2400f;
+            float along = -100f - random.nextFloat() * 200f;
+            float across = (random.nextFloat() - 0.5f) * 60f;
+            swipes.add(x < 600f
+                    ? new HeatmapSwipe(x, y, x + across, y + along, 1f)
+                    : new HeatmapSwipe(x, y, x + along, y + across, 1f));
+        }
+        SwipeFlowField field = new SwipeFlowField(swipes, 1080, 2400, 120);
+
+        int cells = field.getColumns() * field.getRows();
+        assertEquals(cells, field.getArrowCount());
+        float[] arrows = new float[field.getArrowCount() * SwipeFlowField.ARROW_STRIDE];
+        assertEquals(cells, field.getArrows(arrows));
+
+        for (int i = 0; i < cells; i++) {
+            int offset = i * SwipeFlowField.ARROW_STRIDE;
+            float dx = arrows[offset + 2] - arrows[offset];
+            float dy = arrows[offset + 3] - arrows[offset + 1];
+            float centerX = (arrows[offset] + arrows[offset + 2]) / 2f;
+            if (centerX < 600f) {
+                assertTrue("up at " + i, dy < 0f && Math.abs(dx) < -dy * 0.2f);
+            } else {
+                assertTrue("left at " + i, dx < 0f && Math.abs(dy) < -dx * 0.2f);
+            }
+            assertTrue(Math.sqrt(dx * dx + dy * dy) <= 120f);
+            assertTrue(arrows[offset + 4] > 0f && arrows[offset + 4] <= 1f);
+        }
+    }
+}